@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.realtransform.AffineTransform;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.complex.ComplexDoubleType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import net.preibisch.stitcher.input.JuliaRealRandomAccessible;
+
+/**
+ * Deterministic benchmark inputs: tiles cut out of the same Julia fractal that {@link net.preibisch.stitcher.input.FractalSpimDataGenerator} uses.
+ */
+public class BenchmarkImages
+{
+	public enum PixelType { FLOAT, UNSIGNED_SHORT, UNSIGNED_BYTE }
+
+	/**
+	 * @param shape - e.g. "512x512" or "128x128x64"
+	 * @return the dimensions
+	 */
+	public static long[] parseShape( final String shape )
+	{
+		final String[] entries = shape.split( "x" );
+		final long[] dim = new long[ entries.length ];
+
+		for ( int d = 0; d < dim.length; ++d )
+			dim[ d ] = Long.parseLong( entries[ d ].trim() );
+
+		return dim;
+	}
+
+	/**
+	 * the fractal, scaled and centered such that an image of the given size shows its structure
+	 */
+	public static RandomAccessible< LongType > fractal( final long[] dim )
+	{
+		final int n = dim.length;
+
+		final JuliaRealRandomAccessible julia = new JuliaRealRandomAccessible( new ComplexDoubleType( -0.4, 0.6 ), 300, 300, n );
+
+		final double scale = Math.min( dim[ 0 ], dim[ 1 ] ) / 3.0;
+		final AffineTransform transform = new AffineTransform( n );
+
+		for ( int d = 0; d < n; ++d )
+		{
+			transform.set( scale, d, d );
+			transform.set( dim[ d ] / 2.0, d, n );
+		}
+
+		return Views.raster( RealViews.affineReal( julia, transform ) );
+	}
+
+	/**
+	 * render a tile of the fractal
+	 * 
+	 * @param fractal - the fractal from {@link #fractal(long[])}
+	 * @param interval - the tile
+	 * @param type - the pixel type (values are clamped to its range)
+	 * @return a zero-min image
+	 */
+	public static < T extends RealType< T > & NativeType< T > > Img< T > render(
+			final RandomAccessible< LongType > fractal,
+			final Interval interval,
+			final T type )
+	{
+		final Img< T > img = new ArrayImgFactory< T >().create( Intervals.dimensionsAsLongArray( interval ), type );
+
+		final Cursor< LongType > in = Views.flatIterable( Views.interval( fractal, interval ) ).cursor();
+		final Cursor< T > out = img.cursor();
+
+		final double max = type.getMaxValue();
+
+		while ( out.hasNext() )
+			out.next().setReal( Math.min( max, in.next().getRealDouble() ) );
+
+		return img;
+	}
+
+	/**
+	 * two overlapping tiles of the same fractal, the second one is shifted by the given fraction of the size
+	 * in x (and a quarter of it in y)
+	 * 
+	 * @return the two tiles
+	 */
+	public static < T extends RealType< T > & NativeType< T > > List< Img< T > > tilePair( final long[] dim, final double shiftFraction, final T type )
+	{
+		final RandomAccessible< LongType > fractal = fractal( dim );
+
+		final long[] min2 = new long[ dim.length ];
+		final long[] max2 = new long[ dim.length ];
+
+		min2[ 0 ] = Math.round( dim[ 0 ] * shiftFraction );
+
+		if ( dim.length > 1 )
+			min2[ 1 ] = Math.round( dim[ 1 ] * shiftFraction / 4 );
+
+		for ( int d = 0; d < dim.length; ++d )
+			max2[ d ] = min2[ d ] + dim[ d ] - 1;
+
+		final ArrayList< Img< T > > tiles = new ArrayList<>();
+		tiles.add( render( fractal, new FinalInterval( dim ), type ) );
+		tiles.add( render( fractal, new FinalInterval( min2, max2 ), type ) );
+
+		return tiles;
+	}
+
+	/**
+	 * @see #tilePair(long[], double, RealType)
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static List< Img > tilePair( final long[] dim, final double shiftFraction, final PixelType pixelType )
+	{
+		if ( pixelType == PixelType.UNSIGNED_SHORT )
+			return (List)tilePair( dim, shiftFraction, new UnsignedShortType() );
+		else if ( pixelType == PixelType.UNSIGNED_BYTE )
+			return (List)tilePair( dim, shiftFraction, new UnsignedByteType() );
+		else
+			return (List)tilePair( dim, shiftFraction, new FloatType() );
+	}
+}
@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.benchmark;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.preibisch.stitcher.algorithm.DownsampleTools;
+import net.preibisch.stitcher.benchmark.BenchmarkImages.PixelType;
+
+/**
+ * Benchmark of downsampling a tile by different (anisotropic) factors.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class DownsampleBenchmark
+{
+	@Param({ "2048x2048", "512x512x128" })
+	public String shape;
+
+	@Param({ "FLOAT", "UNSIGNED_SHORT" })
+	public PixelType pixelType;
+
+	@Param({ "2x2x1", "4x4x2", "8x8x4", "3x3x1" })
+	public String factors;
+
+	ExecutorService service;
+
+	Img img;
+	long[] downsampleFactors;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		service = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		img = BenchmarkImages.tilePair( BenchmarkImages.parseShape( shape ), 0, pixelType ).get( 0 );
+		downsampleFactors = BenchmarkImages.parseShape( factors );
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown()
+	{
+		service.shutdown();
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval downsample()
+	{
+		return DownsampleTools.downsample( img, downsampleFactors, service );
+	}
+}
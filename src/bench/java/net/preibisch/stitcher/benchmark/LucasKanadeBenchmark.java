@@ -0,0 +1,96 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.realtransform.AffineTransform;
+import net.imglib2.type.numeric.real.FloatType;
+import net.preibisch.stitcher.algorithm.lucaskanade.Align;
+import net.preibisch.stitcher.algorithm.lucaskanade.LucasKanadeParameters;
+import net.preibisch.stitcher.algorithm.lucaskanade.LucasKanadeParameters.WarpFunctionType;
+import net.preibisch.stitcher.benchmark.BenchmarkImages.PixelType;
+
+/**
+ * Benchmark of the Lucas-Kanade alignment of two tiles that are shifted by a few pixels, for every warp function.
+ * Align is constructed per invocation, so the benchmark includes the precomputation of gradients and the Hessian.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class LucasKanadeBenchmark
+{
+	@Param({ "512x512", "128x128x64" })
+	public String shape;
+
+	@Param({ "FLOAT", "UNSIGNED_SHORT" })
+	public PixelType pixelType;
+
+	@Param({ "TRANSLATION", "RIGID", "AFFINE" })
+	public WarpFunctionType warpFunction;
+
+	@Param({ "20" })
+	public int maxIterations;
+
+	Img template, image;
+	LucasKanadeParameters params;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		final long[] dim = BenchmarkImages.parseShape( shape );
+
+		// a shift of 2 pixels in x and 1 in y
+		final List< Img > tiles = BenchmarkImages.tilePair( dim, 2.0 / dim[ 0 ], pixelType );
+		template = tiles.get( 0 );
+		image = tiles.get( 1 );
+
+		params = new LucasKanadeParameters( warpFunction, maxIterations, 0.01, false );
+	}
+
+	@Benchmark
+	public AffineTransform align()
+	{
+		final Align lk = new Align( template, new ArrayImgFactory< FloatType >(), params.getWarpFunctionInstance( template.numDimensions() ) );
+		return lk.align( image, params.maxNumIterations, params.minParameterChange );
+	}
+}
@@ -0,0 +1,122 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.benchmark;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imglib2.img.Img;
+import net.imglib2.realtransform.Translation;
+import net.imglib2.realtransform.Translation2D;
+import net.imglib2.realtransform.Translation3D;
+import net.imglib2.realtransform.TranslationGet;
+import net.imglib2.util.Pair;
+import net.preibisch.stitcher.algorithm.PairwiseStitching;
+import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
+import net.preibisch.stitcher.benchmark.BenchmarkImages.PixelType;
+
+/**
+ * Benchmark of the complete pairwise phase correlation of two overlapping tiles.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class PairwiseStitchingBenchmark
+{
+	@Param({ "512x512", "2048x2048", "128x128x64", "256x256x128" })
+	public String shape;
+
+	@Param({ "FLOAT", "UNSIGNED_SHORT", "UNSIGNED_BYTE" })
+	public PixelType pixelType;
+
+	@Param({ "false", "true" })
+	public boolean subpixel;
+
+	ExecutorService service;
+
+	Img img1, img2;
+	TranslationGet t1, t2;
+	PairwiseStitchingParameters params;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		service = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+
+		final long[] dim = BenchmarkImages.parseShape( shape );
+		final double shiftFraction = 0.2;
+
+		final List< Img > tiles = BenchmarkImages.tilePair( dim, shiftFraction, pixelType );
+		img1 = tiles.get( 0 );
+		img2 = tiles.get( 1 );
+
+		// the initial positions are the true ones, the tiles overlap by 80% in x
+		final double[] offset = new double[ dim.length ];
+		offset[ 0 ] = Math.round( dim[ 0 ] * shiftFraction );
+		offset[ 1 ] = Math.round( dim[ 1 ] * shiftFraction / 4 );
+
+		if ( dim.length == 2 )
+		{
+			t1 = new Translation2D();
+			t2 = new Translation2D( offset );
+		}
+		else
+		{
+			t1 = new Translation3D();
+			t2 = new Translation3D( offset );
+		}
+
+		params = new PairwiseStitchingParameters( 0, 5, subpixel, false, false );
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown()
+	{
+		service.shutdown();
+	}
+
+	@Benchmark
+	public Pair< Translation, Double > getShift()
+	{
+		return PairwiseStitching.getShift( img1, img2, t1, t2, params, service );
+	}
+}
@@ -0,0 +1,162 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.phasecorrelation.FourNeighborhoodExtrema;
+import net.imglib2.algorithm.phasecorrelation.PhaseCorrelation2;
+import net.imglib2.algorithm.phasecorrelation.PhaseCorrelation2Util;
+import net.imglib2.algorithm.phasecorrelation.PhaseCorrelationPeak2;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Pair;
+import net.imglib2.view.Views;
+import net.preibisch.stitcher.benchmark.BenchmarkImages.PixelType;
+
+/**
+ * Benchmarks of the phase correlation kernels: PCM computation, peak detection and cross-correlation of candidate shifts.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class PhaseCorrelationBenchmark
+{
+	@Param({ "512x512", "2048x2048", "128x128x64", "256x256x128" })
+	public String shape;
+
+	@Param({ "FLOAT", "UNSIGNED_SHORT" })
+	public PixelType pixelType;
+
+	@Param({ "5" })
+	public int peaksToCheck;
+
+	ExecutorService service;
+
+	Img img1, img2;
+	RandomAccessibleInterval< FloatType > pcm;
+	List< PhaseCorrelationPeak2 > peaks;
+	Pair< Interval, Interval > overlap;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		service = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+
+		final List< Img > tiles = BenchmarkImages.tilePair( BenchmarkImages.parseShape( shape ), 0.2, pixelType );
+		img1 = tiles.get( 0 );
+		img2 = tiles.get( 1 );
+
+		pcm = calculatePCM();
+
+		peaks = PhaseCorrelation2Util.getPCMMaxima( pcm, service, peaksToCheck, true );
+		PhaseCorrelation2Util.expandPeakListToPossibleShifts( peaks, pcm, img1, img2 );
+
+		final PhaseCorrelationPeak2 best = PhaseCorrelation2.getShift( pcm, img1, img2, peaksToCheck, 0, true, false, service );
+		overlap = PhaseCorrelation2Util.getOverlapIntervals( img1, img2, best.getShift() );
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown()
+	{
+		service.shutdown();
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< FloatType > calculatePCM()
+	{
+		return PhaseCorrelation2.calculatePCM(
+				img1, img2, new ArrayImgFactory< FloatType >(), new FloatType(),
+				new ArrayImgFactory< ComplexFloatType >(), new ComplexFloatType(), service );
+	}
+
+	@Benchmark
+	public ArrayList< Pair< Localizable, Double > > findMax()
+	{
+		return FourNeighborhoodExtrema.findMax( Views.extendPeriodic( pcm ), pcm, peaksToCheck );
+	}
+
+	@Benchmark
+	public ArrayList< Pair< Localizable, Double > > findMaxMT()
+	{
+		return FourNeighborhoodExtrema.findMaxMT( Views.extendPeriodic( pcm ), pcm, peaksToCheck, service );
+	}
+
+	@Benchmark
+	public double getCorrelation()
+	{
+		return PhaseCorrelation2Util.getCorrelation(
+				Views.zeroMin( Views.interval( img1, overlap.getA() ) ),
+				Views.zeroMin( Views.interval( img2, overlap.getB() ) ) );
+	}
+
+	@Benchmark
+	public List< PhaseCorrelationPeak2 > calculateCrossCorrParallel()
+	{
+		final ArrayList< PhaseCorrelationPeak2 > candidates = new ArrayList<>();
+		for ( final PhaseCorrelationPeak2 p : peaks )
+			candidates.add( new PhaseCorrelationPeak2( p ) );
+
+		PhaseCorrelation2Util.calculateCrossCorrParallel( candidates, img1, img2, 0, service, false );
+
+		return candidates;
+	}
+
+	@Benchmark
+	public List< PhaseCorrelationPeak2 > calculateCrossCorrParallelInterpolated()
+	{
+		final ArrayList< PhaseCorrelationPeak2 > candidates = new ArrayList<>();
+		for ( final PhaseCorrelationPeak2 p : peaks )
+			candidates.add( new PhaseCorrelationPeak2( p ) );
+
+		PhaseCorrelation2Util.calculateCrossCorrParallel( candidates, img1, img2, 0, service, true );
+
+		return candidates;
+	}
+}
@@ -32,9 +32,8 @@ import net.imglib2.Point;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.RealRandomAccess;
 import net.imglib2.Sampler;
-import net.imglib2.algorithm.phasecorrelation.deprecated.Blending;
+import net.imglib2.algorithm.phasecorrelation.deprecated.BlendingRealRandomAccess;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.display.imagej.ImageJFunctions;
@@ -42,32 +41,31 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
-import net.preibisch.mvrecon.process.fusion.transformed.weights.BlendingRealRandomAccessible;
 
 
 public class BlendedExtendedMirroredRandomAccesible2 <T extends RealType<T>>implements RandomAccessible<T> {
 
 	private RandomAccessibleInterval<T> img;
-	BlendingRealRandomAccessible blending;
 	private int numDimensions;
 	private FinalInterval extDims;
+
+	// the blending weight is separable, so we precompute one weight per position for every dimension
+	private final float[][] weights;
+	private final long[] extMin;
 	
 	public BlendedExtendedMirroredRandomAccesible2(RandomAccessibleInterval<T> img, int[] border) {
 		this.img = img;
 		this.numDimensions = img.numDimensions();
 		
-		float[] blendingBorder = new float[numDimensions];
-		float[] border2 = new float[numDimensions];
-		
 		this.extDims = new FinalInterval(img);		
 		for (int i = 0; i < numDimensions; i++)
-		{
 			extDims = Intervals.expand(extDims, border[i], i);
-			blendingBorder[i] = border[i];
-			border2[i] = 0.0f;
-		}
-		
-		this.blending = new BlendingRealRandomAccessible(extDims, border2, blendingBorder);
+
+		// same weights as a BlendingRealRandomAccessible(extDims, 0, border) at integer positions
+		this.weights = new float[numDimensions][];
+		this.extMin = Intervals.minAsLongArray(extDims);
+		for (int i = 0; i < numDimensions; i++)
+			weights[i] = BlendingRealRandomAccess.computeWeights((int)extDims.dimension(i) - 1, 0.0f, border[i]);
 	}
 	
 	
@@ -81,8 +79,10 @@ public class BlendedExtendedMirroredRandomAccesible2 <T extends RealType<T>>impl
 	}
 
 	/**
-	 * TODO: For efficiency reasons we should implement it as a RandomAccess that actually updates the underlying
-	 * imgRA for every move. This way, the outofbounds can work very efficiently when it is iterated through Views.iterable().cursor()
+	 * RandomAccess that updates the underlying imgRA for every move, so the outofbounds can work efficiently
+	 * when it is iterated through Views.iterable().cursor(). The weight is the product of the precomputed
+	 * weights of dimension 0 and the (cached) product of all other dimensions, which only changes when
+	 * we move to another row.
 	 */
 	public class BlendedRandomAccess extends Point implements RandomAccess<T>
 	{
@@ -91,12 +91,31 @@ public class BlendedExtendedMirroredRandomAccesible2 <T extends RealType<T>>impl
 		}
 
 		RandomAccess<T> imgRA = Views.extendMirrorSingle(img).randomAccess();
-		RealRandomAccess<FloatType> blendRA = blending.realRandomAccess();
 		T val = imgRA.get().createVariable();
 
+		// product of the weights of dimensions 1...n-1 at the current position
+		float rowWeight = 0;
+		boolean rowChanged = true;
+
+		private float rowWeight() {
+			if (rowChanged) {
+				rowWeight = 1;
+				for (int d = 1; d < n && rowWeight != 0; d++)
+					rowWeight *= weight(d);
+				rowChanged = false;
+			}
+			return rowWeight;
+		}
+
+		private float weight(int d) {
+			final long i = position[d] - extMin[d];
+			return (i < 0 || i >= weights[d].length) ? 0 : weights[d][(int)i];
+		}
+
 		@Override
 		public T get() {
-			val.setReal(imgRA.get().getRealFloat() * blendRA.get().getRealFloat());
+			final float w = rowWeight();
+			val.setReal(w == 0 ? 0 : imgRA.get().getRealFloat() * weight(0) * w);
 			return val;
 		}
 
@@ -104,84 +123,84 @@ public class BlendedExtendedMirroredRandomAccesible2 <T extends RealType<T>>impl
 		public void fwd(int d) {
 			super.fwd(d);
 			imgRA.fwd(d);
-			blendRA.fwd(d);
+			rowChanged |= d > 0;
 		}
 
 		@Override
 		public void bck(int d) {
 			super.bck(d);
 			imgRA.bck(d);
-			blendRA.bck(d);
+			rowChanged |= d > 0;
 		}
 
 		@Override
 		public void move(int distance, int d) {
 			super.move(distance, d);
 			imgRA.move(distance, d);
-			blendRA.move(distance, d);
+			rowChanged |= d > 0;
 		}
 
 		@Override
 		public void move(long distance, int d) {
 			super.move(distance, d);
 			imgRA.move(distance, d);
-			blendRA.move(distance, d);
+			rowChanged |= d > 0;
 		}
 
 		@Override
 		public void move(Localizable localizable) {
 			super.move(localizable);
 			imgRA.move(localizable);
-			blendRA.move(localizable);
+			rowChanged = true;
 		}
 
 		@Override
 		public void move(int[] distance) {
 			super.move(distance);
 			imgRA.move(distance);
-			blendRA.move(distance);
+			rowChanged = true;
 		}
 
 		@Override
 		public void move(long[] distance) {
 			super.move(distance);
 			imgRA.move(distance);
-			blendRA.move(distance);
+			rowChanged = true;
 		}
 
 		@Override
 		public void setPosition(Localizable localizable) {
 			super.setPosition(localizable);
 			imgRA.setPosition(localizable);
-			blendRA.setPosition(localizable);
+			rowChanged = true;
 		}
 
 		@Override
 		public void setPosition(int[] position) {
 			super.setPosition(position);
 			imgRA.setPosition(position);
-			blendRA.setPosition(position);
+			rowChanged = true;
 		}
 
 		@Override
 		public void setPosition(long[] position) {
 			super.setPosition(position);
 			imgRA.setPosition(position);
-			blendRA.setPosition(position);
+			rowChanged = true;
 		}
 
 		@Override
 		public void setPosition(int position, int d) {
 			super.setPosition(position, d);
 			imgRA.setPosition(position, d);
-			blendRA.setPosition(position, d);
+			rowChanged |= d > 0;
 		}
 
 		@Override
 		public void setPosition(long position, int d) {
 			super.setPosition(position, d);
 			imgRA.setPosition(position, d);
-			blendRA.setPosition(position, d);
+			rowChanged |= d > 0;
 		}
 
 		@Override
@@ -192,7 +211,7 @@ public class BlendedExtendedMirroredRandomAccesible2 <T extends RealType<T>>impl
 		@Override
 		public RandomAccess<T> copyRandomAccess() {
 			BlendedRandomAccess a = new BlendedRandomAccess();
-			a.move(this);
+			a.setPosition(this);
 			return a;
 		}
 		
@@ -0,0 +1,338 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.algorithm.phasecorrelation;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.fft2.FFT;
+import net.imglib2.algorithm.fft2.FFTMethods;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.complex.ComplexDoubleType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Pair;
+import net.imglib2.view.Views;
+
+/**
+ * The normalized cross correlation (Pearson's r over the overlap, see {@link PhaseCorrelation2Util#getCorrelation(RandomAccessibleInterval, RandomAccessibleInterval)})
+ * of two images for all integer shifts at once: the sums of products for all shifts are computed with one (zero-padded) FFT
+ * correlation, the sums and sums of squares of the overlaps are looked up in summed-area tables. Verifying a shift
+ * is then a constant-time lookup, independent of the size of the overlap.
+ * 
+ * Both images are centered by their mean before, so the sums do not lose precision to large intensity offsets.
+ */
+public class NormalizedCrossCorrelation
+{
+	private final long[] dim1;
+	private final long[] dim2;
+	private final long[] size;
+
+	// sum over the overlap of (img1 - mean1)(img2 - mean2) for every shift, negative shifts wrap around
+	private final RandomAccessibleInterval< DoubleType > products;
+
+	private final SummedAreaTable sat1;
+	private final SummedAreaTable sat2;
+
+	private NormalizedCrossCorrelation(
+			final long[] dim1, final long[] dim2,
+			final RandomAccessibleInterval< DoubleType > products,
+			final SummedAreaTable sat1, final SummedAreaTable sat2 )
+	{
+		this.dim1 = dim1;
+		this.dim2 = dim2;
+		this.size = Intervals.dimensionsAsLongArray( products );
+		this.products = products;
+		this.sat1 = sat1;
+		this.sat2 = sat2;
+	}
+
+	/**
+	 * @param dim1 - dimensions of the first image
+	 * @param dim2 - dimensions of the second image
+	 * @return size of the correlation (FFT-friendly, all shifts without wrap-around)
+	 */
+	public static long[] getCorrelationSize( final Dimensions dim1, final Dimensions dim2 )
+	{
+		final int n = dim1.numDimensions();
+		final long[] linearSize = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			linearSize[ d ] = dim1.dimension( d ) + dim2.dimension( d ) - 1;
+
+		final long[] paddedDimensions = new long[ n ];
+		final long[] fftSize = new long[ n ];
+		FFTMethods.dimensionsRealToComplexFast( new FinalDimensions( linearSize ), paddedDimensions, fftSize );
+
+		return paddedDimensions;
+	}
+
+	/**
+	 * @return approximate memory (in bytes) needed by {@link #compute(RandomAccessibleInterval, RandomAccessibleInterval, ExecutorService)},
+	 * Long.MAX_VALUE if the images are too large for it
+	 */
+	public static long estimateMemory( final Dimensions dim1, final Dimensions dim2 )
+	{
+		final long numElements = Intervals.numElements( getCorrelationSize( dim1, dim2 ) );
+		final long satElements = Math.max( SummedAreaTable.numElements( dim1 ), SummedAreaTable.numElements( dim2 ) );
+
+		if ( numElements >= Integer.MAX_VALUE || satElements >= Integer.MAX_VALUE )
+			return Long.MAX_VALUE;
+
+		// two spectra of about half the padded size (16 bytes per complex), the products (8 bytes) and two tables of sums and squares
+		return numElements * ( 16 + 8 ) + satElements * 2 * 2 * 8;
+	}
+
+	/**
+	 * @param img1 - first image
+	 * @param img2 - second image
+	 * @param service - threads for the FFTs
+	 * @return the correlation of all shifts, null if the images are too large
+	 */
+	public static < T extends RealType< T >, S extends RealType< S > > NormalizedCrossCorrelation compute(
+			final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< S > img2, final ExecutorService service )
+	{
+		if ( estimateMemory( img1, img2 ) == Long.MAX_VALUE )
+			return null;
+
+		final double mean1 = PhaseCorrelation2Util.getMean( img1 );
+		final double mean2 = PhaseCorrelation2Util.getMean( img2 );
+
+		final RandomAccessibleInterval< DoubleType > centered1 = centered( Views.zeroMin( img1 ), mean1 );
+		final RandomAccessibleInterval< DoubleType > centered2 = centered( Views.zeroMin( img2 ), mean2 );
+
+		final long[] paddedDimensions = getCorrelationSize( img1, img2 );
+		final long[] fftSize = new long[ paddedDimensions.length ];
+		FFTMethods.dimensionsRealToComplexFast( new FinalDimensions( paddedDimensions ), new long[ paddedDimensions.length ], fftSize );
+
+		final ArrayImgFactory< ComplexDoubleType > fftFactory = new ArrayImgFactory< ComplexDoubleType >();
+		final Img< ComplexDoubleType > fft1 = fftFactory.create( fftSize, new ComplexDoubleType() );
+		final Img< ComplexDoubleType > fft2 = fftFactory.create( fftSize, new ComplexDoubleType() );
+
+		// zero-padded at the end, so no shift wraps onto another one
+		final FinalInterval padded = new FinalInterval( paddedDimensions );
+		FFT.realToComplex( Views.interval( Views.extendZero( centered1 ), padded ), fft1, service );
+		FFT.realToComplex( Views.interval( Views.extendZero( centered2 ), padded ), fft2, service );
+
+		// F^-1( F(a) * conj(F(b)) )(s) = sum_x a(x) b(x - s)
+		PhaseCorrelation2Util.complexConjInterval( fft2, fft2, service );
+		PhaseCorrelation2Util.multiplyComplexIntervals( fft1, fft2, fft1, service );
+
+		final Img< DoubleType > products = new ArrayImgFactory< DoubleType >().create( paddedDimensions, new DoubleType() );
+		FFT.complexToReal( fft1, products, service );
+
+		return new NormalizedCrossCorrelation(
+				Intervals.dimensionsAsLongArray( img1 ), Intervals.dimensionsAsLongArray( img2 ), products,
+				new SummedAreaTable( centered1 ), new SummedAreaTable( centered2 ) );
+	}
+
+	/**
+	 * @param shift - the shift of img2 relative to img1 (see {@link PhaseCorrelation2Util#getOverlapIntervals(Dimensions, Dimensions, Localizable)})
+	 * @param overlaps - the overlapping intervals of img1 and img2 for this shift
+	 * @return the correlation coefficient of the overlap, 0 if one of the images is constant there
+	 */
+	public double getCorrelation( final Localizable shift, final Pair< Interval, Interval > overlaps )
+	{
+		final long[] position = new long[ size.length ];
+		for ( int d = 0; d < size.length; ++d )
+		{
+			final long s = shift.getLongPosition( d );
+			position[ d ] = s >= 0 ? s : size[ d ] + s;
+		}
+
+		final RandomAccess< DoubleType > ra = products.randomAccess();
+		ra.setPosition( position );
+
+		final double numPixels = Intervals.numElements( overlaps.getA() );
+		final double sum1 = sat1.sum( overlaps.getA(), false );
+		final double sum2 = sat2.sum( overlaps.getB(), false );
+
+		final double sum12 = ra.get().get() - sum1 * sum2 / numPixels;
+		final double sum11 = sat1.sum( overlaps.getA(), true ) - sum1 * sum1 / numPixels;
+		final double sum22 = sat2.sum( overlaps.getB(), true ) - sum2 * sum2 / numPixels;
+
+		// all pixels had the same color (as in getCorrelation()), up to the rounding errors of the tables
+		if ( sum11 <= 1e-12 * sat1.total() || sum22 <= 1e-12 * sat2.total() )
+			return 0;
+
+		// rounding errors of the FFT
+		return Math.max( -1, Math.min( 1, sum12 / Math.sqrt( sum11 * sum22 ) ) );
+	}
+
+	/**
+	 * set cross correlation and overlap size of all peaks (like {@link PhaseCorrelationPeak2#calculateCrossCorr(RandomAccessibleInterval, RandomAccessibleInterval, long)})
+	 * @param peaks - the peaks
+	 * @param minOverlapPx - minimal overlap in pixels
+	 * @return the number of shifts that were verified
+	 */
+	public int calculateCrossCorr( final List< PhaseCorrelationPeak2 > peaks, final long minOverlapPx )
+	{
+		final FinalDimensions dims1 = new FinalDimensions( dim1 );
+		final FinalDimensions dims2 = new FinalDimensions( dim2 );
+		int verified = 0;
+
+		for ( final PhaseCorrelationPeak2 peak : peaks )
+		{
+			final Pair< Interval, Interval > overlaps = PhaseCorrelation2Util.getOverlapIntervals( dims1, dims2, peak.getShift() );
+			final long numPixels = overlaps == null ? 0 : Intervals.numElements( overlaps.getA() );
+
+			if ( numPixels == 0 || numPixels < minOverlapPx )
+			{
+				peak.setCrossCorr( Double.NEGATIVE_INFINITY );
+				peak.setnPixel( 0 );
+				continue;
+			}
+
+			peak.setCrossCorr( getCorrelation( peak.getShift(), overlaps ) );
+			peak.setnPixel( numPixels );
+			++verified;
+		}
+
+		return verified;
+	}
+
+	private static < T extends RealType< T > > RandomAccessibleInterval< DoubleType > centered( final RandomAccessibleInterval< T > img, final double mean )
+	{
+		return Converters.convert( img, new Converter< T, DoubleType >()
+		{
+			@Override
+			public void convert( final T input, final DoubleType output )
+			{
+				output.set( input.getRealDouble() - mean );
+			}
+		}, new DoubleType() );
+	}
+
+	/**
+	 * n-dimensional summed-area tables of the values and the squared values of an image
+	 */
+	private static class SummedAreaTable
+	{
+		// sum over [0, x) for every x in [0, dim], i.e. one larger than the image in every dimension
+		final double[] sum;
+		final double[] sumSq;
+		final long[] steps;
+
+		SummedAreaTable( final RandomAccessibleInterval< DoubleType > img )
+		{
+			final int n = img.numDimensions();
+			final long[] size = new long[ n ];
+			steps = new long[ n ];
+
+			long numElements = 1;
+			for ( int d = 0; d < n; ++d )
+			{
+				size[ d ] = img.dimension( d ) + 1;
+				steps[ d ] = numElements;
+				numElements *= size[ d ];
+			}
+
+			sum = new double[ (int)numElements ];
+			sumSq = new double[ (int)numElements ];
+
+			// the values at x + 1
+			final Cursor< DoubleType > cursor = Views.flatIterable( img ).localizingCursor();
+			while ( cursor.hasNext() )
+			{
+				final double v = cursor.next().get();
+
+				int i = 0;
+				for ( int d = 0; d < n; ++d )
+					i += ( cursor.getLongPosition( d ) + 1 ) * steps[ d ];
+
+				sum[ i ] = v;
+				sumSq[ i ] = v * v;
+			}
+
+			// cumulative sums along every dimension
+			for ( int d = 0; d < n; ++d )
+			{
+				final int step = (int)steps[ d ];
+
+				for ( int i = 0; i < sum.length; ++i )
+					if ( ( i / step ) % size[ d ] > 0 )
+					{
+						sum[ i ] += sum[ i - step ];
+						sumSq[ i ] += sumSq[ i - step ];
+					}
+			}
+		}
+
+		/**
+		 * @return the sum of squares of the whole image
+		 */
+		double total()
+		{
+			return sumSq[ sumSq.length - 1 ];
+		}
+
+		static long numElements( final Dimensions dim )
+		{
+			long numElements = 1;
+			for ( int d = 0; d < dim.numDimensions(); ++d )
+				numElements *= dim.dimension( d ) + 1;
+			return numElements;
+		}
+
+		/**
+		 * @return sum of the (squared) values in the interval, by inclusion-exclusion of its 2^n corners
+		 */
+		double sum( final Interval interval, final boolean squared )
+		{
+			final double[] table = squared ? sumSq : sum;
+			final int n = steps.length;
+
+			double s = 0;
+			for ( int corner = 0; corner < ( 1 << n ); ++corner )
+			{
+				long i = 0;
+				int sign = 1;
+
+				for ( int d = 0; d < n; ++d )
+				{
+					if ( ( corner & ( 1 << d ) ) != 0 )
+					{
+						i += interval.min( d ) * steps[ d ];
+						sign = -sign;
+					}
+					else
+						i += ( interval.max( d ) + 1 ) * steps[ d ];
+				}
+
+				s += sign * table[ (int)i ];
+			}
+
+			return s;
+		}
+	}
+}
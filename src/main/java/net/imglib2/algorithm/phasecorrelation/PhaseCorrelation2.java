@@ -45,6 +45,7 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
+import net.preibisch.stitcher.algorithm.StitchingMetrics;
 
 public class PhaseCorrelation2 {
 	
@@ -181,6 +182,36 @@ public class PhaseCorrelation2 {
 		
 	}
 
+	/**
+	 * @param dim1 - dimensions of the first image
+	 * @param dim2 - dimensions of the second image
+	 * @param extension - extension as in {@link #calculatePCM(RandomAccessibleInterval, RandomAccessibleInterval, int[], ImgFactory, RealType, ImgFactory, ComplexType, ExecutorService)}
+	 * @return number of pixels of the (padded) PCM
+	 */
+	public static long getPCMNumElements( final Dimensions dim1, final Dimensions dim2, final int[] extension )
+	{
+		final Dimensions extSize = PhaseCorrelation2Util.getExtendedSize( dim1, dim2, extension );
+		final long[] paddedDimensions = new long[ extSize.numDimensions() ];
+		final long[] fftSize = new long[ extSize.numDimensions() ];
+		FFTMethods.dimensionsRealToComplexFast( extSize, paddedDimensions, fftSize );
+
+		long numElements = 1;
+		for ( final long dim : paddedDimensions )
+			numElements *= dim;
+
+		return numElements;
+	}
+
+	/**
+	 * @return approximate memory (in bytes) needed by {@link #calculatePCM(RandomAccessibleInterval, RandomAccessibleInterval, int[], ImgFactory, RealType, ImgFactory, ComplexType, ExecutorService)}
+	 * for float PCM and complex float spectra
+	 */
+	public static long estimatePCMMemory( final Dimensions dim1, final Dimensions dim2, final int[] extension )
+	{
+		// two spectra of about half the padded size (8 bytes per complex) plus the PCM (4 bytes)
+		return getPCMNumElements( dim1, dim2, extension ) * ( 8 + 4 );
+	}
+
 	/*
 	 * calculate PCM with default extension
 	 * @param img1
@@ -212,18 +243,86 @@ public class PhaseCorrelation2 {
 			RandomAccessibleInterval<R> pcm, RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int nHighestPeaks,
 			long minOverlap, boolean subpixelAccuracy, boolean interpolateSubpixel, ExecutorService service)
 	{
-		System.out.println( "PCM" );
-		List<PhaseCorrelationPeak2> peaks = PhaseCorrelation2Util.getPCMMaxima(pcm, service, nHighestPeaks, subpixelAccuracy);
+		return getShift( pcm, img1, img2, nHighestPeaks, minOverlap, subpixelAccuracy, interpolateSubpixel,
+				null, null, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, service );
+	}
+
+	/**
+	 * calculate the shift between two images from the phase correlation matrix, using prior knowledge about the shift:
+	 * only the parts of the pcm corresponding to plausible shifts are searched for peaks, implausible aliases of the
+	 * peaks are discarded before verification and verification (largest overlaps first) stops once a shift is good enough
+	 * @param pcm the phase correlation matrix of img1 and img2
+	 * @param img1 source image 1
+	 * @param img2 source image 2
+	 * @param nHighestPeaks the number of peaks in pcm to check via cross. corr.
+	 * @param minOverlap minimal overlap (in pixels)
+	 * @param subpixelAccuracy whether to do subpixel shift peak localization or not
+	 * @param interpolateSubpixel whether to interpolate the subpixel shift in cross. corr.
+	 * @param expectedShift the expected shift (null for zero, i.e. the images are already roughly aligned)
+	 * @param maxShift maximal deviation from the expected shift per dimension (in pixels), null for no restriction
+	 * @param maxRadius maximal distance from the expected shift (in pixels), Double.POSITIVE_INFINITY for no restriction
+	 * @param acceptCrossCorr stop verifying shifts once one reaches this cross. corr., Double.POSITIVE_INFINITY to check all
+	 * @param service thread pool
+	 * @return best (highest c.c.) shift peak
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>, R extends RealType<R>> PhaseCorrelationPeak2 getShift(
+			RandomAccessibleInterval<R> pcm, RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int nHighestPeaks,
+			long minOverlap, boolean subpixelAccuracy, boolean interpolateSubpixel,
+			double[] expectedShift, double[] maxShift, double maxRadius, double acceptCrossCorr, ExecutorService service)
+	{
+		return getShift( pcm, img1, img2, nHighestPeaks, minOverlap, subpixelAccuracy, interpolateSubpixel,
+				expectedShift, maxShift, maxRadius, acceptCrossCorr, null, service );
+	}
+
+	/**
+	 * calculate the shift between two images from the phase correlation matrix (see above), verifying the candidate
+	 * shifts by lookups in the precomputed cross correlation of all (integer) shifts if it is given
+	 * @param ncc the normalized cross correlation of img1 and img2, null to compute the cross correlation of every candidate
+	 * @return best (highest c.c.) shift peak
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>, R extends RealType<R>> PhaseCorrelationPeak2 getShift(
+			RandomAccessibleInterval<R> pcm, RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int nHighestPeaks,
+			long minOverlap, boolean subpixelAccuracy, boolean interpolateSubpixel,
+			double[] expectedShift, double[] maxShift, double maxRadius, double acceptCrossCorr,
+			NormalizedCrossCorrelation ncc, ExecutorService service)
+	{
+		final boolean restricted = maxShift != null || !Double.isInfinite( maxRadius );
+
+		long t = StitchingMetrics.start();
+		List<PhaseCorrelationPeak2> peaks;
+		if ( restricted )
+		{
+			// the search window is a box, so the radius restricts every dimension
+			final double[] window = new double[pcm.numDimensions()];
+			for ( int d = 0; d < window.length; ++d )
+				window[d] = Math.min( maxShift == null ? Double.POSITIVE_INFINITY : maxShift[d], maxRadius );
+
+			peaks = PhaseCorrelation2Util.getPCMMaxima(pcm, service, nHighestPeaks, subpixelAccuracy, img1, img2, expectedShift, window);
+		}
+		else
+			peaks = PhaseCorrelation2Util.getPCMMaxima(pcm, service, nHighestPeaks, subpixelAccuracy);
 		//peaks = PhaseCorrelation2Util.getHighestPCMMaxima(peaks, nHighestPeaks);
-		System.out.println( "expand" );
+		StitchingMetrics.stop( StitchingMetrics.PEAKS, t );
+		StitchingMetrics.count( StitchingMetrics.PEAKS_FOUND, peaks.size() );
+
+		t = StitchingMetrics.start();
 		PhaseCorrelation2Util.expandPeakListToPossibleShifts(peaks, pcm, img1, img2);
-		System.out.print( "cross " );
-		long t = System.currentTimeMillis();
-		PhaseCorrelation2Util.calculateCrossCorrParallel(peaks, img1, img2, minOverlap, service, interpolateSubpixel);
-		System.out.println( (System.currentTimeMillis() - t) );
-		System.out.println( "sort" );
+		if ( restricted )
+			PhaseCorrelation2Util.removeImplausibleShifts( peaks, expectedShift, maxShift, maxRadius );
+		StitchingMetrics.stop( StitchingMetrics.EXPAND, t );
+
+		t = StitchingMetrics.start();
+		final int verified;
+		if ( ncc != null )
+			verified = ncc.calculateCrossCorr( peaks, minOverlap );
+		else
+			verified = PhaseCorrelation2Util.calculateCrossCorrRanked(peaks, img1, img2, minOverlap, service, interpolateSubpixel, acceptCrossCorr);
+		StitchingMetrics.stop( StitchingMetrics.CROSS_CORRELATION, t );
+		StitchingMetrics.count( StitchingMetrics.CC_CANDIDATES, verified );
+
+		t = StitchingMetrics.start();
 		Collections.sort(peaks, Collections.reverseOrder(new PhaseCorrelationPeak2.ComparatorByCrossCorrelation()));
-		System.out.println( "done" );
+		StitchingMetrics.stop( StitchingMetrics.SORT, t );
 
 		if (peaks.size() > 0)
 			return peaks.get(0);
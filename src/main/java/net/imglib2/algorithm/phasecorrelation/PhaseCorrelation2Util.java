@@ -24,6 +24,8 @@ package net.imglib2.algorithm.phasecorrelation;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.ExecutionException;
@@ -43,6 +45,7 @@ import net.imglib2.Point;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealLocalizable;
 import net.imglib2.RealPoint;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgFactory;
@@ -52,6 +55,7 @@ import net.imglib2.type.numeric.ComplexType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.BenchmarkHelper;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
@@ -274,6 +278,108 @@ public class PhaseCorrelation2Util {
 		return res;
 	}
 	
+	/*
+	 * find local maxima in PCM, but only in the parts of the PCM that correspond to shifts within maxShift[d] (+1 pixel)
+	 * of expectedShift[d] in every dimension d. The PCM is searched in up to 2^n windows, pixels outside are not touched
+	 * @param pcm
+	 * @param service
+	 * @param maxN
+	 * @param subpixelAccuracy
+	 * @param img1Dims
+	 * @param img2Dims
+	 * @param expectedShift expected shift of img2 relative to img1, null for zero
+	 * @param maxShift maximal distance to the expected shift per dimension, null or infinite values for no restriction
+	 * @return
+	 */
+	public static <T extends RealType<T>> List<PhaseCorrelationPeak2> getPCMMaxima(RandomAccessibleInterval<T> pcm, ExecutorService service, int maxN, boolean subpixelAccuracy,
+			Dimensions img1Dims, Dimensions img2Dims, double[] expectedShift, double[] maxShift)
+	{
+		final int n = pcm.numDimensions();
+		final int[] extensionImg1 = getSizeDifference(img1Dims, pcm);
+		final int[] extensionImg2 = getSizeDifference(img2Dims, pcm);
+
+		// allowed ranges of pcm coordinates in every dimension (one or two, if the allowed shifts wrap around)
+		final List<List<long[]>> ranges = new ArrayList<List<long[]>>();
+		for (int d = 0; d < n; d++)
+		{
+			final long size = pcm.dimension(d);
+			final List<long[]> rangesD = new ArrayList<long[]>();
+
+			if (maxShift == null || Double.isInfinite(maxShift[d]) || Double.isNaN(maxShift[d]))
+				rangesD.add(new long[]{0, size - 1});
+			else
+			{
+				final double e = expectedShift == null ? 0 : expectedShift[d];
+				final long lo = (long) Math.floor(e - maxShift[d]) - 1;
+				final long hi = (long) Math.ceil(e + maxShift[d]) + 1;
+
+				if (hi - lo + 1 >= size)
+					rangesD.add(new long[]{0, size - 1});
+				else
+				{
+					// shift = pcm location + offset (modulo pcm size), see expandPeakToPossibleShifts
+					final long offset = (extensionImg2[d] - extensionImg1[d]) / 2;
+					final long pLo = ((lo - offset) % size + size) % size;
+					final long pHi = ((hi - offset) % size + size) % size;
+
+					if (pLo <= pHi)
+						rangesD.add(new long[]{pLo, pHi});
+					else
+					{
+						rangesD.add(new long[]{0, pHi});
+						rangesD.add(new long[]{pLo, size - 1});
+					}
+				}
+			}
+			ranges.add(rangesD);
+		}
+
+		// search all combinations of the ranges
+		final ArrayList<Pair<Localizable, Double>> maxima = new ArrayList<Pair<Localizable, Double>>();
+		final int[] idx = new int[n];
+		boolean done = false;
+		while (!done)
+		{
+			final long[] min = new long[n];
+			final long[] max = new long[n];
+			for (int d = 0; d < n; d++)
+			{
+				min[d] = ranges.get(d).get(idx[d])[0];
+				max[d] = ranges.get(d).get(idx[d])[1];
+			}
+
+			maxima.addAll(FourNeighborhoodExtrema.findMaxMT(Views.extendPeriodic(pcm), new FinalInterval(min, max), maxN, service));
+
+			done = true;
+			for (int d = 0; d < n && done; d++)
+			{
+				if (++idx[d] < ranges.get(d).size())
+					done = false;
+				else
+					idx[d] = 0;
+			}
+		}
+
+		Collections.sort(maxima, new Comparator<Pair<Localizable, Double>>()
+		{
+			@Override
+			public int compare(Pair<Localizable, Double> o1, Pair<Localizable, Double> o2)
+			{
+				return Double.compare(o2.getB(), o1.getB());
+			}
+		});
+
+		List<PhaseCorrelationPeak2> res = new ArrayList<PhaseCorrelationPeak2>();
+		for (int i = 0; i < Math.min(maxN, maxima.size()); i++){
+			PhaseCorrelationPeak2 pcp = new PhaseCorrelationPeak2(maxima.get(i).getA(), maxima.get(i).getB());
+			if (subpixelAccuracy)
+				pcp.calculateSubpixelLocalization(pcm);
+
+			res.add(pcp);
+		}
+		return res;
+	}
+	
 	/*
 	 * sort PCM Peaks by phaseCorrelation and return a new list containing just the nToKeep highest peaks
 	 * @param rawPeaks
@@ -367,6 +473,136 @@ public class PhaseCorrelation2Util {
 		return shiftedPeaks;
 	}
 	
+	/*
+	 * remove all shifts that are further than maxShift[d] (+1 pixel) from the expected shift in any dimension d
+	 * or further than maxRadius (+1 pixel) in total, the subpixel shift is used if available
+	 * @param peaks
+	 * @param expectedShift expected shift of img2 relative to img1, null for zero
+	 * @param maxShift maximal distance to the expected shift per dimension, may be null
+	 * @param maxRadius maximal distance to the expected shift, infinite for no restriction
+	 * @return number of removed shifts
+	 */
+	public static int removeImplausibleShifts(List<PhaseCorrelationPeak2> peaks, double[] expectedShift, double[] maxShift, double maxRadius)
+	{
+		final int sizeBefore = peaks.size();
+
+		for (final Iterator<PhaseCorrelationPeak2> it = peaks.iterator(); it.hasNext();)
+		{
+			final PhaseCorrelationPeak2 p = it.next();
+			final RealLocalizable shift = p.getSubpixelShift() == null ? p.getShift() : p.getSubpixelShift();
+
+			double sqDist = 0;
+			boolean plausible = true;
+			for (int d = 0; d < shift.numDimensions() && plausible; d++)
+			{
+				final double dist = Math.abs(shift.getDoublePosition(d) - (expectedShift == null ? 0 : expectedShift[d]));
+				sqDist += dist * dist;
+
+				if (maxShift != null && dist > maxShift[d] + 1)
+					plausible = false;
+			}
+
+			if (!plausible || Math.sqrt(sqDist) > maxRadius + 1)
+				it.remove();
+		}
+
+		return sizeBefore - peaks.size();
+	}
+
+	/*
+	 * calculate the crosscorrelation of img1 and img2 for the shifts in peaks, starting with the ones that have the largest overlap,
+	 * in batches of one shift per available processor. Verification stops after the first batch that contains a shift with a
+	 * crosscorrelation of at least acceptCrossCorr, the remaining shifts are treated like shifts without sufficient overlap
+	 * (crossCorr = -Infinity, nPixel = 0). Shifts with too little overlap are not computed at all.
+	 * @param peaks
+	 * @param img1
+	 * @param img2
+	 * @param minOverlapPx
+	 * @param service
+	 * @param interpolateSubpixel
+	 * @param acceptCrossCorr crosscorrelation that is good enough to stop, use Double.POSITIVE_INFINITY to verify all shifts
+	 * @return the number of shifts that were verified
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> int calculateCrossCorrRanked(
+			List<PhaseCorrelationPeak2> peaks, final RandomAccessibleInterval<T> img1, final RandomAccessibleInterval<S> img2,
+			final long minOverlapPx, ExecutorService service, boolean interpolateSubpixel, double acceptCrossCorr)
+	{
+		final List<Pair<PhaseCorrelationPeak2, Long>> ranked = new ArrayList<Pair<PhaseCorrelationPeak2, Long>>();
+
+		for (final PhaseCorrelationPeak2 p : peaks)
+		{
+			final long overlap = getOverlapSize(img1, img2, p.getShift());
+
+			if (overlap == 0 || overlap < minOverlapPx)
+			{
+				p.setCrossCorr(Double.NEGATIVE_INFINITY);
+				p.setnPixel(0);
+			}
+			else
+				ranked.add(new ValuePair<PhaseCorrelationPeak2, Long>(p, overlap));
+		}
+
+		Collections.sort(ranked, new Comparator<Pair<PhaseCorrelationPeak2, Long>>()
+		{
+			@Override
+			public int compare(Pair<PhaseCorrelationPeak2, Long> o1, Pair<PhaseCorrelationPeak2, Long> o2)
+			{
+				return Long.compare(o2.getB(), o1.getB());
+			}
+		});
+
+		final int batchSize = Runtime.getRuntime().availableProcessors();
+		int verified = 0;
+		boolean accepted = false;
+
+		for (int i = 0; i < ranked.size(); i += batchSize)
+		{
+			final List<PhaseCorrelationPeak2> batch = new ArrayList<PhaseCorrelationPeak2>();
+			for (int j = i; j < Math.min(i + batchSize, ranked.size()); j++)
+				batch.add(ranked.get(j).getA());
+
+			if (accepted)
+			{
+				for (final PhaseCorrelationPeak2 p : batch)
+				{
+					p.setCrossCorr(Double.NEGATIVE_INFINITY);
+					p.setnPixel(0);
+				}
+				continue;
+			}
+
+			calculateCrossCorrParallel(batch, img1, img2, minOverlapPx, service, interpolateSubpixel);
+			verified += batch.size();
+
+			for (final PhaseCorrelationPeak2 p : batch)
+				if (p.getCrossCorr() >= acceptCrossCorr)
+					accepted = true;
+		}
+
+		return verified;
+	}
+
+	/*
+	 * number of pixels in the overlap of img1 and img2 for a given shift, 0 if they do not overlap
+	 * @param img1
+	 * @param img2
+	 * @param shift
+	 * @return
+	 */
+	public static long getOverlapSize(Dimensions img1, Dimensions img2, Localizable shift)
+	{
+		final Pair<Interval, Interval> intervals = getOverlapIntervals(img1, img2, shift);
+
+		if (intervals == null)
+			return 0;
+
+		long nPixel = 1;
+		for (int d = 0; d < intervals.getA().numDimensions(); d++)
+			nPixel *= intervals.getA().dimension(d);
+
+		return nPixel;
+	}
+	
 	/*
 	 * get intervals corresponding to overlapping area in two images (relative to image origins)
 	 * will return null if there is no overlap
@@ -803,6 +1039,218 @@ public class PhaseCorrelation2Util {
 		return sum12 / Math.sqrt(sum11 * sum22);
 	}
 
+	/*
+	 * calculate the correlation of img1 and img2 moved by a constant subpixel offset, i.e. of img1(x) and the n-linear
+	 * interpolation of img2 at x + offset. As the offset is the same for every pixel, so are the 2^n interpolation weights:
+	 * img2 is interpolated separably (one dimension after the other) into primitive slabs that are streamed along the last
+	 * dimension and accumulated into the correlation directly, no interpolator or intermediate image is needed
+	 * @param img1 first image (zero-min)
+	 * @param img2 second image in the coordinates of img1, must be defined one pixel beyond img1 (e.g. extended)
+	 * @param offset subpixel offset of img2
+	 * @return correlation coefficient, 0 if one of the images is constant
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> double getCorrelationSubpixel (
+			final RandomAccessibleInterval<T> img1, final RandomAccessible<S> img2, final double[] offset)
+	{
+		final int n = img1.numDimensions();
+		final int last = n - 1;
+		final long[] dims = Intervals.dimensionsAsLongArray(img1);
+
+		final long[] floor = new long[n];
+		final double[] frac = new double[n];
+		for (int d = 0; d < n; d++)
+		{
+			floor[d] = (long) Math.floor(offset[d]);
+			frac[d] = offset[d] - floor[d];
+		}
+
+		// buffers[k] holds two slabs of level k-1 (interpolated in dimensions < k-1) to compute a slab of level k
+		final float[][][] buffers = new float[n + 1][2][];
+		int size = 1;
+		for (int k = 1; k <= n; k++)
+		{
+			buffers[k][0] = new float[size];
+			buffers[k][1] = new float[size];
+			if (k < n)
+				size *= dims[k - 1];
+		}
+
+		// slabs of the last level (all pixels with the same position in the last dimension)
+		final float[] slab1 = new float[size];
+		final float[] slab2 = new float[size];
+		float[] b0 = buffers[n][0], b1 = buffers[n][1];
+
+		final RandomAccess<T> ra1 = img1.randomAccess();
+		final RandomAccess<S> ra2 = img2.randomAccess();
+		final long[] pos1 = new long[n];
+		final long[] pos2 = new long[n];
+
+		final float w1 = (float) frac[last];
+		final float w0 = 1.0f - w1;
+
+		pos2[last] = floor[last];
+		interpolatedSlab(ra2, last, pos2, dims, floor, frac, buffers, b0);
+
+		// sums relative to the first values (instead of the means), so we only need one pass
+		double k1 = 0, k2 = 0;
+		double sum1 = 0, sum2 = 0, sum11 = 0, sum22 = 0, sum12 = 0;
+
+		for (long x = 0; x < dims[last]; x++)
+		{
+			if (w1 == 0)
+			{
+				pos2[last] = floor[last] + x;
+				if (x > 0)
+					interpolatedSlab(ra2, last, pos2, dims, floor, frac, buffers, b0);
+				System.arraycopy(b0, 0, slab2, 0, size);
+			}
+			else
+			{
+				pos2[last] = floor[last] + x + 1;
+				interpolatedSlab(ra2, last, pos2, dims, floor, frac, buffers, b1);
+				for (int j = 0; j < size; j++)
+					slab2[j] = w0 * b0[j] + w1 * b1[j];
+
+				final float[] tmp = b0;
+				b0 = b1;
+				b1 = tmp;
+			}
+
+			pos1[last] = x;
+			readSlab(ra1, last, pos1, dims, slab1, 0);
+
+			if (x == 0)
+			{
+				k1 = slab1[0];
+				k2 = slab2[0];
+			}
+
+			for (int j = 0; j < size; j++)
+			{
+				final double c = slab1[j] - k1;
+				final double r = slab2[j] - k2;
+
+				sum1 += c;
+				sum2 += r;
+				sum11 += c * c;
+				sum22 += r * r;
+				sum12 += c * r;
+			}
+		}
+
+		final double count = Intervals.numElements(img1);
+		final double var1 = sum11 - sum1 * sum1 / count;
+		final double var2 = sum22 - sum2 * sum2 / count;
+
+		// all pixels had the same color (see getCorrelation)
+		if (sum11 == 0 || sum22 == 0 || var1 <= 0 || var2 <= 0)
+			return 0;
+
+		return (sum12 - sum1 * sum2 / count) / Math.sqrt(var1 * var2);
+	}
+
+	/*
+	 * compute a slab of level k: the image interpolated at (x + offset) in dimensions 0..k-1 (for all x within dims)
+	 * at the raw position pos in dimensions k..n-1, stored in out (dimension 0 varies fastest)
+	 */
+	private static <S extends RealType<S>> void interpolatedSlab(final RandomAccess<S> ra, final int k, final long[] pos,
+			final long[] dims, final long[] floor, final double[] frac, final float[][][] buffers, final float[] out)
+	{
+		if (k == 0)
+		{
+			ra.setPosition(pos);
+			out[0] = ra.get().getRealFloat();
+			return;
+		}
+
+		final int d = k - 1;
+		final float w1 = (float) frac[d];
+		final float w0 = 1.0f - w1;
+
+		// a line, read and interpolate it in one go
+		if (k == 1)
+		{
+			pos[0] = floor[0];
+			ra.setPosition(pos);
+
+			float v0 = ra.get().getRealFloat();
+			for (int i = 0; i < dims[0]; i++)
+			{
+				ra.fwd(0);
+				final float v1 = ra.get().getRealFloat();
+				out[i] = w0 * v0 + w1 * v1;
+				v0 = v1;
+			}
+			return;
+		}
+
+		final int size = buffers[k][0].length;
+		float[] b0 = buffers[k][0], b1 = buffers[k][1];
+
+		pos[d] = floor[d];
+		interpolatedSlab(ra, d, pos, dims, floor, frac, buffers, b0);
+
+		for (int x = 0; x < dims[d]; x++)
+		{
+			if (w1 == 0)
+			{
+				if (x > 0)
+				{
+					pos[d] = floor[d] + x;
+					interpolatedSlab(ra, d, pos, dims, floor, frac, buffers, b0);
+				}
+				System.arraycopy(b0, 0, out, x * size, size);
+			}
+			else
+			{
+				pos[d] = floor[d] + x + 1;
+				interpolatedSlab(ra, d, pos, dims, floor, frac, buffers, b1);
+
+				final int o = x * size;
+				for (int j = 0; j < size; j++)
+					out[o + j] = w0 * b0[j] + w1 * b1[j];
+
+				final float[] tmp = b0;
+				b0 = b1;
+				b1 = tmp;
+			}
+		}
+	}
+
+	/*
+	 * read a slab of level k (all pixels with position pos in dimensions k..n-1) into out, starting at index o
+	 * @return index after the last written value
+	 */
+	private static <T extends RealType<T>> int readSlab(final RandomAccess<T> ra, final int k, final long[] pos,
+			final long[] dims, final float[] out, int o)
+	{
+		if (k == 0)
+		{
+			ra.setPosition(pos);
+			out[o] = ra.get().getRealFloat();
+			return o + 1;
+		}
+
+		if (k == 1)
+		{
+			pos[0] = 0;
+			ra.setPosition(pos);
+			for (int i = 0; i < dims[0]; i++)
+			{
+				out[o++] = ra.get().getRealFloat();
+				ra.fwd(0);
+			}
+			return o;
+		}
+
+		for (long x = 0; x < dims[k - 1]; x++)
+		{
+			pos[k - 1] = x;
+			o = readSlab(ra, k - 1, pos, dims, out, o);
+		}
+		return o;
+	}
+
 	
 	/*
 	 * test stitching, create new image with img2 copied over img1 at the specified shift
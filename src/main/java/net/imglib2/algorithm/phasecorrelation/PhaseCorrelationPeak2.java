@@ -33,15 +33,10 @@ import net.imglib2.Point;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealLocalizable;
 import net.imglib2.RealPoint;
-import net.imglib2.RealRandomAccessible;
 import net.imglib2.algorithm.localextrema.RefinedPeak;
 import net.imglib2.algorithm.localextrema.SubpixelLocalization;
-import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
-import net.imglib2.realtransform.InvertibleRealTransform;
-import net.imglib2.realtransform.RealViews;
-import net.imglib2.realtransform.Translation2D;
-import net.imglib2.realtransform.Translation3D;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.view.Views;
 
@@ -201,26 +196,22 @@ public class PhaseCorrelationPeak2 {
 			return;
 		}
 
-		// for subpixel move the underlying Img2 by the subpixel offset
+		// for subpixel compare to the underlying Img2 moved by the (constant) subpixel offset
 		if ( subpixelShift != null && interpolateSubpixel )
 		{
-			RealRandomAccessible< S > rra = Views.interpolate( Views.extendMirrorSingle( img2 ), new NLinearInterpolatorFactory< S >() );
-
-			InvertibleRealTransform transform = null;
-
 			// e.g. subpixel = (-0.4, 0.1, -0.145)
-			final double tx = subpixelShift.getDoublePosition( 0 ) - shift.getDoublePosition( 0 );
-			final double ty = subpixelShift.getDoublePosition( 1 ) - shift.getDoublePosition( 1 );
-
-			if ( rra.numDimensions() == 2 )
-				transform = new Translation2D( -tx, -ty ); // -relative subpixel shift only
-			else if ( rra.numDimensions() == 3 )
-				transform = new Translation3D( -tx, -ty, shift.getDoublePosition( 2 ) - subpixelShift.getDoublePosition( 2 ) ); // -relative subpixel shift only
-
-			img2 = Views.interval( Views.raster( RealViews.transform( rra, transform ) ), img2 );
+			final double[] offset = new double[ shift.numDimensions() ];
+			for ( int d = 0; d < offset.length; ++d )
+				offset[ d ] = subpixelShift.getDoublePosition( d ) - shift.getDoublePosition( d );
+
+			// img2 is sampled up to one pixel outside of the overlap
+			crossCorr = PhaseCorrelation2Util.getCorrelationSubpixel(
+					Views.zeroMin( Views.interval( img1, intervals.getA() ) ),
+					Views.offset( Views.extendMirrorSingle( img2 ), Intervals.minAsLongArray( intervals.getB() ) ),
+					offset );
 		}
-
-		crossCorr = PhaseCorrelation2Util.getCorrelation(Views.zeroMin(Views.interval(img1, intervals.getA())), Views.zeroMin(Views.interval(img2, intervals.getB())));
+		else
+			crossCorr = PhaseCorrelation2Util.getCorrelation(Views.zeroMin(Views.interval(img1, intervals.getA())), Views.zeroMin(Views.interval(img2, intervals.getB())));
 		
 	}
 	
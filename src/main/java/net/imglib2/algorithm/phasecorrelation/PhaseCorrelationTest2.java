@@ -42,8 +42,8 @@ public class PhaseCorrelationTest2
 		RandomAccessibleInterval<  FloatType > image2 = ImgLib2Util.openAs32Bit( new File( "73m5-10-13.tif.zip" ) );
 		//RandomAccessibleInterval<  FloatType > image2 = ImgLib2Util.openAs32Bit( new File( "73m5,75-10,25-12,6.tif.zip" ) );
 		
-		image1 = DownsampleTools.downsample( image1, new long[] {4,4,2} );
-		image2 = DownsampleTools.downsample( image2, new long[] {4,4,2} );
+		image1 = DownsampleTools.downsample( image1, new long[] {4,4,2}, DownsampleTools.sharedService() );
+		image2 = DownsampleTools.downsample( image2, new long[] {4,4,2}, DownsampleTools.sharedService() );
 		
 		//Img<  FloatType > image1 = ImgLib2Util.openAs32Bit( new File( "boats.tif" ) );
 		//Img<  FloatType > image2 = ImgLib2Util.openAs32Bit( new File( "boatsm10,5-m20,5.tif" ) );
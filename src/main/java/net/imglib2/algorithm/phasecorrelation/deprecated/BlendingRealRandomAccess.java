@@ -47,6 +47,9 @@ public class BlendingRealRandomAccess implements RealRandomAccess< FloatType >
 	final int n;
 	final FloatType v;
 
+	// the (separable) weights at integer positions, per dimension
+	final float[][] weights;
+
 	// static lookup table for the blending function
 	final static private double[] lookUp;
 	private static final int indexFor( final double d ) { return (int)Math.round( d * 1000.0 ); }
@@ -70,6 +73,15 @@ public class BlendingRealRandomAccess implements RealRandomAccess< FloatType >
 			final Interval interval,
 			final float[] border,
 			final float[] blending )
+	{
+		this( interval, border, blending, null );
+	}
+
+	private BlendingRealRandomAccess(
+			final Interval interval,
+			final float[] border,
+			final float[] blending,
+			final float[][] weights )
 	{
 		this.interval = interval;
 		this.n = interval.numDimensions();
@@ -86,21 +98,53 @@ public class BlendingRealRandomAccess implements RealRandomAccess< FloatType >
 			this.min[ d ] = (int)interval.min( d );
 			this.dimMinus1[ d ] = (int)interval.max( d ) - min[ d ];
 		}
+
+		if ( weights == null )
+		{
+			this.weights = new float[ n ][];
+
+			for ( int d = 0; d < n; ++d )
+				this.weights[ d ] = computeWeights( dimMinus1[ d ], border[ d ], blending[ d ] );
+		}
+		else
+		{
+			this.weights = weights;
+		}
 	}
 	
 	@Override
 	public FloatType get()
 	{
-		v.set( computeWeight( l, min, dimMinus1, border, blending, n ) );
+		v.set( computeWeight( l, min, dimMinus1, border, blending, weights, n ) );
 		return v;
 	}
 
+	/**
+	 * the blending function along one dimension at all integer positions, the weight at a location is the product
+	 * of the weights of all dimensions
+	 * 
+	 * @param dimMinus1 - size of the interval minus one (in this dimension)
+	 * @param border - how many pixels to skip before starting blending (on each side)
+	 * @param blending - how many pixels to compute the blending function on (on each side)
+	 * @return the weights at positions 0...dimMinus1 relative to the min of the interval
+	 */
+	public static float[] computeWeights( final int dimMinus1, final float border, final float blending )
+	{
+		final float[] weights = new float[ dimMinus1 + 1 ];
+
+		for ( int i = 0; i <= dimMinus1; ++i )
+			weights[ i ] = computeWeight( i, dimMinus1, border, blending );
+
+		return weights;
+	}
+
 	final private static float computeWeight(
 			final float[] location,
 			final int[] min, 
 			final int[] dimMinus1,
 			final float[] border, 
 			final float[] blending,
+			final float[][] weights,
 			final int n )
 	{
 		// compute multiplicative distance to the respective borders [0...1]
@@ -110,23 +154,41 @@ public class BlendingRealRandomAccess implements RealRandomAccess< FloatType >
 		{
 			// the position in the image relative to the boundaries and the border
 			final float l = ( location[ d ] - min[ d ] );
+			final int i = (int)l;
 
-			// the distance to the border that is closer
-			final float dist = Math.max( 0, Math.min( l - border[ d ], dimMinus1[ d ] - l - border[ d ] ) );
+			// look up integer positions inside the interval
+			final float w = ( i == l && i >= 0 && i <= dimMinus1[ d ] ) ? weights[ d ][ i ] : computeWeight( l, dimMinus1[ d ], border[ d ], blending[ d ] );
 
 			// if this is 0, the total result will be 0, independent of the number of dimensions
-			if ( dist == 0 )
+			if ( w == 0 )
 				return 0;
 
-			final float relDist = dist / blending[ d ];
-
-			if ( relDist < 1 )
-				minDistance *= lookUp[ indexFor( relDist ) ]; //( Math.cos( ( 1 - relDist ) * Math.PI ) + 1 ) / 2;
+			minDistance *= w;
 		}
 
 		return minDistance;
 	}
 
+	final private static float computeWeight(
+			final float l,
+			final int dimMinus1,
+			final float border,
+			final float blending )
+	{
+		// the distance to the border that is closer
+		final float dist = Math.max( 0, Math.min( l - border, dimMinus1 - l - border ) );
+
+		if ( dist == 0 )
+			return 0;
+
+		final float relDist = dist / blending;
+
+		if ( relDist < 1 )
+			return (float)lookUp[ indexFor( relDist ) ]; //( Math.cos( ( 1 - relDist ) * Math.PI ) + 1 ) / 2;
+		else
+			return 1;
+	}
+
 	@Override
 	public void localize( final float[] position )
 	{
@@ -270,7 +332,7 @@ public class BlendingRealRandomAccess implements RealRandomAccess< FloatType >
 	@Override
 	public RealRandomAccess<FloatType> copyRealRandomAccess()
 	{
-		final BlendingRealRandomAccess r = new BlendingRealRandomAccess( interval, border, blending );
+		final BlendingRealRandomAccess r = new BlendingRealRandomAccess( interval, border, blending, weights );
 		r.setPosition( this );
 		return r;
 	}
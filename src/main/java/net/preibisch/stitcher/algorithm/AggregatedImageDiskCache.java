@@ -0,0 +1,471 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.generic.sequence.BasicViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.Threads;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Persistent cache of aggregated, downsampled group images (see {@link GroupedViewAggregator#aggregate}) on
+ * local disk, so repeated runs with the same grouping and downsampling do not re-read the raw data.
+ * 
+ * Every entry is a directory in an N5-like layout: attributes.json and one gzip-compressed float32 block per
+ * grid position (path x/y/z, default N5 block header), so the entries can also be opened with N5 readers.
+ * Entries are keyed by a description of the source, the views of the group (with their sizes), the
+ * downsampling and the aggregation actions. They are written to a temporary directory and renamed when
+ * complete, so interrupted writes never produce partial entries.
+ */
+public class AggregatedImageDiskCache
+{
+	public static int defaultBlockSize = 64;
+
+	private static final String ATTRIBUTES = "attributes.json";
+
+	private final File directory;
+	private final String sourceId;
+	private final int blockSize;
+
+	/**
+	 * @param directory - where the entries are stored (created if necessary)
+	 * @param sourceId - identifies the raw data, e.g. {@link #sourceIdentity(String, BasicImgLoader)}
+	 */
+	public AggregatedImageDiskCache( final File directory, final String sourceId )
+	{
+		this( directory, sourceId, defaultBlockSize );
+	}
+
+	public AggregatedImageDiskCache( final File directory, final String sourceId, final int blockSize )
+	{
+		this.directory = directory;
+		this.sourceId = sourceId;
+		this.blockSize = blockSize;
+	}
+
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * @return an identifier of the raw data of a dataset, including size and modification time of the files
+	 * backing the imgloader (or of the XML), see {@link SourceIdentity#of(String, BasicImgLoader)}
+	 */
+	public static String sourceIdentity( final String xml, final BasicImgLoader imgLoader )
+	{
+		return SourceIdentity.of( xml, imgLoader );
+	}
+
+	/**
+	 * @return the default cache directory of a dataset, next to the XML
+	 */
+	public static File getDefaultDirectory( final String xml )
+	{
+		final String base = xml.toLowerCase().endsWith( ".xml" ) ? xml.substring( 0, xml.length() - 4 ) : xml;
+		return new File( base + ".aggregated" );
+	}
+
+	/**
+	 * @return the key of an aggregated group image
+	 */
+	public String key(
+			final Group< ? extends ViewId > group,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+			final long[] downsampleFactors,
+			final GroupedViewAggregator gva )
+	{
+		final List< ViewId > views = new ArrayList<>( group.getViews() );
+		Collections.sort( views );
+
+		final StringBuilder s = new StringBuilder( sourceId );
+		s.append( "|views=" );
+
+		for ( final ViewId vid : views )
+		{
+			final BasicViewDescription< ? > vd = sd.getViewDescriptions().get( vid );
+			s.append( vid.getTimePointId() ).append( ':' ).append( vid.getViewSetupId() );
+
+			if ( !vd.isPresent() )
+				s.append( "(missing)" );
+			else if ( vd.getViewSetup().hasSize() )
+				s.append( Arrays.toString( Intervals.dimensionsAsLongArray( vd.getViewSetup().getSize() ) ) );
+
+			s.append( ',' );
+		}
+
+		s.append( "|ds=" ).append( Arrays.toString( downsampleFactors ) );
+		s.append( "|actions=" ).append( gva.describeActions() );
+
+		return s.toString();
+	}
+
+	/**
+	 * @return the cached image or null if it is not cached (or could not be read)
+	 */
+	public < T extends RealType< T > > RandomAccessibleInterval< T > get( final String key )
+	{
+		return get( key, null );
+	}
+
+	/**
+	 * @param service - the executor to read the blocks on, null to create one for this call
+	 * @return the cached image or null if it is not cached (or could not be read)
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public < T extends RealType< T > > RandomAccessibleInterval< T > get( final String key, final ExecutorService service )
+	{
+		final File entry = new File( directory, hash( key ) );
+		final File attributesFile = new File( entry, ATTRIBUTES );
+
+		if ( !attributesFile.exists() )
+			return null;
+
+		try
+		{
+			final String attributes = new String( Files.readAllBytes( attributesFile.toPath() ), StandardCharsets.UTF_8 );
+
+			// a different key with the same hash
+			if ( !key.equals( unescape( stringAttribute( attributes, "key" ) ) ) )
+				return null;
+
+			final long[] dim = longsAttribute( attributes, "dimensions" );
+			final int bs = (int)longsAttribute( attributes, "blockSize" )[ 0 ];
+			final long numPixels = Intervals.numElements( dim );
+
+			if ( numPixels >= Integer.MAX_VALUE )
+				return null;
+
+			final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( dim );
+			final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+
+			for ( final long[] gridPosition : gridPositions( dim, bs ) )
+				tasks.add( () -> {
+					readBlock( new File( entry, blockPath( gridPosition ) ), Views.interval( img, blockInterval( gridPosition, dim, bs ) ) );
+					return null;
+				});
+
+			run( tasks, service );
+
+			final T type = (T) Class.forName( stringAttribute( attributes, "type" ) ).newInstance();
+
+			if ( FloatType.class.isInstance( type ) )
+				return (RandomAccessibleInterval< T >) (Object) img;
+
+			final Img< T > out = new ArrayImgFactory().create( dim, (NativeType) type );
+			final Cursor< FloatType > in = img.cursor();
+			final Cursor< T > c = out.cursor();
+
+			while ( c.hasNext() )
+				c.next().setReal( in.next().get() );
+
+			return out;
+		}
+		catch ( Exception e )
+		{
+			IOFunctions.println( "Failed to read cached image '" + entry + "', recomputing: " + e );
+			return null;
+		}
+	}
+
+	/**
+	 * write an image (reads all pixels)
+	 * @return true if the image was written (or is already cached)
+	 */
+	public < T extends RealType< T > > boolean put( final String key, final RandomAccessibleInterval< T > img )
+	{
+		return put( key, img, null );
+	}
+
+	/**
+	 * write an image (reads all pixels)
+	 * @param service - the executor to write the blocks on, null to create one for this call. Must not be the executor
+	 * that (lazily) computes the pixels of the image, its threads would wait for themselves.
+	 * @return true if the image was written (or is already cached)
+	 */
+	public < T extends RealType< T > > boolean put( final String key, final RandomAccessibleInterval< T > img, final ExecutorService service )
+	{
+		final File entry = new File( directory, hash( key ) );
+
+		if ( new File( entry, ATTRIBUTES ).exists() )
+			return true;
+
+		final long[] dim = Intervals.dimensionsAsLongArray( img );
+
+		if ( Intervals.numElements( dim ) >= Integer.MAX_VALUE )
+			return false;
+
+		final File tmp = new File( directory, entry.getName() + ".tmp-" + System.nanoTime() );
+
+		try
+		{
+			final RandomAccessibleInterval< T > zeroMin = Views.zeroMin( img );
+			final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+
+			for ( final long[] gridPosition : gridPositions( dim, blockSize ) )
+				tasks.add( () -> {
+					final File blockFile = new File( tmp, blockPath( gridPosition ) );
+					blockFile.getParentFile().mkdirs();
+					writeBlock( blockFile, Views.interval( zeroMin, blockInterval( gridPosition, dim, blockSize ) ) );
+					return null;
+				});
+
+			tmp.mkdirs();
+			run( tasks, service );
+
+			try ( final PrintWriter out = new PrintWriter( new File( tmp, ATTRIBUTES ), "UTF-8" ) )
+			{
+				final long[] blockSizes = new long[ dim.length ];
+				Arrays.fill( blockSizes, blockSize );
+
+				out.println( "{\"dimensions\":" + Arrays.toString( dim ).replace( " ", "" ) +
+						",\"blockSize\":" + Arrays.toString( blockSizes ).replace( " ", "" ) +
+						",\"dataType\":\"float32\",\"compression\":{\"type\":\"gzip\",\"level\":-1}" +
+						",\"type\":\"" + Util.getTypeFromInterval( img ).getClass().getName() + "\"" +
+						",\"key\":\"" + escape( key ) + "\"}" );
+			}
+
+			// another process might have written the same entry in the meantime
+			if ( !tmp.renameTo( entry ) )
+				delete( tmp );
+
+			return true;
+		}
+		catch ( Exception e )
+		{
+			IOFunctions.println( "Failed to cache image '" + entry + "': " + e );
+			delete( tmp );
+			return false;
+		}
+	}
+
+	private static void writeBlock( final File file, final RandomAccessibleInterval< ? extends RealType< ? > > block ) throws IOException
+	{
+		final int n = block.numDimensions();
+		final ByteBuffer buffer = ByteBuffer.allocate( (int)Intervals.numElements( block ) * 4 );
+
+		for ( final RealType< ? > t : Views.flatIterable( block ) )
+			buffer.putFloat( t.getRealFloat() );
+
+		try ( final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) ) )
+		{
+			// default N5 block header: mode, number of dimensions, block size
+			out.writeShort( 0 );
+			out.writeShort( n );
+			for ( int d = 0; d < n; ++d )
+				out.writeInt( (int)block.dimension( d ) );
+			out.flush();
+
+			final GZIPOutputStream gzip = new GZIPOutputStream( out );
+			gzip.write( buffer.array() );
+			gzip.finish();
+		}
+	}
+
+	private static void readBlock( final File file, final RandomAccessibleInterval< FloatType > block ) throws IOException
+	{
+		try ( final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) )
+		{
+			in.readShort();
+			final int n = in.readShort();
+
+			long size = 1;
+			for ( int d = 0; d < n; ++d )
+				size *= in.readInt();
+
+			if ( size != Intervals.numElements( block ) )
+				throw new IOException( "unexpected block size in " + file );
+
+			final byte[] bytes = new byte[ (int)size * 4 ];
+			new DataInputStream( new GZIPInputStream( in ) ).readFully( bytes );
+
+			final ByteBuffer buffer = ByteBuffer.wrap( bytes );
+
+			for ( final FloatType t : Views.flatIterable( block ) )
+				t.set( buffer.getFloat() );
+		}
+	}
+
+	private static void run( final List< Callable< Void > > tasks, final ExecutorService service ) throws Exception
+	{
+		final ExecutorService taskExecutor = service != null ? service : Executors.newFixedThreadPool( Threads.numThreads() );
+
+		try
+		{
+			for ( final Future< Void > future : taskExecutor.invokeAll( tasks ) )
+				future.get();
+		}
+		finally
+		{
+			if ( service == null )
+				taskExecutor.shutdown();
+		}
+	}
+
+	private static List< long[] > gridPositions( final long[] dim, final int blockSize )
+	{
+		final int n = dim.length;
+		final long[] gridSize = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			gridSize[ d ] = ( dim[ d ] + blockSize - 1 ) / blockSize;
+
+		final ArrayList< long[] > positions = new ArrayList<>();
+		final long[] p = new long[ n ];
+
+		for ( long i = 0; i < Intervals.numElements( gridSize ); ++i )
+		{
+			positions.add( p.clone() );
+
+			for ( int d = 0; d < n; ++d )
+			{
+				if ( ++p[ d ] < gridSize[ d ] )
+					break;
+				p[ d ] = 0;
+			}
+		}
+
+		return positions;
+	}
+
+	private static FinalInterval blockInterval( final long[] gridPosition, final long[] dim, final int blockSize )
+	{
+		final long[] min = new long[ dim.length ];
+		final long[] max = new long[ dim.length ];
+
+		for ( int d = 0; d < dim.length; ++d )
+		{
+			min[ d ] = gridPosition[ d ] * blockSize;
+			max[ d ] = Math.min( dim[ d ], min[ d ] + blockSize ) - 1;
+		}
+
+		return new FinalInterval( min, max );
+	}
+
+	private static String blockPath( final long[] gridPosition )
+	{
+		final StringBuilder s = new StringBuilder();
+		for ( int d = 0; d < gridPosition.length; ++d )
+			s.append( d == 0 ? "" : File.separator ).append( gridPosition[ d ] );
+		return s.toString();
+	}
+
+	protected static String hash( final String key )
+	{
+		try
+		{
+			final byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( key.getBytes( StandardCharsets.UTF_8 ) );
+			final StringBuilder s = new StringBuilder();
+			for ( final byte b : digest )
+				s.append( String.format( "%02x", b ) );
+			return s.toString();
+		}
+		catch ( Exception e )
+		{
+			// SHA-1 is always available
+			throw new RuntimeException( e );
+		}
+	}
+
+	private static String stringAttribute( final String json, final String name ) throws IOException
+	{
+		final Matcher m = Pattern.compile( "\"" + name + "\":\"((?:[^\"\\\\]|\\\\.)*)\"" ).matcher( json );
+		if ( !m.find() )
+			throw new IOException( "missing attribute " + name );
+		return m.group( 1 );
+	}
+
+	private static long[] longsAttribute( final String json, final String name ) throws IOException
+	{
+		final Matcher m = Pattern.compile( "\"" + name + "\":\\[([0-9,]*)\\]" ).matcher( json );
+		if ( !m.find() )
+			throw new IOException( "missing attribute " + name );
+		return Arrays.stream( m.group( 1 ).split( "," ) ).mapToLong( Long::parseLong ).toArray();
+	}
+
+	private static String escape( final String s )
+	{
+		return s.replace( "\\", "\\\\" ).replace( "\"", "\\\"" );
+	}
+
+	private static String unescape( final String s )
+	{
+		final StringBuilder u = new StringBuilder();
+		for ( int i = 0; i < s.length(); ++i )
+		{
+			final char c = s.charAt( i );
+			u.append( c == '\\' && i + 1 < s.length() ? s.charAt( ++i ) : c );
+		}
+		return u.toString();
+	}
+
+	private static void delete( final File file )
+	{
+		final File[] children = file.listFiles();
+		if ( children != null )
+			for ( final File child : children )
+				delete( child );
+		file.delete();
+	}
+}
@@ -23,19 +23,41 @@ package net.preibisch.stitcher.algorithm;
 
 import static mpicbg.spim.data.generic.sequence.ImgLoaderHints.LOAD_COMPLETELY;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import mpicbg.spim.data.sequence.ImgLoader;
 import mpicbg.spim.data.sequence.MultiResolutionImgLoader;
+import mpicbg.spim.data.sequence.MultiResolutionSetupImgLoader;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.Converters;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
-import net.preibisch.mvrecon.process.interestpointdetection.methods.downsampling.Downsample;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.Threads;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 
 
@@ -43,6 +65,8 @@ public class DownsampleTools
 {
 	public static final int[] ds = { 1, 2, 4, 8, 16, 32, 64, 128 };
 
+	private static ExecutorService sharedService;
+
 	public static < T extends RealType<T> > void openAndDownsampleAdjustTransformation(
 			final BasicImgLoader imgLoader,
 			final ViewId vd,
@@ -59,19 +83,7 @@ public class DownsampleTools
 
 			double[][] mipmapResolutions = mrImgLoader.getSetupImgLoader( vd.getViewSetupId() ).getMipmapResolutions();
 
-			int bestLevel = 0;
-			for ( int level = 0; level < mipmapResolutions.length; ++level )
-			{
-				double[] factors = mipmapResolutions[ level ];
-				
-				// this fails if factors are not ints
-				final int fx = (int)Math.round( factors[ 0 ] );
-				final int fy = (int)Math.round( factors[ 1 ] );
-				final int fz = (int)Math.round( factors[ 2 ] );
-				
-				if ( fx <= dsx && fy <= dsy && fz <= dsz && contains( fx, ds ) && contains( fy, ds ) && contains( fz, ds ) )
-					bestLevel = level;
-			}
+			final int bestLevel = getBestMipmapLevel( mipmapResolutions, dsx, dsy, dsz );
 
 			final int fx = (int)Math.round( mipmapResolutions[ bestLevel ][ 0 ] );
 			final int fy = (int)Math.round( mipmapResolutions[ bestLevel ][ 1 ] );
@@ -99,6 +111,40 @@ public class DownsampleTools
 			final ViewId vd,
 			long[] downsampleFactors )
 	{
+		return openAndDownsample( imgLoader, vd, downsampleFactors, null );
+	}
+
+	/**
+	 * Same as {@link #openAndDownsample(BasicImgLoader, ViewId, long[], Interval, ExecutorService)} for callers that do
+	 * not have an executor (e.g. images that are loaded lazily by {@link RAIProxy}), downsamples on {@link #sharedService()}.
+	 */
+	public static < T extends RealType<T> > RandomAccessibleInterval< T > openAndDownsample(
+			final BasicImgLoader imgLoader,
+			final ViewId vd,
+			long[] downsampleFactors,
+			final Interval region )
+	{
+		return openAndDownsample( imgLoader, vd, downsampleFactors, region, sharedService() );
+	}
+
+	/**
+	 * Open and downsample a part of a view. The input is not loaded completely but only the cells that
+	 * intersect the part are read (and downsampled), the part is kept in memory.
+	 * 
+	 * @param imgLoader - the imgloader
+	 * @param vd - the view
+	 * @param downsampleFactors - downsampling in x,y,z
+	 * @param region - the part in coordinates of the downsampled image (see {@link #getDownsampledRegion(Interval, Interval)}), null for the whole image
+	 * @param service - the executor for downsampling
+	 * @return the (zero-min) downsampled part
+	 */
+	public static < T extends RealType<T> > RandomAccessibleInterval< T > openAndDownsample(
+			final BasicImgLoader imgLoader,
+			final ViewId vd,
+			long[] downsampleFactors,
+			final Interval region,
+			final ExecutorService service )
+	{
 		
 		System.out.println(
 				"(" + new Date(System.currentTimeMillis()) + "): "
@@ -117,19 +163,7 @@ public class DownsampleTools
 
 			double[][] mipmapResolutions = mrImgLoader.getSetupImgLoader( vd.getViewSetupId() ).getMipmapResolutions();
 
-			int bestLevel = 0;
-			for ( int level = 0; level < mipmapResolutions.length; ++level )
-			{
-				double[] factors = mipmapResolutions[ level ];
-				
-				// this fails if factors are not ints
-				final int fx = (int)Math.round( factors[ 0 ] );
-				final int fy = (int)Math.round( factors[ 1 ] );
-				final int fz = (int)Math.round( factors[ 2 ] );
-				
-				if ( fx <= dsx && fy <= dsy && fz <= dsz && contains( fx, ds ) && contains( fy, ds ) && contains( fz, ds ) )
-					bestLevel = level;
-			}
+			final int bestLevel = getBestMipmapLevel( mipmapResolutions, dsx, dsy, dsz );
 
 			final int fx = (int)Math.round( mipmapResolutions[ bestLevel ][ 0 ] );
 			final int fy = (int)Math.round( mipmapResolutions[ bestLevel ][ 1 ] );
@@ -145,50 +179,441 @@ public class DownsampleTools
 					"using precomputed Multiresolution Images [" + fx + "x" + fy + "x" + fz + "], " +
 					"Remaining downsampling [" + dsx + "x" + dsy + "x" + dsz + "]" );
 
-			input = (RandomAccessibleInterval< T >) mrImgLoader.getSetupImgLoader( vd.getViewSetupId() ).getFloatImage( vd.getTimePointId(), bestLevel, false, LOAD_COMPLETELY );
+			input = (RandomAccessibleInterval< T >) mrImgLoader.getSetupImgLoader( vd.getViewSetupId() ).getFloatImage( vd.getTimePointId(), bestLevel, false, loadHints( dsx, dsy, dsz, region ) );
 		}
 		else
 		{
-			input =  (RandomAccessibleInterval< T >) imgLoader.getSetupImgLoader( vd.getViewSetupId() ).getImage( vd.getTimePointId(), LOAD_COMPLETELY );
+			input =  (RandomAccessibleInterval< T >) imgLoader.getSetupImgLoader( vd.getViewSetupId() ).getImage( vd.getTimePointId(), loadHints( dsx, dsy, dsz, region ) );
 		}
 
-		return downsample( input, new long[]{ dsx, dsy, dsz } );
+		if ( region == null )
+			return downsample( input, new long[]{ dsx, dsy, dsz }, service );
+
+		final RandomAccessibleInterval< T > crop = Views.interval( input, getInputRegion( input, new long[]{ dsx, dsy, dsz }, region ) );
+
+		IOFunctions.println(
+				"(" + new Date(System.currentTimeMillis()) + "): " +
+				"View " + Group.pvid( vd ) + ", loading region " + Util.printInterval( crop ) + " of " + Util.printInterval( input ) );
+
+		final RandomAccessibleInterval< T > downsampled = downsample( crop, new long[]{ dsx, dsy, dsz }, service );
+
+		// downsample() returns the input if there is nothing to downsample, copy the cells we need then
+		if ( downsampled == crop )
+			return copy( crop );
+		else
+			return downsampled;
+	}
+
+	/**
+	 * @param downsampled - the interval of the downsampled image, see {@link #getDownsampledInterval(BasicImgLoader, ViewId, long[])}
+	 * @param region - a part of the downsampled image (may exceed it)
+	 * @return region clipped to the downsampled image (at least one pixel in every dimension)
+	 */
+	public static Interval getDownsampledRegion( final Interval downsampled, final Interval region )
+	{
+		final int n = downsampled.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			if ( d < region.numDimensions() )
+			{
+				min[ d ] = Math.max( downsampled.min( d ), Math.min( region.min( d ), downsampled.max( d ) ) );
+				max[ d ] = Math.max( min[ d ], Math.min( region.max( d ), downsampled.max( d ) ) );
+			}
+			else
+			{
+				min[ d ] = downsampled.min( d );
+				max[ d ] = downsampled.max( d );
+			}
+		}
+
+		return new FinalInterval( min, max );
+	}
+
+	/**
+	 * @return the interval of the input that is downsampled into the region (see {@link #downsample(RandomAccessibleInterval, long[], ExecutorService)})
+	 */
+	private static Interval getInputRegion( final Interval input, final long[] downsampleFactors, final Interval region )
+	{
+		final int n = input.numDimensions();
+		final long[] dim = new long[ n ];
+		final long[] f = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			f[ d ] = d < downsampleFactors.length ? Math.max( 1, downsampleFactors[ d ] ) : 1;
+			dim[ d ] = downsampledSize( input.dimension( d ), f[ d ] );
+		}
+
+		final Interval clipped = getDownsampledRegion( new FinalInterval( dim ), region );
+
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = input.min( d ) + clipped.min( d ) * f[ d ];
+			// the last block might be smaller if the image is smaller than one block
+			max[ d ] = input.min( d ) + Math.min( ( clipped.max( d ) + 1 ) * f[ d ], input.dimension( d ) ) - 1;
+		}
+
+		return new FinalInterval( min, max );
+	}
+
+	/**
+	 * @return a zero-min copy of the input in memory
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static < T extends RealType<T> > RandomAccessibleInterval< T > copy( final RandomAccessibleInterval< T > input )
+	{
+		final long[] dim = Intervals.dimensionsAsLongArray( input );
+		final T type = Util.getTypeFromInterval( input ).createVariable();
+
+		// raw factories, T is not necessarily a NativeType here
+		final Img< T > output = Intervals.numElements( dim ) < Integer.MAX_VALUE ?
+				new ArrayImgFactory().create( dim, type ) : new CellImgFactory().create( dim, type );
+
+		final Cursor< T > in = Views.flatIterable( input ).cursor();
+		final Cursor< T > out = Views.flatIterable( output ).cursor();
+
+		while ( out.hasNext() )
+			out.next().set( in.next() );
+
+		return output;
 	}
 	
-	public static < T extends RealType<T> > RandomAccessibleInterval< T > downsample(
-			RandomAccessibleInterval< T > input,
+	/**
+	 * the input is read only once if we still have to downsample or only need a region of it, so it can be
+	 * streamed (cell by cell), otherwise the image is accessed repeatedly and should be loaded completely
+	 */
+	private static ImgLoaderHint[] loadHints( final long dsx, final long dsy, final long dsz, final Interval region )
+	{
+		if ( dsx > 1 || dsy > 1 || dsz > 1 || region != null )
+			return new ImgLoaderHint[ 0 ];
+		else
+			return new ImgLoaderHint[]{ LOAD_COMPLETELY };
+	}
+
+	/**
+	 * Compute the interval of the image {@link #openAndDownsample(BasicImgLoader, ViewId, long[])} would return from
+	 * the metadata only, i.e. without loading the image.
+	 * 
+	 * @param imgLoader - the imgloader
+	 * @param vd - the view
+	 * @param downsampleFactors - downsampling in x,y,z
+	 * @return the (zero-min) interval or null if the size cannot be determined without loading
+	 */
+	public static Interval getDownsampledInterval(
+			final BasicImgLoader imgLoader,
+			final ViewId vd,
 			final long[] downsampleFactors )
 	{
-		boolean is2d = input.numDimensions() == 2;
-		
 		long dsx = downsampleFactors[0];
 		long dsy = downsampleFactors[1];
-		long dsz = 1;
-		if (!is2d)
-			dsz = downsampleFactors[2];
+		long dsz = downsampleFactors[2];
+
+		final Dimensions size;
 
-		ImgFactory< T > f = null;
+		if ( ( dsx > 1 || dsy > 1 || dsz > 1 ) && MultiResolutionImgLoader.class.isInstance( imgLoader ) )
+		{
+			final MultiResolutionSetupImgLoader< ? > setupImgLoader = ( ( MultiResolutionImgLoader ) imgLoader ).getSetupImgLoader( vd.getViewSetupId() );
+			final double[][] mipmapResolutions = setupImgLoader.getMipmapResolutions();
+			final int bestLevel = getBestMipmapLevel( mipmapResolutions, dsx, dsy, dsz );
+
+			dsx /= (int)Math.round( mipmapResolutions[ bestLevel ][ 0 ] );
+			dsy /= (int)Math.round( mipmapResolutions[ bestLevel ][ 1 ] );
+			dsz /= (int)Math.round( mipmapResolutions[ bestLevel ][ 2 ] );
 
-		if ( Img.class.isInstance( input ) )
-			// factory is not implemented for e.g. LazyCellImg yet
-			try
+			size = setupImgLoader.getImageSize( vd.getTimePointId(), bestLevel );
+		}
+		else if ( ImgLoader.class.isInstance( imgLoader ) )
+		{
+			size = ( ( ImgLoader ) imgLoader ).getSetupImgLoader( vd.getViewSetupId() ).getImageSize( vd.getTimePointId() );
+		}
+		else
+		{
+			return null;
+		}
+
+		if ( size == null )
+			return null;
+
+		final long[] dim = new long[ size.numDimensions() ];
+		size.dimensions( dim );
+
+		final long[] dsRemaining = new long[]{ dsx, dsy, dsz };
+
+		// see downsample()
+		for ( int d = 0; d < Math.min( dim.length, dsRemaining.length ); ++d )
+			dim[ d ] = downsampledSize( dim[ d ], dsRemaining[ d ] );
+
+		return new FinalInterval( dim );
+	}
+
+	/**
+	 * @return an executor that is shared by all callers that do not have one, created once (daemon threads)
+	 */
+	public static synchronized ExecutorService sharedService()
+	{
+		if ( sharedService == null )
+			sharedService = Executors.newFixedThreadPool( Threads.numThreads(), new ThreadFactory()
 			{
-				f = ((Img<T>)input).factory();
-			} catch (UnsupportedOperationException e) {}
+				@Override
+				public Thread newThread( final Runnable r )
+				{
+					final Thread thread = new Thread( r, "DownsampleTools" );
+					thread.setDaemon( true );
+					return thread;
+				}
+			});
+
+		return sharedService;
+	}
 
-		if ( f == null )
-			f = new ArrayImgFactory();
-		
-		for ( ;dsx > 1; dsx /= 2 )
-			input = Downsample.simple2x( input, f, new boolean[]{ true, false, false } );
+	/**
+	 * Downsample by arbitrary integer factors (block averaging) on the {@link #sharedService()}.
+	 *
+	 * @param input - the image (e.g. a lazily loaded cell image)
+	 * @param downsampleFactors - downsampling in x,y(,z), factors beyond the dimensionality of the image are ignored
+	 * @return the downsampled image or the input if no downsampling is necessary
+	 * @throws RuntimeException if downsampling failed
+	 * @deprecated pass the executor of the caller to {@link #downsample(RandomAccessibleInterval, long[], ExecutorService)}
+	 */
+	@Deprecated
+	public static < T extends RealType<T> > RandomAccessibleInterval< T > downsample(
+			final RandomAccessibleInterval< T > input,
+			final long[] downsampleFactors )
+	{
+		return downsample( input, downsampleFactors, sharedService() );
+	}
+
+	/**
+	 * Downsample by arbitrary integer factors in a single pass, every output pixel is the average of its
+	 * (f_x * f_y * f_z) block in the input. The output is computed in parallel slabs (along the last dimension),
+	 * the input is read line by line and exactly once, so it can be streamed from a cell image without loading
+	 * it completely and no intermediate images are created.
+	 * 
+	 * @param input - the image
+	 * @param downsampleFactors - downsampling in x,y(,z), factors beyond the dimensionality of the image are ignored
+	 * @param service - the executor for the slabs
+	 * @return the downsampled image or the input if no downsampling is necessary
+	 * @throws RuntimeException if downsampling failed
+	 */
+	@SuppressWarnings("unchecked")
+	public static < T extends RealType<T> > RandomAccessibleInterval< T > downsample(
+			final RandomAccessibleInterval< T > input,
+			final long[] downsampleFactors,
+			final ExecutorService service )
+	{
+		final int n = input.numDimensions();
+		final long[] f = new long[ n ];
+
+		boolean downsample = false;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			f[ d ] = d < downsampleFactors.length ? Math.max( 1, downsampleFactors[ d ] ) : 1;
+			downsample |= f[ d ] > 1;
+		}
+
+		if ( !downsample )
+			return input;
+
+		final RandomAccessibleInterval< T > src = Views.zeroMin( input );
+
+		final long[] dim = new long[ n ];
+		final long[] readLength = new long[ n ];
+		long count = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			dim[ d ] = downsampledSize( src.dimension( d ), f[ d ] );
+
+			// only differs from f if the image is smaller than one block
+			readLength[ d ] = Math.min( f[ d ], src.dimension( d ) );
+			count *= readLength[ d ];
+		}
+
+		// T is not necessarily a NativeType, so we downsample into a float image
+		final T type = Util.getTypeFromInterval( src ).createVariable();
+		final ImgFactory< FloatType > factory;
+
+		if ( Intervals.numElements( dim ) < Integer.MAX_VALUE )
+			factory = new ArrayImgFactory< FloatType >();
+		else
+			factory = new CellImgFactory< FloatType >();
+
+		final Img< FloatType > output = factory.create( dim, new FloatType() );
+
+		final double norm = 1.0 / count;
+		final long lastDim = dim[ n - 1 ];
+		final long numSlabs = n == 1 ? 1 : Math.min( lastDim, Threads.numThreads() * 4 );
+
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+
+		for ( long s = 0; s < numSlabs; ++s )
+		{
+			// lines of the output in this slab
+			final long[] lineMin = new long[ n ];
+			final long[] lineMax = new long[ n ];
 
-		for ( ;dsy > 1; dsy /= 2 )
-			input = Downsample.simple2x( input, f, new boolean[]{ false, true, false } );
+			for ( int d = 1; d < n; ++d )
+				lineMax[ d ] = dim[ d ] - 1;
 
-		for ( ;dsz > 1; dsz /= 2 )
-			input = Downsample.simple2x( input, f, new boolean[]{ false, false, true } );
+			if ( n > 1 )
+			{
+				lineMin[ n - 1 ] = s * lastDim / numSlabs;
+				lineMax[ n - 1 ] = ( s + 1 ) * lastDim / numSlabs - 1;
+			}
+
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					final RandomAccess< T > in = src.randomAccess();
+					final RandomAccess< FloatType > out = output.randomAccess();
+
+					final int width = (int)dim[ 0 ];
+					final long fx = readLength[ 0 ];
+					final double[] line = new double[ width ];
+
+					final long[] outPos = lineMin.clone();
+					final long[] offset = new long[ n ];
+					final long[] offsetMin = new long[ n ];
+					final long[] offsetMax = new long[ n ];
+					final long[] srcPos = new long[ n ];
+
+					for ( int d = 1; d < n; ++d )
+						offsetMax[ d ] = readLength[ d ] - 1;
+
+					do
+					{
+						Arrays.fill( line, 0 );
+						Arrays.fill( offset, 0 );
+
+						// all input lines that contribute to this output line
+						do
+						{
+							for ( int d = 1; d < n; ++d )
+								srcPos[ d ] = outPos[ d ] * f[ d ] + offset[ d ];
+
+							in.setPosition( srcPos );
+
+							for ( int x = 0; x < width; ++x )
+							{
+								double sum = 0;
+
+								for ( long k = 0; k < fx; ++k )
+								{
+									sum += in.get().getRealDouble();
+									in.fwd( 0 );
+								}
+
+								line[ x ] += sum;
+							}
+						}
+						while ( nextPosition( offset, offsetMin, offsetMax ) );
+
+						out.setPosition( outPos );
+
+						for ( int x = 0; x < width; ++x )
+						{
+							out.get().setReal( line[ x ] * norm );
+							out.fwd( 0 );
+						}
+					}
+					while ( nextPosition( outPos, lineMin, lineMax ) );
+
+					return null;
+				}
+			});
+		}
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			for ( final Future< Void > future : service.invokeAll( tasks ) )
+				future.get();
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Failed to downsample: " + e );
+			throw new RuntimeException( "Failed to downsample", e );
+		}
+
+		if ( FloatType.class.isInstance( type ) )
+			return (RandomAccessibleInterval< T >)(Object)output;
+
+		// other types are a converted view of the float image
+		return Converters.convert( (RandomAccessibleInterval< FloatType >)output, new Converter< FloatType, T >()
+		{
+			@Override
+			public void convert( final FloatType source, final T target )
+			{
+				target.setReal( source.get() );
+			}
+		}, type );
+	}
+
+	/**
+	 * @param size - size of the input in one dimension
+	 * @param factor - downsampling factor
+	 * @return size of the downsampled image in this dimension (at least one pixel)
+	 */
+	public static long downsampledSize( final long size, final long factor )
+	{
+		return Math.max( 1, size / Math.max( 1, factor ) );
+	}
+
+	/**
+	 * increase position in dimensions 1...n-1 (raster order), dimension 0 is iterated by the caller
+	 * 
+	 * @return false if all positions have been visited (position is reset to min)
+	 */
+	private static boolean nextPosition( final long[] position, final long[] min, final long[] max )
+	{
+		for ( int d = 1; d < position.length; ++d )
+		{
+			if ( position[ d ] < max[ d ] )
+			{
+				++position[ d ];
+				return true;
+			}
+
+			position[ d ] = min[ d ];
+		}
+
+		return false;
+	}
+
+	/**
+	 * @param mipmapResolutions - the available resolutions
+	 * @param dsx - requested downsampling in x
+	 * @param dsy - requested downsampling in y
+	 * @param dsz - requested downsampling in z
+	 * @return the coarsest mipmap level that does not exceed (and divides) the requested downsampling
+	 */
+	public static int getBestMipmapLevel( final double[][] mipmapResolutions, final long dsx, final long dsy, final long dsz )
+	{
+		int bestLevel = 0;
+		for ( int level = 0; level < mipmapResolutions.length; ++level )
+		{
+			double[] factors = mipmapResolutions[ level ];
+			
+			// this fails if factors are not ints
+			final int fx = (int)Math.round( factors[ 0 ] );
+			final int fy = (int)Math.round( factors[ 1 ] );
+			final int fz = (int)Math.round( factors[ 2 ] );
+			
+			if ( fx <= dsx && fy <= dsy && fz <= dsz && contains( fx, ds ) && contains( fy, ds ) && contains( fz, ds ) &&
+					dsx % fx == 0 && dsy % fy == 0 && dsz % fz == 0 )
+				bestLevel = level;
+		}
 
-		return input;
+		return bestLevel;
 	}
 
 	private static final boolean contains( final int i, final int[] values )
@@ -22,7 +22,9 @@
 package net.preibisch.stitcher.algorithm;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -30,11 +32,10 @@ import java.util.Map;
 import java.util.Set;
 
 import mpicbg.spim.data.sequence.ViewId;
-import net.imglib2.RealPoint;
+import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.Translation3D;
 import net.imglib2.util.Pair;
-import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
 import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
 import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.StitchingResults;
@@ -42,14 +43,41 @@ import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constell
 import net.preibisch.stitcher.gui.StitchingExplorerPanel;
 import net.preibisch.stitcher.gui.overlay.DemoLinkOverlay;
 
+/**
+ * Filtered view on {@link StitchingResults}. The features the default filters look at (correlation, absolute shift
+ * per dimension, shift magnitude) are precomputed once per link and kept sorted, so changing the threshold of one of
+ * the {@link RangeFilter}s only touches the links that cross the old/new threshold. Other {@link Filter}s are evaluated
+ * on all links once when they are added.
+ */
 public class FilteredStitchingResults 
 {
+	// the features RangeFilters can constrain
+	public static final int R = 0;
+	public static final int ABS_SHIFT_X = 1;
+	public static final int ABS_SHIFT_Y = 2;
+	public static final int ABS_SHIFT_Z = 3;
+	public static final int SHIFT_MAGNITUDE = 4;
+	public static final int NUM_FEATURES = 5;
+
 	public static interface Filter
 	{
 		public <C extends Comparable< C >> boolean conforms(final PairwiseStitchingResult< C > result);
 	}
 
-	public static class CorrelationFilter implements Filter
+	/**
+	 * a filter that accepts links whose features (see {@link FilteredStitchingResults#R} etc.) all lie in closed ranges
+	 */
+	public static abstract class RangeFilter implements Filter
+	{
+		/**
+		 * intersect the given ranges with the ranges accepted by this filter, leave unconstrained features untouched
+		 * @param min - minimal value per feature
+		 * @param max - maximal value per feature
+		 */
+		public abstract void restrict(final double[] min, final double[] max);
+	}
+
+	public static class CorrelationFilter extends RangeFilter
 	{
 		private final double minR;
 		private final double maxR;
@@ -64,9 +92,16 @@ public class FilteredStitchingResults
 		{
 			return (result.r() <= maxR) && (result.r() >= minR);
 		}
+
+		@Override
+		public void restrict(final double[] min, final double[] max)
+		{
+			min[ R ] = Math.max( min[ R ], minR );
+			max[ R ] = Math.min( max[ R ], maxR );
+		}
 	}
 
-	public static class AbsoluteShiftFilter implements Filter
+	public static class AbsoluteShiftFilter extends RangeFilter
 	{
 		private final double[] minMaxShift;
 		public AbsoluteShiftFilter(double[] minMaxShift)
@@ -74,25 +109,50 @@ public class FilteredStitchingResults
 			this.minMaxShift = minMaxShift;
 		}
 
+		/**
+		 * @return the maximal allowed shift per dimension (Double.POSITIVE_INFINITY where only a minimum is set)
+		 */
+		public double[] getMaxShift()
+		{
+			final double[] maxShift = new double[minMaxShift.length];
+			for (int d = 0; d < maxShift.length; d++)
+				maxShift[d] = minMaxShift[d] >= 0 ? minMaxShift[d] : Double.POSITIVE_INFINITY;
+			return maxShift;
+		}
+
 		@Override
 		public <C extends Comparable< C >> boolean conforms(final PairwiseStitchingResult< C > result)
 		{
-			double[] v = new double[result.getTransform().numDimensions()];
-			result.getTransform().apply( v, v );
+			final AffineGet transform = result.getTransform();
+			final int n = transform.numDimensions();
 
 			// negative means at least that shift, positive means less than this shift is allowed
-			for (int d = 0; d < v.length; d++)
+			for (int d = 0; d < n; d++)
 			{
-				if ( minMaxShift[d] >= 0 && Math.abs( v[d] ) > minMaxShift[d] )
+				// the transform applied to the origin, i.e. the translation
+				final double v = Math.abs( transform.get( d, n ) );
+				if ( minMaxShift[d] >= 0 && v > minMaxShift[d] )
 					return false;
-				if ( minMaxShift[d] < 0 && Math.abs( v[d] ) < -minMaxShift[d] )
+				if ( minMaxShift[d] < 0 && v < -minMaxShift[d] )
 					return false;
 			}
 			return true;
 		}
+
+		@Override
+		public void restrict(final double[] min, final double[] max)
+		{
+			for (int d = 0; d < Math.min( minMaxShift.length, 3 ); d++)
+			{
+				if ( minMaxShift[d] >= 0 )
+					max[ ABS_SHIFT_X + d ] = Math.min( max[ ABS_SHIFT_X + d ], minMaxShift[d] );
+				else
+					min[ ABS_SHIFT_X + d ] = Math.max( min[ ABS_SHIFT_X + d ], -minMaxShift[d] );
+			}
+		}
 	}
 
-	public static class ShiftMagnitudeFilter implements Filter
+	public static class ShiftMagnitudeFilter extends RangeFilter
 	{
 		private final double maxShift;
 
@@ -101,21 +161,61 @@ public class FilteredStitchingResults
 			this.maxShift = maxShift;
 		}
 
+		public double getMaxShift()
+		{
+			return maxShift;
+		}
+
 		@Override
 		public <C extends Comparable< C >> boolean conforms(PairwiseStitchingResult< C > result)
 		{
-			double[] v = new double[result.getTransform().numDimensions()];
-			double[] vt = new double[result.getTransform().numDimensions()];
-			result.getTransform().apply( v, vt );
+			return shiftMagnitude( result.getTransform() ) <= maxShift;
+		}
 
-			return Util.distance( new RealPoint( v ), new RealPoint( vt ) ) <= maxShift;
+		@Override
+		public void restrict(final double[] min, final double[] max)
+		{
+			max[ SHIFT_MAGNITUDE ] = Math.min( max[ SHIFT_MAGNITUDE ], maxShift );
 		}
 	}
 
+	/**
+	 * notified with the links that entered or left the filtered results whenever the filters change
+	 */
+	public static interface FilterListener
+	{
+		public void filteredResultsChanged(
+				final Collection< Pair< Group< ViewId >, Group< ViewId > > > added,
+				final Collection< Pair< Group< ViewId >, Group< ViewId > > > removed );
+	}
+
 	private Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > filteredPairwiseResults;
 	private DemoLinkOverlay demoOverlay; // can be null
 	private StitchingResults wrapped;
 	private List<Filter> filters;
+	private final List< FilterListener > listeners = new ArrayList<>();
+
+	// the links of wrapped and their features, null if the index has to be rebuilt
+	private List< Pair< Group< ViewId >, Group< ViewId > > > links;
+	private List< PairwiseStitchingResult< ViewId > > linkResults;
+	private double[][] sortedFeatures; // [feature][rank]
+	private int[][] sortedLinks; // [feature][rank] -> link index
+
+	// ranges of all RangeFilters combined, features with unconstrained[f] are accepted regardless of their value (also NaN)
+	private final double[] rangeMin = new double[ NUM_FEATURES ];
+	private final double[] rangeMax = new double[ NUM_FEATURES ];
+	private final boolean[] unconstrained = new boolean[ NUM_FEATURES ];
+
+	// number of filters (or constrained features) each link fails, a link is in the filtered results iff it is 0
+	private int[] numFailed;
+	// which links the filters that are no RangeFilter reject
+	private final Map< Filter, boolean[] > failedOtherFilters = new HashMap<>();
+
+	// links whose numFailed changed during the current update and whether they passed before
+	private int[] touched;
+	private int numTouched;
+	private boolean[] isTouched;
+	private boolean[] passedBefore;
 
 	public FilteredStitchingResults(StitchingResults wrapped )
 	{
@@ -131,65 +231,388 @@ public class FilteredStitchingResults
 		updateFilteredResults();
 	}
 
+	public void addListener(final FilterListener listener)
+	{
+		listeners.add( listener );
+	}
+
+	public void removeListener(final FilterListener listener)
+	{
+		listeners.remove( listener );
+	}
+
+	/**
+	 * re-compute the features of all links of the wrapped results and re-evaluate all filters,
+	 * call this if the wrapped results were modified from outside
+	 */
 	void updateFilteredResults()
 	{
-		filteredPairwiseResults.clear();
-		wrapped.getPairwiseResults().forEach( (k, v) -> 
+		final int n = wrapped.getPairwiseResults().size();
+
+		links = new ArrayList<>( n );
+		linkResults = new ArrayList<>( n );
+		wrapped.getPairwiseResults().forEach( (k, v) ->
 		{
-			for (Filter filter : filters)
-				if (!filter.conforms(v))
-					return;
-			filteredPairwiseResults.put( k, v );
+			links.add( k );
+			linkResults.add( v );
 		});
+
+		final double[][] features = new double[ NUM_FEATURES ][ n ];
+		for (int i = 0; i < n; i++)
+		{
+			final AffineGet transform = linkResults.get( i ).getTransform();
+			final int numDimensions = transform.numDimensions();
+
+			features[ R ][ i ] = linkResults.get( i ).r();
+			for (int d = 0; d < 3; d++)
+				features[ ABS_SHIFT_X + d ][ i ] = d < numDimensions ? Math.abs( transform.get( d, numDimensions ) ) : 0;
+			features[ SHIFT_MAGNITUDE ][ i ] = shiftMagnitude( transform );
+		}
+
+		sortedFeatures = new double[ NUM_FEATURES ][];
+		sortedLinks = new int[ NUM_FEATURES ][];
+		for (int f = 0; f < NUM_FEATURES; f++)
+		{
+			final double[] feature = features[ f ];
+			final Integer[] order = new Integer[ n ];
+			for (int i = 0; i < n; i++)
+				order[ i ] = i;
+			// Double.compare sorts NaN last, see firstRankNotBelow() and firstRankAbove()
+			Arrays.sort( order, Comparator.comparingDouble( i -> feature[ i ] ) );
+
+			sortedFeatures[ f ] = new double[ n ];
+			sortedLinks[ f ] = new int[ n ];
+			for (int r = 0; r < n; r++)
+			{
+				sortedLinks[ f ][ r ] = order[ r ];
+				sortedFeatures[ f ][ r ] = feature[ order[ r ] ];
+			}
+		}
+
+		numFailed = new int[ n ];
+		touched = new int[ n ];
+		isTouched = new boolean[ n ];
+		passedBefore = new boolean[ n ];
+		numTouched = 0;
+
+		getRanges( filters, rangeMin, rangeMax, unconstrained );
+		for (int f = 0; f < NUM_FEATURES; f++)
+			if ( !unconstrained[ f ] )
+				for (int r = 0; r < n; r++)
+					if ( !inRange( sortedFeatures[ f ][ r ], rangeMin[ f ], rangeMax[ f ] ) )
+						++numFailed[ sortedLinks[ f ][ r ] ];
+
+		failedOtherFilters.clear();
+		for (final Filter filter : filters)
+			if ( !( filter instanceof RangeFilter ) )
+				failedOtherFilters.put( filter, evaluate( filter, false ) );
+
+		final Set< Pair< Group< ViewId >, Group< ViewId > > > before = new HashSet<>( filteredPairwiseResults.keySet() );
+		final List< Pair< Group< ViewId >, Group< ViewId > > > added = new ArrayList<>();
+
+		filteredPairwiseResults.clear();
+		for (int i = 0; i < n; i++)
+			if ( numFailed[ i ] == 0 )
+			{
+				filteredPairwiseResults.put( links.get( i ), linkResults.get( i ) );
+				if ( !before.remove( links.get( i ) ) )
+					added.add( links.get( i ) );
+			}
+
+		fireChanged( added, before );
 	}
 
 	public void clearFilter(Class<? extends Filter> filterClass)
 	{
+		updateFilters( filterClass, null );
+	}
+
+	public void addFilter(Filter filter)
+	{
+		// remove existing instance
+		updateFilters( filter.getClass(), filter );
+	}
+
+	/**
+	 * remove all filters of (a superclass of) filterClass, add newFilter (if not null) and update the filtered results
+	 * incrementally
+	 */
+	private void updateFilters(final Class<? extends Filter> filterClass, final Filter newFilter)
+	{
+		final List< Filter > removedFilters = new ArrayList<>();
+
 		// clear previous instances
 		for (int i = filters.size() - 1; i >= 0; i--)
 		{
 			if (filters.get( i ).getClass().isAssignableFrom( filterClass ))
-				filters.remove( i );
+				removedFilters.add( filters.remove( i ) );
 		}
-		updateFilteredResults();
+
+		if ( newFilter != null )
+			filters.add( newFilter );
+
+		// the wrapped results changed, start over
+		if ( !isIndexCurrent() )
+		{
+			updateFilteredResults();
+			return;
+		}
+
+		for (final Filter filter : removedFilters)
+		{
+			final boolean[] failed = failedOtherFilters.remove( filter );
+			if ( failed != null )
+				for (int i = 0; i < failed.length; i++)
+					if ( failed[ i ] )
+						changeNumFailed( i, -1 );
+		}
+
+		if ( newFilter != null && !( newFilter instanceof RangeFilter ) )
+			failedOtherFilters.put( newFilter, evaluate( newFilter, true ) );
+
+		final double[] newMin = new double[ NUM_FEATURES ];
+		final double[] newMax = new double[ NUM_FEATURES ];
+		final boolean[] newUnconstrained = new boolean[ NUM_FEATURES ];
+		getRanges( filters, newMin, newMax, newUnconstrained );
+
+		for (int f = 0; f < NUM_FEATURES; f++)
+		{
+			if ( unconstrained[ f ] && newUnconstrained[ f ] )
+				continue;
+
+			if ( unconstrained[ f ] || newUnconstrained[ f ] )
+			{
+				// a filter was switched on or off, all links might change
+				updateFeatureRanks( f, 0, links.size(), newMin[ f ], newMax[ f ], newUnconstrained[ f ] );
+			}
+			else if ( newMin[ f ] != rangeMin[ f ] || newMax[ f ] != rangeMax[ f ] )
+			{
+				// only the links between the old and new thresholds change
+				int start1 = firstRankNotBelow( sortedFeatures[ f ], Math.min( rangeMin[ f ], newMin[ f ] ) );
+				int end1 = firstRankAbove( sortedFeatures[ f ], Math.max( rangeMin[ f ], newMin[ f ] ) );
+				int start2 = firstRankNotBelow( sortedFeatures[ f ], Math.min( rangeMax[ f ], newMax[ f ] ) );
+				int end2 = firstRankAbove( sortedFeatures[ f ], Math.max( rangeMax[ f ], newMax[ f ] ) );
+
+				if ( start2 < start1 )
+				{
+					final int tmpStart = start1, tmpEnd = end1;
+					start1 = start2; end1 = end2;
+					start2 = tmpStart; end2 = tmpEnd;
+				}
+
+				if ( start2 <= end1 )
+				{
+					// overlapping, visit every link only once
+					end1 = Math.max( end1, end2 );
+					start2 = end2 = end1;
+				}
+
+				updateFeatureRanks( f, start1, end1, newMin[ f ], newMax[ f ], false );
+				updateFeatureRanks( f, start2, end2, newMin[ f ], newMax[ f ], false );
+			}
+
+			rangeMin[ f ] = newMin[ f ];
+			rangeMax[ f ] = newMax[ f ];
+			unconstrained[ f ] = newUnconstrained[ f ];
+		}
+
+		// collect the delta
+		final List< Pair< Group< ViewId >, Group< ViewId > > > added = new ArrayList<>();
+		final List< Pair< Group< ViewId >, Group< ViewId > > > removed = new ArrayList<>();
+
+		for (int t = 0; t < numTouched; t++)
+		{
+			final int i = touched[ t ];
+			final boolean passes = numFailed[ i ] == 0;
+
+			if ( passes && !passedBefore[ i ] )
+			{
+				filteredPairwiseResults.put( links.get( i ), linkResults.get( i ) );
+				added.add( links.get( i ) );
+			}
+			else if ( !passes && passedBefore[ i ] )
+			{
+				filteredPairwiseResults.remove( links.get( i ) );
+				removed.add( links.get( i ) );
+			}
+
+			isTouched[ i ] = false;
+		}
+		numTouched = 0;
+
+		fireChanged( added, removed );
 	}
 
-	public void addFilter(Filter filter)
+	/**
+	 * update numFailed of the links with ranks [start, end) of feature f from the current to the new range
+	 */
+	private void updateFeatureRanks(final int f, final int start, final int end, final double newMin, final double newMax, final boolean newUnconstrained)
 	{
-		// remove existing instance
-		clearFilter( filter.getClass() );
-		filters.add( filter );
-		updateFilteredResults();
+		for (int r = start; r < end; r++)
+		{
+			final double v = sortedFeatures[ f ][ r ];
+			final boolean failedBefore = !unconstrained[ f ] && !inRange( v, rangeMin[ f ], rangeMax[ f ] );
+			final boolean failsNow = !newUnconstrained && !inRange( v, newMin, newMax );
+
+			if ( failedBefore != failsNow )
+				changeNumFailed( sortedLinks[ f ][ r ], failsNow ? 1 : -1 );
+		}
+	}
+
+	private void changeNumFailed(final int i, final int change)
+	{
+		if ( !isTouched[ i ] )
+		{
+			isTouched[ i ] = true;
+			passedBefore[ i ] = numFailed[ i ] == 0;
+			touched[ numTouched++ ] = i;
+		}
+
+		numFailed[ i ] += change;
+	}
+
+	/**
+	 * @param filter - a filter
+	 * @param track - record the rejected links as touched (incremental update) or just count them (rebuild)
+	 * @return which links the filter rejects
+	 */
+	private boolean[] evaluate(final Filter filter, final boolean track)
+	{
+		final boolean[] failed = new boolean[ links.size() ];
+
+		for (int i = 0; i < failed.length; i++)
+			if ( !filter.conforms( linkResults.get( i ) ) )
+			{
+				failed[ i ] = true;
+				if ( track )
+					changeNumFailed( i, 1 );
+				else
+					++numFailed[ i ];
+			}
+
+		return failed;
+	}
+
+	private void fireChanged(
+			final Collection< Pair< Group< ViewId >, Group< ViewId > > > added,
+			final Collection< Pair< Group< ViewId >, Group< ViewId > > > removed )
+	{
+		if ( added.isEmpty() && removed.isEmpty() )
+			return;
+
+		for (final FilterListener listener : listeners)
+			listener.filteredResultsChanged( added, removed );
+	}
+
+	private static void getRanges(final List< Filter > filters, final double[] min, final double[] max, final boolean[] unconstrained)
+	{
+		Arrays.fill( min, Double.NEGATIVE_INFINITY );
+		Arrays.fill( max, Double.POSITIVE_INFINITY );
+
+		for (final Filter filter : filters)
+			if ( filter instanceof RangeFilter )
+				( (RangeFilter) filter ).restrict( min, max );
+
+		for (int f = 0; f < min.length; f++)
+			unconstrained[ f ] = min[ f ] == Double.NEGATIVE_INFINITY && max[ f ] == Double.POSITIVE_INFINITY;
+	}
+
+	private static boolean inRange(final double v, final double min, final double max)
+	{
+		return v >= min && v <= max;
+	}
+
+	/**
+	 * @return the first rank with a value &gt;= v (NaNs sort last, so v &lt; value is monotonous)
+	 */
+	private static int firstRankNotBelow(final double[] sorted, final double v)
+	{
+		int lo = 0, hi = sorted.length;
+		while ( lo < hi )
+		{
+			final int mid = ( lo + hi ) >>> 1;
+			if ( sorted[ mid ] < v )
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the first rank with a value &gt; v (or NaN)
+	 */
+	private static int firstRankAbove(final double[] sorted, final double v)
+	{
+		int lo = 0, hi = sorted.length;
+		while ( lo < hi )
+		{
+			final int mid = ( lo + hi ) >>> 1;
+			if ( sorted[ mid ] <= v )
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the distance the transform moves the origin
+	 */
+	public static double shiftMagnitude(final AffineGet transform)
+	{
+		final int n = transform.numDimensions();
+
+		double sumSq = 0;
+		for (int d = 0; d < n; d++)
+			sumSq += transform.get( d, n ) * transform.get( d, n );
+
+		return Math.sqrt( sumSq );
 	}
 
 	public void applyToWrappedSubset( Collection< Pair< Group< ViewId >, Group< ViewId > > > targets)
 	{
-		final Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > filteredTmp = new HashMap<>();
-		filteredTmp.putAll( wrapped.getPairwiseResults() );
+		if ( !isIndexCurrent() )
+			updateFilteredResults();
 
 		if ( demoOverlay != null )
 			demoOverlay.getFilteredResults().clear();
 
-		wrapped.getPairwiseResults().forEach( (k, v) -> 
+		for (int i = 0; i < links.size(); i++)
 		{
-			if (!targets.contains( k ))
-				return;
-			for (Filter filter : filters)
-				if (!filter.conforms(v))
-				{
-					filteredTmp.remove( k );
-					if ( demoOverlay != null )
-						demoOverlay.getFilteredResults().add( k );
-				}
-		});
+			if ( numFailed[ i ] == 0 || !targets.contains( links.get( i ) ) )
+				continue;
+
+			wrapped.getPairwiseResults().remove( links.get( i ) );
+			if ( demoOverlay != null )
+				demoOverlay.getFilteredResults().add( links.get( i ) );
+		}
+
+		// the links are not part of the wrapped results anymore
+		links = null;
+	}
+
+	/**
+	 * @return true if the index still holds exactly the links of the wrapped results (the same result objects, so
+	 * links that were replaced, e.g. by recomputing them, are detected as well)
+	 */
+	private boolean isIndexCurrent()
+	{
+		final Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > current = wrapped.getPairwiseResults();
+
+		if ( links == null || links.size() != current.size() )
+			return false;
+
+		for (int i = 0; i < links.size(); i++)
+			if ( current.get( links.get( i ) ) != linkResults.get( i ) )
+				return false;
 
-		wrapped.getPairwiseResults().clear();
-		wrapped.getPairwiseResults().putAll( filteredTmp );
+		return true;
 	}
 
 	public void applyToWrappedAll()
 	{
-		applyToWrappedSubset( wrapped.getPairwiseResults().keySet() );
+		applyToWrappedSubset( new HashSet<>( wrapped.getPairwiseResults().keySet() ) );
 	}
 
 	public Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > getPairwiseResults()
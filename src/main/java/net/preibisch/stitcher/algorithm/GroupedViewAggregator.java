@@ -30,9 +30,15 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.scijava.Context;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import ij.ImageJ;
 import mpicbg.spim.data.SpimData;
 import mpicbg.spim.data.generic.base.Entity;
@@ -55,8 +61,10 @@ import mpicbg.spim.data.sequence.TimePoints;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.ViewSetup;
 import mpicbg.spim.data.sequence.VoxelDimensions;
+import mpicbg.spim.io.IOFunctions;
 import net.imglib2.Dimensions;
 import net.imglib2.FinalDimensions;
+import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
@@ -67,7 +75,10 @@ import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 import net.imglib2.view.Views;
+import net.preibisch.mvrecon.Threads;
 import net.preibisch.mvrecon.process.deconvolution.normalization.AdjustInput;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 
@@ -75,9 +86,137 @@ public class GroupedViewAggregator
 {
 	private final List<Action> actions;
 
+	// materialize averaged groups instead of averaging on the fly for every access
+	private boolean materializeAverage;
+
+	// materialized averages of lazily loaded views, so every group is averaged only once
+	private final Cache< List< RandomAccessibleInterval< ? > >, RandomAccessibleInterval< ? > > averageCache;
+
+	// optional persistent cache of aggregated group images
+	private AggregatedImageDiskCache diskCache;
+
 	public GroupedViewAggregator()
 	{
 		this.actions = new ArrayList<>();
+		this.materializeAverage = true;
+		this.averageCache = CacheBuilder.newBuilder().softValues().build();
+	}
+
+	/**
+	 * @param materializeAverage - compute averages once in parallel blocks (default) or virtually for every access
+	 */
+	public void setMaterializeAverage( final boolean materializeAverage )
+	{
+		this.materializeAverage = materializeAverage;
+	}
+
+	public boolean getMaterializeAverage()
+	{
+		return materializeAverage;
+	}
+
+	/**
+	 * @param diskCache - store aggregated groups on disk and reuse them in later runs, null to disable
+	 */
+	public void setDiskCache( final AggregatedImageDiskCache diskCache )
+	{
+		this.diskCache = diskCache;
+	}
+
+	public AggregatedImageDiskCache getDiskCache()
+	{
+		return diskCache;
+	}
+
+	/**
+	 * @return a description of the actions (type, entity classes and instances) that identifies the aggregation
+	 */
+	public String describeActions()
+	{
+		final StringBuilder s = new StringBuilder();
+
+		for ( final Action action : actions )
+		{
+			s.append( action.actionType ).append( '[' );
+
+			for ( int i = 0; i < action.entityClasses.size(); ++i )
+			{
+				final Entity instance = action.instances.get( i );
+				s.append( action.entityClasses.get( i ).getSimpleName() ).append( ':' ).append( instance == null ? "-" : Integer.toString( instance.getId() ) ).append( ',' );
+			}
+
+			s.append( ']' );
+		}
+
+		return s.toString();
+	}
+
+	/**
+	 * @param rais - the images to average (may contain null for missing views)
+	 * @param service - the executor to average on, null to use a temporary one
+	 * @return the materialized average or null if it does not fit into memory (or failed)
+	 */
+	@SuppressWarnings("unchecked")
+	private < T extends RealType< T > > RandomAccessibleInterval< T > materializeAverage( final List< RandomAccessibleInterval< T > > rais, final ExecutorService service )
+	{
+		final List< RandomAccessibleInterval< T > > present = new ArrayList<>();
+		boolean allProxies = true;
+
+		for ( final RandomAccessibleInterval< T > rai : rais )
+			if ( rai != null )
+			{
+				present.add( rai );
+				allProxies &= RAIProxy.class.isInstance( rai );
+			}
+
+		final Callable< RandomAccessibleInterval< ? > > computeAverage = new Callable< RandomAccessibleInterval< ? > >()
+		{
+			@Override
+			public RandomAccessibleInterval< ? > call() throws Exception
+			{
+				if ( !MaterializedAverage.fitsInMemory( present.get( 0 ), Util.getTypeFromInterval( present.get( 0 ) ) ) )
+					throw new RuntimeException( "not enough memory" );
+
+				final ExecutorService taskExecutor = service != null ? service : Executors.newFixedThreadPool( Threads.numThreads() );
+				final RandomAccessibleInterval< T > avg;
+
+				try
+				{
+					avg = MaterializedAverage.average( present, taskExecutor );
+				}
+				finally
+				{
+					if ( service == null )
+						taskExecutor.shutdown();
+				}
+
+				if ( avg == null )
+					throw new RuntimeException( "averaging failed" );
+
+				return avg;
+			}
+		};
+
+		try
+		{
+			// only proxies are comparable between calls (and do not keep the images alive)
+			if ( allProxies )
+			{
+				final ArrayList< RandomAccessibleInterval< ? > > key = new ArrayList<>( present );
+				final RandomAccessibleInterval< ? > cached = averageCache.getIfPresent( key );
+
+				StitchingMetrics.increment( cached != null ? StitchingMetrics.AVERAGE_CACHE_HITS : StitchingMetrics.AVERAGE_CACHE_MISSES );
+
+				return (RandomAccessibleInterval< T >) ( cached != null ? cached : averageCache.get( key, computeAverage ) );
+			}
+			else
+				return (RandomAccessibleInterval< T >) computeAverage.call();
+		}
+		catch ( Exception e )
+		{
+			IOFunctions.println( "Failed to materialize average, averaging virtually: " + e );
+			return null;
+		}
 	}
 
 	public class Action {
@@ -95,6 +234,16 @@ public class GroupedViewAggregator
 
 		public <T extends RealType<T>> Map<BasicViewDescription<?>, RandomAccessibleInterval<T>> aggregate(
 				Map<BasicViewDescription< ? >, RandomAccessibleInterval<T>> input)
+		{
+			return aggregate( input, null );
+		}
+
+		/**
+		 * @param service - the executor to materialize averages on, null to use a temporary one
+		 */
+		public <T extends RealType<T>> Map<BasicViewDescription<?>, RandomAccessibleInterval<T>> aggregate(
+				Map<BasicViewDescription< ? >, RandomAccessibleInterval<T>> input,
+				ExecutorService service)
 		{
 			Map<BasicViewDescription<?>, RandomAccessibleInterval<T>> res = new HashMap<>();
 
@@ -103,7 +252,7 @@ public class GroupedViewAggregator
 			else if (actionType == ActionType.PICK_BRIGHTEST)
 				res = pickBrightest(input);
 			else //if (actionType == ActionType.AVERAGE)
-				res = average(input);
+				res = average(input, service);
 
 			return res;
 		}
@@ -153,8 +302,17 @@ public class GroupedViewAggregator
 					if (rais.get( i ) == null)
 						continue;
 
-					IterableInterval< T > iterableImg = Views.iterable( rais.get( i ) );
-					double mean = AdjustInput.sumImg( iterableImg ) / (double)iterableImg.size();
+					// lazily loaded views share memoized statistics, no need to sum them for every pair
+					final ViewStatistics stats = RAIProxy.class.isInstance( rais.get( i ) ) ? ( (RAIProxy< T >) rais.get( i ) ).getStatistics() : null;
+					final double mean;
+
+					if ( stats != null )
+						mean = stats.mean;
+					else
+					{
+						IterableInterval< T > iterableImg = Views.iterable( rais.get( i ) );
+						mean = AdjustInput.sumImg( iterableImg ) / (double)iterableImg.size();
+					}
 					if (mean > max)
 					{
 						max = mean;
@@ -221,6 +379,14 @@ public class GroupedViewAggregator
 		}
 
 		public <T extends RealType<T>> Map<BasicViewDescription<?>, RandomAccessibleInterval<T>> average(Map<BasicViewDescription< ? >, RandomAccessibleInterval<T>> input)
+		{
+			return average( input, null );
+		}
+
+		/**
+		 * @param service - the executor to materialize averages on, null to use a temporary one
+		 */
+		public <T extends RealType<T>> Map<BasicViewDescription<?>, RandomAccessibleInterval<T>> average(Map<BasicViewDescription< ? >, RandomAccessibleInterval<T>> input, ExecutorService service)
 		{
 
 			// only one view left -> nothing to average
@@ -261,6 +427,17 @@ public class GroupedViewAggregator
 					continue;
 				}
 
+				if ( materializeAverage )
+				{
+					final RandomAccessibleInterval< T > materialized = materializeAverage( rais, service );
+
+					if ( materialized != null )
+					{
+						res.put( vds.get( 0 ), materialized );
+						continue;
+					}
+				}
+
 				AveragedRandomAccessible< T > avg = null;
 				int nPresent = 0;
 				int firstNonNull = -1;
@@ -336,6 +513,19 @@ public class GroupedViewAggregator
 			List<? extends ViewId> vids,
 			AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd
 			)
+	{
+		return aggregate( rais, vids, sd, null );
+	}
+
+	/**
+	 * @param service - the executor to materialize averages on, null to use a temporary one
+	 */
+	public <T extends RealType<T>> RandomAccessibleInterval< T > aggregate(
+			List<RandomAccessibleInterval< T >> rais,
+			List<? extends ViewId> vids,
+			AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+			final ExecutorService service
+			)
 	{
 		Map<BasicViewDescription< ? >, RandomAccessibleInterval<T>> map = new HashMap<>();
 
@@ -348,7 +538,7 @@ public class GroupedViewAggregator
 
 		for (final Action action : actions)
 		{
-			map = action.aggregate( map );
+			map = action.aggregate( map, service );
 		}
 
 		// return the first RAI still present
@@ -361,10 +551,66 @@ public class GroupedViewAggregator
 												AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
 												long[] downsampleFactors,
 												final AffineTransform3D dsCorrectionT){
+		return aggregate( gv, sd, downsampleFactors, dsCorrectionT, null );
+	}
+
+	/**
+	 * aggregate a group, only loading a part of its views
+	 * 
+	 * @param gv - the group
+	 * @param sd - the sequence description
+	 * @param downsampleFactors - downsampling in x,y,z
+	 * @param dsCorrectionT - will be set to the transformation from downsampled to input pixel coordinates
+	 * @param region - the part of the (downsampled) views we need, null for everything
+	 * @return the aggregated image with the size of the (downsampled) views, it is zero outside of the region
+	 */
+	public <T extends RealType<T>> RandomAccessibleInterval< T > aggregate(Group<? extends ViewId> gv, 
+												AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+												long[] downsampleFactors,
+												final AffineTransform3D dsCorrectionT,
+												Interval region){
+		return aggregate( gv, sd, downsampleFactors, dsCorrectionT, region, null );
+	}
+
+	/**
+	 * aggregate a group, only loading a part of its views
+	 * 
+	 * @param gv - the group
+	 * @param sd - the sequence description
+	 * @param downsampleFactors - downsampling in x,y,z
+	 * @param dsCorrectionT - will be set to the transformation from downsampled to input pixel coordinates
+	 * @param region - the part of the (downsampled) views we need, null for everything
+	 * @param service - the executor to materialize averages on (e.g. the one of the calling pair), null to use a temporary one
+	 * @return the aggregated image with the size of the (downsampled) views, it is zero outside of the region
+	 */
+	public <T extends RealType<T>> RandomAccessibleInterval< T > aggregate(Group<? extends ViewId> gv, 
+												AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+												long[] downsampleFactors,
+												final AffineTransform3D dsCorrectionT,
+												Interval region,
+												final ExecutorService service){
 
 		Map<BasicViewDescription< ? >, RandomAccessibleInterval<T>> map = new HashMap<>();
 		boolean dsAdjusted = false;
 
+		// the size of the whole (downsampled) views, the region is relative to it
+		Interval wholeInterval = null;
+		if ( region != null )
+		{
+			for (ViewId vid : gv.getViews())
+				if ( sd.getViewDescriptions().get( vid ).isPresent() )
+				{
+					wholeInterval = DownsampleTools.getDownsampledInterval( sd.getImgLoader(), vid, downsampleFactors );
+					break;
+				}
+
+			// cannot place the region without the size from the metadata, load everything
+			if ( wholeInterval == null )
+				region = null;
+			else
+				region = DownsampleTools.getDownsampledRegion( wholeInterval, region );
+		}
+
 		for (ViewId vid : gv.getViews())
 		{
 			BasicViewDescription< ? > vd = sd.getViewDescriptions().get( vid );
@@ -374,7 +620,7 @@ public class GroupedViewAggregator
 			// if view is not present, add null as the RAIProxy
 			if ( vd.isPresent() )
 			{
-				rai = new RAIProxy< T >( sd.getImgLoader(), vid, downsampleFactors );
+				rai = new RAIProxy< T >( sd.getImgLoader(), vid, downsampleFactors, region );
 
 				// we only adjust the transformation for downsampling once (could be three channels averaged here)
 				if ( !dsAdjusted )
@@ -391,9 +637,19 @@ public class GroupedViewAggregator
 			map.put( vd, rai );
 		}
 
+		final String cacheKey = diskCache == null ? null :
+				diskCache.key( gv, sd, downsampleFactors, this ) + ( region == null ? "" : "|region=" + Util.printInterval( region ) );
+
+		if ( cacheKey != null )
+		{
+			final RandomAccessibleInterval< T > cached = diskCache.get( cacheKey, service );
+			if ( cached != null )
+				return placeRegion( cached, region, wholeInterval );
+		}
+
 		for (Action action : actions)
 		{
-			map = action.aggregate( map );
+			map = action.aggregate( map, service );
 			// we filtered out all the views
 			if (map.size() < 1)
 				return null;
@@ -402,9 +658,28 @@ public class GroupedViewAggregator
 		// return the first RAI still present
 		// ideally, there should be only one left - more than one means that the actions were not right, e.g.
 		// we have 3 channels and 2 illuminations and the actions only state to average channels
-		return map.values().iterator().next();
+		final RandomAccessibleInterval< T > aggregated = map.values().iterator().next();
+
+		if ( cacheKey != null && aggregated != null )
+			diskCache.put( cacheKey, aggregated, service );
+
+		return aggregated == null ? null : placeRegion( aggregated, region, wholeInterval );
 		
 	}
+
+	/**
+	 * @return the aggregated region placed into the whole interval (zero outside), or the image itself if there is no region
+	 */
+	private static <T extends RealType<T>> RandomAccessibleInterval< T > placeRegion(
+			final RandomAccessibleInterval< T > img,
+			final Interval region,
+			final Interval wholeInterval )
+	{
+		if ( region == null )
+			return img;
+
+		return Views.interval( Views.extendZero( Views.translate( Views.zeroMin( img ), Intervals.minAsLongArray( region ) ) ), wholeInterval );
+	}
 	
 	public static void main(String[] args)
 	{
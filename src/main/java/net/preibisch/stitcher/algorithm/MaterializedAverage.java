@@ -0,0 +1,237 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Computes the same average as {@link AveragedRandomAccessible} (all inputs zero-min, zero-extended and
+ * cropped to the interval of the first input), but materializes it once into a float buffer. The image is
+ * split into slabs along the last dimension that are processed in parallel, every input is read line by
+ * line and accumulated with a primitive inner loop.
+ */
+public class MaterializedAverage
+{
+	/**
+	 * fraction of the currently available memory that a materialized average may use
+	 */
+	public static double maxMemoryFraction = 0.25;
+
+	/**
+	 * @param interval - the output interval
+	 * @param type - the output type
+	 * @return true if the average can be stored in an array and fits into the available memory
+	 */
+	public static boolean fitsInMemory( final Interval interval, final RealType< ? > type )
+	{
+		final long numPixels = Intervals.numElements( interval );
+
+		if ( numPixels >= Integer.MAX_VALUE )
+			return false;
+
+		// the float accumulator is the output (other types are converted on access)
+		final long bytesPerPixel = 4;
+
+		final Runtime rt = Runtime.getRuntime();
+		final long available = rt.maxMemory() - ( rt.totalMemory() - rt.freeMemory() );
+
+		return numPixels * bytesPerPixel <= available * maxMemoryFraction;
+	}
+
+	/**
+	 * @param rais - the images to average (not null, at least one)
+	 * @param taskExecutor - the executor for the blocks
+	 * @return the average with the (zero-min) interval of the first input, or null if it could not be computed
+	 */
+	@SuppressWarnings("unchecked")
+	public static < T extends RealType< T > > RandomAccessibleInterval< T > average(
+			final List< ? extends RandomAccessibleInterval< T > > rais,
+			final ExecutorService taskExecutor )
+	{
+		final int n = rais.get( 0 ).numDimensions();
+		final long[] dim = new long[ n ];
+		rais.get( 0 ).dimensions( dim );
+
+		final long numPixels = Intervals.numElements( dim );
+
+		if ( numPixels >= Integer.MAX_VALUE )
+			return null;
+
+		final T type = Util.getTypeFromInterval( rais.get( 0 ) ).createVariable();
+		final boolean isFloat = FloatType.class.isInstance( type );
+
+		final float[] sums = new float[ (int)numPixels ];
+		final Img< FloatType > out = ArrayImgs.floats( sums, dim );
+
+		final ArrayList< RandomAccessibleInterval< T > > zerod = new ArrayList<>();
+		for ( final RandomAccessibleInterval< T > rai : rais )
+			zerod.add( Views.zeroMin( rai ) );
+
+		final float count = rais.size();
+
+		// slabs along the last dimension are contiguous in the output
+		final long lastDim = dim[ n - 1 ];
+		final long numBlocks = Math.min( lastDim, Runtime.getRuntime().availableProcessors() * 4 );
+		final long slabSize = numPixels / lastDim;
+
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+
+		for ( long b = 0; b < numBlocks; ++b )
+		{
+			final long start = b * lastDim / numBlocks;
+			final long end = ( b + 1 ) * lastDim / numBlocks;
+
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					for ( final RandomAccessibleInterval< T > input : zerod )
+						accumulate( input, dim, start, end, sums );
+
+					final int from = (int)( start * slabSize );
+					final int to = (int)( end * slabSize );
+
+					for ( int i = from; i < to; ++i )
+						sums[ i ] /= count;
+
+					return null;
+				}
+			});
+		}
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			final List< Future< Void > > futures = taskExecutor.invokeAll( tasks );
+
+			for ( final Future< Void > future : futures )
+				future.get();
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Failed to compute average: " + e );
+			e.printStackTrace();
+			return null;
+		}
+
+		if ( isFloat )
+			return (RandomAccessibleInterval< T >)(Object)out;
+
+		// T is not necessarily a NativeType, so other types are a converted view of the float average
+		return Converters.convert( (RandomAccessibleInterval< FloatType >)out, new Converter< FloatType, T >()
+		{
+			@Override
+			public void convert( final FloatType input, final T output )
+			{
+				output.setReal( input.get() );
+			}
+		}, type );
+	}
+
+	/**
+	 * add the part of input that overlaps the slab [start, end) (in the last dimension) of the output to sums
+	 */
+	private static < T extends RealType< T > > void accumulate(
+			final RandomAccessibleInterval< T > input,
+			final long[] dim,
+			final long start,
+			final long end,
+			final float[] sums )
+	{
+		final int n = dim.length;
+
+		// the input is zero-min, everything outside is zero and does not contribute
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = 0;
+			max[ d ] = Math.min( dim[ d ], input.dimension( d ) ) - 1;
+		}
+
+		min[ n - 1 ] = start;
+		max[ n - 1 ] = Math.min( max[ n - 1 ], end - 1 );
+
+		for ( int d = 0; d < n; ++d )
+			if ( max[ d ] < min[ d ] )
+				return;
+
+		final FinalInterval overlap = new FinalInterval( min, max );
+		final RandomAccess< T > ra = input.randomAccess( overlap );
+
+		final int lineLength = (int)overlap.dimension( 0 );
+		final long[] position = min.clone();
+
+		while ( true )
+		{
+			// offset of the line in the output
+			long offset = 0;
+			for ( int d = n - 1; d >= 0; --d )
+				offset = offset * dim[ d ] + position[ d ];
+
+			ra.setPosition( position );
+
+			for ( int x = 0; x < lineLength; ++x )
+			{
+				sums[ (int)offset + x ] += ra.get().getRealFloat();
+				ra.fwd( 0 );
+			}
+
+			// next line
+			int d = 1;
+			for ( ; d < n; ++d )
+			{
+				if ( position[ d ] < max[ d ] )
+				{
+					++position[ d ];
+					break;
+				}
+
+				position[ d ] = min[ d ];
+			}
+
+			if ( d == n )
+				return;
+		}
+	}
+}
@@ -35,19 +35,28 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import mpicbg.spim.io.IOFunctions;
 import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
+import net.imglib2.Point;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealInterval;
 import net.imglib2.RealLocalizable;
+import net.imglib2.RealPoint;
+import net.imglib2.algorithm.phasecorrelation.NormalizedCrossCorrelation;
 import net.imglib2.algorithm.phasecorrelation.PhaseCorrelation2;
+import net.imglib2.algorithm.phasecorrelation.PhaseCorrelation2Util;
 import net.imglib2.algorithm.phasecorrelation.PhaseCorrelationPeak2;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineTransform;
@@ -59,6 +68,8 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.integer.LongType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
@@ -77,6 +88,55 @@ import net.preibisch.stitcher.input.FractalSpimDataGenerator;
 
 public class PairwiseStitching
 {
+	/**
+	 * fraction of the available memory the spectra and PCM of all pairs that are computed at once may use (evenly split
+	 * between them, see {@link #beginConcurrentPairs(int)}), larger overlaps are registered coarse-to-fine
+	 */
+	public static double maxPCMMemoryFraction = 0.5;
+
+	// number of pairs that are currently computed at the same time
+	private static final AtomicInteger concurrentPairs = new AtomicInteger();
+
+	/**
+	 * cell size of spectra and PCM that are too large for ArrayImgs
+	 */
+	public static int pcmCellSize = 128;
+
+	/**
+	 * minimal size of the overlap (in every dimension) at the coarsest level of {@link PairwiseStitchingParameters#hierarchicalLevels}
+	 */
+	public static long minHierarchicalSize = 16;
+
+	/**
+	 * uncertainty (in pixels, per dimension) of a shift predicted from the next coarser level
+	 */
+	public static double hierarchicalRadius = 2.0;
+
+	/**
+	 * maximal size (per dimension) of the block the 3d PCM refines a shift estimated from projections on
+	 */
+	public static long projectionBlockSize = 128;
+
+	/**
+	 * uncertainty (in pixels, per dimension) of a shift estimated from projections
+	 */
+	public static double projectionRadius = 3.0;
+
+	/**
+	 * size (in pixels, per dimension) of the blocks the overlap is scanned in for {@link PairwiseStitchingParameters#signalThreshold}
+	 */
+	public static int signalBlockSize = 32;
+
+	/**
+	 * maximal size (per dimension) of the block a predicted shift is verified on
+	 */
+	public static long warmStartBlockSize = 128;
+
+	/**
+	 * uncertainty (in pixels, per dimension) of a predicted shift, e.g. the drift between two timepoints
+	 */
+	public static double warmStartRadius = 3.0;
+
 
 	public static <T extends RealType< T >, S extends RealType< S >> Pair< AffineTransform, Double > getShiftLucasKanade(
 			final RandomAccessibleInterval< T > input1, final RandomAccessibleInterval< T > input2,
@@ -227,6 +287,50 @@ public class PairwiseStitching
 			final TranslationGet t1, final TranslationGet t2, final PairwiseStitchingParameters params,
 			final ExecutorService service)
 	{
+		// no calibration known, the expected shift in params is in pixels
+		return getShift( input1, input2, t1, t2, params, params.maxShift, params.maxShiftMagnitude, service );
+	}
+
+	/**
+	 * The absolute shift of input2 relative to after PCM input1 (without t1 and
+	 * t2 - they just help to speed it up), only considering shifts that deviate
+	 * at most maxShift / maxShiftMagnitude from t2 - t1
+	 * 
+	 * @param input1 - zero-min interval, starting at (0,0,...)
+	 * @param input2 - zero-min interval, starting at (0,0,...)
+	 * @param t1 - translation of input1
+	 * @param t2 - translation of input2
+	 * @param params - stitching parameters
+	 * @param maxShift - maximal deviation per dimension (in pixels of the inputs), null for no restriction
+	 * @param maxShiftMagnitude - maximal deviation (in pixels of the inputs), Double.POSITIVE_INFINITY for no restriction
+	 * @param service - executor service to use
+	 * @param <T> pixel type input1
+	 * @param <S> pixel type input2
+	 * @return pair of shift vector and cross correlation coefficient or null if no shift could be determined
+	 */
+	public static <T extends RealType< T >, S extends RealType< S >> Pair< Translation, Double > getShift(
+			final RandomAccessibleInterval< T > input1, final RandomAccessibleInterval< S > input2,
+			final TranslationGet t1, final TranslationGet t2, final PairwiseStitchingParameters params,
+			final double[] maxShift, final double maxShiftMagnitude, final ExecutorService service)
+	{
+		return getShift( input1, input2, t1, t2, params, maxShift, maxShiftMagnitude, null, service );
+	}
+
+	/**
+	 * The absolute shift of input2 relative to after PCM input1 (see above). If a predicted shift is given (e.g. the
+	 * shift of the same pair at the previous timepoint), it is only verified in a small window first (see
+	 * {@link #verifyShiftPeak(RandomAccessibleInterval, RandomAccessibleInterval, int[], PairwiseStitchingParameters, long[], ExecutorService)}),
+	 * the full phase correlation is only computed if the verified shift has a cross correlation below
+	 * {@link PairwiseStitchingParameters#warmStartCrossCorrelation}.
+	 *
+	 * @param predictedShift - predicted shift in the same coordinates as the result (pixels of the inputs), null for none
+	 * @return pair of shift vector and cross correlation coefficient or null if no shift could be determined
+	 */
+	public static <T extends RealType< T >, S extends RealType< S >> Pair< Translation, Double > getShift(
+			final RandomAccessibleInterval< T > input1, final RandomAccessibleInterval< S > input2,
+			final TranslationGet t1, final TranslationGet t2, final PairwiseStitchingParameters params,
+			final double[] maxShift, final double maxShiftMagnitude, final double[] predictedShift, final ExecutorService service)
+	{
 
 		// check if we have singleton dimensions
 		boolean[] singletonDims = new boolean[input1.numDimensions()];
@@ -306,30 +410,86 @@ public class PairwiseStitching
 		final int[] extension = new int[img1.numDimensions()];
 		Arrays.fill( extension, 10 );
 
-		//
-		// the min overlap is in percent of the current overlap interval
-		//
-		long minOverlap = 1;
-		for (int d = 0; d < interval1.numDimensions(); d++)
-			minOverlap *= interval1.dimension( d );
-		minOverlap *= params.minOverlap;
-		//System.out.println( "Min overlap is: " + minOverlap );
+		// expected shift and its bounds in the dimensions we use: if we only use the overlap, the metadata shift is (almost) zero
+		final double[] expectedShift = params.useWholeImage ? new double[img1.numDimensions()] : null;
+		final double[] maxShiftLocal = maxShift == null ? null : new double[img1.numDimensions()];
+		for ( int d = 0, d2 = 0; d < input1.numDimensions(); ++d )
+		{
+			if ( singletonDims[d] )
+				continue;
 
-		System.out.println( "FFT" );
-		// TODO: Do not extend by mirror inside, but do that out here on the
-		// full image,
-		// so we feed it RandomAccessible + an Interval we want to use for the
-		// PCM > also zero-min inside
-		final RandomAccessibleInterval< FloatType > pcm = PhaseCorrelation2.calculatePCM(
-				Views.zeroMin( Views.interval( img1, interval1 ) ), Views.zeroMin( Views.interval( img2, interval2 ) ),
-				extension, new ArrayImgFactory< FloatType >(), new FloatType(),
-				new ArrayImgFactory< ComplexFloatType >(), new ComplexFloatType(), service );
+			if ( expectedShift != null )
+				expectedShift[d2] = t2.getTranslation( d ) - t1.getTranslation( d );
 
-		normalizePCM( pcm, service );
+			if ( maxShiftLocal != null )
+				maxShiftLocal[d2] = d < maxShift.length ? maxShift[d] : Double.POSITIVE_INFINITY;
+
+			++d2;
+		}
+
+		RandomAccessibleInterval< T > overlap1 = Views.zeroMin( Views.interval( img1, interval1 ) );
+		RandomAccessibleInterval< S > overlap2 = Views.zeroMin( Views.interval( img2, interval2 ) );
+
+		// only transform the part of the overlap that contains structure, both overlaps are cropped equally so the shift is unchanged
+		if ( params.signalThreshold > 0 )
+		{
+			final Interval signal = getSignalInterval( overlap1, overlap2, params.signalThreshold, service );
+
+			if ( signal == null )
+			{
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Overlap " + Util.printInterval( overlap1 ) +
+						" contains only background, skipping." );
+				StitchingMetrics.increment( StitchingMetrics.BACKGROUND_PAIRS_SKIPPED );
+				return null;
+			}
+
+			if ( Intervals.numElements( signal ) < Intervals.numElements( overlap1 ) )
+			{
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Cropped overlap to signal: " + Util.printInterval( signal ) );
+				StitchingMetrics.count( StitchingMetrics.BACKGROUND_PIXELS_CROPPED, Intervals.numElements( overlap1 ) - Intervals.numElements( signal ) );
+
+				overlap1 = Views.zeroMin( Views.interval( overlap1, signal ) );
+				overlap2 = Views.zeroMin( Views.interval( overlap2, signal ) );
+			}
+		}
+
+		PhaseCorrelationPeak2 shiftPeak = null;
+
+		if ( predictedShift != null )
+		{
+			// the predicted shift in the coordinates of the overlaps (inverse of the correction below)
+			final long[] predictedLocal = new long[img1.numDimensions()];
+			for ( int d = 0, d2 = 0; d < input1.numDimensions(); ++d )
+			{
+				if ( singletonDims[d] )
+					continue;
+
+				double shift = predictedShift[d] + ( interval2.realMin( d2 ) - localOverlap2.realMin( d2 ) ) - ( interval1.realMin( d2 ) - localOverlap1.realMin( d2 ) );
 
-		final PhaseCorrelationPeak2 shiftPeak = PhaseCorrelation2.getShift( pcm,
-				Views.zeroMin( Views.interval( img1, interval1 ) ), Views.zeroMin( Views.interval( img2, interval2 ) ),
-				params.peaksToCheck, minOverlap, params.doSubpixel, params.interpolateCrossCorrelation, service );
+				if ( params.useWholeImage )
+					shift += t2.getTranslation( d ) - t1.getTranslation( d );
+
+				predictedLocal[d2++] = Math.round( shift );
+			}
+
+			shiftPeak = verifyShiftPeak( overlap1, overlap2, extension, params, predictedLocal, service );
+
+			if ( shiftPeak != null && shiftPeak.getCrossCorr() >= params.warmStartCrossCorrelation )
+			{
+				StitchingMetrics.increment( StitchingMetrics.WARM_STARTS_ACCEPTED );
+			}
+			else
+			{
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Predicted shift " + Util.printCoordinates( predictedShift ) +
+						" not confirmed (r=" + ( shiftPeak == null ? "n/a" : shiftPeak.getCrossCorr() ) + "), computing the full phase correlation." );
+				StitchingMetrics.increment( StitchingMetrics.WARM_STARTS_REJECTED );
+				shiftPeak = null;
+			}
+		}
+
+		if ( shiftPeak == null )
+			shiftPeak = getShiftPeak(
+					overlap1, overlap2, extension, params, expectedShift, maxShiftLocal, maxShiftMagnitude, service );
 
 		//System.out.println( "Actual overlap of best shift is: " + shiftPeak.getnPixel() );
 
@@ -378,6 +538,875 @@ public class PairwiseStitching
 		return new ValuePair< >( new Translation(finalShift), shiftPeak.getCrossCorr() );
 	}
 
+	/**
+	 * scan two (zero-min, equally sized) overlaps in blocks of {@link #signalBlockSize} and find the blocks that carry
+	 * structure in at least one of them, i.e. whose intensity standard deviation exceeds threshold times the noise of
+	 * that image. The noise is the median (over all blocks) of the standard deviation estimated from differences of
+	 * neighboring pixels along x, which is about the same in background and sample, while the standard deviation
+	 * of blocks with structure is much larger. Both images are read once, in parallel portions.
+	 *
+	 * @param threshold - minimal standard deviation of a block with signal, in multiples of the noise
+	 * @return the bounding box of all blocks with signal, null if there are none (or it failed)
+	 */
+	public static <T extends RealType< T >, S extends RealType< S >> Interval getSignalInterval(
+			final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< S > img2, final double threshold,
+			final ExecutorService service )
+	{
+		final int n = img1.numDimensions();
+
+		final long[] numBlocks = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			numBlocks[ d ] = ( img1.dimension( d ) + signalBlockSize - 1 ) / signalBlockSize;
+
+		final int size = (int)Intervals.numElements( numBlocks );
+
+		final double[][] blocks1 = blockStatistics( img1, numBlocks, service );
+		final double[][] blocks2 = blockStatistics( img2, numBlocks, service );
+
+		if ( blocks1 == null || blocks2 == null )
+			return null;
+
+		final double minStd1 = threshold * blockNoise( blocks1 );
+		final double minStd2 = threshold * blockNoise( blocks2 );
+
+		final long[] min = Util.getArrayFromValue( Long.MAX_VALUE, n );
+		final long[] max = Util.getArrayFromValue( Long.MIN_VALUE, n );
+		final long[] position = new long[ n ];
+
+		for ( int i = 0; i < size; ++i )
+		{
+			if ( blockStd( blocks1, i ) <= minStd1 && blockStd( blocks2, i ) <= minStd2 )
+				continue;
+
+			IntervalIndexer.indexToPosition( i, numBlocks, position );
+
+			for ( int d = 0; d < n; ++d )
+			{
+				min[ d ] = Math.min( min[ d ], position[ d ] * signalBlockSize );
+				max[ d ] = Math.max( max[ d ], Math.min( img1.dimension( d ), ( position[ d ] + 1 ) * signalBlockSize ) - 1 );
+			}
+		}
+
+		if ( min[ 0 ] == Long.MAX_VALUE )
+			return null;
+
+		return new FinalInterval( min, max );
+	}
+
+	// per block (indexed like the block grid): number of pixels, sum, sum of squares, number of neighbor differences, sum of squared differences
+	private static final int BLOCK_COUNT = 0, BLOCK_SUM = 1, BLOCK_SUM_SQ = 2, BLOCK_DIFF_COUNT = 3, BLOCK_DIFF_SUM_SQ = 4;
+
+	private static <T extends RealType< T >> double[][] blockStatistics(
+			final RandomAccessibleInterval< T > img, final long[] numBlocks, final ExecutorService service )
+	{
+		final int n = img.numDimensions();
+		final int size = (int)Intervals.numElements( numBlocks );
+		final IterableInterval< T > iterable = Views.flatIterable( Views.zeroMin( img ) );
+
+		final Vector< ImagePortion > portions = FusionTools.divideIntoPortions( iterable.size() );
+		final ArrayList< Callable< double[][] > > tasks = new ArrayList<>();
+
+		for ( final ImagePortion portion : portions )
+		{
+			tasks.add( new Callable< double[][] >()
+					{
+						@Override
+						public double[][] call() throws Exception
+						{
+							final double[][] blocks = new double[ 5 ][ size ];
+							final long[] position = new long[ n ];
+
+							final Cursor< T > c = iterable.localizingCursor();
+							c.jumpFwd( portion.getStartPosition() );
+
+							boolean hasPrevious = false;
+							double previous = 0;
+
+							for ( long j = 0; j < portion.getLoopSize(); ++j )
+							{
+								final double v = c.next().getRealDouble();
+								c.localize( position );
+
+								for ( int d = 0; d < n; ++d )
+									position[ d ] /= signalBlockSize;
+
+								final int i = (int)IntervalIndexer.positionToIndex( position, numBlocks );
+
+								++blocks[ BLOCK_COUNT ][ i ];
+								blocks[ BLOCK_SUM ][ i ] += v;
+								blocks[ BLOCK_SUM_SQ ][ i ] += v * v;
+
+								// difference to the left neighbor (within the same line)
+								if ( hasPrevious && c.getLongPosition( 0 ) > 0 )
+								{
+									++blocks[ BLOCK_DIFF_COUNT ][ i ];
+									blocks[ BLOCK_DIFF_SUM_SQ ][ i ] += ( v - previous ) * ( v - previous );
+								}
+
+								previous = v;
+								hasPrevious = true;
+							}
+
+							return blocks;
+						}
+					});
+		}
+
+		final double[][] blocks = new double[ 5 ][ size ];
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			for ( final Future< double[][] > future : service.invokeAll( tasks ) )
+			{
+				final double[][] partial = future.get();
+
+				for ( int k = 0; k < blocks.length; ++k )
+					for ( int i = 0; i < size; ++i )
+						blocks[ k ][ i ] += partial[ k ][ i ];
+			}
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Failed to compute block statistics: " + e );
+			e.printStackTrace();
+			return null;
+		}
+
+		return blocks;
+	}
+
+	private static double blockStd( final double[][] blocks, final int i )
+	{
+		final double count = blocks[ BLOCK_COUNT ][ i ];
+
+		if ( count < 2 )
+			return 0;
+
+		final double mean = blocks[ BLOCK_SUM ][ i ] / count;
+		return Math.sqrt( Math.max( 0, blocks[ BLOCK_SUM_SQ ][ i ] / count - mean * mean ) );
+	}
+
+	/**
+	 * @return the median over all blocks of the noise estimated from neighbor differences (var(a-b) = 2 var(noise))
+	 */
+	private static double blockNoise( final double[][] blocks )
+	{
+		final double[] noise = new double[ blocks[ BLOCK_COUNT ].length ];
+		int count = 0;
+
+		for ( int i = 0; i < noise.length; ++i )
+			if ( blocks[ BLOCK_DIFF_COUNT ][ i ] > 0 )
+				noise[ count++ ] = Math.sqrt( blocks[ BLOCK_DIFF_SUM_SQ ][ i ] / ( 2 * blocks[ BLOCK_DIFF_COUNT ][ i ] ) );
+
+		if ( count == 0 )
+			return 0;
+
+		final double[] sorted = Arrays.copyOf( noise, count );
+		Arrays.sort( sorted );
+
+		return sorted[ count / 2 ];
+	}
+
+	/**
+	 * phase correlation of two (zero-min, equally sized) overlaps. Spectra and PCM are stored in cell images if they
+	 * do not fit into arrays. If they would need more than {@link #maxPCMMemoryFraction} of the available memory,
+	 * the shift is computed on downsampled overlaps and refined on a full-resolution block that fits.
+	 *
+	 * @return best (highest c.c.) shift peak, null if none was found
+	 */
+	public static <T extends RealType< T >, S extends RealType< S >> PhaseCorrelationPeak2 getShiftPeak(
+			final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< S > img2, final int[] extension,
+			final PairwiseStitchingParameters params, final ExecutorService service )
+	{
+		return getShiftPeak( img1, img2, extension, params, null, null, Double.POSITIVE_INFINITY, service );
+	}
+
+	/**
+	 * phase correlation of two (zero-min, equally sized) overlaps, only considering shifts that deviate at most
+	 * maxShift (per dimension) and maxShiftMagnitude from the expected shift (see {@link PhaseCorrelation2}).
+	 *
+	 * @param expectedShift - expected shift of img2 relative to img1, null for zero
+	 * @param maxShift - maximal deviation per dimension (in pixels), null for no restriction
+	 * @param maxShiftMagnitude - maximal deviation (in pixels), Double.POSITIVE_INFINITY for no restriction
+	 * @return best (highest c.c.) shift peak, null if none was found
+	 */
+	public static <T extends RealType< T >, S extends RealType< S >> PhaseCorrelationPeak2 getShiftPeak(
+			final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< S > img2, final int[] extension,
+			final PairwiseStitchingParameters params, final double[] expectedShift, final double[] maxShift,
+			final double maxShiftMagnitude, final ExecutorService service )
+	{
+		if ( params.projectionPreRegistration && img1.numDimensions() == 3 )
+		{
+			final PhaseCorrelationPeak2 peak = getShiftPeakProjected( img1, img2, extension, params, expectedShift, maxShift, maxShiftMagnitude, service );
+
+			if ( peak != null )
+				return peak;
+
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): No shift found from projections of " + Util.printInterval( img1 ) +
+					", computing the 3d PCM." );
+		}
+
+		final long budget = pcmMemoryBudget();
+
+		if ( PhaseCorrelation2.estimatePCMMemory( img1, img2, extension ) > budget )
+			return getShiftPeakCoarseToFine( img1, img2, extension, params, expectedShift, maxShift, maxShiftMagnitude, budget, service );
+
+		if ( params.hierarchicalLevels > 0 )
+			return getShiftPeakHierarchical( img1, img2, extension, params, expectedShift, maxShift, maxShiftMagnitude, service );
+
+		return getShiftPeakSingleLevel( img1, img2, extension, params, expectedShift, maxShift, maxShiftMagnitude, service );
+	}
+
+	/**
+	 * phase correlation of two (zero-min, equally sized) overlaps that fit into memory, at the given resolution only
+	 */
+	protected static <T extends RealType< T >, S extends RealType< S >> PhaseCorrelationPeak2 getShiftPeakSingleLevel(
+			final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< S > img2, final int[] extension,
+			final PairwiseStitchingParameters params, final double[] expectedShift, final double[] maxShift,
+			final double maxShiftMagnitude, final ExecutorService service )
+	{
+		//
+		// the min overlap is in percent of the current overlap interval
+		//
+		long minOverlap = 1;
+		for (int d = 0; d < img1.numDimensions(); d++)
+			minOverlap *= img1.dimension( d );
+		minOverlap *= params.minOverlap;
+		//System.out.println( "Min overlap is: " + minOverlap );
+
+		// ArrayImgs are limited to 2^31 pixels
+		final boolean useCells = PhaseCorrelation2.getPCMNumElements( img1, img2, extension ) >= Integer.MAX_VALUE;
+
+		System.out.println( "FFT" );
+		final long tPCM = StitchingMetrics.start();
+		// TODO: Do not extend by mirror inside, but do that out here on the
+		// full image,
+		// so we feed it RandomAccessible + an Interval we want to use for the
+		// PCM > also zero-min inside
+		final RandomAccessibleInterval< FloatType > pcm = PhaseCorrelation2.calculatePCM(
+				img1, img2, extension,
+				useCells ? new CellImgFactory< FloatType >( pcmCellSize ) : new ArrayImgFactory< FloatType >(), new FloatType(),
+				useCells ? new CellImgFactory< ComplexFloatType >( pcmCellSize ) : new ArrayImgFactory< ComplexFloatType >(), new ComplexFloatType(),
+				service );
+
+		normalizePCM( pcm, service );
+
+		StitchingMetrics.stop( StitchingMetrics.PCM, tPCM );
+		StitchingMetrics.count( StitchingMetrics.PIXELS_PROCESSED, Intervals.numElements( img1 ) + Intervals.numElements( img2 ) );
+
+		// the cross correlation of all shifts, so verifying a candidate is a lookup
+		NormalizedCrossCorrelation ncc = null;
+		if ( params.denseCrossCorrelation && !params.interpolateCrossCorrelation &&
+				NormalizedCrossCorrelation.estimateMemory( img1, img2 ) <= pcmMemoryBudget() )
+		{
+			final long tNCC = StitchingMetrics.start();
+			ncc = NormalizedCrossCorrelation.compute( img1, img2, service );
+			StitchingMetrics.stop( StitchingMetrics.CROSS_CORRELATION, tNCC );
+		}
+
+		return PhaseCorrelation2.getShift( pcm, img1, img2,
+				params.peaksToCheck, minOverlap, params.doSubpixel, params.interpolateCrossCorrelation,
+				expectedShift, maxShift, maxShiftMagnitude, params.acceptCrossCorrelation, ncc, service );
+	}
+
+	/**
+	 * find the shift at the lowest power-of-two downsampling whose PCM fits into the memory budget, then refine it
+	 * with the PCM of a central full-resolution block of the overlap (under the coarse shift) that fits the budget
+	 */
+	protected static <T extends RealType< T >, S extends RealType< S >> PhaseCorrelationPeak2 getShiftPeakCoarseToFine(
+			final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< S > img2, final int[] extension,
+			final PairwiseStitchingParameters params, final double[] expectedShift, final double[] maxShift,
+			final double maxShiftMagnitude, final long budget, final ExecutorService service )
+	{
+		final int n = img1.numDimensions();
+
+		long maxSize = 1;
+		for ( int d = 0; d < n; ++d )
+			maxSize = Math.max( maxSize, Math.max( img1.dimension( d ), img2.dimension( d ) ) );
+
+		// until it fits or all dimensions are downsampled to a single pixel
+		long f = 2;
+		while ( f < maxSize &&
+				PhaseCorrelation2.estimatePCMMemory( downsampledDimensions( img1, f ), downsampledDimensions( img2, f ), extension ) > budget )
+			f *= 2;
+
+		if ( PhaseCorrelation2.estimatePCMMemory( downsampledDimensions( img1, f ), downsampledDimensions( img2, f ), extension ) > budget )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): The PCM of overlap " + Util.printInterval( img1 ) +
+					" does not fit into the memory budget (" + budget / ( 1024 * 1024 ) + " MB) at any downsampling, no shift computed." );
+			return null;
+		}
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Overlap " + Util.printInterval( img1 ) +
+				" exceeds the PCM memory budget, computing shift at downsampling " + f + " and refining at full resolution." );
+
+		final long[] factors = Util.getArrayFromValue( f, n );
+
+		final RandomAccessibleInterval< T > coarse1;
+		final RandomAccessibleInterval< S > coarse2;
+
+		try
+		{
+			coarse1 = DownsampleTools.downsample( img1, factors, service );
+			coarse2 = DownsampleTools.downsample( img2, factors, service );
+		}
+		catch ( RuntimeException e )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Failed to downsample overlap " + Util.printInterval( img1 ) +
+					" by " + f + ", no shift computed: " + e );
+			return null;
+		}
+
+		final PhaseCorrelationPeak2 coarse = getShiftPeak( coarse1, coarse2, extension, params,
+				scale( expectedShift, 1.0 / f ), scale( maxShift, 1.0 / f ), maxShiftMagnitude / f, service );
+
+		if ( coarse == null )
+			return null;
+
+		final long[] coarseShift = upscaleShift( coarse, f );
+
+		// the overlapping parts of both images under the coarse shift
+		final Pair< Interval, Interval > overlaps = PhaseCorrelation2Util.getOverlapIntervals( img1, img2, new Point( coarseShift ) );
+
+		if ( overlaps == null )
+			return null;
+
+		// shrink to a central block that fits, but keep it large enough to contain the residual shift (< f)
+		final long[] block = Intervals.dimensionsAsLongArray( overlaps.getA() );
+		while ( PhaseCorrelation2.estimatePCMMemory( new FinalDimensions( block ), new FinalDimensions( block ), extension ) > budget )
+		{
+			int dMax = 0;
+			for ( int d = 1; d < n; ++d )
+				if ( block[ d ] > block[ dMax ] )
+					dMax = d;
+
+			if ( block[ dMax ] <= 4 * f )
+				break;
+
+			block[ dMax ] = Math.max( 4 * f, block[ dMax ] / 2 );
+		}
+
+		// the blocks are aligned by the coarse shift, the remaining shift is in the order of f
+		final PhaseCorrelationPeak2 fine = refineShiftPeak( img1, img2, extension, params, coarseShift, block, 2.0 * f, service );
+
+		if ( fine == null )
+		{
+			// no refinement possible, use the upscaled coarse shift
+			final PhaseCorrelationPeak2 result = new PhaseCorrelationPeak2( coarse );
+			result.setShift( new Point( coarseShift ) );
+			result.setSubpixelShift( null );
+			return result;
+		}
+
+		return fine;
+	}
+
+	/**
+	 * find the shift on the overlaps downsampled by 2^levels (fewer if they would get too small), then go up one
+	 * resolution level at a time: predict the shift from the coarser level and compute the PCM of a central block of
+	 * the overlap under the predicted shift (not larger than the coarsest overlap, so every level costs about as
+	 * much as the coarse pass), only searching and verifying shifts within a few pixels of the prediction
+	 */
+	protected static <T extends RealType< T >, S extends RealType< S >> PhaseCorrelationPeak2 getShiftPeakHierarchical(
+			final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< S > img2, final int[] extension,
+			final PairwiseStitchingParameters params, final double[] expectedShift, final double[] maxShift,
+			final double maxShiftMagnitude, final ExecutorService service )
+	{
+		final int n = img1.numDimensions();
+
+		// do not downsample dimensions below a useful size (e.g. thin stacks are only downsampled laterally)
+		final int[] levelsPerDim = new int[ n ];
+		int levels = 0;
+		for ( int d = 0; d < n; ++d )
+		{
+			while ( levelsPerDim[ d ] < params.hierarchicalLevels &&
+					Math.min( img1.dimension( d ), img2.dimension( d ) ) / ( 2l << levelsPerDim[ d ] ) >= minHierarchicalSize )
+				++levelsPerDim[ d ];
+
+			levels = Math.max( levels, levelsPerDim[ d ] );
+		}
+
+		if ( levels == 0 )
+			return getShiftPeakSingleLevel( img1, img2, extension, params, expectedShift, maxShift, maxShiftMagnitude, service );
+
+		final long[] fCoarse = hierarchicalFactors( levelsPerDim, levels );
+		final RandomAccessibleInterval< T > coarse1;
+		final RandomAccessibleInterval< S > coarse2;
+
+		try
+		{
+			coarse1 = DownsampleTools.downsample( img1, fCoarse, service );
+			coarse2 = DownsampleTools.downsample( img2, fCoarse, service );
+		}
+		catch ( RuntimeException e )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Failed to downsample overlap " + Util.printInterval( img1 ) +
+					" by " + Util.printCoordinates( fCoarse ) + ", no shift computed: " + e );
+			return null;
+		}
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Computing shift at downsampling " + Util.printCoordinates( fCoarse ) +
+				" and refining in " + levels + " level(s)." );
+
+		// a shift of length r is at most r / min(f) long in downsampled pixels
+		long fMin = fCoarse[ 0 ];
+		for ( int d = 1; d < n; ++d )
+			fMin = Math.min( fMin, fCoarse[ d ] );
+
+		PhaseCorrelationPeak2 peak = getShiftPeakSingleLevel( coarse1, coarse2, extension, params,
+				scale( expectedShift, fCoarse ), scale( maxShift, fCoarse ), maxShiftMagnitude / fMin, service );
+
+		if ( peak == null )
+			return null;
+
+		// every level costs about as much as the coarse pass
+		final long[] block = Intervals.dimensionsAsLongArray( coarse1 );
+
+		for ( int level = levels - 1; level >= 0; --level )
+		{
+			final long[] f = hierarchicalFactors( levelsPerDim, level );
+			final long[] fCoarser = hierarchicalFactors( levelsPerDim, level + 1 );
+
+			final RandomAccessibleInterval< T > level1;
+			final RandomAccessibleInterval< S > level2;
+
+			try
+			{
+				level1 = DownsampleTools.downsample( img1, f, service );
+				level2 = DownsampleTools.downsample( img2, f, service );
+			}
+			catch ( RuntimeException e )
+			{
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Failed to downsample overlap " + Util.printInterval( img1 ) +
+						" by " + Util.printCoordinates( f ) + ", no shift computed: " + e );
+				return null;
+			}
+
+			// the shift of the coarser level is accurate to about a pixel there
+			final long[] predicted = new long[ n ];
+			final RealLocalizable coarserShift = peak.getSubpixelShift() == null ? peak.getShift() : peak.getSubpixelShift();
+			for ( int d = 0; d < n; ++d )
+				predicted[ d ] = Math.round( coarserShift.getDoublePosition( d ) * fCoarser[ d ] / f[ d ] );
+
+			final PhaseCorrelationPeak2 refined = refineShiftPeak( level1, level2, extension, params, predicted, block, hierarchicalRadius, service );
+
+			if ( refined == null )
+			{
+				peak = new PhaseCorrelationPeak2( peak );
+				peak.setShift( new Point( predicted ) );
+				peak.setSubpixelShift( null );
+			}
+			else
+				peak = refined;
+		}
+
+		// the cross correlation of the whole overlap, not only of the last block
+		long minOverlap = 1;
+		for (int d = 0; d < n; d++)
+			minOverlap *= img1.dimension( d );
+		minOverlap *= params.minOverlap;
+
+		peak.calculateCrossCorr( img1, img2, minOverlap, params.interpolateCrossCorrelation );
+
+		return peak;
+	}
+
+	/**
+	 * estimate the shift of two 3d overlaps from the 2d PCMs of their maximum-intensity projections along x, y and z
+	 * (every dimension is contained in two projections, the one with the higher cross correlation wins), then refine
+	 * it with the 3d PCM of a central block (at most {@link #projectionBlockSize}) of the overlap under the estimate,
+	 * only searching and verifying shifts within {@link #projectionRadius} of it
+	 *
+	 * @return best shift peak with the cross correlation of the whole overlap, null if the projections yield no shift
+	 */
+	protected static <T extends RealType< T >, S extends RealType< S >> PhaseCorrelationPeak2 getShiftPeakProjected(
+			final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< S > img2, final int[] extension,
+			final PairwiseStitchingParameters params, final double[] expectedShift, final double[] maxShift,
+			final double maxShiftMagnitude, final ExecutorService service )
+	{
+		final int n = img1.numDimensions();
+
+		final List< RandomAccessibleInterval< FloatType > > projections1 = maxProjections( img1, service );
+		final List< RandomAccessibleInterval< FloatType > > projections2 = maxProjections( img2, service );
+
+		if ( projections1 == null || projections2 == null )
+			return null;
+
+		final double[] estimate = new double[ n ];
+		final double[] bestR = Util.getArrayFromValue( Double.NEGATIVE_INFINITY, n );
+
+		for ( int axis = 0; axis < n; ++axis )
+		{
+			// the dimensions that remain in the projection along axis
+			final int[] dims = new int[ n - 1 ];
+			for ( int d = 0, i = 0; d < n; ++d )
+				if ( d != axis )
+					dims[ i++ ] = d;
+
+			// the magnitude of the projected shift is not larger than the magnitude of the shift
+			final PhaseCorrelationPeak2 peak = getShiftPeakSingleLevel( projections1.get( axis ), projections2.get( axis ),
+					select( extension, dims ), params, select( expectedShift, dims ), select( maxShift, dims ), maxShiftMagnitude, service );
+
+			if ( peak == null )
+				continue;
+
+			final RealLocalizable shift = peak.getSubpixelShift() == null ? peak.getShift() : peak.getSubpixelShift();
+
+			for ( int i = 0; i < dims.length; ++i )
+				if ( peak.getCrossCorr() > bestR[ dims[ i ] ] )
+				{
+					bestR[ dims[ i ] ] = peak.getCrossCorr();
+					estimate[ dims[ i ] ] = shift.getDoublePosition( i );
+				}
+		}
+
+		final long[] predicted = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			if ( bestR[ d ] == Double.NEGATIVE_INFINITY )
+				return null;
+
+			predicted[ d ] = Math.round( estimate[ d ] );
+		}
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Shift estimated from projections: " + Util.printCoordinates( predicted ) +
+				", refining in 3d." );
+
+		PhaseCorrelationPeak2 peak = refineShiftPeak( img1, img2, extension, params, predicted,
+				Util.getArrayFromValue( projectionBlockSize, n ), projectionRadius, service );
+
+		if ( peak == null )
+		{
+			// no refinement possible, use the estimate
+			peak = new PhaseCorrelationPeak2( new Point( predicted ), 0 );
+			peak.setShift( new Point( predicted ) );
+		}
+
+		// the cross correlation of the whole overlap, not only of the block
+		long minOverlap = 1;
+		for (int d = 0; d < n; d++)
+			minOverlap *= img1.dimension( d );
+		minOverlap *= params.minOverlap;
+
+		peak.calculateCrossCorr( img1, img2, minOverlap, params.interpolateCrossCorrelation );
+
+		return peak;
+	}
+
+	/**
+	 * verify a predicted shift of two (zero-min, equally sized) overlaps with the PCM of a central block (at most
+	 * {@link #warmStartBlockSize}) of the overlap under the prediction, only searching shifts within
+	 * {@link #warmStartRadius} of it
+	 *
+	 * @param predicted - the predicted shift of img2 relative to img1
+	 * @return the peak with the cross correlation of the whole overlap, null if there is no overlap under the prediction
+	 */
+	public static <T extends RealType< T >, S extends RealType< S >> PhaseCorrelationPeak2 verifyShiftPeak(
+			final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< S > img2, final int[] extension,
+			final PairwiseStitchingParameters params, final long[] predicted, final ExecutorService service )
+	{
+		final int n = img1.numDimensions();
+
+		if ( PhaseCorrelation2Util.getOverlapIntervals( img1, img2, new Point( predicted ) ) == null )
+			return null;
+
+		PhaseCorrelationPeak2 peak = refineShiftPeak( img1, img2, extension, params, predicted,
+				Util.getArrayFromValue( warmStartBlockSize, n ), warmStartRadius, service );
+
+		if ( peak == null )
+		{
+			// no peak in the window, check the prediction itself
+			peak = new PhaseCorrelationPeak2( new Point( predicted ), 0 );
+			peak.setShift( new Point( predicted ) );
+		}
+
+		// the cross correlation of the whole overlap, not only of the block
+		long minOverlap = 1;
+		for (int d = 0; d < n; d++)
+			minOverlap *= img1.dimension( d );
+		minOverlap *= params.minOverlap;
+
+		final long t = StitchingMetrics.start();
+		peak.calculateCrossCorr( img1, img2, minOverlap, params.interpolateCrossCorrelation );
+		StitchingMetrics.stop( StitchingMetrics.CROSS_CORRELATION, t );
+
+		return peak;
+	}
+
+	/**
+	 * maximum-intensity projections along every dimension of a 3d image, computed in one pass over the image
+	 * (in parallel portions, every portion projects into its own arrays which are combined afterwards)
+	 *
+	 * @return the projections along x (y,z), y (x,z) and z (x,y), null if it failed
+	 */
+	public static <T extends RealType< T >> List< RandomAccessibleInterval< FloatType > > maxProjections(
+			final RandomAccessibleInterval< T > img, final ExecutorService service )
+	{
+		final IterableInterval< T > iterable = Views.flatIterable( Views.zeroMin( img ) );
+
+		final int[][] projDims = new int[][] { { 1, 2 }, { 0, 2 }, { 0, 1 } };
+		final int[] size = new int[ 3 ];
+		for ( int axis = 0; axis < 3; ++axis )
+		{
+			final long numElements = img.dimension( projDims[ axis ][ 0 ] ) * img.dimension( projDims[ axis ][ 1 ] );
+
+			// the projections are float arrays, which are limited to 2^31 elements
+			if ( numElements >= Integer.MAX_VALUE )
+			{
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Projection along dimension " + axis + " of " +
+						Util.printInterval( img ) + " has " + numElements + " pixels, too many for an array, cannot project." );
+				return null;
+			}
+
+			size[ axis ] = (int)numElements;
+		}
+
+		final int dx = (int)img.dimension( 0 );
+		final int dy = (int)img.dimension( 1 );
+
+		final Vector< ImagePortion > portions = FusionTools.divideIntoPortions( iterable.size() );
+		final ArrayList< Callable< float[][] > > tasks = new ArrayList<>();
+
+		for ( final ImagePortion portion : portions )
+		{
+			tasks.add( new Callable< float[][] >()
+					{
+						@Override
+						public float[][] call() throws Exception
+						{
+							final float[][] proj = new float[ 3 ][];
+							for ( int axis = 0; axis < 3; ++axis )
+							{
+								proj[ axis ] = new float[ size[ axis ] ];
+								Arrays.fill( proj[ axis ], -Float.MAX_VALUE );
+							}
+
+							final Cursor< T > c = iterable.localizingCursor();
+							c.jumpFwd( portion.getStartPosition() );
+
+							for ( long j = 0; j < portion.getLoopSize(); ++j )
+							{
+								final float v = c.next().getRealFloat();
+								final int x = c.getIntPosition( 0 );
+								final int y = c.getIntPosition( 1 );
+								final int z = c.getIntPosition( 2 );
+
+								final int iyz = y + z * dy;
+								final int ixz = x + z * dx;
+								final int ixy = x + y * dx;
+
+								if ( v > proj[ 0 ][ iyz ] )
+									proj[ 0 ][ iyz ] = v;
+								if ( v > proj[ 1 ][ ixz ] )
+									proj[ 1 ][ ixz ] = v;
+								if ( v > proj[ 2 ][ ixy ] )
+									proj[ 2 ][ ixy ] = v;
+							}
+
+							return proj;
+						}
+					});
+		}
+
+		final float[][] proj = new float[ 3 ][];
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			for ( final Future< float[][] > future : service.invokeAll( tasks ) )
+			{
+				final float[][] partial = future.get();
+
+				for ( int axis = 0; axis < 3; ++axis )
+				{
+					if ( proj[ axis ] == null )
+						proj[ axis ] = partial[ axis ];
+					else
+						for ( int i = 0; i < size[ axis ]; ++i )
+							proj[ axis ][ i ] = Math.max( proj[ axis ][ i ], partial[ axis ][ i ] );
+				}
+			}
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Failed to compute max projections: " + e );
+			e.printStackTrace();
+			return null;
+		}
+
+		final List< RandomAccessibleInterval< FloatType > > projections = new ArrayList<>();
+
+		for ( int axis = 0; axis < 3; ++axis )
+			projections.add( ArrayImgs.floats( proj[ axis ], img.dimension( projDims[ axis ][ 0 ] ), img.dimension( projDims[ axis ][ 1 ] ) ) );
+
+		return projections;
+	}
+
+	/**
+	 * refine a predicted shift with the PCM of central blocks of the overlap of both images under the predicted shift,
+	 * only searching shifts within radius (per dimension) around it
+	 * @param predicted - the predicted shift
+	 * @param maxBlock - maximal size of the blocks
+	 * @param radius - uncertainty of the predicted shift (per dimension)
+	 * @return the refined peak (shift relative to the whole images), null if the prediction could not be refined
+	 */
+	protected static <T extends RealType< T >, S extends RealType< S >> PhaseCorrelationPeak2 refineShiftPeak(
+			final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< S > img2, final int[] extension,
+			final PairwiseStitchingParameters params, final long[] predicted, final long[] maxBlock, final double radius,
+			final ExecutorService service )
+	{
+		final int n = img1.numDimensions();
+
+		// the overlapping parts of both images under the predicted shift
+		final Pair< Interval, Interval > overlaps = PhaseCorrelation2Util.getOverlapIntervals( img1, img2, new Point( predicted ) );
+
+		if ( overlaps == null )
+			return null;
+
+		final long[] min1 = new long[ n ];
+		final long[] min2 = new long[ n ];
+		final long[] max1 = new long[ n ];
+		final long[] max2 = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			final long block = Math.min( maxBlock[ d ], overlaps.getA().dimension( d ) );
+			final long offset = ( overlaps.getA().dimension( d ) - block ) / 2;
+			min1[ d ] = overlaps.getA().min( d ) + offset;
+			min2[ d ] = overlaps.getB().min( d ) + offset;
+			max1[ d ] = min1[ d ] + block - 1;
+			max2[ d ] = min2[ d ] + block - 1;
+		}
+
+		// the blocks are aligned by the predicted shift, the remaining shift is within radius
+		final PhaseCorrelationPeak2 fine = getShiftPeakSingleLevel(
+				Views.zeroMin( Views.interval( img1, new FinalInterval( min1, max1 ) ) ),
+				Views.zeroMin( Views.interval( img2, new FinalInterval( min2, max2 ) ) ),
+				extension, params, null, Util.getArrayFromValue( radius, n ), Double.POSITIVE_INFINITY, service );
+
+		if ( fine == null )
+			return null;
+
+		final PhaseCorrelationPeak2 result = new PhaseCorrelationPeak2( fine );
+
+		// shift of the block relative to the whole overlap
+		final long[] shift = new long[ n ];
+		final double[] subpixelShift = fine.getSubpixelShift() == null ? null : new double[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			shift[ d ] = fine.getShift().getLongPosition( d ) + min1[ d ] - min2[ d ];
+
+			if ( subpixelShift != null )
+				subpixelShift[ d ] = fine.getSubpixelShift().getDoublePosition( d ) + min1[ d ] - min2[ d ];
+		}
+
+		result.setShift( new Point( shift ) );
+		result.setSubpixelShift( subpixelShift == null ? null : new RealPoint( subpixelShift ) );
+
+		return result;
+	}
+
+	/**
+	 * @return the (subpixel if available) shift of the peak times f, rounded
+	 */
+	private static long[] upscaleShift( final PhaseCorrelationPeak2 peak, final long f )
+	{
+		final RealLocalizable shift = peak.getSubpixelShift() == null ? peak.getShift() : peak.getSubpixelShift();
+		final long[] upscaled = new long[ shift.numDimensions() ];
+		for ( int d = 0; d < upscaled.length; ++d )
+			upscaled[ d ] = Math.round( shift.getDoublePosition( d ) * f );
+		return upscaled;
+	}
+
+	/**
+	 * @return the downsampling per dimension at a level of the hierarchy (2^level, at most 2^levelsPerDim)
+	 */
+	private static long[] hierarchicalFactors( final int[] levelsPerDim, final int level )
+	{
+		final long[] f = new long[ levelsPerDim.length ];
+		for ( int d = 0; d < f.length; ++d )
+			f[ d ] = 1l << Math.min( level, levelsPerDim[ d ] );
+		return f;
+	}
+
+	private static double[] select( final double[] values, final int[] dims )
+	{
+		if ( values == null )
+			return null;
+
+		final double[] selected = new double[ dims.length ];
+		for ( int i = 0; i < dims.length; ++i )
+			selected[ i ] = values[ dims[ i ] ];
+		return selected;
+	}
+
+	private static int[] select( final int[] values, final int[] dims )
+	{
+		final int[] selected = new int[ dims.length ];
+		for ( int i = 0; i < dims.length; ++i )
+			selected[ i ] = values[ dims[ i ] ];
+		return selected;
+	}
+
+	private static double[] scale( final double[] values, final long[] downsampleFactors )
+	{
+		if ( values == null )
+			return null;
+
+		final double[] scaled = new double[ values.length ];
+		for ( int d = 0; d < values.length; ++d )
+			scaled[ d ] = values[ d ] / downsampleFactors[ d ];
+		return scaled;
+	}
+
+	private static double[] scale( final double[] values, final double factor )
+	{
+		if ( values == null )
+			return null;
+
+		final double[] scaled = new double[ values.length ];
+		for ( int d = 0; d < values.length; ++d )
+			scaled[ d ] = values[ d ] * factor;
+		return scaled;
+	}
+
+	private static FinalDimensions downsampledDimensions( final Dimensions dim, final long f )
+	{
+		final long[] ds = new long[ dim.numDimensions() ];
+		for ( int d = 0; d < ds.length; ++d )
+			ds[ d ] = DownsampleTools.downsampledSize( dim.dimension( d ), f );
+		return new FinalDimensions( ds );
+	}
+
+	/**
+	 * the pairs computed from now on share the PCM memory budget with n more pairs (until {@link #endConcurrentPairs(int)})
+	 */
+	public static void beginConcurrentPairs( final int n )
+	{
+		concurrentPairs.addAndGet( n );
+	}
+
+	public static void endConcurrentPairs( final int n )
+	{
+		concurrentPairs.addAndGet( -n );
+	}
+
+	/**
+	 * @return the memory the spectra and PCM of one pair may use
+	 */
+	protected static long pcmMemoryBudget()
+	{
+		return (long)( availableMemory() * maxPCMMemoryFraction / Math.max( 1, concurrentPairs.get() ) );
+	}
+
+	private static long availableMemory()
+	{
+		final Runtime rt = Runtime.getRuntime();
+		return rt.maxMemory() - ( rt.totalMemory() - rt.freeMemory() );
+	}
+
 	public static void normalizePCM( final RandomAccessibleInterval< FloatType > pcm, final ExecutorService service )
 	{
 		// so that the peak doesn't stick out too much, that interferes with the subpixel detection
@@ -21,6 +21,8 @@
  */
 package net.preibisch.stitcher.algorithm;
 
+import java.util.Collection;
+
 import ij.gui.GenericDialog;
 
 public class PairwiseStitchingParameters
@@ -32,6 +34,38 @@ public class PairwiseStitchingParameters
 	public boolean showExpertGrouping;
 	public boolean useWholeImage;
 
+	// prior knowledge about the shift relative to the metadata (same units as the shift filters, i.e. global coordinates),
+	// shifts further away are neither searched for in the PCM nor verified
+	public double[] maxShift = null; // per dimension, null for no restriction
+	public double maxShiftMagnitude = Double.POSITIVE_INFINITY;
+
+	// stop verifying shift candidates (largest overlap first) once one has at least this cross correlation
+	public double acceptCrossCorrelation = Double.POSITIVE_INFINITY;
+
+	// only load the parts of the views that overlap according to the metadata (ignored if useWholeImage)
+	public boolean loadOverlapOnly = true;
+
+	// verify the candidate shifts by lookups in the normalized cross correlation of all shifts (computed once via FFT)
+	// instead of correlating every candidate overlap, only if there is enough memory and the subpixel shift is not interpolated
+	public boolean denseCrossCorrelation = false;
+
+	// number of coarser levels (downsampling 2, 4, ...) the shift is computed on first, every finer level only refines it
+	// within a few pixels on a block of the size of the coarsest overlap, 0 for a single PCM of the whole overlap
+	public int hierarchicalLevels = 0;
+
+	// estimate the shift of 3d overlaps from the 2d PCMs of their maximum-intensity projections along x, y and z first,
+	// the 3d PCM only refines it within a few pixels on a block of the overlap
+	public boolean projectionPreRegistration = false;
+
+	// crop the overlaps to the bounding box of the blocks whose intensity standard deviation exceeds this many times the
+	// noise (estimated from differences of neighboring pixels), pairs without such blocks are skipped, 0 to use the whole overlap
+	public double signalThreshold = 0;
+
+	// time series: pairs are computed one timepoint after the other, the accepted shift of a pair is only verified
+	// in a small window at the next timepoint, the full phase correlation is computed if it has a lower cross correlation
+	public boolean temporalWarmStart = false;
+	public double warmStartCrossCorrelation = 0.7;
+
 	public PairwiseStitchingParameters()
 	{
 		this(0, 5, true, false, false, false);
@@ -54,6 +88,30 @@ public class PairwiseStitchingParameters
 		this.useWholeImage = useWholeImage;
 	}
 
+	/**
+	 * restrict the expected shift to what the given link filters would accept anyway
+	 * (thresholds of {@link FilteredStitchingResults.AbsoluteShiftFilter} and {@link FilteredStitchingResults.ShiftMagnitudeFilter})
+	 * @param filters the filters that will be applied to the results
+	 */
+	public void setShiftPriorFromFilters(final Collection< ? extends FilteredStitchingResults.Filter > filters)
+	{
+		for (final FilteredStitchingResults.Filter filter : filters)
+		{
+			if ( filter instanceof FilteredStitchingResults.AbsoluteShiftFilter )
+			{
+				final double[] filterMax = ( (FilteredStitchingResults.AbsoluteShiftFilter) filter ).getMaxShift();
+
+				if ( maxShift == null )
+					maxShift = filterMax.clone();
+				else
+					for (int d = 0; d < Math.min( maxShift.length, filterMax.length ); d++)
+						maxShift[d] = Math.min( maxShift[d], filterMax[d] );
+			}
+			else if ( filter instanceof FilteredStitchingResults.ShiftMagnitudeFilter )
+				maxShiftMagnitude = Math.min( maxShiftMagnitude, ( (FilteredStitchingResults.ShiftMagnitudeFilter) filter ).getMaxShift() );
+		}
+	}
+
 	public static void addQueriesToGD(final GenericDialog gd)
 	{
 		gd.addNumericField( "number of peaks to check", 5, 0 );
@@ -62,6 +120,7 @@ public class PairwiseStitchingParameters
 		gd.addCheckbox( "interpolate_subpixel_cross_correlation_(warning: slow!)", false );
 		gd.addCheckbox( "use_whole_image_(warning: slow!)", false );
 		gd.addCheckbox( "show_expert_grouping_options", false );
+		gd.addCheckbox( "start_from_shifts_of_previous_timepoint", false );
 	}
 
 	public static PairwiseStitchingParameters getParametersFromGD(final GenericDialog gd)
@@ -75,8 +134,11 @@ public class PairwiseStitchingParameters
 		boolean interpolateSubpixel = gd.getNextBoolean();
 		boolean useWholeImage = gd.getNextBoolean();
 		boolean showExpertGrouping = gd.getNextBoolean();
+		boolean temporalWarmStart = gd.getNextBoolean();
 
-		return new PairwiseStitchingParameters(minOverlap, peaksToCheck, doSubpixel, interpolateSubpixel, showExpertGrouping, useWholeImage);
+		final PairwiseStitchingParameters params = new PairwiseStitchingParameters(minOverlap, peaksToCheck, doSubpixel, interpolateSubpixel, showExpertGrouping, useWholeImage);
+		params.temporalWarmStart = temporalWarmStart;
+		return params;
 	}
 
 	public static PairwiseStitchingParameters askUserForParameters()
@@ -0,0 +1,293 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bdv.export.ExportMipmapInfo;
+import bdv.export.ProgressWriter;
+import bdv.export.WriteSequenceToHdf5;
+import bdv.export.WriteSequenceToHdf5.LoopbackHeuristic;
+import bdv.img.hdf5.Partition;
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.sequence.SequenceDescription;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewSetup;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Dimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+
+/**
+ * Resaves a dataset as HDF5 with one partition file per view (timepoint &amp; setup) that are linked by a master file.
+ * Several partitions are written at once, so reading, mipmap generation and compression of different views overlap,
+ * while the number of views that are in flight at the same time is bounded by the available memory.
+ */
+public class ParallelResaveHDF5
+{
+	// a view is assumed to occupy twice its raw size while being written (input + downsampled levels)
+	public static double memoryFactorPerView = 2.0;
+
+	/**
+	 * @param data - the (reduced) dataset to resave, all setups must be 16 bit (see {@link #allSetupsUnsignedShort(SpimData2)})
+	 * @param perSetupExportMipmapInfo - mipmap levels and block sizes for each setup
+	 * @param deflate - whether to compress the blocks
+	 * @param seqFile - the xml file the new dataset will be saved to (partition names are derived from it)
+	 * @param hdf5File - the master HDF5 file linking all partitions
+	 * @param numThreads - total number of threads to use
+	 * @param progressWriter - receives progress and throughput (MB/s, blocks/s)
+	 * @return the partitions that were written or null if writing failed
+	 */
+	public static ArrayList< Partition > writeHDF5(
+			final SpimData2 data,
+			final Map< Integer, ExportMipmapInfo > perSetupExportMipmapInfo,
+			final boolean deflate,
+			final File seqFile,
+			final File hdf5File,
+			final int numThreads,
+			final ProgressWriter progressWriter )
+	{
+		final SequenceDescription seq = data.getSequenceDescription();
+		final List< TimePoint > timepoints = seq.getTimePoints().getTimePointsOrdered();
+		final List< ViewSetup > setups = seq.getViewSetupsOrdered();
+
+		// same naming scheme as Generic_Resave_HDF5, so the XML written afterwards references the same files
+		final String xmlFilename = seqFile.getAbsolutePath();
+		final String basename = xmlFilename.endsWith( ".xml" ) ? xmlFilename.substring( 0, xmlFilename.length() - 4 ) : xmlFilename;
+
+		// one partition per view
+		final ArrayList< Partition > partitions = Partition.split( timepoints, setups, 1, 1, basename );
+
+		// bytes & blocks for each partition, used for throughput and the memory bound
+		final long[] bytesPerPartition = new long[ partitions.size() ];
+		final long[] blocksPerPartition = new long[ partitions.size() ];
+		long maxBytes = 1;
+		long totalBytes = 0;
+		long totalBlocks = 0;
+
+		for ( int i = 0; i < partitions.size(); ++i )
+		{
+			final Partition partition = partitions.get( i );
+			final int numTimepoints = partition.getTimepointIdSequenceToPartition().size();
+
+			for ( final int setupId : partition.getSetupIdSequenceToPartition().keySet() )
+			{
+				final Dimensions size = seq.getViewSetups().get( setupId ).getSize();
+				final ExportMipmapInfo mipmapInfo = perSetupExportMipmapInfo.get( setupId );
+
+				bytesPerPartition[ i ] += numTimepoints * numElements( size ) * 2;
+				blocksPerPartition[ i ] += numTimepoints * numBlocks( size, mipmapInfo );
+			}
+
+			maxBytes = Math.max( maxBytes, bytesPerPartition[ i ] );
+			totalBytes += bytesPerPartition[ i ];
+			totalBlocks += blocksPerPartition[ i ];
+		}
+
+		// bound the number of views in flight by threads and memory
+		final long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+		final int numParallelPartitions = (int)Math.max( 1, Math.min( partitions.size(),
+				Math.min( Math.max( 1, numThreads / 2 ), memoryBudget / (long)Math.ceil( maxBytes * memoryFactorPerView ) ) ) );
+		final int numCellCreatorThreads = Math.max( 1, numThreads / numParallelPartitions );
+
+		IOFunctions.println(
+				"(" + new Date( System.currentTimeMillis() ) + "): Writing " + partitions.size() + " partitions (" +
+				totalBytes / ( 1024 * 1024 ) + " MB, " + totalBlocks + " blocks), " + numParallelPartitions +
+				" at once using " + numCellCreatorThreads + " threads each." );
+
+		final LoopbackHeuristic loopbackHeuristic = new LoopbackHeuristic()
+		{
+			@Override
+			public boolean decide(
+					final RandomAccessibleInterval< ? > originalImg,
+					final int[] factorsToOriginalImg,
+					final int previousLevel,
+					final int[] factorsToPreviousLevel,
+					final int[] chunkSize )
+			{
+				if ( previousLevel < 0 )
+					return false;
+
+				// read back the previous level if it saves at least 8x the reading
+				return product( factorsToOriginalImg ) / product( factorsToPreviousLevel ) >= 8;
+			}
+		};
+
+		final double[] progress = new double[ partitions.size() ];
+		final AtomicLong bytesDone = new AtomicLong();
+		final AtomicLong blocksDone = new AtomicLong();
+		final long startTime = System.currentTimeMillis();
+
+		final ExecutorService service = Executors.newFixedThreadPool( numParallelPartitions );
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+
+		for ( int i = 0; i < partitions.size(); ++i )
+		{
+			final int partitionIndex = i;
+			final Partition partition = partitions.get( i );
+
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					final ProgressWriter partitionProgress = new ProgressWriter()
+					{
+						@Override
+						public PrintStream out() { return progressWriter.out(); }
+
+						@Override
+						public PrintStream err() { return progressWriter.err(); }
+
+						@Override
+						public void setProgress( final double completionRatio )
+						{
+							synchronized ( progress )
+							{
+								progress[ partitionIndex ] = completionRatio;
+
+								double sum = 0;
+								for ( final double p : progress )
+									sum += p;
+
+								progressWriter.setProgress( 0.95 * sum / progress.length );
+							}
+						}
+					};
+
+					WriteSequenceToHdf5.writeHdf5PartitionFile(
+							seq, perSetupExportMipmapInfo, deflate, partition, loopbackHeuristic, null, numCellCreatorThreads, partitionProgress );
+
+					final long bytes = bytesDone.addAndGet( bytesPerPartition[ partitionIndex ] );
+					final long blocks = blocksDone.addAndGet( blocksPerPartition[ partitionIndex ] );
+					final double seconds = Math.max( 0.001, ( System.currentTimeMillis() - startTime ) / 1000.0 );
+
+					progressWriter.out().println(
+							"(" + new Date( System.currentTimeMillis() ) + "): Wrote " + new File( partition.getPath() ).getName() +
+							", " + String.format( "%.1f", bytes / ( 1024.0 * 1024.0 ) / seconds ) + " MB/s, " +
+							String.format( "%.1f", blocks / seconds ) + " blocks/s" );
+
+					return null;
+				}
+			});
+		}
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			for ( final Future< Void > future : service.invokeAll( tasks ) )
+				future.get();
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Failed to write HDF5 partitions: " + e );
+			e.printStackTrace();
+			return null;
+		}
+		finally
+		{
+			service.shutdown();
+		}
+
+		WriteSequenceToHdf5.writeHdf5PartitionLinkFile( seq, perSetupExportMipmapInfo, partitions, hdf5File );
+
+		final double seconds = Math.max( 0.001, ( System.currentTimeMillis() - startTime ) / 1000.0 );
+		progressWriter.out().println(
+				"(" + new Date( System.currentTimeMillis() ) + "): Resaved " + totalBytes / ( 1024 * 1024 ) + " MB in " +
+				String.format( "%.1f", seconds ) + "s (" + String.format( "%.1f", totalBytes / ( 1024.0 * 1024.0 ) / seconds ) + " MB/s, " +
+				String.format( "%.1f", totalBlocks / seconds ) + " blocks/s)" );
+
+		progressWriter.setProgress( 0.95 );
+
+		return partitions;
+	}
+
+	/**
+	 * The HDF5 writer stores 16 bit images only, other types have to go through Generic_Resave_HDF5's conversion
+	 * @param data - the dataset
+	 * @return true if all setups provide UnsignedShortType images
+	 */
+	public static boolean allSetupsUnsignedShort( final SpimData2 data )
+	{
+		final BasicImgLoader imgLoader = data.getSequenceDescription().getImgLoader();
+
+		for ( final ViewSetup setup : data.getSequenceDescription().getViewSetupsOrdered() )
+			if ( !UnsignedShortType.class.isInstance( imgLoader.getSetupImgLoader( setup.getId() ).getImageType() ) )
+				return false;
+
+		return true;
+	}
+
+	protected static long numBlocks( final Dimensions size, final ExportMipmapInfo mipmapInfo )
+	{
+		final int[][] resolutions = mipmapInfo.getExportResolutions();
+		final int[][] subdivisions = mipmapInfo.getSubdivisions();
+
+		long blocks = 0;
+
+		for ( int level = 0; level < resolutions.length; ++level )
+		{
+			long blocksLevel = 1;
+
+			for ( int d = 0; d < size.numDimensions(); ++d )
+			{
+				final long dimLevel = Math.max( 1, size.dimension( d ) / resolutions[ level ][ d ] );
+				blocksLevel *= ( dimLevel + subdivisions[ level ][ d ] - 1 ) / subdivisions[ level ][ d ];
+			}
+
+			blocks += blocksLevel;
+		}
+
+		return blocks;
+	}
+
+	protected static long numElements( final Dimensions size )
+	{
+		long n = 1;
+
+		for ( int d = 0; d < size.numDimensions(); ++d )
+			n *= size.dimension( d );
+
+		return n;
+	}
+
+	protected static int product( final int[] values )
+	{
+		int p = 1;
+
+		for ( final int v : values )
+			p *= v;
+
+		return p;
+	}
+}
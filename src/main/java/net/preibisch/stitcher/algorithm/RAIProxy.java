@@ -21,163 +21,351 @@
  */
 package net.preibisch.stitcher.algorithm;
 
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
 import mpicbg.spim.data.generic.sequence.BasicImgLoader;
 import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.Positionable;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPositionable;
 import net.imglib2.type.numeric.RealType;
-//import net.preibisch.mvrecon.process.interestpointdetection.methods.downsampling.DownsampleTools;
-
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 
+/**
+ * Lazily loads (and downsamples) a view on first pixel access. The loaded images live in a cache that is
+ * shared by all proxies, so every (imgloader, view, downsampling, region) is loaded only once even if requested
+ * concurrently. Cached images are softly referenced and the cache is bounded in size, evicted images are
+ * reloaded transparently on the next access. The interval is computed from the metadata whenever possible,
+ * so asking for the size of a proxy does not load the image.
+ */
 public class RAIProxy <T extends RealType<T>> implements RandomAccessibleInterval< T >
 {
-	private RandomAccessibleInterval< T > rai;
-	private BasicImgLoader imgLoader;
-	private ViewId vid;
-	private long[] downsampleFactors;
+	/**
+	 * approximate upper bound for the cache (in voxels), default is a quarter of the heap assuming 4 bytes per voxel
+	 */
+	public static long maxCachedVoxels = Runtime.getRuntime().maxMemory() / 16;
+
+	private static volatile Cache< Key, RandomAccessibleInterval< ? > > cache = createCache();
+
+	private final BasicImgLoader imgLoader;
+	private final ViewId vid;
+	private final long[] downsampleFactors;
+	private final Interval region;
+	private final Key key;
+
+	// the interval is immutable once known, so it is safe to publish it via a volatile field
+	private volatile Interval interval;
 
 	public RAIProxy(BasicImgLoader imgLoader, ViewId vid, long[] downsampleFactors )
 	{
-		this.rai = null;
-		this.downsampleFactors = downsampleFactors;
+		this( imgLoader, vid, downsampleFactors, null );
+	}
+
+	/**
+	 * @param imgLoader - the imgloader
+	 * @param vid - the view
+	 * @param downsampleFactors - downsampling in x,y,z
+	 * @param region - only load this part of the downsampled view (the proxy is zero-min and has the size of the part), null for the whole view
+	 */
+	public RAIProxy(BasicImgLoader imgLoader, ViewId vid, long[] downsampleFactors, Interval region )
+	{
+		this.downsampleFactors = downsampleFactors.clone();
 		this.imgLoader = imgLoader;
 		this.vid = vid;
+		this.region = region == null ? null : new FinalInterval( region );
+		this.key = new Key( imgLoader, vid, this.downsampleFactors, this.region );
 	}
-	
-	private void loadIfNecessary()
+
+	/**
+	 * @return the image, loaded at most once per cache entry (concurrent requests wait for the same load)
+	 */
+	@SuppressWarnings("unchecked")
+	private RandomAccessibleInterval< T > getImage()
 	{
-		// FIXME: use DownsampleTools from SPIM_Registration
-		if (rai == null)
-			rai = DownsampleTools.openAndDownsample( imgLoader, vid, downsampleFactors );
+		final boolean[] loaded = new boolean[ 1 ];
+
+		try
+		{
+			final RandomAccessibleInterval< T > rai = (RandomAccessibleInterval< T >) cache.get( key, new Callable< RandomAccessibleInterval< ? > >()
+			{
+				@Override
+				public RandomAccessibleInterval< ? > call() throws Exception
+				{
+					loaded[ 0 ] = true;
+					final long t = StitchingMetrics.start();
+
+					// FIXME: use DownsampleTools from SPIM_Registration
+					final RandomAccessibleInterval< T > img = DownsampleTools.openAndDownsample( imgLoader, vid, downsampleFactors, region );
+
+					StitchingMetrics.stop( StitchingMetrics.LOAD, t );
+
+					if ( StitchingMetrics.enabled )
+						StitchingMetrics.count( StitchingMetrics.BYTES_LOADED,
+								Intervals.numElements( img ) * Util.getTypeFromInterval( img ).getBitsPerPixel() / 8 );
+
+					return img;
+				}
+			});
+
+			StitchingMetrics.increment( loaded[ 0 ] ? StitchingMetrics.IMAGE_CACHE_MISSES : StitchingMetrics.IMAGE_CACHE_HITS );
+
+			if ( interval == null )
+				interval = new FinalInterval( rai );
+
+			return rai;
+		}
+		catch ( ExecutionException | UncheckedExecutionException e )
+		{
+			IOFunctions.println( "Failed to load view " + Group.pvid( vid ) + ": " + e );
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+
+	/**
+	 * @return the interval of the image, from the metadata if possible, otherwise by loading the image
+	 */
+	private Interval getInterval()
+	{
+		Interval interval = this.interval;
+
+		if ( interval == null )
+		{
+			// the image might be cached already by another proxy
+			final RandomAccessibleInterval< ? > cached = cache.getIfPresent( key );
+
+			if ( cached != null )
+				interval = new FinalInterval( cached );
+			else
+			{
+				interval = DownsampleTools.getDownsampledInterval( imgLoader, vid, downsampleFactors );
+
+				if ( interval == null )
+					interval = new FinalInterval( getImage() );
+				else if ( region != null )
+					interval = new FinalInterval( Intervals.dimensionsAsLongArray( DownsampleTools.getDownsampledRegion( interval, region ) ) );
+			}
+
+			this.interval = interval;
+		}
+
+		return interval;
 	}
-	
+
+	/**
+	 * @return the (memoized) intensity statistics of the image this proxy loads (only the region if there is one)
+	 */
+	public ViewStatistics getStatistics()
+	{
+		return ViewStatistics.get( imgLoader, vid, downsampleFactors, region );
+	}
+
+	/**
+	 * remove all images from the shared cache, proxies will reload on next access
+	 */
+	public static void clearCache()
+	{
+		cache.invalidateAll();
+	}
+
+	/**
+	 * re-create the shared cache (e.g. after changing {@link #maxCachedVoxels}), proxies will reload on next access
+	 */
+	public static synchronized void resetCache()
+	{
+		cache.invalidateAll();
+		cache = createCache();
+	}
+
+	private static Cache< Key, RandomAccessibleInterval< ? > > createCache()
+	{
+		return CacheBuilder.newBuilder()
+				.softValues()
+				.maximumWeight( Math.max( 1, maxCachedVoxels / 1024 ) )
+				.weigher( new Weigher< Key, RandomAccessibleInterval< ? > >()
+				{
+					// weight in units of 1024 voxels
+					@Override
+					public int weigh( final Key key, final RandomAccessibleInterval< ? > value )
+					{
+						return (int)Math.min( Integer.MAX_VALUE, Math.max( 1, Intervals.numElements( value ) / 1024 ) );
+					}
+				})
+				.build();
+	}
+
+	private static class Key
+	{
+		final BasicImgLoader imgLoader;
+		final ViewId vid;
+		final long[] downsampleFactors;
+		final long[] regionMin, regionMax;
+		final int hash;
+
+		public Key( final BasicImgLoader imgLoader, final ViewId vid, final long[] downsampleFactors, final Interval region )
+		{
+			this.imgLoader = imgLoader;
+			this.vid = vid;
+			this.downsampleFactors = downsampleFactors;
+			this.regionMin = region == null ? null : Intervals.minAsLongArray( region );
+			this.regionMax = region == null ? null : Intervals.maxAsLongArray( region );
+			this.hash = 31 * ( 31 * ( 31 * System.identityHashCode( imgLoader ) + vid.hashCode() ) + Arrays.hashCode( downsampleFactors ) ) + Arrays.hashCode( regionMin );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( this == obj )
+				return true;
+			if ( !( obj instanceof Key ) )
+				return false;
+
+			final Key other = (Key) obj;
+
+			// imgloaders are compared by identity, two loaders of the same type might point to different data
+			return imgLoader == other.imgLoader && vid.equals( other.vid ) && Arrays.equals( downsampleFactors, other.downsampleFactors )
+					&& Arrays.equals( regionMin, other.regionMin ) && Arrays.equals( regionMax, other.regionMax );
+		}
+	}
+
+	/**
+	 * two proxies are equal if they load the same image (i.e. they share the cache entry)
+	 */
+	@Override
+	public boolean equals( final Object obj )
+	{
+		if ( this == obj )
+			return true;
+		if ( !( obj instanceof RAIProxy ) )
+			return false;
+
+		return key.equals( ( (RAIProxy< ? >) obj ).key );
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return key.hashCode();
+	}
+
 	@Override
 	public RandomAccess< T > randomAccess()
 	{
-		loadIfNecessary();
-		return rai.randomAccess();
+		return getImage().randomAccess();
 	}
 
 	@Override
 	public RandomAccess< T > randomAccess(Interval interval)
 	{
-		loadIfNecessary();
-		return rai.randomAccess( interval );
+		return getImage().randomAccess( interval );
 	}
 
 	@Override
 	public int numDimensions()
 	{
-		loadIfNecessary();
-		return rai.numDimensions();
+		return getInterval().numDimensions();
 	}
 
 	@Override
 	public long min(int d)
 	{
-		loadIfNecessary();
-		return rai.min( d );
+		return getInterval().min( d );
 	}
 
 	@Override
 	public void min(long[] min)
 	{
-		loadIfNecessary();
-		rai.min( min );
-		
+		getInterval().min( min );
 	}
 
 	@Override
 	public void min(Positionable min)
 	{
-		loadIfNecessary();
-		rai.min( min );
-		
+		getInterval().min( min );
 	}
 
 	@Override
 	public long max(int d)
 	{
-		loadIfNecessary();
-		return rai.max( d );
+		return getInterval().max( d );
 	}
 
 	@Override
 	public void max(long[] max)
 	{
-		loadIfNecessary();
-		rai.max( max );
-		
+		getInterval().max( max );
 	}
 
 	@Override
 	public void max(Positionable max)
 	{
-		loadIfNecessary();
-		rai.max( max );		
+		getInterval().max( max );
 	}
 
 	@Override
 	public double realMin(int d)
 	{
-		loadIfNecessary();
-		return rai.realMin( d );
+		return getInterval().realMin( d );
 	}
 
 	@Override
 	public void realMin(double[] min)
 	{
-		loadIfNecessary();
-		rai.realMin( min );
-		
+		getInterval().realMin( min );
 	}
 
 	@Override
 	public void realMin(RealPositionable min)
 	{
-		loadIfNecessary();
-		rai.realMin( min );
-		
+		getInterval().realMin( min );
 	}
 
 	@Override
 	public double realMax(int d)
 	{
-		loadIfNecessary();
-		return rai.realMax( d );
+		return getInterval().realMax( d );
 	}
 
 	@Override
 	public void realMax(double[] max)
 	{
-		loadIfNecessary();
-		rai.realMax( max );
+		getInterval().realMax( max );
 	}
 
 	@Override
 	public void realMax(RealPositionable max)
 	{
-		loadIfNecessary();
-		rai.realMax( max );
-		
+		getInterval().realMax( max );
 	}
 
 	@Override
 	public void dimensions(long[] dimensions)
 	{
-		loadIfNecessary();
-		rai.dimensions( dimensions );
-		
+		getInterval().dimensions( dimensions );
 	}
 
 	@Override
 	public long dimension(int d)
 	{
-		loadIfNecessary();
-		return rai.dimension( d );
+		return getInterval().dimension( d );
 	}
 
 }
@@ -0,0 +1,96 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import bdv.img.hdf5.Hdf5ImageLoader;
+import bdv.img.hdf5.Partition;
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+
+/**
+ * Identifies the raw data of a dataset for everything that is persisted next to it (e.g. statistics, cached images).
+ * The identity contains the path and the size and modification time of the files backing the imgloader, so
+ * re-exporting or resaving the raw data under the same XML invalidates whatever was stored for the old data.
+ * If the files of the imgloader are not known, the XML itself is used instead (which is conservative, it also
+ * changes if only the registrations are saved).
+ */
+public class SourceIdentity
+{
+	/**
+	 * @param xml - the XML of the dataset
+	 * @param imgLoader - the imgloader of the dataset
+	 * @return an identifier of the raw data of the dataset
+	 */
+	public static String of( final String xml, final BasicImgLoader imgLoader )
+	{
+		final StringBuilder s = new StringBuilder( new File( xml ).getAbsolutePath() );
+		s.append( '|' ).append( imgLoader.getClass().getName() );
+
+		List< File > files = backingFiles( imgLoader );
+
+		if ( files.size() == 0 )
+		{
+			files = new ArrayList<>();
+			files.add( new File( xml ) );
+		}
+
+		for ( final File file : files )
+			s.append( '|' ).append( stamp( file ) );
+
+		return s.toString();
+	}
+
+	/**
+	 * @param imgLoader - the imgloader
+	 * @return the files that contain the raw data (empty if unknown)
+	 */
+	public static List< File > backingFiles( final BasicImgLoader imgLoader )
+	{
+		final ArrayList< File > files = new ArrayList<>();
+
+		if ( Hdf5ImageLoader.class.isInstance( imgLoader ) )
+		{
+			final Hdf5ImageLoader hdf5Loader = (Hdf5ImageLoader) imgLoader;
+
+			if ( hdf5Loader.getHdf5File() != null )
+				files.add( hdf5Loader.getHdf5File() );
+
+			// the partitions of a partitioned resave contain the actual data
+			if ( hdf5Loader.getPartitions() != null )
+				for ( final Partition partition : hdf5Loader.getPartitions() )
+					files.add( new File( partition.getPath() ) );
+		}
+
+		return files;
+	}
+
+	/**
+	 * @return path, size and modification time of a file
+	 */
+	public static String stamp( final File file )
+	{
+		return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+	}
+}
@@ -0,0 +1,394 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import mpicbg.spim.io.IOFunctions;
+
+/**
+ * Lightweight timing and throughput metrics for the stitching pipeline (stage timers per pair, bytes loaded,
+ * pixels processed, peaks, cross-correlation candidates, queue depth, cache hits). Everything is a no-op
+ * unless {@link #enabled} is set, e.g. with -Dbigstitcher.metrics=true; with -Dbigstitcher.metrics.export=prefix
+ * the metrics are also written to prefix.csv and prefix.json after computing pairwise shifts.
+ * 
+ * Stages are attributed to the pair that is processed by the current thread, see {@link #beginPair(String)}.
+ */
+public class StitchingMetrics
+{
+	public static volatile boolean enabled = Boolean.getBoolean( "bigstitcher.metrics" );
+	public static volatile String exportPrefix = System.getProperty( "bigstitcher.metrics.export" );
+
+	// stage names
+	public static final String LOAD = "load";
+	public static final String PCM = "pcm";
+	public static final String PEAKS = "peaks";
+	public static final String EXPAND = "expand";
+	public static final String CROSS_CORRELATION = "crossCorrelation";
+	public static final String SORT = "sort";
+	public static final String FUSE = "fuse";
+	public static final String PAIR = "pair";
+
+	// counter names
+	public static final String BYTES_LOADED = "bytesLoaded";
+	public static final String PIXELS_PROCESSED = "pixelsProcessed";
+	public static final String PEAKS_FOUND = "peaksFound";
+	public static final String CC_CANDIDATES = "crossCorrelationCandidates";
+	public static final String IMAGE_CACHE_HITS = "imageCacheHits";
+	public static final String IMAGE_CACHE_MISSES = "imageCacheMisses";
+	public static final String AVERAGE_CACHE_HITS = "averageCacheHits";
+	public static final String AVERAGE_CACHE_MISSES = "averageCacheMisses";
+	public static final String STATISTICS_CACHE_HITS = "statisticsCacheHits";
+	public static final String STATISTICS_CACHE_MISSES = "statisticsCacheMisses";
+	public static final String BACKGROUND_PIXELS_CROPPED = "backgroundPixelsCropped";
+	public static final String BACKGROUND_PAIRS_SKIPPED = "backgroundPairsSkipped";
+	public static final String WARM_STARTS_ACCEPTED = "warmStartsAccepted";
+	public static final String WARM_STARTS_REJECTED = "warmStartsRejected";
+
+	// gauge names
+	public static final String QUEUE_DEPTH = "queueDepth";
+
+	private static final ConcurrentHashMap< String, StageTimer > stages = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap< String, LongAdder > counters = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap< String, AtomicLong > maxGauges = new ConcurrentHashMap<>();
+	private static final ConcurrentLinkedQueue< PairRecord > pairs = new ConcurrentLinkedQueue<>();
+
+	private static final ThreadLocal< PairRecord > currentPair = new ThreadLocal<>();
+
+	public static class StageTimer
+	{
+		final LongAdder count = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+		final AtomicLong maxNanos = new AtomicLong();
+
+		void add( final long t )
+		{
+			count.increment();
+			nanos.add( t );
+
+			long max;
+			while ( t > ( max = maxNanos.get() ) && !maxNanos.compareAndSet( max, t ) );
+		}
+	}
+
+	public static class PairRecord
+	{
+		final String label;
+		final Map< String, Long > stageNanos = new TreeMap<>();
+
+		PairRecord( final String label )
+		{
+			this.label = label;
+		}
+
+		synchronized void add( final String stage, final long t )
+		{
+			final Long old = stageNanos.get( stage );
+			stageNanos.put( stage, old == null ? t : old + t );
+		}
+	}
+
+	/**
+	 * @return a timestamp to pass to {@link #stop(String, long)}, 0 if disabled
+	 */
+	public static long start()
+	{
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * record the time since start for a stage (also for the pair of the current thread, if any)
+	 */
+	public static void stop( final String stage, final long start )
+	{
+		if ( !enabled || start == 0 )
+			return;
+
+		final long t = System.nanoTime() - start;
+
+		stages.computeIfAbsent( stage, s -> new StageTimer() ).add( t );
+
+		final PairRecord pair = currentPair.get();
+		if ( pair != null )
+			pair.add( stage, t );
+	}
+
+	public static void count( final String counter, final long value )
+	{
+		if ( enabled )
+			counters.computeIfAbsent( counter, c -> new LongAdder() ).add( value );
+	}
+
+	public static void increment( final String counter )
+	{
+		count( counter, 1 );
+	}
+
+	/**
+	 * keep track of the maximum of a value (e.g. queue depth)
+	 */
+	public static void max( final String gauge, final long value )
+	{
+		if ( !enabled )
+			return;
+
+		final AtomicLong g = maxGauges.computeIfAbsent( gauge, c -> new AtomicLong( Long.MIN_VALUE ) );
+
+		long max;
+		while ( value > ( max = g.get() ) && !g.compareAndSet( max, value ) );
+	}
+
+	/**
+	 * record the number of waiting tasks of a thread pool
+	 */
+	public static void queueDepth( final ExecutorService service )
+	{
+		if ( enabled && service instanceof ThreadPoolExecutor )
+			max( QUEUE_DEPTH, ( (ThreadPoolExecutor) service ).getQueue().size() );
+	}
+
+	/**
+	 * attribute all stages recorded by the current thread to a pair until {@link #endPair(long)}
+	 * 
+	 * @return a timestamp for {@link #endPair(long)}
+	 */
+	public static long beginPair( final String label )
+	{
+		if ( !enabled )
+			return 0;
+
+		currentPair.set( new PairRecord( label ) );
+		return System.nanoTime();
+	}
+
+	public static void endPair( final long start )
+	{
+		if ( !enabled )
+			return;
+
+		stop( PAIR, start );
+
+		final PairRecord pair = currentPair.get();
+		currentPair.remove();
+
+		if ( pair != null )
+			pairs.add( pair );
+	}
+
+	public static void reset()
+	{
+		stages.clear();
+		counters.clear();
+		maxGauges.clear();
+		pairs.clear();
+	}
+
+	/**
+	 * @return a human-readable summary of all stages and counters
+	 */
+	public static String summary()
+	{
+		final StringBuilder s = new StringBuilder( "Stitching metrics:\n" );
+
+		for ( final String stage : sorted( stages.keySet() ) )
+		{
+			final StageTimer t = stages.get( stage );
+			final long count = t.count.sum();
+			final double totalMs = t.nanos.sum() / 1e6;
+
+			s.append( String.format( "  %-20s n=%-6d total=%10.1f ms  mean=%9.2f ms  max=%9.2f ms%n",
+					stage, count, totalMs, count == 0 ? 0 : totalMs / count, t.maxNanos.get() / 1e6 ) );
+		}
+
+		for ( final String counter : sorted( counters.keySet() ) )
+			s.append( String.format( "  %-28s %d%n", counter, counters.get( counter ).sum() ) );
+
+		for ( final String gauge : sorted( maxGauges.keySet() ) )
+			s.append( String.format( "  %-28s max=%d%n", gauge, maxGauges.get( gauge ).get() ) );
+
+		appendHitRate( s, "image cache", IMAGE_CACHE_HITS, IMAGE_CACHE_MISSES );
+		appendHitRate( s, "average cache", AVERAGE_CACHE_HITS, AVERAGE_CACHE_MISSES );
+		appendHitRate( s, "statistics cache", STATISTICS_CACHE_HITS, STATISTICS_CACHE_MISSES );
+
+		final LongAdder bytes = counters.get( BYTES_LOADED );
+		final StageTimer load = stages.get( LOAD );
+		if ( bytes != null && load != null && load.nanos.sum() > 0 )
+			s.append( String.format( "  load throughput              %.1f MB/s%n", bytes.sum() / 1024.0 / 1024.0 / ( load.nanos.sum() / 1e9 ) ) );
+
+		return s.toString();
+	}
+
+	/**
+	 * print the summary and export if requested
+	 */
+	public static void report()
+	{
+		if ( !enabled )
+			return;
+
+		IOFunctions.println( summary() );
+
+		if ( exportPrefix != null && exportPrefix.length() > 0 )
+		{
+			writeCSV( new File( exportPrefix + ".csv" ) );
+			writeJSON( new File( exportPrefix + ".json" ) );
+		}
+	}
+
+	/**
+	 * one line per pair with the time per stage (ms), followed by the totals
+	 */
+	public static boolean writeCSV( final File file )
+	{
+		final List< String > stageNames = sorted( stages.keySet() );
+
+		try ( final PrintWriter out = new PrintWriter( file ) )
+		{
+			out.print( "pair" );
+			for ( final String stage : stageNames )
+				out.print( "," + stage + "_ms" );
+			out.println();
+
+			for ( final PairRecord pair : pairs )
+			{
+				out.print( "\"" + pair.label.replace( "\"", "'" ) + "\"" );
+
+				synchronized ( pair )
+				{
+					for ( final String stage : stageNames )
+					{
+						final Long t = pair.stageNanos.get( stage );
+						out.print( "," + ( t == null ? "" : String.format( "%.3f", t / 1e6 ) ) );
+					}
+				}
+
+				out.println();
+			}
+
+			out.print( "total" );
+			for ( final String stage : stageNames )
+				out.print( "," + String.format( "%.3f", stages.get( stage ).nanos.sum() / 1e6 ) );
+			out.println();
+
+			for ( final String counter : sorted( counters.keySet() ) )
+				out.println( counter + "," + counters.get( counter ).sum() );
+
+			for ( final String gauge : sorted( maxGauges.keySet() ) )
+				out.println( gauge + "_max," + maxGauges.get( gauge ).get() );
+
+			return true;
+		}
+		catch ( Exception e )
+		{
+			IOFunctions.println( "Failed to write metrics to '" + file + "': " + e );
+			return false;
+		}
+	}
+
+	public static boolean writeJSON( final File file )
+	{
+		try ( final PrintWriter out = new PrintWriter( file ) )
+		{
+			out.println( "{" );
+			out.println( "  \"stages\": {" );
+
+			final List< String > stageNames = sorted( stages.keySet() );
+			for ( int i = 0; i < stageNames.size(); ++i )
+			{
+				final StageTimer t = stages.get( stageNames.get( i ) );
+				out.println( "    \"" + stageNames.get( i ) + "\": { \"count\": " + t.count.sum() + ", \"totalMs\": " + t.nanos.sum() / 1e6 +
+						", \"maxMs\": " + t.maxNanos.get() / 1e6 + " }" + ( i < stageNames.size() - 1 ? "," : "" ) );
+			}
+
+			out.println( "  }," );
+			out.println( "  \"counters\": {" );
+
+			final List< String > counterNames = sorted( counters.keySet() );
+			for ( int i = 0; i < counterNames.size(); ++i )
+				out.println( "    \"" + counterNames.get( i ) + "\": " + counters.get( counterNames.get( i ) ).sum() + ( i < counterNames.size() - 1 ? "," : "" ) );
+
+			out.println( "  }," );
+			out.println( "  \"maxGauges\": {" );
+
+			final List< String > gaugeNames = sorted( maxGauges.keySet() );
+			for ( int i = 0; i < gaugeNames.size(); ++i )
+				out.println( "    \"" + gaugeNames.get( i ) + "\": " + maxGauges.get( gaugeNames.get( i ) ).get() + ( i < gaugeNames.size() - 1 ? "," : "" ) );
+
+			out.println( "  }," );
+			out.println( "  \"pairs\": [" );
+
+			final ArrayList< PairRecord > pairList = new ArrayList<>( pairs );
+			for ( int i = 0; i < pairList.size(); ++i )
+			{
+				final PairRecord pair = pairList.get( i );
+				final StringBuilder s = new StringBuilder( "    { \"pair\": \"" + pair.label.replace( "\\", "\\\\" ).replace( "\"", "\\\"" ) + "\"" );
+
+				synchronized ( pair )
+				{
+					for ( final Map.Entry< String, Long > e : pair.stageNanos.entrySet() )
+						s.append( ", \"" + e.getKey() + "Ms\": " + e.getValue() / 1e6 );
+				}
+
+				out.println( s.append( " }" ).append( i < pairList.size() - 1 ? "," : "" ) );
+			}
+
+			out.println( "  ]" );
+			out.println( "}" );
+
+			return true;
+		}
+		catch ( Exception e )
+		{
+			IOFunctions.println( "Failed to write metrics to '" + file + "': " + e );
+			return false;
+		}
+	}
+
+	private static void appendHitRate( final StringBuilder s, final String name, final String hits, final String misses )
+	{
+		final long h = counters.containsKey( hits ) ? counters.get( hits ).sum() : 0;
+		final long m = counters.containsKey( misses ) ? counters.get( misses ).sum() : 0;
+
+		if ( h + m > 0 )
+			s.append( String.format( "  %-28s %.1f%% hits%n", name, 100.0 * h / ( h + m ) ) );
+	}
+
+	private static List< String > sorted( final Set< String > keys )
+	{
+		final ArrayList< String > list = new ArrayList<>( keys );
+		Collections.sort( list );
+		return list;
+	}
+}
@@ -0,0 +1,598 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.sequence.MultiResolutionImgLoader;
+import mpicbg.spim.data.sequence.MultiResolutionSetupImgLoader;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.RealSum;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.Threads;
+import net.preibisch.mvrecon.process.fusion.FusionTools;
+import net.preibisch.mvrecon.process.fusion.ImagePortion;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Intensity statistics (mean, min, max, histogram) of a view at a certain resolution. Statistics are computed
+ * in parallel once per imgloader, view and resolution and memoized for the session, they can be saved to and
+ * loaded from a file next to the XML.
+ */
+public class ViewStatistics
+{
+	/**
+	 * resolution key for the lowest available resolution (lowest mipmap level or full resolution)
+	 */
+	public static final String LOWEST_RESOLUTION = "lowest";
+
+	public static int numBins = 256;
+
+	/**
+	 * save the statistics together with the XML (they are always loaded if present)
+	 */
+	public static boolean persistWithDataset = false;
+
+	// per imgloader (weakly referenced and compared by identity, so statistics of closed datasets are freed)
+	private static final Cache< BasicImgLoader, ConcurrentHashMap< Key, Future< ViewStatistics > > > memo = CacheBuilder.newBuilder().weakKeys().build();
+
+	// separates the resolution from the region in the resolution key of statistics of a part of a view
+	private static final String REGION_SEPARATOR = "@";
+
+	private static ExecutorService sharedService;
+
+	// first line of a statistics file, followed by the identity of the raw data
+	private static final String SOURCE_PREFIX = "# source: ";
+
+	public final long numPixels;
+	public final double mean, min, max;
+	public final long[] histogram;
+
+	public ViewStatistics( final long numPixels, final double mean, final double min, final double max, final long[] histogram )
+	{
+		this.numPixels = numPixels;
+		this.mean = mean;
+		this.min = min;
+		this.max = max;
+		this.histogram = histogram;
+	}
+
+	/**
+	 * @param quantile - in [0,1]
+	 * @return the approximate intensity at the quantile (upper edge of the histogram bin)
+	 */
+	public double getQuantile( final double quantile )
+	{
+		final double binSize = ( max - min ) / histogram.length;
+		final double target = quantile * numPixels;
+
+		long count = 0;
+		for ( int i = 0; i < histogram.length; ++i )
+		{
+			count += histogram[ i ];
+			if ( count >= target )
+				return min + ( i + 1 ) * binSize;
+		}
+
+		return max;
+	}
+
+	/**
+	 * @param imgLoader - the imgloader
+	 * @param vid - the view
+	 * @param downsampleFactors - the downsampling as used by {@link DownsampleTools#openAndDownsample(BasicImgLoader, ViewId, long[])}
+	 * @return the (memoized) statistics of the downsampled view, null if they could not be computed
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static ViewStatistics get( final BasicImgLoader imgLoader, final ViewId vid, final long[] downsampleFactors )
+	{
+		return get( imgLoader, vid, resolutionKey( downsampleFactors ), new Callable< RandomAccessibleInterval< ? > >()
+		{
+			@Override
+			public RandomAccessibleInterval< ? > call() throws Exception
+			{
+				return new RAIProxy( imgLoader, vid, downsampleFactors );
+			}
+		});
+	}
+
+	/**
+	 * @param imgLoader - the imgloader
+	 * @param vid - the view
+	 * @param downsampleFactors - the downsampling as used by {@link DownsampleTools#openAndDownsample(BasicImgLoader, ViewId, long[], Interval)}
+	 * @param region - the part of the downsampled view, null for the whole view
+	 * @return the (memoized) statistics of the part of the downsampled view, null if they could not be computed
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static ViewStatistics get( final BasicImgLoader imgLoader, final ViewId vid, final long[] downsampleFactors, final Interval region )
+	{
+		if ( region == null )
+			return get( imgLoader, vid, downsampleFactors );
+
+		return get( imgLoader, vid, resolutionKey( downsampleFactors ) + REGION_SEPARATOR + regionKey( region ), new Callable< RandomAccessibleInterval< ? > >()
+		{
+			@Override
+			public RandomAccessibleInterval< ? > call() throws Exception
+			{
+				// shares the cache entry with the proxies that load this part for stitching
+				return new RAIProxy( imgLoader, vid, downsampleFactors, region );
+			}
+		});
+	}
+
+	/**
+	 * @param imgLoader - the imgloader
+	 * @param vid - the view
+	 * @return the (memoized) statistics of the lowest resolution of the view, null if they could not be computed
+	 */
+	public static ViewStatistics getAtLowestResolution( final BasicImgLoader imgLoader, final ViewId vid )
+	{
+		return get( imgLoader, vid, LOWEST_RESOLUTION, new Callable< RandomAccessibleInterval< ? > >()
+		{
+			@Override
+			public RandomAccessibleInterval< ? > call() throws Exception
+			{
+				if ( MultiResolutionImgLoader.class.isInstance( imgLoader ) )
+				{
+					final MultiResolutionSetupImgLoader< ? > setupImgLoader = ( (MultiResolutionImgLoader) imgLoader ).getSetupImgLoader( vid.getViewSetupId() );
+					return setupImgLoader.getImage( vid.getTimePointId(), setupImgLoader.getMipmapResolutions().length - 1 );
+				}
+				else
+				{
+					return imgLoader.getSetupImgLoader( vid.getViewSetupId() ).getImage( vid.getTimePointId() );
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return true if the statistics are computed (or loaded) already
+	 */
+	public static boolean isKnown( final BasicImgLoader imgLoader, final ViewId vid, final long[] downsampleFactors )
+	{
+		final Map< Key, Future< ViewStatistics > > statistics = memo.getIfPresent( imgLoader );
+		return statistics != null && statistics.containsKey( new Key( vid, resolutionKey( downsampleFactors ) ) );
+	}
+
+	protected static ViewStatistics get(
+			final BasicImgLoader imgLoader,
+			final ViewId vid,
+			final String resolution,
+			final Callable< RandomAccessibleInterval< ? > > open )
+	{
+		final Map< Key, Future< ViewStatistics > > statistics = statisticsOf( imgLoader );
+		final Key key = new Key( vid, resolution );
+
+		Future< ViewStatistics > future = statistics.get( key );
+		boolean computed = false;
+
+		if ( future == null )
+		{
+			final FutureTask< ViewStatistics > task = new FutureTask<>( new Callable< ViewStatistics >()
+			{
+				@Override
+				public ViewStatistics call() throws Exception
+				{
+					final ViewStatistics stats = compute( open.call() );
+
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Statistics of view " + Group.pvid( vid ) +
+							" (resolution " + resolution + "): mean=" + stats.mean + " min=" + stats.min + " max=" + stats.max );
+
+					return stats;
+				}
+			});
+
+			// only one thread computes, all others wait for the same result
+			future = statistics.putIfAbsent( key, task );
+
+			if ( future == null )
+			{
+				future = task;
+				computed = true;
+				task.run();
+			}
+		}
+
+		StitchingMetrics.increment( computed ? StitchingMetrics.STATISTICS_CACHE_MISSES : StitchingMetrics.STATISTICS_CACHE_HITS );
+
+		try
+		{
+			return future.get();
+		}
+		catch ( Exception e )
+		{
+			// do not memoize failures
+			statistics.remove( key, future );
+
+			IOFunctions.println( "Failed to compute statistics for view " + Group.pvid( vid ) + ": " + e );
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * compute the statistics of an image in parallel
+	 * 
+	 * @param img - the image
+	 * @return the statistics
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static ViewStatistics compute( final RandomAccessibleInterval img )
+	{
+		final IterableInterval< ? extends RealType< ? > > iterable = Views.iterable( (RandomAccessibleInterval< RealType >)img );
+		final Vector< ImagePortion > portions = FusionTools.divideIntoPortions( iterable.size() );
+
+		final ExecutorService service = sharedService();
+
+		try
+		{
+			// first pass: sum, min, max
+			final ArrayList< Callable< double[] > > tasks = new ArrayList<>();
+
+			for ( final ImagePortion portion : portions )
+			{
+				tasks.add( new Callable< double[] >()
+				{
+					@Override
+					public double[] call() throws Exception
+					{
+						final Cursor< ? extends RealType< ? > > c = iterable.cursor();
+						c.jumpFwd( portion.getStartPosition() );
+
+						final RealSum sum = new RealSum();
+						double min = Double.MAX_VALUE;
+						double max = -Double.MAX_VALUE;
+
+						for ( long j = 0; j < portion.getLoopSize(); ++j )
+						{
+							final double v = c.next().getRealDouble();
+							sum.add( v );
+							min = Math.min( min, v );
+							max = Math.max( max, v );
+						}
+
+						return new double[]{ sum.getSum(), min, max };
+					}
+				});
+			}
+
+			final RealSum sum = new RealSum();
+			double min = Double.MAX_VALUE;
+			double max = -Double.MAX_VALUE;
+
+			for ( final Future< double[] > future : service.invokeAll( tasks ) )
+			{
+				final double[] r = future.get();
+				sum.add( r[ 0 ] );
+				min = Math.min( min, r[ 1 ] );
+				max = Math.max( max, r[ 2 ] );
+			}
+
+			// second pass: histogram
+			final double minF = min;
+			final double scale = max > min ? numBins / ( max - min ) : 0;
+			final ArrayList< Callable< long[] > > histTasks = new ArrayList<>();
+
+			for ( final ImagePortion portion : portions )
+			{
+				histTasks.add( new Callable< long[] >()
+				{
+					@Override
+					public long[] call() throws Exception
+					{
+						final Cursor< ? extends RealType< ? > > c = iterable.cursor();
+						c.jumpFwd( portion.getStartPosition() );
+
+						final long[] hist = new long[ numBins ];
+
+						for ( long j = 0; j < portion.getLoopSize(); ++j )
+							++hist[ Math.min( numBins - 1, (int)( ( c.next().getRealDouble() - minF ) * scale ) ) ];
+
+						return hist;
+					}
+				});
+			}
+
+			final long[] histogram = new long[ numBins ];
+
+			for ( final Future< long[] > future : service.invokeAll( histTasks ) )
+			{
+				final long[] hist = future.get();
+				for ( int i = 0; i < numBins; ++i )
+					histogram[ i ] += hist[ i ];
+			}
+
+			return new ViewStatistics( iterable.size(), sum.getSum() / (double)iterable.size(), min, max, histogram );
+		}
+		catch ( Exception e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	/**
+	 * @return the executor all statistics are computed on, created once (daemon threads). It is not the one of
+	 * {@link DownsampleTools#sharedService()}, as computing statistics of a {@link RAIProxy} loads (and downsamples) the view.
+	 */
+	private static synchronized ExecutorService sharedService()
+	{
+		if ( sharedService == null )
+			sharedService = Executors.newFixedThreadPool( Threads.numThreads(), new ThreadFactory()
+			{
+				@Override
+				public Thread newThread( final Runnable r )
+				{
+					final Thread thread = new Thread( r, "ViewStatistics" );
+					thread.setDaemon( true );
+					return thread;
+				}
+			});
+
+		return sharedService;
+	}
+
+	/**
+	 * forget all statistics
+	 */
+	public static void clear()
+	{
+		memo.invalidateAll();
+	}
+
+	/**
+	 * forget the statistics of one imgloader (e.g. when its dataset is closed)
+	 */
+	public static void clear( final BasicImgLoader imgLoader )
+	{
+		memo.invalidate( imgLoader );
+	}
+
+	private static ConcurrentHashMap< Key, Future< ViewStatistics > > statisticsOf( final BasicImgLoader imgLoader )
+	{
+		try
+		{
+			return memo.get( imgLoader, new Callable< ConcurrentHashMap< Key, Future< ViewStatistics > > >()
+			{
+				@Override
+				public ConcurrentHashMap< Key, Future< ViewStatistics > > call()
+				{
+					return new ConcurrentHashMap<>();
+				}
+			});
+		}
+		catch ( ExecutionException e )
+		{
+			// creating an empty map does not fail
+			throw new RuntimeException( e );
+		}
+	}
+
+	/**
+	 * @param xml - the XML of the dataset
+	 * @return the file that stores the statistics of the dataset
+	 */
+	public static File getStatisticsFile( final String xml )
+	{
+		final String base = xml.toLowerCase().endsWith( ".xml" ) ? xml.substring( 0, xml.length() - 4 ) : xml;
+		return new File( base + ".statistics.csv" );
+	}
+
+	/**
+	 * save all computed statistics of an imgloader
+	 * 
+	 * @param file - the file to write
+	 * @param imgLoader - the imgloader of the dataset
+	 * @param sourceId - identifies the raw data the statistics belong to, see {@link SourceIdentity#of(String, BasicImgLoader)}
+	 * @return true if successful
+	 */
+	public static boolean save( final File file, final BasicImgLoader imgLoader, final String sourceId )
+	{
+		try ( final PrintWriter out = new PrintWriter( file ) )
+		{
+			out.println( SOURCE_PREFIX + sourceId );
+			out.println( "timepoint,setup,resolution,numPixels,mean,min,max,histogram" );
+
+			for ( final Map.Entry< Key, Future< ViewStatistics > > entry : statisticsOf( imgLoader ).entrySet() )
+			{
+				final Key key = entry.getKey();
+
+				// statistics of parts of views are only useful for the pairs of this session
+				if ( key.resolution.contains( REGION_SEPARATOR ) || !entry.getValue().isDone() )
+					continue;
+
+				final ViewStatistics stats;
+
+				try
+				{
+					stats = entry.getValue().get();
+				}
+				catch ( Exception e )
+				{
+					continue;
+				}
+
+				final StringBuilder hist = new StringBuilder();
+				for ( int i = 0; i < stats.histogram.length; ++i )
+					hist.append( i == 0 ? "" : " " ).append( stats.histogram[ i ] );
+
+				out.println(
+						key.vid.getTimePointId() + "," + key.vid.getViewSetupId() + "," + key.resolution + "," +
+						stats.numPixels + "," + stats.mean + "," + stats.min + "," + stats.max + "," + hist );
+			}
+
+			return true;
+		}
+		catch ( Exception e )
+		{
+			IOFunctions.println( "Failed to save view statistics to '" + file + "': " + e );
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * load statistics saved with {@link #save(File, BasicImgLoader, String)}, they are associated with the given imgloader.
+	 * Statistics that were saved for different raw data (or without identity) are ignored.
+	 * 
+	 * @param file - the file to read
+	 * @param imgLoader - the imgloader of the dataset
+	 * @param sourceId - identifies the current raw data, see {@link SourceIdentity#of(String, BasicImgLoader)}
+	 * @return true if successful
+	 */
+	public static boolean load( final File file, final BasicImgLoader imgLoader, final String sourceId )
+	{
+		try ( final BufferedReader in = new BufferedReader( new FileReader( file ) ) )
+		{
+			String line = in.readLine();
+
+			if ( line == null || !line.equals( SOURCE_PREFIX + sourceId ) )
+			{
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Ignoring statistics in '" + file + "', they were computed for different raw data." );
+				return false;
+			}
+
+			// header
+			line = in.readLine();
+			int count = 0;
+
+			final Map< Key, Future< ViewStatistics > > statistics = statisticsOf( imgLoader );
+
+			while ( ( line = in.readLine() ) != null )
+			{
+				line = line.trim();
+
+				if ( line.length() == 0 )
+					continue;
+
+				final String[] entries = line.split( "," );
+				final String[] histEntries = entries[ 7 ].trim().split( " " );
+
+				final long[] histogram = new long[ histEntries.length ];
+				for ( int i = 0; i < histogram.length; ++i )
+					histogram[ i ] = Long.parseLong( histEntries[ i ] );
+
+				final ViewStatistics stats = new ViewStatistics(
+						Long.parseLong( entries[ 3 ] ),
+						Double.parseDouble( entries[ 4 ] ),
+						Double.parseDouble( entries[ 5 ] ),
+						Double.parseDouble( entries[ 6 ] ),
+						histogram );
+
+				final FutureTask< ViewStatistics > done = new FutureTask<>( new Callable< ViewStatistics >()
+				{
+					@Override
+					public ViewStatistics call() { return stats; }
+				});
+				done.run();
+
+				final ViewId vid = new ViewId( Integer.parseInt( entries[ 0 ] ), Integer.parseInt( entries[ 1 ] ) );
+				statistics.put( new Key( vid, entries[ 2 ] ), done );
+				++count;
+			}
+
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Loaded statistics of " + count + " views from '" + file + "'." );
+
+			return true;
+		}
+		catch ( Exception e )
+		{
+			IOFunctions.println( "Failed to load view statistics from '" + file + "': " + e );
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	protected static String resolutionKey( final long[] downsampleFactors )
+	{
+		final StringBuilder s = new StringBuilder();
+		for ( int d = 0; d < downsampleFactors.length; ++d )
+			s.append( d == 0 ? "" : "x" ).append( downsampleFactors[ d ] );
+
+		return s.toString();
+	}
+
+	protected static String regionKey( final Interval region )
+	{
+		final StringBuilder s = new StringBuilder();
+		for ( int d = 0; d < region.numDimensions(); ++d )
+			s.append( d == 0 ? "" : "x" ).append( region.min( d ) );
+		s.append( '-' );
+		for ( int d = 0; d < region.numDimensions(); ++d )
+			s.append( d == 0 ? "" : "x" ).append( region.max( d ) );
+
+		return s.toString();
+	}
+
+	private static class Key
+	{
+		final ViewId vid;
+		final String resolution;
+
+		public Key( final ViewId vid, final String resolution )
+		{
+			this.vid = vid;
+			this.resolution = resolution;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Arrays.hashCode( new int[]{ vid.hashCode(), resolution.hashCode() } );
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof Key ) )
+				return false;
+
+			final Key other = (Key) obj;
+			return vid.equals( other.vid ) && resolution.equals( other.resolution );
+		}
+	}
+}
@@ -0,0 +1,636 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Pair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Global optimization of translations by solving the (weighted, sparse) normal equations directly instead of
+ * iterating the tile optimizer: for links (a,b) with shift t_ab and correlation r_ab we minimize
+ * sum r_ab * |x_b - x_a - t_ab|^2, i.e. solve L x = b with the weighted graph Laplacian L of the links.
+ * The system is solved with Jacobi-preconditioned conjugate gradients, fixed groups are eliminated.
+ * 
+ * Links are dropped like in {@link net.preibisch.mvrecon.process.interestpointregistration.global.GlobalOptIterative}
+ * (worst link first, as long as the average/maximal group errors exceed the thresholds). After dropping a link,
+ * the system is updated in place and the solver is warm-started from the previous solution, so every further
+ * round only needs a few iterations.
+ * 
+ * Groups that are not connected to a fixed group keep their mean position, optionally they are aligned
+ * to the rest using the overlap of their metadata bounding boxes (like the second round of
+ * {@link net.preibisch.mvrecon.process.interestpointregistration.global.GlobalOptTwoRound}).
+ */
+public class DirectTranslationGlobalOpt
+{
+	/**
+	 * no links are dropped if the maximal error is below this (see SimpleIterativeConvergenceStrategy)
+	 */
+	public static double minMaxError = 0.75;
+
+	/**
+	 * relative residual at which conjugate gradients stop
+	 */
+	public static double tolerance = 1e-10;
+
+	private static final int n = 3;
+
+	// groups (nodes) and the views they contain
+	private final List< Group< ViewId > > groups;
+	private final HashMap< ViewId, Integer > nodeOfView = new HashMap<>();
+	private final boolean[] fixed;
+
+	// links
+	private final ArrayList< Link > links = new ArrayList<>();
+	private final ArrayList< ArrayList< Link > > linksOfNode = new ArrayList<>();
+
+	// normal equations (updated when links are removed) and solution
+	private final double[] diag;
+	private final double[][] rhs;
+	private final double[][] x;
+
+	private int[] component;
+	private boolean[] anchored;
+
+	protected static class Link
+	{
+		final int a, b;
+		final double w;
+		final double[] t;
+		final Pair< Group< ViewId >, Group< ViewId > > pair;
+		boolean active = true;
+		double error;
+
+		Link( final int a, final int b, final double w, final double[] t, final Pair< Group< ViewId >, Group< ViewId > > pair )
+		{
+			this.a = a;
+			this.b = b;
+			this.w = w;
+			this.t = t;
+			this.pair = pair;
+		}
+
+		int other( final int node )
+		{
+			return node == a ? b : a;
+		}
+	}
+
+	public DirectTranslationGlobalOpt(
+			final Collection< ? extends Group< ViewId > > groups,
+			final Collection< ViewId > fixedViews,
+			final Collection< PairwiseStitchingResult< ViewId > > results )
+	{
+		this.groups = new ArrayList<>( groups );
+		this.fixed = new boolean[ this.groups.size() ];
+
+		for ( int i = 0; i < this.groups.size(); ++i )
+		{
+			for ( final ViewId v : this.groups.get( i ).getViews() )
+			{
+				nodeOfView.put( v, i );
+				if ( fixedViews.contains( v ) )
+					fixed[ i ] = true;
+			}
+			linksOfNode.add( new ArrayList<>() );
+		}
+
+		this.diag = new double[ this.groups.size() ];
+		this.rhs = new double[ this.groups.size() ][ n ];
+		this.x = new double[ this.groups.size() ][ n ];
+
+		for ( final PairwiseStitchingResult< ViewId > psr : results )
+		{
+			// like the tile optimizer, groups are identified by their first view
+			final Integer a = nodeOfView.get( psr.pair().getA().getViews().iterator().next() );
+			final Integer b = nodeOfView.get( psr.pair().getB().getViews().iterator().next() );
+
+			if ( a == null || b == null || a.intValue() == b.intValue() || psr.r() <= 0 )
+				continue;
+
+			final Link link = new Link( a, b, psr.r(), getTranslation( psr ), psr.pair() );
+			links.add( link );
+			linksOfNode.get( a ).add( link );
+			linksOfNode.get( b ).add( link );
+			addToSystem( link, 1 );
+		}
+	}
+
+	/**
+	 * solve (and drop links until the errors are acceptable)
+	 * 
+	 * @param relativeThreshold - drop links while max error &gt; relativeThreshold * average error
+	 * @param absoluteThreshold - drop links while average error &gt; absoluteThreshold
+	 * @param removeLinks - whether to drop links at all
+	 * @param boundingBoxes - metadata bounding boxes of the groups (same order as the groups) to align unconnected groups, may be null
+	 * @param removedInconsistentPairs - dropped links are added here
+	 * @return the translation of every view
+	 */
+	public HashMap< ViewId, AffineTransform3D > compute(
+			final double relativeThreshold,
+			final double absoluteThreshold,
+			final boolean removeLinks,
+			final List< ? extends RealInterval > boundingBoxes,
+			final Collection< Pair< Group< ViewId >, Group< ViewId > > > removedInconsistentPairs )
+	{
+		int round = 0;
+
+		while ( true )
+		{
+			updateComponents();
+			final int iterations = solve();
+			final double[] errors = updateErrors();
+
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Round " + ( round++ ) + ": " + iterations +
+					" CG iterations, avg error: " + errors[ 0 ] + ", max error: " + errors[ 1 ] );
+
+			if ( !removeLinks || isConverged( errors[ 0 ], errors[ 1 ], relativeThreshold, absoluteThreshold ) )
+				break;
+
+			final Link worst = worstRemovableLink();
+
+			if ( worst == null )
+			{
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): No link can be removed without disconnecting a group, stopping." );
+				break;
+			}
+
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Removing link " + Group.gvids( groups.get( worst.a ) ) +
+					" <> " + Group.gvids( groups.get( worst.b ) ) + " (error " + worst.error + ")" );
+
+			worst.active = false;
+			addToSystem( worst, -1 );
+			removedInconsistentPairs.add( worst.pair );
+		}
+
+		// unconnected groups keep their mean position in the first round
+		centerUnanchoredComponents();
+
+		if ( boundingBoxes != null )
+			alignComponents( boundingBoxes );
+
+		final HashMap< ViewId, AffineTransform3D > result = new HashMap<>();
+		for ( int i = 0; i < groups.size(); ++i )
+		{
+			final AffineTransform3D t = new AffineTransform3D();
+			t.setTranslation( x[ i ] );
+
+			for ( final ViewId v : groups.get( i ).getViews() )
+				result.put( v, t.copy() );
+		}
+
+		return result;
+	}
+
+	protected static boolean isConverged( final double avgError, final double maxError, final double relativeThreshold, final double absoluteThreshold )
+	{
+		return !( ( avgError * relativeThreshold < maxError && maxError > minMaxError ) || avgError > absoluteThreshold );
+	}
+
+	/**
+	 * translation of the result at the center of the overlap
+	 */
+	protected static double[] getTranslation( final PairwiseStitchingResult< ViewId > psr )
+	{
+		final double[] center = new double[ n ];
+		final double[] t = new double[ n ];
+
+		if ( psr.getBoundingBox() != null )
+			for ( int d = 0; d < n; ++d )
+				center[ d ] = ( psr.getBoundingBox().realMin( d ) + psr.getBoundingBox().realMax( d ) ) / 2;
+
+		psr.getTransform().apply( center, t );
+
+		for ( int d = 0; d < n; ++d )
+			t[ d ] -= center[ d ];
+
+		return t;
+	}
+
+	/**
+	 * add (sign = 1) or remove (sign = -1) a link from the normal equations
+	 */
+	protected void addToSystem( final Link link, final int sign )
+	{
+		diag[ link.a ] += sign * link.w;
+		diag[ link.b ] += sign * link.w;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			rhs[ link.a ][ d ] -= sign * link.w * link.t[ d ];
+			rhs[ link.b ][ d ] += sign * link.w * link.t[ d ];
+		}
+	}
+
+	/**
+	 * connected components of the active links, a component is anchored if it contains a fixed group
+	 */
+	protected void updateComponents()
+	{
+		component = new int[ groups.size() ];
+		Arrays.fill( component, -1 );
+
+		final ArrayList< Boolean > anchoredList = new ArrayList<>();
+		final int[] stack = new int[ groups.size() ];
+
+		for ( int i = 0; i < groups.size(); ++i )
+		{
+			if ( component[ i ] >= 0 )
+				continue;
+
+			final int c = anchoredList.size();
+			boolean isAnchored = false;
+			int size = 0;
+
+			stack[ size++ ] = i;
+			component[ i ] = c;
+
+			while ( size > 0 )
+			{
+				final int node = stack[ --size ];
+				isAnchored |= fixed[ node ];
+
+				for ( final Link link : linksOfNode.get( node ) )
+				{
+					final int other = link.other( node );
+					if ( link.active && component[ other ] < 0 )
+					{
+						component[ other ] = c;
+						stack[ size++ ] = other;
+					}
+				}
+			}
+
+			anchoredList.add( isAnchored );
+		}
+
+		anchored = new boolean[ anchoredList.size() ];
+		for ( int c = 0; c < anchored.length; ++c )
+			anchored[ c ] = anchoredList.get( c );
+	}
+
+	/**
+	 * the nodes that are kept at their position when solving: fixed groups and the first group of unanchored components
+	 */
+	private boolean[] pinnedNodes()
+	{
+		final boolean[] pinned = fixed.clone();
+		final boolean[] hasPin = anchored.clone();
+
+		for ( int i = 0; i < groups.size(); ++i )
+			if ( !hasPin[ component[ i ] ] )
+			{
+				pinned[ i ] = true;
+				hasPin[ component[ i ] ] = true;
+			}
+
+		return pinned;
+	}
+
+	/**
+	 * Jacobi-preconditioned conjugate gradients for all dimensions at once, starting from the current solution
+	 * @return number of iterations
+	 */
+	protected int solve()
+	{
+		final int m = groups.size();
+		final boolean[] pinned = pinnedNodes();
+
+		// pinned groups stay at 0, the equations of their neighbors do not depend on them then
+		for ( int i = 0; i < m; ++i )
+			if ( pinned[ i ] )
+				Arrays.fill( x[ i ], 0 );
+
+		final double[][] r = new double[ m ][ n ];
+		final double[][] z = new double[ m ][ n ];
+		final double[][] p = new double[ m ][ n ];
+		final double[][] q = new double[ m ][ n ];
+
+		// r = b - Ax
+		multiply( x, r, pinned );
+		double normB = 0;
+		for ( int i = 0; i < m; ++i )
+			for ( int d = 0; d < n; ++d )
+			{
+				r[ i ][ d ] = pinned[ i ] ? 0 : rhs[ i ][ d ] - r[ i ][ d ];
+				normB += pinned[ i ] ? 0 : rhs[ i ][ d ] * rhs[ i ][ d ];
+			}
+
+		final double[] rz = new double[ n ];
+		precondition( r, z, pinned );
+		for ( int i = 0; i < m; ++i )
+			for ( int d = 0; d < n; ++d )
+			{
+				p[ i ][ d ] = z[ i ][ d ];
+				rz[ d ] += r[ i ][ d ] * z[ i ][ d ];
+			}
+
+		final double stop = tolerance * tolerance * Math.max( normB, 1e-30 );
+		final int maxIterations = Math.max( 100, 10 * m );
+		int it = 0;
+
+		for ( ; it < maxIterations; ++it )
+		{
+			double normR = 0;
+			for ( int i = 0; i < m; ++i )
+				for ( int d = 0; d < n; ++d )
+					normR += r[ i ][ d ] * r[ i ][ d ];
+
+			if ( normR <= stop )
+				break;
+
+			multiply( p, q, pinned );
+
+			final double[] alpha = new double[ n ];
+			for ( int d = 0; d < n; ++d )
+			{
+				double pq = 0;
+				for ( int i = 0; i < m; ++i )
+					pq += p[ i ][ d ] * q[ i ][ d ];
+				alpha[ d ] = pq == 0 ? 0 : rz[ d ] / pq;
+			}
+
+			for ( int i = 0; i < m; ++i )
+				for ( int d = 0; d < n; ++d )
+				{
+					x[ i ][ d ] += alpha[ d ] * p[ i ][ d ];
+					r[ i ][ d ] -= alpha[ d ] * q[ i ][ d ];
+				}
+
+			precondition( r, z, pinned );
+
+			for ( int d = 0; d < n; ++d )
+			{
+				double rzNew = 0;
+				for ( int i = 0; i < m; ++i )
+					rzNew += r[ i ][ d ] * z[ i ][ d ];
+
+				final double beta = rz[ d ] == 0 ? 0 : rzNew / rz[ d ];
+				rz[ d ] = rzNew;
+
+				for ( int i = 0; i < m; ++i )
+					p[ i ][ d ] = z[ i ][ d ] + beta * p[ i ][ d ];
+			}
+		}
+
+		return it;
+	}
+
+	/**
+	 * out = L * in, restricted to the nodes that are not pinned (pinned nodes are treated as 0)
+	 */
+	private void multiply( final double[][] in, final double[][] out, final boolean[] pinned )
+	{
+		for ( int i = 0; i < out.length; ++i )
+			for ( int d = 0; d < n; ++d )
+				out[ i ][ d ] = pinned[ i ] ? 0 : diag[ i ] * in[ i ][ d ];
+
+		for ( final Link link : links )
+		{
+			if ( !link.active )
+				continue;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				if ( !pinned[ link.a ] && !pinned[ link.b ] )
+				{
+					out[ link.a ][ d ] -= link.w * in[ link.b ][ d ];
+					out[ link.b ][ d ] -= link.w * in[ link.a ][ d ];
+				}
+			}
+		}
+	}
+
+	private void precondition( final double[][] r, final double[][] z, final boolean[] pinned )
+	{
+		for ( int i = 0; i < r.length; ++i )
+			for ( int d = 0; d < n; ++d )
+				z[ i ][ d ] = pinned[ i ] || diag[ i ] <= 0 ? 0 : r[ i ][ d ] / diag[ i ];
+	}
+
+	/**
+	 * update the residual of every active link and return the average and maximal group error,
+	 * the error of a group being the weighted mean residual of its links (as in the tile optimizer)
+	 */
+	protected double[] updateErrors()
+	{
+		for ( final Link link : links )
+		{
+			if ( !link.active )
+				continue;
+
+			double sq = 0;
+			for ( int d = 0; d < n; ++d )
+			{
+				final double res = x[ link.b ][ d ] - x[ link.a ][ d ] - link.t[ d ];
+				sq += res * res;
+			}
+			link.error = Math.sqrt( sq );
+		}
+
+		double sum = 0, max = 0;
+		int count = 0;
+
+		for ( int i = 0; i < groups.size(); ++i )
+		{
+			double sumW = 0, sumE = 0;
+			for ( final Link link : linksOfNode.get( i ) )
+				if ( link.active )
+				{
+					sumW += link.w;
+					sumE += link.w * link.error;
+				}
+
+			if ( sumW > 0 )
+			{
+				final double e = sumE / sumW;
+				sum += e;
+				max = Math.max( max, e );
+				++count;
+			}
+		}
+
+		return new double[]{ count == 0 ? 0 : sum / count, max };
+	}
+
+	/**
+	 * the link with the largest residual that does not leave a group without links
+	 */
+	protected Link worstRemovableLink()
+	{
+		Link worst = null;
+
+		for ( final Link link : links )
+			if ( link.active && ( worst == null || link.error > worst.error ) &&
+					numActiveLinks( link.a ) > 1 && numActiveLinks( link.b ) > 1 )
+				worst = link;
+
+		return worst;
+	}
+
+	private int numActiveLinks( final int node )
+	{
+		int count = 0;
+		for ( final Link link : linksOfNode.get( node ) )
+			if ( link.active )
+				++count;
+		return count;
+	}
+
+	private void centerUnanchoredComponents()
+	{
+		final HashMap< Integer, double[] > sums = new HashMap<>();
+		final HashMap< Integer, Integer > counts = new HashMap<>();
+
+		for ( int i = 0; i < groups.size(); ++i )
+		{
+			final int c = component[ i ];
+			if ( anchored[ c ] )
+				continue;
+
+			final double[] sum = sums.computeIfAbsent( c, k -> new double[ n ] );
+			for ( int d = 0; d < n; ++d )
+				sum[ d ] += x[ i ][ d ];
+			counts.merge( c, 1, Integer::sum );
+		}
+
+		for ( int i = 0; i < groups.size(); ++i )
+		{
+			final int c = component[ i ];
+			if ( !anchored[ c ] )
+				for ( int d = 0; d < n; ++d )
+					x[ i ][ d ] -= sums.get( c )[ d ] / counts.get( c );
+		}
+	}
+
+	/**
+	 * second round: move every unanchored component as a whole, such that overlapping groups
+	 * (according to the metadata) of different components keep their metadata offset
+	 */
+	protected void alignComponents( final List< ? extends RealInterval > boundingBoxes )
+	{
+		boolean allAnchored = true;
+		for ( final boolean a : anchored )
+			allAnchored &= a;
+
+		if ( allAnchored )
+			return;
+
+		// components become the groups of a second system with weak links (weight 1)
+		final ArrayList< Group< ViewId > > componentGroups = new ArrayList<>();
+		final ArrayList< ViewId > fixedComponents = new ArrayList<>();
+		for ( int c = 0; c < anchored.length; ++c )
+		{
+			final ViewId dummy = new ViewId( -1, c );
+			final Group< ViewId > group = new Group<>( dummy );
+			componentGroups.add( group );
+			if ( anchored[ c ] )
+				fixedComponents.add( dummy );
+		}
+
+		final DirectTranslationGlobalOpt second = new DirectTranslationGlobalOpt( componentGroups, fixedComponents, new ArrayList<>() );
+		int numWeakLinks = 0;
+
+		for ( int i = 0; i < groups.size(); ++i )
+		{
+			if ( anchored[ component[ i ] ] || boundingBoxes.get( i ) == null )
+				continue;
+
+			for ( int j = 0; j < groups.size(); ++j )
+			{
+				if ( component[ j ] == component[ i ] || boundingBoxes.get( j ) == null || ( !anchored[ component[ j ] ] && j < i ) )
+					continue;
+
+				if ( !overlaps( boundingBoxes.get( i ), boundingBoxes.get( j ) ) )
+					continue;
+
+				// c_i - c_j = x_j - x_i
+				final double[] t = new double[ n ];
+				for ( int d = 0; d < n; ++d )
+					t[ d ] = x[ j ][ d ] - x[ i ][ d ];
+
+				final Link link = new Link( component[ j ], component[ i ], 1.0, t, null );
+				second.links.add( link );
+				second.linksOfNode.get( link.a ).add( link );
+				second.linksOfNode.get( link.b ).add( link );
+				second.addToSystem( link, 1 );
+				++numWeakLinks;
+			}
+		}
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Aligning " + anchored.length + " components using " + numWeakLinks + " metadata links." );
+
+		second.compute( 0, 0, false, null, null );
+
+		for ( int i = 0; i < groups.size(); ++i )
+			for ( int d = 0; d < n; ++d )
+				x[ i ][ d ] += second.x[ component[ i ] ][ d ];
+	}
+
+	private static boolean overlaps( final RealInterval a, final RealInterval b )
+	{
+		for ( int d = 0; d < a.numDimensions(); ++d )
+			if ( a.realMax( d ) <= b.realMin( d ) || b.realMax( d ) <= a.realMin( d ) )
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return the translation of every view in the given groups (see {@link #compute})
+	 */
+	public static HashMap< ViewId, AffineTransform3D > compute(
+			final Collection< PairwiseStitchingResult< ViewId > > results,
+			final Collection< ? extends Group< ViewId > > groups,
+			final Collection< ViewId > fixedViews,
+			final double relativeThreshold,
+			final double absoluteThreshold,
+			final boolean removeLinks,
+			final Map< ? extends Group< ViewId >, ? extends RealInterval > boundingBoxes,
+			final Collection< Pair< Group< ViewId >, Group< ViewId > > > removedInconsistentPairs )
+	{
+		final DirectTranslationGlobalOpt opt = new DirectTranslationGlobalOpt( groups, fixedViews, results );
+
+		final List< RealInterval > bbs;
+		if ( boundingBoxes == null )
+			bbs = null;
+		else
+		{
+			bbs = new ArrayList<>();
+			for ( final Group< ViewId > group : opt.groups )
+				bbs.add( boundingBoxes.get( group ) );
+		}
+
+		return opt.compute( relativeThreshold, absoluteThreshold, removeLinks, bbs, removedInconsistentPairs );
+	}
+}
@@ -23,10 +23,15 @@ import mpicbg.spim.data.registration.ViewRegistration;
 import mpicbg.spim.data.registration.ViewTransform;
 import mpicbg.spim.data.registration.ViewTransformAffine;
 import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.util.Pair;
+import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
 import net.preibisch.mvrecon.fiji.plugin.resave.PluginHelper;
 import net.preibisch.mvrecon.fiji.plugin.util.GUIHelper;
@@ -166,7 +171,30 @@ public class GlobalOptStitcher
 				continue;
 			}
 
-			if ( params.method == GlobalOptType.TWO_ROUND )
+			if ( params.useDirectSolver )
+			{
+				// translations only, solve the normal equations directly (second round: align unconnected groups by metadata overlap)
+				final HashMap< ViewId, AffineTransform3D > globalOptResults = DirectTranslationGlobalOpt.compute(
+						results,
+						subset.getGroups(),
+						fixed,
+						params.relativeThreshold,
+						params.absoluteThreshold,
+						params.method != GlobalOptType.SIMPLE,
+						params.method == GlobalOptType.TWO_ROUND ? getBoundingBoxes( data, subset.getGroups() ) : null,
+						removedInconsistentPairs );
+
+				globalOptResults.forEach( (k, v) -> {
+
+					final ViewRegistration vr = data.getViewRegistrations().getViewRegistration( k );
+
+					final ViewTransform vt = new ViewTransformAffine( "Stitching Transform", v );
+					vr.preconcatenateTransform( vt );
+					vr.updateModel();
+
+				} );
+			}
+			else if ( params.method == GlobalOptType.TWO_ROUND )
 			{
 				HashMap< ViewId, AffineTransform3D > globalOptResults = GlobalOptTwoRound.compute(
 						new TranslationModel3D(),
@@ -250,6 +278,54 @@ public class GlobalOptStitcher
 		return true;
 	}
 
+	/**
+	 * @return the bounding box (in global coordinates, from the current registrations) of each group
+	 */
+	private static Map< Group< ViewId >, RealInterval > getBoundingBoxes( final SpimData2 data, final Collection< ? extends Group< ViewId > > groups )
+	{
+		final Map< Group< ViewId >, RealInterval > boundingBoxes = new HashMap<>();
+
+		for ( final Group< ViewId > group : groups )
+		{
+			final double[] min = Util.getArrayFromValue( Double.POSITIVE_INFINITY, 3 );
+			final double[] max = Util.getArrayFromValue( Double.NEGATIVE_INFINITY, 3 );
+			boolean any = false;
+
+			for ( final ViewId v : group.getViews() )
+			{
+				final ViewDescription vd = data.getSequenceDescription().getViewDescription( v );
+
+				if ( vd == null || !vd.isPresent() || vd.getViewSetup().getSize() == null )
+					continue;
+
+				final Dimensions size = vd.getViewSetup().getSize();
+				final AffineTransform3D model = data.getViewRegistrations().getViewRegistration( v ).getModel();
+
+				// all corners of the view
+				for ( int i = 0; i < 8; ++i )
+				{
+					final double[] p = new double[ 3 ];
+					for ( int d = 0; d < 3; ++d )
+						p[ d ] = ( i >> d & 1 ) == 0 ? 0 : size.dimension( d ) - 1;
+
+					model.apply( p, p );
+
+					for ( int d = 0; d < 3; ++d )
+					{
+						min[ d ] = Math.min( min[ d ], p[ d ] );
+						max[ d ] = Math.max( max[ d ], p[ d ] );
+					}
+				}
+				any = true;
+			}
+
+			if ( any )
+				boundingBoxes.put( group, new FinalRealInterval( min, max ) );
+		}
+
+		return boundingBoxes;
+	}
+
 	public static <V extends ViewId> Collection<? extends Collection<V> > askForFixedViews(ArrayList<? extends Subset< V > > subsets)
 	{
 		final ArrayList< Collection<V> > res = new ArrayList<>();
@@ -33,6 +33,8 @@ public class GlobalOptimizationParameters
 
 	public static int defaultSimple = 3;
 
+	public static boolean defaultDirectSolver = false;
+
 	public enum GlobalOptType
 	{
 		SIMPLE,
@@ -60,6 +62,9 @@ public class GlobalOptimizationParameters
 	public double absoluteThreshold;
 	public boolean showExpertGrouping;
 
+	// solve translations directly (see DirectTranslationGlobalOpt) instead of with the iterative tile optimizer
+	public boolean useDirectSolver = defaultDirectSolver;
+
 	public GlobalOptimizationParameters()
 	{
 		this( defaultRelativeError, defaultAbsoluteError, GlobalOptType.TWO_ROUND, false );
@@ -110,6 +115,7 @@ public class GlobalOptimizationParameters
 		gd.addNumericField( "absolute error threshold", 3.5, 3 );
 		if (askForGrouping )
 			gd.addCheckbox( "show_expert_grouping_options", defaultExpertGrouping );
+		gd.addCheckbox( "use_direct_solver_(translations_only)", defaultDirectSolver );
 		gd.showDialog();
 
 		if (gd.wasCanceled())
@@ -119,6 +125,7 @@ public class GlobalOptimizationParameters
 		final double absTh = gd.getNextNumber();
 		final int methodIdx = defaultGlobalOpt = gd.getNextChoiceIndex();
 		final boolean expertGrouping = askForGrouping ? gd.getNextBoolean() : false;
+		final boolean directSolver = defaultDirectSolver = gd.getNextBoolean();
 
 		final GlobalOptType method;
 		if (methodIdx == 0)
@@ -128,6 +135,8 @@ public class GlobalOptimizationParameters
 		else
 			method = GlobalOptType.TWO_ROUND;
 
-		return new GlobalOptimizationParameters(relTh, absTh, method, expertGrouping);
+		final GlobalOptimizationParameters params = new GlobalOptimizationParameters(relTh, absTh, method, expertGrouping);
+		params.useDirectSolver = directSolver;
+		return params;
 	}
 }
@@ -0,0 +1,285 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Append-only journal of computed pairwise results, so an interrupted run can be resumed without recomputing
+ * finished pairs. Every result is written as one line and synced to disk immediately, a partially written last
+ * line (e.g. if the process was killed) is ignored when reading. A journaled result is only reused if the
+ * registrations of the two groups still have the same hash ({@link PairwiseStitchingResult#calculateHash}).
+ * 
+ * Line format: groupA;groupB;hash;r;transform (12 values);bounding box min;bounding box max, where a group
+ * is a list of timepoint:setup and all lists are comma-separated.
+ */
+public class PairwiseResultJournal
+{
+	private final File file;
+	private final Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > journaled;
+	private FileOutputStream stream;
+	private Writer writer;
+
+	/**
+	 * open a journal, reading all results that are already in it
+	 * @param file - the journal file, created if it does not exist
+	 */
+	public PairwiseResultJournal( final File file ) throws IOException
+	{
+		this.file = file;
+		this.journaled = new HashMap<>();
+
+		if ( file.exists() )
+			read();
+
+		this.stream = new FileOutputStream( file, true );
+		this.writer = new OutputStreamWriter( stream, StandardCharsets.UTF_8 );
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	public int size()
+	{
+		synchronized ( journaled )
+		{
+			return journaled.size();
+		}
+	}
+
+	/**
+	 * @return the journaled result for the pair (in either direction) if the registrations did not change since, otherwise null
+	 */
+	public < V extends ViewId > PairwiseStitchingResult< ViewId > get( final Pair< Group< V >, Group< V > > pair, final ViewRegistrations vrs )
+	{
+		final Group< ViewId > groupA = new Group<>( new ArrayList< ViewId >( pair.getA().getViews() ) );
+		final Group< ViewId > groupB = new Group<>( new ArrayList< ViewId >( pair.getB().getViews() ) );
+
+		final PairwiseStitchingResult< ViewId > psr;
+
+		synchronized ( journaled )
+		{
+			final PairwiseStitchingResult< ViewId > forward = journaled.get( new ValuePair<>( groupA, groupB ) );
+			psr = forward != null ? forward : journaled.get( new ValuePair<>( groupB, groupA ) );
+		}
+
+		if ( psr == null )
+			return null;
+
+		final double hash = PairwiseStitchingResult.calculateHash(
+				vrs.getViewRegistration( psr.pair().getA().getViews().iterator().next() ),
+				vrs.getViewRegistration( psr.pair().getB().getViews().iterator().next() ) );
+
+		return hash == psr.getHash() ? psr : null;
+	}
+
+	/**
+	 * append a result and sync it to disk (thread-safe)
+	 * @return true if the result is on disk
+	 */
+	public synchronized boolean append( final PairwiseStitchingResult< ViewId > psr )
+	{
+		try
+		{
+			writer.write( toLine( psr ) );
+			writer.write( '\n' );
+			writer.flush();
+			stream.getFD().sync();
+
+			synchronized ( journaled )
+			{
+				journaled.put( psr.pair(), psr );
+			}
+
+			return true;
+		}
+		catch ( IOException e )
+		{
+			IOFunctions.println( "Failed to write pairwise result to journal '" + file + "': " + e );
+			return false;
+		}
+	}
+
+	public synchronized void close()
+	{
+		try
+		{
+			writer.close();
+		}
+		catch ( IOException e )
+		{
+			IOFunctions.println( "Failed to close journal '" + file + "': " + e );
+		}
+	}
+
+	private void read() throws IOException
+	{
+		int lineNo = 0, skipped = 0;
+
+		try ( final BufferedReader in = new BufferedReader( new FileReader( file ) ) )
+		{
+			String line;
+			while ( ( line = in.readLine() ) != null )
+			{
+				++lineNo;
+
+				if ( line.trim().length() == 0 )
+					continue;
+
+				try
+				{
+					final PairwiseStitchingResult< ViewId > psr = fromLine( line );
+					journaled.put( psr.pair(), psr );
+				}
+				catch ( Exception e )
+				{
+					// incomplete line of an interrupted write
+					++skipped;
+				}
+			}
+		}
+
+		IOFunctions.println( "Read " + journaled.size() + " pairwise results from journal '" + file + "'" +
+				( skipped > 0 ? ", skipped " + skipped + " of " + lineNo + " incomplete lines." : "." ) );
+	}
+
+	protected static String toLine( final PairwiseStitchingResult< ViewId > psr )
+	{
+		final StringBuilder s = new StringBuilder();
+
+		s.append( groupToString( psr.pair().getA() ) ).append( ';' );
+		s.append( groupToString( psr.pair().getB() ) ).append( ';' );
+		s.append( psr.getHash() ).append( ';' );
+		s.append( psr.r() ).append( ';' );
+
+		final AffineGet t = psr.getTransform();
+		final int n = t.numDimensions();
+		for ( int r = 0; r < n; ++r )
+			for ( int c = 0; c <= n; ++c )
+				s.append( t.get( r, c ) ).append( r == n - 1 && c == n ? ';' : ',' );
+
+		final RealInterval bb = psr.getBoundingBox();
+		if ( bb == null )
+			s.append( "null;null" );
+		else
+		{
+			for ( int d = 0; d < bb.numDimensions(); ++d )
+				s.append( bb.realMin( d ) ).append( d == bb.numDimensions() - 1 ? ';' : ',' );
+			for ( int d = 0; d < bb.numDimensions(); ++d )
+				s.append( bb.realMax( d ) ).append( d == bb.numDimensions() - 1 ? "" : "," );
+		}
+
+		// the length up to and including the last ';' (the receiver is appended before its argument is evaluated)
+		// makes sure a line that was cut off is not parsed as a valid (but wrong) result
+		s.append( ';' ).append( s.length() );
+
+		return s.toString();
+	}
+
+	protected static PairwiseStitchingResult< ViewId > fromLine( final String line )
+	{
+		final String[] entries = line.split( ";" );
+
+		if ( entries.length != 8 || Integer.parseInt( entries[ 7 ] ) != line.lastIndexOf( ';' ) + 1 )
+			throw new IllegalArgumentException( "incomplete line" );
+
+		final Group< ViewId > groupA = groupFromString( entries[ 0 ] );
+		final Group< ViewId > groupB = groupFromString( entries[ 1 ] );
+		final double hash = Double.parseDouble( entries[ 2 ] );
+		final double r = Double.parseDouble( entries[ 3 ] );
+
+		final double[] m = parseDoubles( entries[ 4 ] );
+		if ( m.length != 12 )
+			throw new IllegalArgumentException( "expected 12 transform values, got " + m.length );
+
+		final AffineTransform3D transform = new AffineTransform3D();
+		transform.set( m );
+
+		final RealInterval bb;
+		if ( entries[ 5 ].equals( "null" ) )
+			bb = null;
+		else
+			bb = new FinalRealInterval( parseDoubles( entries[ 5 ] ), parseDoubles( entries[ 6 ] ) );
+
+		return new PairwiseStitchingResult<>( new ValuePair<>( groupA, groupB ), bb, transform, r, hash );
+	}
+
+	private static String groupToString( final Group< ViewId > group )
+	{
+		final List< ViewId > views = new ArrayList<>( group.getViews() );
+		Collections.sort( views );
+
+		final StringBuilder s = new StringBuilder();
+		for ( int i = 0; i < views.size(); ++i )
+			s.append( i == 0 ? "" : "," ).append( views.get( i ).getTimePointId() ).append( ':' ).append( views.get( i ).getViewSetupId() );
+
+		return s.toString();
+	}
+
+	private static Group< ViewId > groupFromString( final String s )
+	{
+		final ArrayList< ViewId > views = new ArrayList<>();
+
+		for ( final String view : s.split( "," ) )
+		{
+			final String[] tpSetup = view.split( ":" );
+			views.add( new ViewId( Integer.parseInt( tpSetup[ 0 ] ), Integer.parseInt( tpSetup[ 1 ] ) ) );
+		}
+
+		return new Group<>( views );
+	}
+
+	private static double[] parseDoubles( final String s )
+	{
+		final String[] entries = s.split( "," );
+		final double[] values = new double[ entries.length ];
+		for ( int i = 0; i < entries.length; ++i )
+			values[ i ] = Double.parseDouble( entries[ i ] );
+		return values;
+	}
+}
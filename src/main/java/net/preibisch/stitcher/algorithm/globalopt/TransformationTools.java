@@ -26,12 +26,17 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import bdv.export.ProgressWriter;
@@ -46,6 +51,8 @@ import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.SequenceDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealInterval;
 import net.imglib2.realtransform.AffineGet;
@@ -66,10 +73,12 @@ import net.preibisch.mvrecon.process.interestpointregistration.global.GlobalOpt;
 import net.preibisch.mvrecon.process.interestpointregistration.global.convergence.ConvergenceStrategy;
 import net.preibisch.mvrecon.process.interestpointregistration.global.pointmatchcreating.strong.ImageCorrelationPointMatchCreator;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.DownsampleTools;
 import net.preibisch.stitcher.algorithm.GroupedViewAggregator;
 import net.preibisch.stitcher.algorithm.GroupedViewAggregator.ActionType;
 import net.preibisch.stitcher.algorithm.PairwiseStitching;
 import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
+import net.preibisch.stitcher.algorithm.StitchingMetrics;
 import net.preibisch.stitcher.algorithm.TransformTools;
 import net.preibisch.stitcher.algorithm.lucaskanade.LucasKanadeParameters;
 import net.preibisch.stitcher.gui.popup.DisplayOverlapTestPopup;
@@ -114,15 +123,19 @@ public class TransformationTools
 				wrp.add( v );
 				return wrp;} ).collect( Collectors.toList() );
 
-			// open all of them "virtually fused"
+			// fuse all of them (blockwise, in parallel)
 			List< RandomAccessibleInterval< FloatType > > openFused = 
-					DisplayOverlapTestPopup.openVirtuallyFused( sd, vrs, wrapped, bbOverlap, downsampleDbl );
+					DisplayOverlapTestPopup.openFusedMaterialized( sd, vrs, wrapped, bbOverlap, downsampleDbl, service );
+
+			if ( openFused == null )
+				return null;
 
 			// aggregate the group into one image
 			RandomAccessibleInterval< FloatType > raiI = gva.aggregate( 
 					openFused, 
 					tileViews,
-					sd );
+					sd,
+					service );
 
 			raiOverlaps.add(raiI);
 		}
@@ -132,12 +145,16 @@ public class TransformationTools
 		final RandomAccessibleInterval< FloatType > img2 = raiOverlaps.get(1);
 		
 		// compute phase correlation shift (passing (0,0,..) translations prevents any overlap correction inside)
+		// the images are fused in global coordinates, so the expected shift just has to be downsampled
+		final AffineTransform3D identity = new AffineTransform3D();
 		final Pair< Translation, Double > result = PairwiseStitching.getShift(
 				img1,
 				img2,
 				new Translation( img1.numDimensions() ),
 				new Translation( img1.numDimensions() ),
 				params,
+				getMaxShiftInPixels( params, identity, downsampleFactors ),
+				getMaxShiftMagnitudeInPixels( params, identity, downsampleFactors ),
 				service );
 
 		if (result == null)
@@ -189,15 +206,19 @@ public class TransformationTools
 				wrp.add( v );
 				return wrp;} ).collect( Collectors.toList() );
 
-			// open all of them "virtually fused"
+			// fuse all of them (blockwise, in parallel)
 			List< RandomAccessibleInterval< FloatType > > openFused = 
-					DisplayOverlapTestPopup.openVirtuallyFused( sd, vrs, wrapped, bbOverlap, downsampleDbl );
+					DisplayOverlapTestPopup.openFusedMaterialized( sd, vrs, wrapped, bbOverlap, downsampleDbl, service );
+
+			if ( openFused == null )
+				return null;
 
 			// aggregate the group into one image
 			RandomAccessibleInterval< FloatType > raiI = gva.aggregate( 
 					openFused, 
 					tileViews,
-					sd );
+					sd,
+					service );
 
 			raiOverlaps.add(raiI);
 		}
@@ -244,6 +265,23 @@ public class TransformationTools
 			final long[] downsampleFactors,
 			final ExecutorService service )
 	{
+		return computeStitching( viewIdsA, viewIdsB, vrs, params, sd, gva, downsampleFactors, null, service );
+	}
+
+	/**
+	 * @param warmStart - a result (global coordinates, as returned) to verify first, e.g. of the same pair at the previous timepoint, may be null
+	 */
+	public static < T extends RealType< T > > Pair<Pair< AffineGet, Double >, RealInterval> computeStitching(
+			final Group<? extends ViewId> viewIdsA,
+			final Group<? extends ViewId> viewIdsB,
+			final ViewRegistrations vrs,
+			final PairwiseStitchingParameters params,
+			final AbstractSequenceDescription< ?,? extends BasicViewDescription<?>, ? > sd,
+			final GroupedViewAggregator gva,
+			final long[] downsampleFactors,
+			final AffineGet warmStart,
+			final ExecutorService service )
+	{
 		
 		// the transformation that maps the downsampled image coordinates back to the original input(!) image space
 		final AffineTransform3D dsCorrectionT1 = new AffineTransform3D();
@@ -260,9 +298,13 @@ public class TransformationTools
 		if (bbOverlap == null)
 			return null;
 
+		// the parts of the groups the phase correlation will look at, if we know them from the metadata
+		final Pair< Interval, Interval > regions = params.useWholeImage || !params.loadOverlapOnly ? null :
+				getOverlapRegions( viewIdsA, viewIdsB, vrs, sd, downsampleFactors );
+
 		// get one image per group
-		final RandomAccessibleInterval<T> img1 = gva.aggregate( viewIdsA, sd, downsampleFactors, dsCorrectionT1 );	
-		final RandomAccessibleInterval<T> img2 = gva.aggregate( viewIdsB, sd, downsampleFactors, dsCorrectionT2 );
+		final RandomAccessibleInterval<T> img1 = gva.aggregate( viewIdsA, sd, downsampleFactors, dsCorrectionT1, regions == null ? null : regions.getA(), service );
+		final RandomAccessibleInterval<T> img2 = gva.aggregate( viewIdsB, sd, downsampleFactors, dsCorrectionT2, regions == null ? null : regions.getB(), service );
 
 		if (img1 == null || img2 == null)
 		{
@@ -278,7 +320,13 @@ public class TransformationTools
 		Pair< AffineGet, TranslationGet > t1 = TransformTools.getInitialTransforms( vrs.getViewRegistration(viewIdsA.iterator().next()), is2d, dsCorrectionT1 );
 		Pair< AffineGet, TranslationGet > t2 = TransformTools.getInitialTransforms( vrs.getViewRegistration(viewIdsB.iterator().next()), is2d, dsCorrectionT2 );
 
-		final Pair< Translation, Double > result  = PairwiseStitching.getShift( img1, img2, t1.getB(), t2.getB(), params, service );
+		// the expected shift is given in global coordinates
+		final AffineGet modelB = vrs.getViewRegistration( viewIdsB.iterator().next() ).getModel();
+		final Pair< Translation, Double > result  = PairwiseStitching.getShift( img1, img2, t1.getB(), t2.getB(), params,
+				getMaxShiftInPixels( params, modelB, downsampleFactors ),
+				getMaxShiftMagnitudeInPixels( params, modelB, downsampleFactors ),
+				warmStart == null ? null : getShiftInPixels( warmStart, modelB, downsampleFactors ),
+				service );
 
 		if (result == null)
 			return null;
@@ -304,6 +352,188 @@ public class TransformationTools
 		return new ValuePair<>( new ValuePair<>( resTransform, result.getB() ), bbOverlap );
 	}
 	
+	/**
+	 * convert a result of {@link #computeStitching(Group, Group, ViewRegistrations, PairwiseStitchingParameters, AbstractSequenceDescription, GroupedViewAggregator, long[], ExecutorService)}
+	 * back to the shift in (downsampled) pixels, R = V^-1 * R' * V (inverse of the conversion to global coordinates)
+	 * @param result the result in global coordinates
+	 * @param modelB the registration of the second group
+	 * @param downsampleFactors downsampling of the views
+	 * @return the shift in downsampled pixels
+	 */
+	public static double[] getShiftInPixels( final AffineGet result, final AffineGet modelB, final long[] downsampleFactors )
+	{
+		final AffineTransform3D pixelT = new AffineTransform3D();
+		pixelT.set( result.getRowPackedCopy() );
+		pixelT.concatenate( modelB );
+		pixelT.preConcatenate( modelB.inverse() );
+
+		final double[] shift = new double[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			shift[ d ] = pixelT.get( d, 3 ) / downsampleFactors[ d ];
+
+		return shift;
+	}
+
+	/**
+	 * compute the parts of two (downsampled) groups that {@link PairwiseStitching#getShift(RandomAccessibleInterval, RandomAccessibleInterval, TranslationGet, TranslationGet, PairwiseStitchingParameters, double[], double, ExecutorService)}
+	 * will crop to (the rastered overlap according to the metadata), grown by one pixel to be safe from rounding.
+	 * Singleton dimensions are not cropped.
+	 * @param viewIdsA the first group
+	 * @param viewIdsB the second group
+	 * @param vrs the registrations
+	 * @param sd the sequence description
+	 * @param downsampleFactors downsampling of the views
+	 * @return the regions in the downsampled images of A and B, null if they cannot be determined without loading the images
+	 */
+	public static Pair< Interval, Interval > getOverlapRegions(
+			final Group<? extends ViewId> viewIdsA,
+			final Group<? extends ViewId> viewIdsB,
+			final ViewRegistrations vrs,
+			final AbstractSequenceDescription< ?,? extends BasicViewDescription<?>, ? > sd,
+			final long[] downsampleFactors )
+	{
+		final ViewId vidA = getFirstPresentView( viewIdsA, sd );
+		final ViewId vidB = getFirstPresentView( viewIdsB, sd );
+
+		if ( vidA == null || vidB == null )
+			return null;
+
+		final Interval intervalA = DownsampleTools.getDownsampledInterval( sd.getImgLoader(), vidA, downsampleFactors );
+		final Interval intervalB = DownsampleTools.getDownsampledInterval( sd.getImgLoader(), vidB, downsampleFactors );
+
+		if ( intervalA == null || intervalB == null || intervalA.numDimensions() != intervalB.numDimensions() )
+			return null;
+
+		// same as GroupedViewAggregator.aggregate(), only the first present view determines the downsampling correction
+		final AffineTransform3D dsCorrectionA = new AffineTransform3D();
+		final AffineTransform3D dsCorrectionB = new AffineTransform3D();
+		DownsampleTools.openAndDownsampleAdjustTransformation( sd.getImgLoader(), vidA, downsampleFactors, dsCorrectionA );
+		DownsampleTools.openAndDownsampleAdjustTransformation( sd.getImgLoader(), vidB, downsampleFactors, dsCorrectionB );
+
+		final int n = intervalA.numDimensions();
+		final TranslationGet tA = TransformTools.getInitialTransforms( vrs.getViewRegistration( viewIdsA.iterator().next() ), n == 2, dsCorrectionA ).getB();
+		final TranslationGet tB = TransformTools.getInitialTransforms( vrs.getViewRegistration( viewIdsB.iterator().next() ), n == 2, dsCorrectionB ).getB();
+
+		final RealInterval transformedA = TransformTools.applyTranslation( intervalA, tA, new boolean[ n ] );
+		final RealInterval transformedB = TransformTools.applyTranslation( intervalB, tB, new boolean[ n ] );
+		final RealInterval overlap = TransformTools.getOverlap( transformedA, transformedB );
+
+		if ( overlap == null )
+			return null;
+
+		final Interval rasterA = TransformTools.getLocalRasterOverlap( TransformTools.getLocalOverlap( transformedA, overlap ) );
+		final Interval rasterB = TransformTools.getLocalRasterOverlap( TransformTools.getLocalOverlap( transformedB, overlap ) );
+
+		return new ValuePair<>( growRegion( rasterA, intervalA ), growRegion( rasterB, intervalB ) );
+	}
+
+	private static ViewId getFirstPresentView(
+			final Group<? extends ViewId> group,
+			final AbstractSequenceDescription< ?,? extends BasicViewDescription<?>, ? > sd )
+	{
+		for ( final ViewId vid : group.getViews() )
+			if ( sd.getViewDescriptions().get( vid ).isPresent() )
+				return vid;
+
+		return null;
+	}
+
+	private static Interval growRegion( final Interval region, final Interval img )
+	{
+		final int n = img.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			// singleton dimensions are dropped for the phase correlation, we need all of them
+			if ( img.dimension( d ) <= 1 )
+			{
+				min[ d ] = img.min( d );
+				max[ d ] = img.max( d );
+			}
+			else
+			{
+				min[ d ] = Math.max( img.min( d ), region.min( d ) - 1 );
+				max[ d ] = Math.min( img.max( d ), region.max( d ) + 1 );
+			}
+		}
+
+		return DownsampleTools.getDownsampledRegion( img, new FinalInterval( min, max ) );
+	}
+
+	/**
+	 * bound the expected shift (global coordinates, see {@link PairwiseStitchingParameters#maxShift}) per dimension in the
+	 * pixel coordinates of a downsampled view: a shift of at most b (per dimension) or r (length) in global coordinates is
+	 * at most sum_i |A^-1_di| * b_i or r * |A^-1_d| in pixel dimension d (A being the linear part of the view's model)
+	 * @param params the stitching parameters
+	 * @param model the transformation from (full resolution) pixel to global coordinates
+	 * @param downsampleFactors downsampling of the view
+	 * @return the maximal shift in every dimension, null if the parameters do not restrict the shift
+	 */
+	public static double[] getMaxShiftInPixels(
+			final PairwiseStitchingParameters params,
+			final AffineGet model,
+			final long[] downsampleFactors )
+	{
+		if ( params.maxShift == null && Double.isInfinite( params.maxShiftMagnitude ) )
+			return null;
+
+		final AffineGet inverse = model.inverse();
+		final int n = model.numDimensions();
+		final double[] maxShift = new double[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			double boxBound = 0;
+			double sqRowNorm = 0;
+
+			for ( int i = 0; i < n; ++i )
+			{
+				final double a = Math.abs( inverse.get( d, i ) );
+				sqRowNorm += a * a;
+
+				if ( a > 0 )
+					boxBound += a * ( params.maxShift != null && i < params.maxShift.length ? params.maxShift[ i ] : Double.POSITIVE_INFINITY );
+			}
+
+			maxShift[ d ] = Math.min( boxBound, params.maxShiftMagnitude * Math.sqrt( sqRowNorm ) ) / downsampleFactors[ d ];
+		}
+
+		return maxShift;
+	}
+
+	/**
+	 * bound the expected shift length (global coordinates) in the pixel coordinates of a downsampled view
+	 * (using the Frobenius norm of A^-1, which is never smaller than its spectral norm)
+	 * @param params the stitching parameters
+	 * @param model the transformation from (full resolution) pixel to global coordinates
+	 * @param downsampleFactors downsampling of the view
+	 * @return the maximal shift length, Double.POSITIVE_INFINITY if the parameters do not restrict it
+	 */
+	public static double getMaxShiftMagnitudeInPixels(
+			final PairwiseStitchingParameters params,
+			final AffineGet model,
+			final long[] downsampleFactors )
+	{
+		if ( Double.isInfinite( params.maxShiftMagnitude ) )
+			return Double.POSITIVE_INFINITY;
+
+		final AffineGet inverse = model.inverse();
+		final int n = model.numDimensions();
+
+		double sqNorm = 0;
+		long minDownsampling = Long.MAX_VALUE;
+		for ( int d = 0; d < n; ++d )
+		{
+			for ( int i = 0; i < n; ++i )
+				sqNorm += inverse.get( d, i ) * inverse.get( d, i );
+			minDownsampling = Math.min( minDownsampling, downsampleFactors[ d ] );
+		}
+
+		return params.maxShiftMagnitude * Math.sqrt( sqNorm ) / minDownsampling;
+	}
+
 	public static < T extends RealType< T > > Pair<Pair< AffineGet, Double >, RealInterval> computeStitchingLucasKanade(
 			final Group<? extends ViewId> viewIdsA,
 			final Group<? extends ViewId> viewIdsB,
@@ -331,8 +561,8 @@ public class TransformationTools
 			return null;
 
 		// get one image per group
-		final RandomAccessibleInterval<T> img1 = gva.aggregate( viewIdsA, sd, downsampleFactors, dsCorrectionT1 );	
-		final RandomAccessibleInterval<T> img2 = gva.aggregate( viewIdsB, sd, downsampleFactors, dsCorrectionT2 );
+		final RandomAccessibleInterval<T> img1 = gva.aggregate( viewIdsA, sd, downsampleFactors, dsCorrectionT1, null, service );
+		final RandomAccessibleInterval<T> img2 = gva.aggregate( viewIdsB, sd, downsampleFactors, dsCorrectionT2, null, service );
 
 		if (img1 == null || img2 == null)
 		{
@@ -428,6 +658,8 @@ public class TransformationTools
 		removedPairs
 				.forEach( p -> IOFunctions.println( "Skipping non-overlapping pair: " + p.getA() + " -> " + p.getB() ) );
 
+		StitchingMetrics.reset();
+
 		final int nComparisions = pairs.size();
 		AtomicInteger nCompleted = new AtomicInteger();
 
@@ -444,41 +676,49 @@ public class TransformationTools
 						{
 							Pair< Pair< AffineGet, Double >, RealInterval > result = null;
 
-							IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Compute pairwise: "
-									+ p.getA() + " <> " + p.getB() );
-
+							StitchingMetrics.queueDepth( serviceGlobal );
 							final ExecutorService serviceLocal = Executors.newFixedThreadPool(
 									Math.max( 2, Runtime.getRuntime().availableProcessors() / 4 ) );
+							final long tPair = StitchingMetrics.beginPair( p.getA() + " <> " + p.getB() );
 
-							final ViewId firstVdA = p.getA().iterator().next();
-							final ViewId firstVdB = p.getB().iterator().next();
+							try
+							{
+								IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Compute pairwise: "
+										+ p.getA() + " <> " + p.getB() );
 
-							boolean nonTranslationsEqual = TransformTools.nonTranslationsEqual(
-									vrs.getViewRegistration( firstVdA ), vrs.getViewRegistration( firstVdB ) );
+								final ViewId firstVdA = p.getA().iterator().next();
+								final ViewId firstVdB = p.getB().iterator().next();
 
-							if ( nonTranslationsEqual )
-							{
+								boolean nonTranslationsEqual = TransformTools.nonTranslationsEqual(
+										vrs.getViewRegistration( firstVdA ), vrs.getViewRegistration( firstVdB ) );
 
-								result = computeStitchingLucasKanade( p.getA(), p.getB(), vrs, params, sd, gva,
-										downsamplingFactors, serviceLocal );
-							}
-							else
-							{
-								result = computeStitchingNonEqualTransformationsLucasKanade( p.getA(), p.getB(), vrs, params, sd,
-										gva, downsamplingFactors, serviceLocal );
-							}
+								if ( nonTranslationsEqual )
+								{
 
-							serviceLocal.shutdown();
+									result = computeStitchingLucasKanade( p.getA(), p.getB(), vrs, params, sd, gva,
+											downsamplingFactors, serviceLocal );
+								}
+								else
+								{
+									result = computeStitchingNonEqualTransformationsLucasKanade( p.getA(), p.getB(), vrs, params, sd,
+											gva, downsamplingFactors, serviceLocal );
+								}
 
-							int nCompletedI = nCompleted.incrementAndGet();
-							if (progressWriter != null)							
-								progressWriter.setProgress( (double) nCompletedI / nComparisions );
+								int nCompletedI = nCompleted.incrementAndGet();
+								if (progressWriter != null)							
+									progressWriter.setProgress( (double) nCompletedI / nComparisions );
 
-							if ( result != null )
-								IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Compute pairwise: "
-										+ p.getA() + " <> " + p.getB() + ": r=" + result.getA().getB() );
+								if ( result != null )
+									IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Compute pairwise: "
+											+ p.getA() + " <> " + p.getB() + ": r=" + result.getA().getB() );
 
-							return new ValuePair<>( p, result );
+								return new ValuePair<>( p, result );
+							}
+							finally
+							{
+								serviceLocal.shutdown();
+								StitchingMetrics.endPair( tPair );
+							}
 						}
 					} );
 		}
@@ -523,6 +763,8 @@ public class TransformationTools
 			return null;
 		}
 
+		StitchingMetrics.report();
+
 		return results;
 	}
 	
@@ -532,129 +774,232 @@ public class TransformationTools
 																		final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd, 
 																		final GroupedViewAggregator gva,
 																		final long[] downsamplingFactors)
+	{
+		return computePairs( pairs, params, vrs, sd, gva, downsamplingFactors, null );
+	}
+
+	/**
+	 * compute pairwise shifts, every result is additionally passed to resultConsumer (from the worker thread)
+	 * as soon as the pair is done, so downstream steps can start before all pairs are computed
+	 *
+	 * @param resultConsumer - receives each successful result as soon as it is available, may be null
+	 * @return all results (in the order of the pairs), null if computation failed
+	 */
+	public static <V extends ViewId > ArrayList< PairwiseStitchingResult<ViewId> > computePairs( 	final List< Pair<  Group< V >,  Group< V > > > pairs, 
+																		final PairwiseStitchingParameters params, 
+																		final ViewRegistrations vrs,
+																		final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd, 
+																		final GroupedViewAggregator gva,
+																		final long[] downsamplingFactors,
+																		final Consumer< PairwiseStitchingResult< ViewId > > resultConsumer )
+	{
+		return computePairs( pairs, params, vrs, sd, gva, downsamplingFactors, resultConsumer, null );
+	}
+
+	/**
+	 * compute pairwise shifts, resuming from a journal: pairs with a journaled result for the current registrations
+	 * are not recomputed, new results are appended to the journal as soon as they are available
+	 *
+	 * @param resultConsumer - receives each successful result as soon as it is available, may be null
+	 * @param journal - journal to resume from and append to, may be null
+	 * @return all results (journaled ones first), null if computation failed
+	 */
+	public static <V extends ViewId > ArrayList< PairwiseStitchingResult<ViewId> > computePairs( 	final List< Pair<  Group< V >,  Group< V > > > pairs, 
+																		final PairwiseStitchingParameters params, 
+																		final ViewRegistrations vrs,
+																		final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd, 
+																		final GroupedViewAggregator gva,
+																		final long[] downsamplingFactors,
+																		final Consumer< PairwiseStitchingResult< ViewId > > resultConsumer,
+																		final PairwiseResultJournal journal )
 	{
 		// set up executor service
 		final ExecutorService serviceGlobal = Executors.newFixedThreadPool( Math.max( 2, Runtime.getRuntime().availableProcessors() / 2 ) );
-		final ArrayList< Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > > tasks = new ArrayList<>();
 
 		// remove non-overlapping comparisons
 		final List< Pair< Group< V >, Group< V > > > removedPairs = filterNonOverlappingPairs( pairs, vrs, sd );
 		removedPairs.forEach( p -> System.out.println( "Skipping non-overlapping pair: " + p.getA() + " -> " + p.getB() ) );
 		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Removed " + removedPairs.size() + " non-overlapping view-pairs for computing." );
 
+		StitchingMetrics.reset();
+
+		final ArrayList< PairwiseStitchingResult< ViewId > > results = new ArrayList<>();
+
+		// results of an earlier (interrupted) run
+		if ( journal != null )
+		{
+			for ( int i = pairs.size() - 1; i >= 0; --i )
+			{
+				final PairwiseStitchingResult< ViewId > psr = journal.get( pairs.get( i ), vrs );
+
+				if ( psr != null )
+				{
+					results.add( psr );
+					pairs.remove( i );
+
+					if ( resultConsumer != null )
+						resultConsumer.accept( psr );
+				}
+			}
+
+			Collections.reverse( results );
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Resuming " + results.size() + " pairs from journal '" + journal.getFile() + "'." );
+		}
+
 		final int nComparisions = pairs.size();
 		AtomicInteger nCompleted = new AtomicInteger();
+
+		// time series: the accepted result of every pair (of tiles, independent of the timepoint), verified first at the next timepoint
+		final ConcurrentHashMap< String, AffineGet > warmStarts = new ConcurrentHashMap<>();
+
+		// journaled results are warm starts as well, once the timepoints after them are computed
+		final TreeMap< Integer, ArrayList< PairwiseStitchingResult< ViewId > > > journaledPerTimepoint = new TreeMap<>();
+		if ( params.temporalWarmStart )
+			for ( final PairwiseStitchingResult< ViewId > psr : results )
+				if ( psr.r() >= params.warmStartCrossCorrelation )
+					journaledPerTimepoint.computeIfAbsent( psr.pair().getA().iterator().next().getTimePointId(), tp -> new ArrayList<>() ).add( psr );
+
+		final TreeMap< Integer, ArrayList< Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > > > tasksPerTimepoint = new TreeMap<>();
 		
 		IJ.showProgress( 0.0 );
 		
 		for ( final Pair< Group< V >, Group< V > > p : pairs )
 		{
-			tasks.add( new Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > >()
+			final Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > task =
+					new Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > >()
 			{
 				@Override
 				public Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > call() throws Exception
 				{
 					Pair<Pair< AffineGet, Double >, RealInterval> result = null;
 
+					StitchingMetrics.queueDepth( serviceGlobal );
 					final ExecutorService serviceLocal = Executors.newFixedThreadPool( Math.max( 2, Runtime.getRuntime().availableProcessors() / 4 ) );
+					final long tPair = StitchingMetrics.beginPair( p.getA() + " <> " + p.getB() );
 
-					// TODO: do non-equal transformation registration when views within a group have differing transformations
-					final ViewId firstVdA = p.getA().iterator().next();
-					final ViewId firstVdB = p.getB().iterator().next();
+					try
+					{
+						// TODO: do non-equal transformation registration when views within a group have differing transformations
+						final ViewId firstVdA = p.getA().iterator().next();
+						final ViewId firstVdB = p.getB().iterator().next();
 					
-					boolean nonTranslationsEqual = TransformTools.nonTranslationsEqual( vrs.getViewRegistration( firstVdA ), vrs.getViewRegistration( firstVdB ) );
+						boolean nonTranslationsEqual = TransformTools.nonTranslationsEqual( vrs.getViewRegistration( firstVdA ), vrs.getViewRegistration( firstVdB ) );
 					
-					if (nonTranslationsEqual)
-					{
-						System.out.println( "non translations equal" );
-						result = computeStitching(
-								p.getA(),
-								p.getB(),
-								vrs,
-								params,
-								sd,
-								gva,
-								downsamplingFactors,
-								serviceLocal );
-					}
-					else
-					{
-						result = computeStitchingNonEqualTransformations( 
-								p.getA(),
-								p.getB(),
-								vrs,
-								params,
-								sd,
-								gva,
-								downsamplingFactors,
-								serviceLocal );
-						System.out.println( "non translations NOT equal, using virtually fused views for stitching" );
-					}
+						if (nonTranslationsEqual)
+						{
+							System.out.println( "non translations equal" );
+							result = computeStitching(
+									p.getA(),
+									p.getB(),
+									vrs,
+									params,
+									sd,
+									gva,
+									downsamplingFactors,
+									params.temporalWarmStart ? warmStarts.get( getTileKey( p ) ) : null,
+									serviceLocal );
+
+							if ( params.temporalWarmStart && result != null && result.getA().getB() >= params.warmStartCrossCorrelation )
+								warmStarts.put( getTileKey( p ), result.getA().getA() );
+						}
+						else
+						{
+							result = computeStitchingNonEqualTransformations( 
+									p.getA(),
+									p.getB(),
+									vrs,
+									params,
+									sd,
+									gva,
+									downsamplingFactors,
+									serviceLocal );
+							System.out.println( "non translations NOT equal, using virtually fused views for stitching" );
+						}
 
-					serviceLocal.shutdown();
+						// show progress in ImageJ progress bar (TODO: should we really do this here or leave it GUI-independent?)
+						int nCompletedI = nCompleted.incrementAndGet();
+						IJ.showProgress( (double) nCompletedI / nComparisions );
 
-					// show progress in ImageJ progress bar (TODO: should we really do this here or leave it GUI-independent?)
-					int nCompletedI = nCompleted.incrementAndGet();
-					IJ.showProgress( (double) nCompletedI / nComparisions );
+						if (result != null)
+							IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Compute pairwise: " + p.getA() + " <> " + p.getB() + ": r=" + result.getA().getB() );
+						else
+							IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Compute pairwise: " + p.getA() + " <> " + p.getB() + ": No shift found." );
 
-					if (result != null)
-						IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Compute pairwise: " + p.getA() + " <> " + p.getB() + ": r=" + result.getA().getB() );
-					else
-						IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Compute pairwise: " + p.getA() + " <> " + p.getB() + ": No shift found." );
+						if ( result != null && ( resultConsumer != null || journal != null ) )
+						{
+							final PairwiseStitchingResult< ViewId > psr = createResult( p, result, vrs );
 
-					return new ValuePair<>( p,  result );
+							if ( journal != null )
+								journal.append( psr );
+
+							if ( resultConsumer != null )
+								resultConsumer.accept( psr );
+						}
+
+						return new ValuePair<>( p,  result );
+					}
+					finally
+					{
+						serviceLocal.shutdown();
+						StitchingMetrics.endPair( tPair );
+					}
 				}
-			});
-		}
+			};
 
-		final ArrayList< PairwiseStitchingResult< ViewId > > results = new ArrayList<>();
+			// all pairs of a timepoint are done before the next one starts, so they can use its results
+			final int timepoint = params.temporalWarmStart ? p.getA().iterator().next().getTimePointId() : 0;
+			tasksPerTimepoint.computeIfAbsent( timepoint, tp -> new ArrayList<>() ).add( task );
+		}
 
 		final int batchSize = Math.max( 2, Threads.numThreads() / 6 );
 
 		IOFunctions.println( "Computing overlap for: " + batchSize + " pairs of images at once (in total " + Threads.numThreads() + " threads." );
 
-		try
-		{
-			for ( final ArrayList< Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > > part : Threads.splitTasks( tasks, batchSize ) )
-				for ( final Future< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > future : serviceGlobal.invokeAll( part ) )
-				{
-				// wait for task to complete
-				final Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > result = future.get();
+		if ( params.temporalWarmStart )
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Computing " + tasksPerTimepoint.size() + " timepoint(s) in order, " +
+					"verifying the shifts of the previous timepoint first." );
 
-				if (result.getB() == null)
-					continue;
-				
-				/*
-				final ViewRegistration vrA = vrs.getViewRegistration( result.getA().getA().iterator().next() );
-				final ViewRegistration vrB = vrs.getViewRegistration( result.getA().getB().iterator().next() );
-				
-				// get non-translation transform between the initial location of groupA
-				Pair< AffineGet, TranslationGet > initialTransformsA = TransformTools.getInitialTransforms( vrA, false, new AffineTransform3D() );
-
-				// apply to shift vector
-				// FIXME: this only works for scaling, we need to do something different about rotations, etc.
-				boolean nonTranslationsEqual = TransformTools.nonTranslationsEqual(vrA, vrB);
-				if (nonTranslationsEqual)
-					initialTransformsA.getA().apply( result.getB().getA().getA(), result.getB().getA().getA() );
-
-				 */
-				
-				AffineTransform3D resT = new AffineTransform3D();
-				resT.preConcatenate( result.getB().getA().getA() );
-
-				// TODO: can we get rid of this ugly cast
-				Group< ViewId > groupA = new Group<ViewId>(result.getA().getA().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ));
-				Group< ViewId > groupB = new Group<ViewId>(result.getA().getB().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ));
+		// the pairs computed at once share the PCM memory budget
+		final int concurrentPairs = Math.min( batchSize, Math.max( 2, Runtime.getRuntime().availableProcessors() / 2 ) );
+		PairwiseStitching.beginConcurrentPairs( concurrentPairs );
 
-				// TODO: when does that really happen?
-				if ( result.getB() != null)
-				{
-					final double oldTransformHash = PairwiseStitchingResult.calculateHash(
-							vrs.getViewRegistration( groupA.getViews().iterator().next() ),
-							vrs.getViewRegistration( groupB.getViews().iterator().next() ) );
-
-					results.add( new PairwiseStitchingResult<>( new ValuePair<>(groupA, groupB), result.getB().getB(),  resT, result.getB().getA().getB(), oldTransformHash ) );
-				}
+		try
+		{
+			for ( final Entry< Integer, ArrayList< Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > > > timepointTasks : tasksPerTimepoint.entrySet() )
+			{
+				// journaled results of earlier timepoints (in order, so later ones replace earlier ones)
+				final SortedMap< Integer, ArrayList< PairwiseStitchingResult< ViewId > > > journaledBefore = journaledPerTimepoint.headMap( timepointTasks.getKey() );
+				for ( final ArrayList< PairwiseStitchingResult< ViewId > > journaled : journaledBefore.values() )
+					for ( final PairwiseStitchingResult< ViewId > psr : journaled )
+						warmStarts.put( getTileKey( psr.pair() ), psr.getTransform() );
+				journaledBefore.clear();
+
+				for ( final ArrayList< Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > > part : Threads.splitTasks( timepointTasks.getValue(), batchSize ) )
+					for ( final Future< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > future : serviceGlobal.invokeAll( part ) )
+					{
+						// wait for task to complete
+						final Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > result = future.get();
+
+						if (result.getB() == null)
+							continue;
+						
+						/*
+						final ViewRegistration vrA = vrs.getViewRegistration( result.getA().getA().iterator().next() );
+						final ViewRegistration vrB = vrs.getViewRegistration( result.getA().getB().iterator().next() );
+						
+						// get non-translation transform between the initial location of groupA
+						Pair< AffineGet, TranslationGet > initialTransformsA = TransformTools.getInitialTransforms( vrA, false, new AffineTransform3D() );
+
+						// apply to shift vector
+						// FIXME: this only works for scaling, we need to do something different about rotations, etc.
+						boolean nonTranslationsEqual = TransformTools.nonTranslationsEqual(vrA, vrB);
+						if (nonTranslationsEqual)
+							initialTransformsA.getA().apply( result.getB().getA().getA(), result.getB().getA().getA() );
+
+						 */
+						
+						results.add( createResult( result.getA(), result.getB(), vrs ) );
+					}
 			}
 		}
 		catch ( final Exception e )
@@ -663,10 +1008,48 @@ public class TransformationTools
 			e.printStackTrace();
 			return null;
 		}
+		finally
+		{
+			PairwiseStitching.endConcurrentPairs( concurrentPairs );
+		}
+
+		StitchingMetrics.report();
 
 		return results;
 	}
 
+	/**
+	 * @return a key for the setups of both groups of a pair (i.e. the same for a pair of tiles at all timepoints)
+	 */
+	private static String getTileKey( final Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > pair )
+	{
+		return getSetupKey( pair.getA() ) + "|" + getSetupKey( pair.getB() );
+	}
+
+	private static String getSetupKey( final Group< ? extends ViewId > group )
+	{
+		return group.getViews().stream().map( v -> v.getViewSetupId() ).sorted().map( String::valueOf ).collect( Collectors.joining( "," ) );
+	}
+
+	private static <V extends ViewId> PairwiseStitchingResult< ViewId > createResult(
+			final Pair< Group< V >, Group< V > > pair,
+			final Pair< Pair< AffineGet, Double >, RealInterval > result,
+			final ViewRegistrations vrs )
+	{
+		AffineTransform3D resT = new AffineTransform3D();
+		resT.preConcatenate( result.getA().getA() );
+
+		// TODO: can we get rid of this ugly cast
+		Group< ViewId > groupA = new Group<ViewId>(pair.getA().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ));
+		Group< ViewId > groupB = new Group<ViewId>(pair.getB().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ));
+
+		final double oldTransformHash = PairwiseStitchingResult.calculateHash(
+				vrs.getViewRegistration( groupA.getViews().iterator().next() ),
+				vrs.getViewRegistration( groupB.getViews().iterator().next() ) );
+
+		return new PairwiseStitchingResult<>( new ValuePair<>(groupA, groupB), result.getB(),  resT, result.getA().getB(), oldTransformHash );
+	}
+
 	public static void main( String[] args )
 	{
 		final SpimData d = GenerateSpimData.grid3x2();
@@ -32,13 +32,11 @@ import mpicbg.spim.data.sequence.MultiResolutionSetupImgLoader;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
 import net.imglib2.IterableInterval;
-import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.RealSum;
 import net.imglib2.util.Util;
-import net.imglib2.view.Views;
-import net.preibisch.mvrecon.process.deconvolution.normalization.AdjustInput;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.ViewStatistics;
 
 public class BrightestViewSelection extends BasicViewSelection<ViewId>
 {
@@ -67,10 +65,15 @@ public class BrightestViewSelection extends BasicViewSelection<ViewId>
 			{
 				MultiResolutionSetupImgLoader< ? > setupImgLoader = mrImgLoader.getSetupImgLoader( view.getViewSetupId() );
 
-				RandomAccessibleInterval< T > image = (RandomAccessibleInterval< T >) setupImgLoader.getImage( view.getTimePointId(), setupImgLoader.getMipmapResolutions().length - 1 );
+				final ViewStatistics stats = ViewStatistics.getAtLowestResolution( imgLoader, view );
 
-				IterableInterval< T > iterableImg = Views.iterable( image );
-				double mean = AdjustInput.sumImg( iterableImg ) / (double)iterableImg.size();
+				if ( stats == null )
+				{
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Could not compute the mean of view " + Group.pvid( view ) + ", it is not considered for the brightest view." );
+					continue;
+				}
+
+				double mean = stats.mean;
 
 				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Evaluated view " + Group.pvid( view ) + 
 						" at resolution " + Util.printCoordinates( setupImgLoader.getMipmapResolutions()[ setupImgLoader.getMipmapResolutions().length - 1 ] ) + ": " + mean );
@@ -91,10 +94,15 @@ public class BrightestViewSelection extends BasicViewSelection<ViewId>
 		{
 			for (ViewId view : views)
 			{
-				RandomAccessibleInterval< T > image = (RandomAccessibleInterval< T >) imgLoader.getSetupImgLoader( view.getViewSetupId() ).getImage( view.getTimePointId() );
+				final ViewStatistics stats = ViewStatistics.getAtLowestResolution( imgLoader, view );
+
+				if ( stats == null )
+				{
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Could not compute the mean of view " + Group.pvid( view ) + ", it is not considered for the brightest view." );
+					continue;
+				}
 
-				IterableInterval< T > iterableImg = Views.iterable( image );
-				double mean = AdjustInput.sumImg( iterableImg ) / (double)iterableImg.size();
+				double mean = stats.mean;
 
 				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Evaluated view " + Group.pvid( view ) + " at full resolution: " + mean );
 
@@ -33,6 +33,7 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
@@ -118,7 +119,9 @@ import net.preibisch.mvrecon.fiji.spimdata.interestpoints.ViewInterestPoints;
 import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
 import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.StitchingResults;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.SourceIdentity;
 import net.preibisch.stitcher.algorithm.SpimDataFilteringAndGrouping;
+import net.preibisch.stitcher.algorithm.ViewStatistics;
 import net.preibisch.stitcher.algorithm.globalopt.ExecuteGlobalOpt;
 import net.preibisch.stitcher.gui.bdv.BDVFlyThrough;
 import net.preibisch.stitcher.gui.bdv.BDVVisibilityHandlerNeighborhood;
@@ -174,6 +177,12 @@ public class StitchingExplorerPanel<AS extends AbstractSpimData< ? >, X extends
 	{
 		super( explorer, data, xml, io );
 
+		// intensity statistics that were saved with the dataset
+		final File statisticsFile = ViewStatistics.getStatisticsFile( xml );
+		if ( statisticsFile.exists() )
+			ViewStatistics.load( statisticsFile, data.getSequenceDescription().getImgLoader(),
+					SourceIdentity.of( xml, data.getSequenceDescription().getImgLoader() ) );
+
 		if ( data instanceof SpimData2 )
 			this.stitchingResults = ( (SpimData2) data ).getStitchingResults();
 		else
@@ -1094,6 +1103,10 @@ public class StitchingExplorerPanel<AS extends AbstractSpimData< ? >, X extends
 		{
 			io.save( data, xml );
 
+			if ( ViewStatistics.persistWithDataset )
+				ViewStatistics.save( ViewStatistics.getStatisticsFile( xml ), data.getSequenceDescription().getImgLoader(),
+						SourceIdentity.of( xml, data.getSequenceDescription().getImgLoader() ) );
+
 			for ( final SelectedViewDescriptionListener< AS > l : listeners )
 				l.save();
 
@@ -40,12 +40,15 @@ import net.preibisch.mvrecon.fiji.plugin.util.GUIHelper;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.XmlIoSpimData2;
 import net.preibisch.mvrecon.process.interestpointdetection.methods.downsampling.DownsampleTools;
+import net.preibisch.stitcher.algorithm.AggregatedImageDiskCache;
+import net.preibisch.stitcher.algorithm.SpimDataFilteringAndGrouping;
 
 public class StitchingUIHelper
 {
 	public static final String[] ds = { "1", "2", "4", "8", "16", "32", "64"};
 	public static final String[] methods = {"Phase Correlation", "Iterative Intensity Based (Lucas-Kanade)"};
 	public static final long[] dsDefault = {4, 4, 2};
+	public static boolean defaultCacheAggregatedImages = false;
 
 	public static boolean allViews2D(final List< ? extends BasicViewDescription< ? > > views)
 	{
@@ -65,6 +68,18 @@ public class StitchingUIHelper
 	}
 
 	public static long[] askForDownsampling(AbstractSpimData< ? > data, boolean is2d)
+	{
+		return askForDownsampling( data, is2d, null, null );
+	}
+
+	/**
+	 * ask for the downsampling and, if the XML is known, whether to keep the aggregated, downsampled
+	 * images of the groups in an {@link AggregatedImageDiskCache} next to the XML
+	 * @param xml - the XML of the dataset, or null to not offer the cache
+	 * @param grouping - the grouping whose aggregator gets the cache if the user chooses to use it
+	 * @return the downsampling factors or null if the dialog was cancelled
+	 */
+	public static long[] askForDownsampling(AbstractSpimData< ? > data, boolean is2d, String xml, SpimDataFilteringAndGrouping< ? > grouping)
 	{
 		// get first non-missing viewDescription
 		final Optional<? extends BasicViewDescription< ? > > firstPresent = 
@@ -153,6 +168,10 @@ public class StitchingUIHelper
 		}
 
 
+		final boolean offerCache = xml != null && grouping != null;
+		if (offerCache)
+			gd.addCheckbox( "Cache_downsampled_images_on_disk", defaultCacheAggregatedImages );
+
 		gd.showDialog();
 		
 		if (gd.wasCanceled())
@@ -162,6 +181,11 @@ public class StitchingUIHelper
 		int dsYIdx = gd.getNextChoiceIndex();
 		long dsZ = is2d ? 1 : Long.parseLong( gd.getNextChoice() );
 
+		if (offerCache && (defaultCacheAggregatedImages = gd.getNextBoolean()))
+			grouping.getGroupedViewAggregator().setDiskCache( new AggregatedImageDiskCache(
+					AggregatedImageDiskCache.getDefaultDirectory( xml ),
+					AggregatedImageDiskCache.sourceIdentity( xml, data.getSequenceDescription().getImgLoader() ) ) );
+
 		long dsX;
 		long dsY;
 		if (!is2d)
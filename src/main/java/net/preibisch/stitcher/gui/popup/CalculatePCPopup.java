@@ -172,7 +172,7 @@ public class CalculatePCPopup extends JMenuItem implements ExplorerWindowSetable
 						return;
 
 					boolean allViews2D = StitchingUIHelper.allViews2D( filteringAndGrouping.getFilteredViews() );
-					long[] dsFactors = StitchingUIHelper.askForDownsampling( panel.getSpimData(), allViews2D );
+					long[] dsFactors = StitchingUIHelper.askForDownsampling( panel.getSpimData(), allViews2D, panel.xml(), filteringAndGrouping );
 					if (dsFactors == null)
 						return;
 
@@ -27,7 +27,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import javax.swing.JComponent;
@@ -45,15 +47,23 @@ import mpicbg.spim.data.registration.ViewRegistrations;
 import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.Illumination;
 import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.Translation;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 import net.preibisch.mvrecon.fiji.spimdata.boundingbox.BoundingBox;
 import net.preibisch.mvrecon.fiji.spimdata.explorer.ExplorerWindow;
 import net.preibisch.mvrecon.fiji.spimdata.explorer.GroupedRowWindow;
@@ -68,6 +78,7 @@ import net.preibisch.mvrecon.process.interestpointdetection.methods.downsampling
 import net.preibisch.stitcher.algorithm.GroupedViewAggregator;
 import net.preibisch.stitcher.algorithm.PairwiseStitching;
 import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
+import net.preibisch.stitcher.algorithm.StitchingMetrics;
 import net.preibisch.stitcher.algorithm.GroupedViewAggregator.ActionType;
 
 public class DisplayOverlapTestPopup extends JMenuItem implements ExplorerWindowSetable {
@@ -169,6 +180,11 @@ public class DisplayOverlapTestPopup extends JMenuItem implements ExplorerWindow
 		
 	}
 	
+	/**
+	 * size of the blocks in {@link #openFusedMaterialized(AbstractSequenceDescription, ViewRegistrations, Collection, Interval, double[], ExecutorService)}
+	 */
+	public static int fusionBlockSize = 64;
+
 	public static double[] inverse(double[] in)
 	{
 		final double[] res = new double[in.length];
@@ -186,47 +202,206 @@ public class DisplayOverlapTestPopup extends JMenuItem implements ExplorerWindow
 				Interval boundingBox,
 				double[] downsamplingFactors)
 	{
-		final BasicImgLoader imgLoader = sd.getImgLoader();
-		
-		final List<RandomAccessibleInterval< FloatType >> openImgs = new ArrayList<>();
 		final Interval bbSc = TransformVirtual.scaleBoundingBox( new FinalInterval( boundingBox ), inverse( downsamplingFactors ));
 		
 		final long[] dim = new long[ bbSc.numDimensions() ];
 		bbSc.dimensions( dim );
 		
+		final List<RandomAccessibleInterval< FloatType >> openImgs = new ArrayList<>();
 		
 		for (Collection<ViewId> viewGroup : views)
 		{
 			final ArrayList< RandomAccessibleInterval< FloatType > > images = new ArrayList<>();
 			final ArrayList< RandomAccessibleInterval< FloatType > > weights = new ArrayList<>();
 			
-			for ( final ViewId viewId : viewGroup )
+			transformViews( sd, vrs, viewGroup, bbSc, downsamplingFactors, images, weights, null );
+			
+			openImgs.add( new FusedRandomAccessibleInterval( new FinalInterval( dim ), images, weights ) );
+			
+		}		
+		
+		return openImgs;
+		
+	}
+
+	/**
+	 * Same as {@link #openVirtuallyFused(AbstractSequenceDescription, ViewRegistrations, Collection, Interval, double[])},
+	 * but the virtual fusion is copied into float images block by block in parallel. Every block only fuses the views
+	 * whose (transformed) bounding box intersects it, blocks without any view remain 0.
+	 * 
+	 * @param sd - the sequence description
+	 * @param vrs - the view registrations
+	 * @param views - the groups of views, one image is fused per group
+	 * @param boundingBox - the bounding box to fuse (in global coordinates)
+	 * @param downsamplingFactors - the downsampling of the fused images
+	 * @param service - the executor to run the blocks on
+	 * @return one materialized image per group
+	 */
+	public static <S extends AbstractSequenceDescription< ?,? extends BasicViewDescription<? extends BasicViewSetup>, ?  >>
+		List<RandomAccessibleInterval< FloatType >> openFusedMaterialized(
+				S sd,
+				ViewRegistrations vrs,
+				Collection<? extends Collection<ViewId>> views,
+				Interval boundingBox,
+				double[] downsamplingFactors,
+				ExecutorService service)
+	{
+		final Interval bbSc = TransformVirtual.scaleBoundingBox( new FinalInterval( boundingBox ), inverse( downsamplingFactors ));
+		
+		final long[] dim = new long[ bbSc.numDimensions() ];
+		bbSc.dimensions( dim );
+
+		// too large for an ArrayImg, stay virtual
+		if ( Intervals.numElements( dim ) > Integer.MAX_VALUE )
+			return openVirtuallyFused( sd, vrs, views, boundingBox, downsamplingFactors );
+
+		final long[] numBlocks = new long[ dim.length ];
+		for ( int d = 0; d < dim.length; ++d )
+			numBlocks[ d ] = ( dim[ d ] + fusionBlockSize - 1 ) / fusionBlockSize;
+
+		final List<RandomAccessibleInterval< FloatType >> openImgs = new ArrayList<>();
+		final List< Future< Void > > futures = new ArrayList<>();
+		final long t = StitchingMetrics.start();
+
+		try
+		{
+			for (Collection<ViewId> viewGroup : views)
 			{
-				final ViewRegistration vr = vrs.getViewRegistration( viewId );
-				vr.updateModel();
-				AffineTransform3D model = vr.getModel();
+				final ArrayList< RandomAccessibleInterval< FloatType > > images = new ArrayList<>();
+				final ArrayList< RandomAccessibleInterval< FloatType > > weights = new ArrayList<>();
+				final ArrayList< Interval > bounds = new ArrayList<>();
+			
+				transformViews( sd, vrs, viewGroup, bbSc, downsamplingFactors, images, weights, bounds );
+
+				final Img< FloatType > fused = ArrayImgs.floats( dim );
+				openImgs.add( fused );
+
+				for ( long i = 0; i < Intervals.numElements( numBlocks ); ++i )
+				{
+					final long[] min = new long[ dim.length ];
+					final long[] max = new long[ dim.length ];
+
+					IntervalIndexer.indexToPosition( i, numBlocks, min );
 
-				final float[] blending = Util.getArrayFromValue( FusionTools.defaultBlendingRange, 3 );
-				final float[] border = Util.getArrayFromValue( FusionTools.defaultBlendingBorder, 3 );
+					for ( int d = 0; d < dim.length; ++d )
+					{
+						min[ d ] *= fusionBlockSize;
+						max[ d ] = Math.min( dim[ d ], min[ d ] + fusionBlockSize ) - 1;
+					}
 
-				model = model.copy();
-				TransformVirtual.scaleTransform( model, inverse(downsamplingFactors) );
+					final FinalInterval block = new FinalInterval( min, max );
 
-				final RandomAccessibleInterval inputImg = DownsampleTools.openDownsampled( imgLoader, viewId, model );
+					final ArrayList< RandomAccessibleInterval< FloatType > > blockImages = new ArrayList<>();
+					final ArrayList< RandomAccessibleInterval< FloatType > > blockWeights = new ArrayList<>();
 
-				System.out.println( model.inverse() );
+					for ( int j = 0; j < bounds.size(); ++j )
+						if ( intersects( bounds.get( j ), block ) )
+						{
+							blockImages.add( images.get( j ) );
+							blockWeights.add( weights.get( j ) );
+						}
 
-				FusionTools.adjustBlending( sd.getViewDescriptions().get( viewId ), blending, border, model );
+					if ( blockImages.size() == 0 )
+						continue;
 
-				images.add( TransformView.transformView( inputImg, model, bbSc, 0, 1 ) );
-				weights.add( TransformWeight.transformBlending( inputImg, border, blending, model, bbSc ) );
+					futures.add( service.submit( () ->
+					{
+						final Cursor< FloatType > in = Views.flatIterable( Views.interval(
+								new FusedRandomAccessibleInterval( new FinalInterval( dim ), blockImages, blockWeights ), block ) ).cursor();
+						final Cursor< FloatType > out = Views.flatIterable( Views.interval( fused, block ) ).cursor();
+
+						while ( out.hasNext() )
+							out.next().set( in.next() );
+
+						return null;
+					}));
+				}
 			}
-			
-			openImgs.add( new FusedRandomAccessibleInterval( new FinalInterval( dim ), images, weights ) );
-			
-		}		
-		
-		return openImgs;
-		
+
+			for ( final Future< Void > future : futures )
+				future.get();
+
+			return openImgs;
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			IOFunctions.println( "Failed to fuse overlap: " + e );
+			e.printStackTrace();
+			return null;
+		}
+		finally
+		{
+			// if a block failed, the remaining ones are not needed anymore (no-op for finished blocks)
+			for ( final Future< Void > future : futures )
+				future.cancel( true );
+
+			StitchingMetrics.stop( StitchingMetrics.FUSE, t );
+		}
+	}
+
+	private static boolean intersects( final Interval a, final Interval b )
+	{
+		for ( int d = 0; d < a.numDimensions(); ++d )
+			if ( a.min( d ) > b.max( d ) || b.min( d ) > a.max( d ) )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * transform the views of one group into the (downsampled) bounding box
+	 * 
+	 * @param bounds - if not null, the bounding boxes of the transformed views (relative to bbSc) are added
+	 */
+	private static <S extends AbstractSequenceDescription< ?,? extends BasicViewDescription<? extends BasicViewSetup>, ?  >>
+		void transformViews(
+				S sd,
+				ViewRegistrations vrs,
+				Collection<ViewId> viewGroup,
+				Interval bbSc,
+				double[] downsamplingFactors,
+				List< RandomAccessibleInterval< FloatType > > images,
+				List< RandomAccessibleInterval< FloatType > > weights,
+				List< Interval > bounds)
+	{
+		final BasicImgLoader imgLoader = sd.getImgLoader();
+
+		for ( final ViewId viewId : viewGroup )
+		{
+			final ViewRegistration vr = vrs.getViewRegistration( viewId );
+			vr.updateModel();
+			AffineTransform3D model = vr.getModel();
+
+			final float[] blending = Util.getArrayFromValue( FusionTools.defaultBlendingRange, 3 );
+			final float[] border = Util.getArrayFromValue( FusionTools.defaultBlendingBorder, 3 );
+
+			model = model.copy();
+			TransformVirtual.scaleTransform( model, inverse(downsamplingFactors) );
+
+			final RandomAccessibleInterval inputImg = DownsampleTools.openDownsampled( imgLoader, viewId, model );
+
+			System.out.println( model.inverse() );
+
+			FusionTools.adjustBlending( sd.getViewDescriptions().get( viewId ), blending, border, model );
+
+			images.add( TransformView.transformView( inputImg, model, bbSc, 0, 1 ) );
+			weights.add( TransformWeight.transformBlending( inputImg, border, blending, model, bbSc ) );
+
+			if ( bounds != null )
+			{
+				// one extra pixel on each side for the interpolation
+				final RealInterval transformed = model.estimateBounds( inputImg );
+				final long[] min = new long[ bbSc.numDimensions() ];
+				final long[] max = new long[ bbSc.numDimensions() ];
+
+				for ( int d = 0; d < min.length; ++d )
+				{
+					min[ d ] = (long)Math.floor( transformed.realMin( d ) ) - bbSc.min( d ) - 1;
+					max[ d ] = (long)Math.ceil( transformed.realMax( d ) ) - bbSc.min( d ) + 1;
+				}
+
+				bounds.add( new FinalInterval( min, max ) );
+			}
+		}
 	}
 }
@@ -39,6 +39,7 @@ import mpicbg.spim.io.IOFunctions;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.type.numeric.real.FloatType;
+import net.preibisch.mvrecon.Threads;
 import net.preibisch.mvrecon.fiji.ImgLib2Temp.Pair;
 import net.preibisch.mvrecon.fiji.plugin.resave.Generic_Resave_HDF5;
 import net.preibisch.mvrecon.fiji.plugin.resave.ProgressWriterIJ;
@@ -52,6 +53,7 @@ import net.preibisch.mvrecon.fiji.spimdata.explorer.ViewSetupExplorerPanel;
 import net.preibisch.mvrecon.fiji.spimdata.explorer.popup.ExplorerWindowSetable;
 import net.preibisch.mvrecon.fiji.spimdata.imgloaders.AbstractImgFactoryImgLoader;
 import net.preibisch.mvrecon.fiji.spimdata.imgloaders.MicroManagerImgLoader;
+import net.preibisch.stitcher.algorithm.ParallelResaveHDF5;
 import bdv.export.ExportMipmapInfo;
 import bdv.export.ProgressWriter;
 
@@ -63,7 +65,8 @@ public class ResavePopup extends JMenu implements ExplorerWindowSetable
 
 	FilteredAndGroupedExplorerPanel< ?, ? > panel;
 
-	protected static String[] types = new String[]{ "As TIFF ...", "As compressed TIFF ...", "As HDF5 ...", "As compressed HDF5 ..." };
+	protected static String[] types = new String[]{ "As TIFF ...", "As compressed TIFF ...", "As HDF5 ...", "As compressed HDF5 ...",
+			"As HDF5 (parallel, one file per view) ...", "As compressed HDF5 (parallel, one file per view) ..." };
 
 	public ResavePopup()
 	{
@@ -73,16 +76,22 @@ public class ResavePopup extends JMenu implements ExplorerWindowSetable
 		final JMenuItem zippedTiff = new JMenuItem( types[ 1 ] );
 		final JMenuItem hdf5 = new JMenuItem( types[ 2 ] );
 		final JMenuItem deflatehdf5 = new JMenuItem( types[ 3 ] );
+		final JMenuItem parallelhdf5 = new JMenuItem( types[ 4 ] );
+		final JMenuItem parallelDeflatehdf5 = new JMenuItem( types[ 5 ] );
 
 		tiff.addActionListener( new MyActionListener( 0 ) );
 		zippedTiff.addActionListener( new MyActionListener( 1 ) );
 		hdf5.addActionListener( new MyActionListener( 2 ) );
 		deflatehdf5.addActionListener( new MyActionListener( 3 ) );
+		parallelhdf5.addActionListener( new MyActionListener( 4 ) );
+		parallelDeflatehdf5.addActionListener( new MyActionListener( 5 ) );
 
 		this.add( tiff );
 		this.add( zippedTiff );
 		this.add( hdf5 );
 		this.add( deflatehdf5 );
+		this.add( parallelhdf5 );
+		this.add( parallelDeflatehdf5 );
 	}
 
 	@Override
@@ -94,7 +103,7 @@ public class ResavePopup extends JMenu implements ExplorerWindowSetable
 
 	public class MyActionListener implements ActionListener
 	{
-		final int index; // 0 == TIFF, 1 == HDF5
+		final int index; // 0, 1 == TIFF, 2, 3 == HDF5, 4, 5 == parallel HDF5
 
 		public MyActionListener( final int index )
 		{
@@ -175,7 +184,7 @@ public class ResavePopup extends JMenu implements ExplorerWindowSetable
 						panel.updateContent();
 						panel.saveXML();
 					}
-					else if ( index == 2 || index == 3 ) // HDF5, compressed HDF5
+					else // HDF5, compressed HDF5 (parallel)
 					{
 						final List< ViewSetup > setups = SpimData2.getAllViewSetupsSorted( data, viewIds );
 						
@@ -188,12 +197,21 @@ public class ResavePopup extends JMenu implements ExplorerWindowSetable
 						final int firstviewSetupId = data.getSequenceDescription().getViewSetupsOrdered().get( 0 ).getId();
 						final ExportMipmapInfo autoMipmapSettings = perSetupExportMipmapInfo.get( firstviewSetupId );
 
-						final boolean compress = (index != 2);
+						final boolean compress = ( index == 3 || index == 5 );
+						final boolean parallel = ( index >= 4 );
 
 						final String hdf5Filename = panel.xml().substring( 0, panel.xml().length() - 4 ) + ".h5";
 						final File hdf5File = new File( hdf5Filename );
 						IOFunctions.println( "HDF5 file: " + hdf5File.getAbsolutePath() );
 
+						final SpimData2 reduced = Resave_HDF5.reduceSpimData2( data, viewIds );
+
+						// the parallel writer stores one partition per view, which has to be reflected in the XML
+						final boolean split = parallel && ParallelResaveHDF5.allSetupsUnsignedShort( reduced );
+
+						if ( parallel && !split )
+							IOFunctions.println( "Not all views are 16 bit, parallel resaving is not possible, using the standard resave." );
+
 						final Generic_Resave_HDF5.Parameters params =
 								new Generic_Resave_HDF5.Parameters(
 										false,
@@ -202,15 +220,24 @@ public class ResavePopup extends JMenu implements ExplorerWindowSetable
 										new File( panel.xml() ),
 										hdf5File,
 										compress,
-										false,
+										split,
 										1,
-										0,
+										split ? 1 : 0,
 										false,
 										0,
 										0, Double.NaN, Double.NaN );
 
 						// write hdf5
-						Generic_Resave_HDF5.writeHDF5( Resave_HDF5.reduceSpimData2( data, viewIds ), params, progressWriter );
+						if ( split )
+						{
+							if ( ParallelResaveHDF5.writeHDF5( reduced, perSetupExportMipmapInfo, compress, new File( panel.xml() ),
+									hdf5File, Threads.numThreads(), progressWriter ) == null )
+								return;
+						}
+						else
+						{
+							Generic_Resave_HDF5.writeHDF5( reduced, params, progressWriter );
+						}
 
 						final Pair< SpimData2, List< String > > result = Resave_HDF5.createXMLObject( data, viewIds, params, progressWriter, true );
 
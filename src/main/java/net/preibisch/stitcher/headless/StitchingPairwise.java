@@ -31,17 +31,16 @@ import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.io.TextFileAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
-import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.realtransform.Translation;
 import net.imglib2.realtransform.Translation3D;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.preibisch.simulation.SimulateTileStitching;
+import net.preibisch.stitcher.algorithm.DownsampleTools;
 import net.preibisch.stitcher.algorithm.PairwiseStitching;
 import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
 import net.preibisch.mvrecon.process.deconvolution.DeconViews;
-import net.preibisch.mvrecon.process.interestpointdetection.methods.downsampling.Downsample;
 
 public class StitchingPairwise
 {
@@ -120,8 +119,8 @@ public class StitchingPairwise
 			
 							final Pair< Img< FloatType >, Img< FloatType > > pair = sts.getNextPair( snr );
 			
-							final RandomAccessibleInterval< FloatType > img1 = downsample( pair.getA(), ds );
-							final RandomAccessibleInterval< FloatType > img2 = downsample( pair.getB(), ds );
+							final RandomAccessibleInterval< FloatType > img1 = downsample( pair.getA(), ds, service );
+							final RandomAccessibleInterval< FloatType > img2 = downsample( pair.getB(), ds, service );
 			
 							//SimulateTileStitching.show( img1, "1" );
 							//SimulateTileStitching.show( img2, "2" );
@@ -166,45 +165,9 @@ public class StitchingPairwise
 		catch ( InterruptedException ie ) { throw new RuntimeException(ie); }
 	}
 
-	public static RandomAccessibleInterval< FloatType > downsample( RandomAccessibleInterval< FloatType > input, final int[] downsample )
+	public static RandomAccessibleInterval< FloatType > downsample( RandomAccessibleInterval< FloatType > input, final int[] downsample, final ExecutorService service )
 	{
-		int dsx = downsample[ 0 ];
-		int dsy = downsample[ 1 ];
-		int dsz = downsample[ 2 ];
-
-		while ( dsx > 1 || dsy > 1 || dsz > 1 )
-		{
-			if ( dsy > 1 )
-			{
-				input = Downsample.simple2x( input, new ArrayImgFactory<>(), new boolean[]{ false, true, false } );
-				dsy /= 2;
-			}
-
-			if ( dsx > 1 )
-			{
-				input = Downsample.simple2x( input, new ArrayImgFactory<>(), new boolean[]{ true, false, false } );
-				dsx /= 2;
-			}
-
-
-			if ( dsz > 1 )
-			{
-				input = Downsample.simple2x( input, new ArrayImgFactory<>(), new boolean[]{ false, false, true } );
-				dsz /= 2;
-			}
-		}
-
-		/*
-		for ( ;dsx > 1; dsx /= 2 )
-			input = Downsample.simple2x( input, new ArrayImgFactory<>(), new boolean[]{ true, false, false } );
-
-		for ( ;dsy > 1; dsy /= 2 )
-			input = Downsample.simple2x( input, new ArrayImgFactory<>(), new boolean[]{ false, true, false } );
-
-		for ( ;dsz > 1; dsz /= 2 )
-			input = Downsample.simple2x( input, new ArrayImgFactory<>(), new boolean[]{ false, false, true } );
-		*/
-		return input;
+		return DownsampleTools.downsample( input, new long[]{ downsample[ 0 ], downsample[ 1 ], downsample[ 2 ] }, service );
 	}
 
 	public static double dist( final double[] lengths )
@@ -0,0 +1,421 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.headless;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.generic.base.Entity;
+import mpicbg.spim.data.sequence.Angle;
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.Illumination;
+import mpicbg.spim.data.sequence.Tile;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.util.Pair;
+import net.imglib2.util.Util;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import net.preibisch.mvrecon.fiji.spimdata.XmlIoSpimData2;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.AggregatedImageDiskCache;
+import net.preibisch.stitcher.algorithm.FilteredStitchingResults;
+import net.preibisch.stitcher.algorithm.GroupedViewAggregator.ActionType;
+import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
+import net.preibisch.stitcher.algorithm.SpimDataFilteringAndGrouping;
+import net.preibisch.stitcher.algorithm.globalopt.GlobalOptStitcher;
+import net.preibisch.stitcher.algorithm.globalopt.GlobalOptimizationParameters;
+import net.preibisch.stitcher.algorithm.globalopt.GlobalOptimizationParameters.GlobalOptType;
+import net.preibisch.stitcher.algorithm.globalopt.PairwiseResultJournal;
+import net.preibisch.stitcher.algorithm.globalopt.TransformationTools;
+
+/**
+ * Headless stitching of a dataset in one JVM: load XML, find pairs, compute pairwise shifts (phase correlation),
+ * filter links, global optimization and save the XML, without any dialogs. The grouping and the fixed views are
+ * the defaults of the plugins (group channels and illuminations, compare tiles, first tile of each subset fixed).
+ * 
+ * Pairwise results are streamed through a queue: filtering and adding links to the stitching results happens
+ * while the remaining pairs are still computed.
+ * 
+ * Usage: StitchingPipeline input.xml [key=value ...], see {@link #main(String[])}
+ */
+public class StitchingPipeline
+{
+	public String xml;
+	public String outputXml; // null means overwrite input
+
+	public long[] downsampling = new long[]{ 2, 2, 1 };
+	public PairwiseStitchingParameters pairwiseParameters = new PairwiseStitchingParameters();
+	public GlobalOptimizationParameters globalOptParameters = new GlobalOptimizationParameters();
+	public final List< FilteredStitchingResults.Filter > filters = new ArrayList<>();
+	public File journal; // resume from / checkpoint to this file if not null
+	public File imageCache; // keep aggregated, downsampled group images in this directory if not null
+	public boolean shiftPriorFromFilters = true; // do not search for shifts the shift filters would remove anyway
+
+	// what the pipeline did in the last run
+	protected final AtomicInteger numComputed = new AtomicInteger();
+	protected final AtomicInteger numFiltered = new AtomicInteger();
+	protected int numRemovedByGlobalOpt;
+
+	public StitchingPipeline( final String xml )
+	{
+		this.xml = xml;
+	}
+
+	/**
+	 * run all steps
+	 * @return the stitched dataset (already saved), null if something failed
+	 */
+	public SpimData2 run()
+	{
+		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Loading '" + xml + "'" );
+
+		final XmlIoSpimData2 io = new XmlIoSpimData2( "" );
+		final SpimData2 data;
+
+		try
+		{
+			data = io.load( xml );
+		}
+		catch ( SpimDataException e )
+		{
+			IOFunctions.println( "Failed to load XML '" + xml + "': " + e );
+			e.printStackTrace();
+			return null;
+		}
+
+		if ( !stitch( data ) )
+			return null;
+
+		final String out = outputXml == null ? xml : outputXml;
+
+		try
+		{
+			io.save( data, out );
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Saved XML '" + out + "'." );
+		}
+		catch ( SpimDataException e )
+		{
+			IOFunctions.println( "Failed to save XML '" + out + "': " + e );
+			e.printStackTrace();
+			return null;
+		}
+
+		return data;
+	}
+
+	/**
+	 * pairwise shifts, filtering and global optimization on a dataset in memory
+	 * @return true if successful
+	 */
+	public boolean stitch( final SpimData2 data )
+	{
+		final SpimDataFilteringAndGrouping< SpimData2 > grouping = createDefaultGrouping( data );
+
+		if ( imageCache != null )
+			grouping.getGroupedViewAggregator().setDiskCache( new AggregatedImageDiskCache(
+					imageCache, AggregatedImageDiskCache.sourceIdentity( xml, data.getSequenceDescription().getImgLoader() ) ) );
+
+		final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = getPairs( grouping );
+
+		if ( shiftPriorFromFilters )
+			pairwiseParameters.setShiftPriorFromFilters( filters );
+
+		// remove old results (both directions)
+		for ( final Pair< Group< ViewId >, Group< ViewId > > pair : pairs )
+		{
+			data.getStitchingResults().getPairwiseResults().remove( pair );
+			data.getStitchingResults().getPairwiseResults().remove( TransformationTools.reversePair( pair ) );
+		}
+
+		numComputed.set( 0 );
+		numFiltered.set( 0 );
+
+		final LinkedBlockingQueue< PairwiseStitchingResult< ViewId > > queue = new LinkedBlockingQueue<>();
+		final AtomicBoolean computing = new AtomicBoolean( true );
+
+		// filter and store links as they arrive
+		final Thread linkConsumer = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					while ( true )
+					{
+						final PairwiseStitchingResult< ViewId > psr = queue.poll( 100, TimeUnit.MILLISECONDS );
+
+						if ( psr != null )
+							addLink( data, psr );
+						else if ( !computing.get() && queue.isEmpty() )
+							return;
+					}
+				}
+				catch ( InterruptedException e )
+				{
+					IOFunctions.println( "Link filtering was interrupted: " + e );
+				}
+			}
+		}, "StitchingPipeline links" );
+
+		// must not keep the JVM alive if stitching fails
+		linkConsumer.setDaemon( true );
+		linkConsumer.start();
+
+		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Computing " + pairs.size() + " pairwise shifts, downsampling " + Util.printCoordinates( downsampling ) );
+
+		PairwiseResultJournal pairJournal = null;
+
+		if ( journal != null )
+		{
+			try
+			{
+				pairJournal = new PairwiseResultJournal( journal );
+			}
+			catch ( IOException e )
+			{
+				IOFunctions.println( "Failed to open journal '" + journal + "', continuing without: " + e );
+			}
+		}
+
+		final ArrayList< PairwiseStitchingResult< ViewId > > results;
+
+		try
+		{
+			results = TransformationTools.computePairs(
+					pairs, pairwiseParameters, data.getViewRegistrations(), data.getSequenceDescription(),
+					grouping.getGroupedViewAggregator(), downsampling, psr -> queue.add( psr ), pairJournal );
+		}
+		finally
+		{
+			// all results are in the queue once computePairs returns (or failed), let the consumer finish
+			computing.set( false );
+
+			if ( pairJournal != null )
+				pairJournal.close();
+		}
+
+		try
+		{
+			linkConsumer.join();
+		}
+		catch ( InterruptedException e )
+		{
+			IOFunctions.println( "Failed to wait for link filtering: " + e );
+			return false;
+		}
+
+		if ( results == null )
+			return false;
+
+		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": " + numComputed.get() + " links computed, " + numFiltered.get() + " removed by filters." );
+
+		final ArrayList< Pair< Group< ViewId >, Group< ViewId > > > removedInconsistentPairs = new ArrayList<>();
+
+		if ( !GlobalOptStitcher.processGlobalOptimization( data, grouping, globalOptParameters, removedInconsistentPairs, true ) )
+			return false;
+
+		GlobalOptStitcher.removeInconsistentLinks( removedInconsistentPairs, data.getStitchingResults().getPairwiseResults() );
+		numRemovedByGlobalOpt = removedInconsistentPairs.size();
+
+		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Global optimization done, removed " + numRemovedByGlobalOpt + " inconsistent links." );
+
+		return true;
+	}
+
+	/**
+	 * called from a single thread for every computed link
+	 */
+	protected void addLink( final SpimData2 data, final PairwiseStitchingResult< ViewId > psr )
+	{
+		numComputed.incrementAndGet();
+
+		for ( final FilteredStitchingResults.Filter filter : filters )
+			if ( !filter.conforms( psr ) )
+			{
+				numFiltered.incrementAndGet();
+				IOFunctions.println( "Removing link " + psr.pair().getA() + " <> " + psr.pair().getB() + " (" + filter.getClass().getSimpleName() + ")" );
+				return;
+			}
+
+		data.getStitchingResults().setPairwiseResultForPair( psr.pair(), psr );
+	}
+
+	/**
+	 * the default grouping of the plugins: group channels and illuminations (averaged), compare tiles,
+	 * apply along timepoints and angles, use all views
+	 */
+	public static SpimDataFilteringAndGrouping< SpimData2 > createDefaultGrouping( final SpimData2 data )
+	{
+		final List< ViewId > views = SpimData2.getAllViewIdsSorted(
+				data,
+				data.getSequenceDescription().getViewSetupsOrdered(),
+				data.getSequenceDescription().getTimePoints().getTimePointsOrdered() );
+
+		final SpimDataFilteringAndGrouping< SpimData2 > grouping = new SpimDataFilteringAndGrouping<>( data );
+		grouping.addFilters( views.stream().map( vid -> data.getSequenceDescription().getViewDescription( vid ) ).collect( Collectors.toList() ) );
+
+		grouping.addComparisonAxis( Tile.class );
+		grouping.addGroupingFactor( Channel.class );
+		grouping.addGroupingFactor( Illumination.class );
+		grouping.addApplicationAxis( TimePoint.class );
+		grouping.addApplicationAxis( Angle.class );
+
+		for ( final Class< ? extends Entity > cl : grouping.getGroupingFactors() )
+			grouping.getGroupedViewAggregator().addAction( ActionType.AVERAGE, cl, null );
+
+		return grouping;
+	}
+
+	public static List< Pair< Group< ViewId >, Group< ViewId > > > getPairs( final SpimDataFilteringAndGrouping< SpimData2 > grouping )
+	{
+		// this is just a cast of pairs to Group<ViewId>
+		return grouping.getComparisons().stream().map( p -> {
+			final Group< ViewId > vidGroupA = new Group<>( p.getA().getViews().stream().map( v -> (ViewId) v ).collect( Collectors.toSet() ) );
+			final Group< ViewId > vidGroupB = new Group<>( p.getB().getViews().stream().map( v -> (ViewId) v ).collect( Collectors.toSet() ) );
+			return (Pair< Group< ViewId >, Group< ViewId > >) new ValuePair<>( vidGroupA, vidGroupB );
+		}).collect( Collectors.toList() );
+	}
+
+	private static long[] parseLongs( final String s )
+	{
+		final String[] entries = s.split( "," );
+		final long[] values = new long[ entries.length ];
+		for ( int i = 0; i < entries.length; ++i )
+			values[ i ] = Long.parseLong( entries[ i ].trim() );
+		return values;
+	}
+
+	private static double[] parseDoubles( final String s )
+	{
+		final String[] entries = s.split( "," );
+		final double[] values = new double[ entries.length ];
+		for ( int i = 0; i < entries.length; ++i )
+			values[ i ] = Double.parseDouble( entries[ i ].trim() );
+		return values;
+	}
+
+	/**
+	 * StitchingPipeline input.xml [key=value ...]
+	 * 
+	 * output=out.xml, journal=pairs.journal (resume interrupted runs), cache=dir (reuse downsampled images), downsampling=2,2,1, peaks=5, subpixel=true, minOverlap=0,
+	 * minR=0.3, maxR=1.0, maxShift=x,y,z, maxDisplacement=d, acceptR=0.95 (stop checking peaks once one is this good),
+	 * denseCC=false (verify peaks by lookups in the cross correlation of all shifts), levels=0 (hierarchical coarse-to-fine PCM),
+	 * projections=false (pre-register 3d overlaps by the PCMs of their maximum-intensity projections),
+	 * signal=0 (crop overlaps to blocks with structure above this many times the noise, skip pairs without),
+	 * warmStart=false (time series: verify the shifts of the previous timepoint first), warmStartR=0.7 (recompute below),
+	 * globalOpt=SIMPLE|ITERATIVE|TWO_ROUND, directSolver=false (translations only), relativeError=2.5, absoluteError=3.5
+	 */
+	public static void main( String[] args )
+	{
+		if ( args.length < 1 )
+		{
+			System.out.println( "usage: StitchingPipeline input.xml [output=out.xml] [journal=pairs.journal] [cache=dir] [downsampling=2,2,1] [peaks=5] [subpixel=true] [minOverlap=0] "
+					+ "[minR=0.3] [maxR=1.0] [maxShift=x,y,z] [maxDisplacement=d] [acceptR=0.95] [denseCC=false] [levels=0] [projections=false] [signal=0] [warmStart=false] [warmStartR=0.7] [globalOpt=SIMPLE|ITERATIVE|TWO_ROUND] [directSolver=false] [relativeError=2.5] [absoluteError=3.5]" );
+			System.exit( 1 );
+		}
+
+		final StitchingPipeline pipeline = new StitchingPipeline( args[ 0 ] );
+
+		int peaks = pipeline.pairwiseParameters.peaksToCheck;
+		boolean subpixel = pipeline.pairwiseParameters.doSubpixel;
+		double minOverlap = pipeline.pairwiseParameters.minOverlap;
+		double minR = 0, maxR = 1;
+		double acceptR = pipeline.pairwiseParameters.acceptCrossCorrelation;
+		boolean denseCC = pipeline.pairwiseParameters.denseCrossCorrelation;
+		int levels = pipeline.pairwiseParameters.hierarchicalLevels;
+		boolean projections = pipeline.pairwiseParameters.projectionPreRegistration;
+		double signal = pipeline.pairwiseParameters.signalThreshold;
+		boolean warmStart = pipeline.pairwiseParameters.temporalWarmStart;
+		double warmStartR = pipeline.pairwiseParameters.warmStartCrossCorrelation;
+		boolean filterR = false;
+
+		for ( int i = 1; i < args.length; ++i )
+		{
+			final int idx = args[ i ].indexOf( '=' );
+			if ( idx < 0 )
+			{
+				System.out.println( "Ignoring argument '" + args[ i ] + "', expected key=value." );
+				continue;
+			}
+
+			final String key = args[ i ].substring( 0, idx );
+			final String value = args[ i ].substring( idx + 1 );
+
+			switch ( key )
+			{
+				case "output": pipeline.outputXml = value; break;
+				case "journal": pipeline.journal = new File( value ); break;
+				case "cache": pipeline.imageCache = new File( value ); break;
+				case "downsampling": pipeline.downsampling = parseLongs( value ); break;
+				case "peaks": peaks = Integer.parseInt( value ); break;
+				case "subpixel": subpixel = Boolean.parseBoolean( value ); break;
+				case "minOverlap": minOverlap = Double.parseDouble( value ); break;
+				case "minR": minR = Double.parseDouble( value ); filterR = true; break;
+				case "maxR": maxR = Double.parseDouble( value ); filterR = true; break;
+				case "maxShift": pipeline.filters.add( new FilteredStitchingResults.AbsoluteShiftFilter( parseDoubles( value ) ) ); break;
+				case "maxDisplacement": pipeline.filters.add( new FilteredStitchingResults.ShiftMagnitudeFilter( Double.parseDouble( value ) ) ); break;
+				case "acceptR": acceptR = Double.parseDouble( value ); break;
+				case "denseCC": denseCC = Boolean.parseBoolean( value ); break;
+				case "levels": levels = Integer.parseInt( value ); break;
+				case "projections": projections = Boolean.parseBoolean( value ); break;
+				case "signal": signal = Double.parseDouble( value ); break;
+				case "warmStart": warmStart = Boolean.parseBoolean( value ); break;
+				case "warmStartR": warmStartR = Double.parseDouble( value ); break;
+				case "globalOpt": pipeline.globalOptParameters.method = GlobalOptType.valueOf( value ); break;
+				case "directSolver": pipeline.globalOptParameters.useDirectSolver = Boolean.parseBoolean( value ); break;
+				case "relativeError": pipeline.globalOptParameters.relativeThreshold = Double.parseDouble( value ); break;
+				case "absoluteError": pipeline.globalOptParameters.absoluteThreshold = Double.parseDouble( value ); break;
+				default: System.out.println( "Ignoring unknown argument '" + key + "'." );
+			}
+		}
+
+		if ( filterR )
+			pipeline.filters.add( new FilteredStitchingResults.CorrelationFilter( minR, maxR ) );
+
+		pipeline.pairwiseParameters = new PairwiseStitchingParameters( minOverlap, peaks, subpixel,
+				pipeline.pairwiseParameters.interpolateCrossCorrelation, false, pipeline.pairwiseParameters.useWholeImage );
+		pipeline.pairwiseParameters.acceptCrossCorrelation = acceptR;
+		pipeline.pairwiseParameters.denseCrossCorrelation = denseCC;
+		pipeline.pairwiseParameters.hierarchicalLevels = levels;
+		pipeline.pairwiseParameters.projectionPreRegistration = projections;
+		pipeline.pairwiseParameters.signalThreshold = signal;
+		pipeline.pairwiseParameters.temporalWarmStart = warmStart;
+		pipeline.pairwiseParameters.warmStartCrossCorrelation = warmStartR;
+
+		final SpimData2 result = pipeline.run();
+
+		System.exit( result == null ? 1 : 0 );
+	}
+}
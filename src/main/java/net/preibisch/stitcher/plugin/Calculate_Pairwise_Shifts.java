@@ -29,6 +29,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import ij.gui.GenericDialog;
@@ -47,6 +51,7 @@ import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.Threads;
 import net.preibisch.mvrecon.fiji.plugin.Interest_Point_Detection;
 import net.preibisch.mvrecon.fiji.plugin.Interest_Point_Registration;
 import net.preibisch.mvrecon.fiji.plugin.interestpointregistration.TransformationModelGUI;
@@ -56,6 +61,9 @@ import net.preibisch.mvrecon.fiji.plugin.queryXML.LoadParseQueryXML;
 import net.preibisch.mvrecon.fiji.plugin.resave.ProgressWriterIJ;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.boundingbox.BoundingBox;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.CorrespondingInterestPoints;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPointList;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.ViewInterestPointLists;
 import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
 import net.preibisch.mvrecon.process.boundingbox.BoundingBoxMaximalGroupOverlap;
@@ -141,7 +149,7 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 		else
 		{
 			grouping.askUserForGroupingAggregator();
-			final long[] ds = StitchingUIHelper.askForDownsampling( data, is2d );
+			final long[] ds = StitchingUIHelper.askForDownsampling( data, is2d, result.getXMLFileName(), grouping );
 
 			if (defaultMethodIdx == 0) // Phase Correlation
 			{
@@ -339,103 +347,179 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 		removedPairs
 				.forEach( p -> System.out.println( "Skipping non-overlapping pair: " + p.getA() + " -> " + p.getB() ) );
 
-		for ( final Pair< Group< ViewId >, Group< ViewId > > pair : (List< Pair< Group< ViewId >, Group< ViewId > > >) pairs )
+		final List< Pair< Group< ViewId >, Group< ViewId > > > groupPairs = (List< Pair< Group< ViewId >, Group< ViewId > > >) pairs;
+
+		// load the interest points of every view once, all pairs share them (but get their own correspondences)
+		final Map< ViewId, List< InterestPoint > > interestPoints = new HashMap<>();
+		for ( final Pair< Group< ViewId >, Group< ViewId > > pair : groupPairs )
+			for ( final Group< ViewId > group : Arrays.asList( pair.getA(), pair.getB() ) )
+				for ( final ViewId vid : group )
+					if ( !interestPoints.containsKey( vid ) )
+						interestPoints.put( vid, data.getViewInterestPoints().getViewInterestPointLists( vid ).getInterestPointList( brp.labelMap.get( vid ) ).getInterestPointsCopy() );
+
+		// register all pairs concurrently
+		final ExecutorService service = Executors.newFixedThreadPool( Threads.numThreads() );
+		final ArrayList< Callable< Pair< PairwiseStitchingResult< ViewId >, Map< ViewId, ViewInterestPointLists > > > > tasks = new ArrayList<>();
+
+		for ( final Pair< Group< ViewId >, Group< ViewId > > pair : groupPairs )
+			tasks.add( () -> registerInterestPointPair( data, pair, brp, interestPoints ) );
+
+		final List< Pair< PairwiseStitchingResult< ViewId >, Map< ViewId, ViewInterestPointLists > > > results = new ArrayList<>();
+
+		try
 		{
-			// all views in group pair
-			final HashSet< ViewId > vids = new HashSet< ViewId >();
-			vids.addAll( pair.getA().getViews() );
-			vids.addAll( pair.getB().getViews() );
-
-			// simple PairwiseSetup with just two groups (fully connected to
-			// each other)
-			Set<Group<ViewId>> groups = new HashSet<>();
-			groups.add( pair.getA() );
-			groups.add( pair.getB() );
-			final PairwiseSetup< ViewId > setup = new PairwiseSetup< ViewId >( new ArrayList<>( vids ), groups )
-			{
+			// invokeAll() returns when all tasks are complete, the futures are in the order of the pairs
+			for ( final Future< Pair< PairwiseStitchingResult< ViewId >, Map< ViewId, ViewInterestPointLists > > > future : service.invokeAll( tasks ) )
+				results.add( future.get() );
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Failed to compute pairwise interest point registration: " + e );
+			e.printStackTrace();
+			return false;
+		}
+		finally
+		{
+			service.shutdown();
+		}
 
-				@Override
-				protected List< Pair< ViewId, ViewId > > definePairsAbstract()
-				{
-					// all possible links between groups
-					final List< Pair< ViewId, ViewId > > res = new ArrayList<>();
-					for ( final ViewId vidA : pair.getA() )
-						for ( final ViewId vidB : pair.getB() )
-							res.add( new ValuePair< ViewId, ViewId >( vidA, vidB ) );
-					return res;
-				}
-
-				@Override
-				public List< ViewId > getDefaultFixedViews()
-				{
-					// first group will remain fixed -> we get the transform to
-					// align second group to this target
-					return new ArrayList<>( pair.getA().getViews() );
-				}
-			};
-
-			// prepare setup
-			setup.definePairs();
-			setup.detectSubsets();
-
-			// get copies of view registrations (as they will be modified) and
-			// interest points
-			final Map< ViewId, ViewRegistration > registrationMap = new HashMap<>();
-			final Map< ViewId, ViewInterestPointLists > ipMap = new HashMap<>();
-			for ( ViewId vid : vids )
-			{
-				final ViewRegistration vrOld = data.getViewRegistrations().getViewRegistration( vid );
-				final ViewInterestPointLists iplOld = data.getViewInterestPoints().getViewInterestPointLists( vid );
-				registrationMap.put( vid, new ViewRegistration( vid.getTimePointId(), vid.getViewSetupId(),
-						new ArrayList<>( vrOld.getTransformList() ) ) );
-				ipMap.put( vid, iplOld );
-			}
+		// merge in the order of the pairs: the correspondences of every view are those of all its (successful) pairs
+		final Map< ViewId, List< CorrespondingInterestPoints > > correspondences = new HashMap<>();
 
-			final Interest_Point_Registration reg = new Interest_Point_Registration();
-			// run the registration for this pair, skip saving results if it did not work
-			if ( !reg.processRegistration( setup, brp.pwr,
-					InterestpointGroupingType.ADD_ALL, 0.0, pair.getA().getViews(), null, null, registrationMap,
-					ipMap, brp.labelMap, true ) )
+		for ( final Pair< PairwiseStitchingResult< ViewId >, Map< ViewId, ViewInterestPointLists > > result : results )
+		{
+			if ( result == null )
 				continue;
 
-			// get newest Transformation of groupB (the accumulative transform
-			// determined by registration)
-			final ViewTransform vtB = registrationMap.get( pair.getB().iterator().next() ).getTransformList().get( 0 );
+			final PairwiseStitchingResult< ViewId > psr = result.getA();
+			data.getStitchingResults().getPairwiseResults().put( psr.pair(), psr );
+
+			for ( final Map.Entry< ViewId, ViewInterestPointLists > entry : result.getB().entrySet() )
+				correspondences.computeIfAbsent( entry.getKey(), vid -> new ArrayList<>() ).addAll(
+						entry.getValue().getInterestPointList( brp.labelMap.get( entry.getKey() ) ).getCorrespondingInterestPointsCopy() );
+		}
 
-			List< Pair< Pair< ViewId, ViewId >, ? extends PairwiseResult< ? > > > stats = reg.getStatistics();
+		for ( final Map.Entry< ViewId, List< CorrespondingInterestPoints > > entry : correspondences.entrySet() )
+			data.getViewInterestPoints().getViewInterestPointLists( entry.getKey() ).getInterestPointList(
+					brp.labelMap.get( entry.getKey() ) ).setCorrespondingInterestPoints( entry.getValue() );
 
-			// TODO: is this correct?
-			// since the grouped IP are split up again in the statistics, can we just sum inliers & candidates
-			// to get the total cands/inliers. or are we counting some twice?
-			double candidates = 0;
-			double inliers = 0;
-			for (final Pair< Pair< ViewId, ViewId >, ? extends PairwiseResult< ? > > stat : stats)
+		return true;
+	}
+
+	/**
+	 * register one pair of groups by their interest points. Works on copies of the registrations and on own interest
+	 * point lists (sharing the loaded points, with empty correspondences), so pairs can be registered concurrently.
+	 *
+	 * @param interestPoints - the (untransformed) interest points of all views of the pair
+	 * @return the result and the interest point lists with the correspondences of this pair, null if the registration failed
+	 */
+	protected static Pair< PairwiseStitchingResult< ViewId >, Map< ViewId, ViewInterestPointLists > > registerInterestPointPair(
+			final SpimData2 data,
+			final Pair< Group< ViewId >, Group< ViewId > > pair,
+			final BasicRegistrationParameters brp,
+			final Map< ViewId, List< InterestPoint > > interestPoints )
+	{
+		// all views in group pair
+		final HashSet< ViewId > vids = new HashSet< ViewId >();
+		vids.addAll( pair.getA().getViews() );
+		vids.addAll( pair.getB().getViews() );
+
+		// simple PairwiseSetup with just two groups (fully connected to
+		// each other)
+		Set<Group<ViewId>> groups = new HashSet<>();
+		groups.add( pair.getA() );
+		groups.add( pair.getB() );
+		final PairwiseSetup< ViewId > setup = new PairwiseSetup< ViewId >( new ArrayList<>( vids ), groups )
+		{
+
+			@Override
+			protected List< Pair< ViewId, ViewId > > definePairsAbstract()
 			{
-				candidates += stat.getB().getCandidates().size();
-				inliers += stat.getB().getInliers().size();
+				// all possible links between groups
+				final List< Pair< ViewId, ViewId > > res = new ArrayList<>();
+				for ( final ViewId vidA : pair.getA() )
+					for ( final ViewId vidB : pair.getB() )
+						res.add( new ValuePair< ViewId, ViewId >( vidA, vidB ) );
+				return res;
 			}
 
+			@Override
+			public List< ViewId > getDefaultFixedViews()
+			{
+				// first group will remain fixed -> we get the transform to
+				// align second group to this target
+				return new ArrayList<>( pair.getA().getViews() );
+			}
+		};
 
-			final AffineTransform3D result = new AffineTransform3D();
-			result.set( vtB.asAffine3D().getRowPackedCopy() );
-			IOFunctions.println( "resulting transformation: " + Util.printCoordinates( result.getRowPackedCopy() ) );
+		// prepare setup
+		setup.definePairs();
+		setup.detectSubsets();
 
-			// get Overlap Bounding Box, which we need for stitching results
-			final List< List< ViewId > > groupListsForOverlap = new ArrayList<>();
-			groupListsForOverlap.add( new ArrayList<>( pair.getA().getViews() ) );
-			groupListsForOverlap.add( new ArrayList<>( pair.getB().getViews() ) );
-			BoundingBoxMaximalGroupOverlap< ViewId > bbDet = new BoundingBoxMaximalGroupOverlap< ViewId >(
-					groupListsForOverlap, data.getSequenceDescription(), data.getViewRegistrations() );
-			BoundingBox bbOverlap = bbDet.estimate( "Max Overlap" );
+		// get copies of view registrations (as they will be modified) and
+		// interest points (own lists, as the correspondences will be modified)
+		final Map< ViewId, ViewRegistration > registrationMap = new HashMap<>();
+		final Map< ViewId, ViewInterestPointLists > ipMap = new HashMap<>();
+		for ( ViewId vid : vids )
+		{
+			final ViewRegistration vrOld = data.getViewRegistrations().getViewRegistration( vid );
+			registrationMap.put( vid, new ViewRegistration( vid.getTimePointId(), vid.getViewSetupId(),
+					new ArrayList<>( vrOld.getTransformList() ) ) );
+
+			final String label = brp.labelMap.get( vid );
+			final InterestPointList iplOld = data.getViewInterestPoints().getViewInterestPointLists( vid ).getInterestPointList( label );
+			final InterestPointList ipl = new InterestPointList( iplOld.getBaseDir(), iplOld.getFile() );
+			ipl.setParameters( iplOld.getParameters() );
+			ipl.setInterestPoints( interestPoints.get( vid ) );
+			ipl.setCorrespondingInterestPoints( new ArrayList<>() );
+
+			final ViewInterestPointLists vipl = new ViewInterestPointLists( vid.getTimePointId(), vid.getViewSetupId() );
+			vipl.addInterestPointList( label, ipl );
+			ipMap.put( vid, vipl );
+		}
 
-			final double oldTransformHash = PairwiseStitchingResult.calculateHash(
-					data.getViewRegistrations().getViewRegistration( pair.getA().getViews().iterator().next() ),
-					data.getViewRegistrations().getViewRegistration( pair.getA().getViews().iterator().next() ) );
-			data.getStitchingResults().getPairwiseResults().put( pair,
-					new PairwiseStitchingResult<>( pair, bbOverlap, result, inliers/candidates, oldTransformHash ) );
+		final Interest_Point_Registration reg = new Interest_Point_Registration();
+		// run the registration for this pair, skip saving results if it did not work
+		if ( !reg.processRegistration( setup, brp.pwr,
+				InterestpointGroupingType.ADD_ALL, 0.0, pair.getA().getViews(), null, null, registrationMap,
+				ipMap, brp.labelMap, true ) )
+			return null;
+
+		// get newest Transformation of groupB (the accumulative transform
+		// determined by registration)
+		final ViewTransform vtB = registrationMap.get( pair.getB().iterator().next() ).getTransformList().get( 0 );
+
+		List< Pair< Pair< ViewId, ViewId >, ? extends PairwiseResult< ? > > > stats = reg.getStatistics();
+
+		// TODO: is this correct?
+		// since the grouped IP are split up again in the statistics, can we just sum inliers & candidates
+		// to get the total cands/inliers. or are we counting some twice?
+		double candidates = 0;
+		double inliers = 0;
+		for (final Pair< Pair< ViewId, ViewId >, ? extends PairwiseResult< ? > > stat : stats)
+		{
+			candidates += stat.getB().getCandidates().size();
+			inliers += stat.getB().getInliers().size();
 		}
 
-		return true;
+
+		final AffineTransform3D result = new AffineTransform3D();
+		result.set( vtB.asAffine3D().getRowPackedCopy() );
+		IOFunctions.println( "resulting transformation: " + Util.printCoordinates( result.getRowPackedCopy() ) );
+
+		// get Overlap Bounding Box, which we need for stitching results
+		final List< List< ViewId > > groupListsForOverlap = new ArrayList<>();
+		groupListsForOverlap.add( new ArrayList<>( pair.getA().getViews() ) );
+		groupListsForOverlap.add( new ArrayList<>( pair.getB().getViews() ) );
+		BoundingBoxMaximalGroupOverlap< ViewId > bbDet = new BoundingBoxMaximalGroupOverlap< ViewId >(
+				groupListsForOverlap, data.getSequenceDescription(), data.getViewRegistrations() );
+		BoundingBox bbOverlap = bbDet.estimate( "Max Overlap" );
+
+		final double oldTransformHash = PairwiseStitchingResult.calculateHash(
+				data.getViewRegistrations().getViewRegistration( pair.getA().getViews().iterator().next() ),
+				data.getViewRegistrations().getViewRegistration( pair.getA().getViews().iterator().next() ) );
+
+		return new ValuePair<>( new PairwiseStitchingResult<>( pair, bbOverlap, result, inliers/candidates, oldTransformHash ), ipMap );
 	}
 
 }
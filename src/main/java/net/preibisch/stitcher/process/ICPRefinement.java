@@ -26,6 +26,7 @@ import mpicbg.spim.data.sequence.Tile;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
+import net.imglib2.RealInterval;
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
 import net.preibisch.mvrecon.fiji.plugin.Interest_Point_Detection;
@@ -59,6 +60,7 @@ import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constell
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.overlap.SimpleBoundingBoxOverlap;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.methods.icp.IterativeClosestPointPairwise;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.methods.icp.IterativeClosestPointParameters;
+import net.preibisch.stitcher.algorithm.ViewStatistics;
 import net.preibisch.stitcher.gui.StitchingUIHelper;
 import net.preibisch.stitcher.gui.overlay.DemoLinkOverlay;
 import net.preibisch.stitcher.gui.popup.RefineWithICPPopup;
@@ -84,6 +86,11 @@ public class ICPRefinement
 	public static int defaultModel = 2;
 	public static boolean defaultRegularize = true;
 
+	/**
+	 * only detect interest points in the overlaps of the views (padded by the ICP search radius), ICP does not use the others
+	 */
+	public static boolean detectInOverlapsOnly = true;
+
 	public static class ICPRefinementParameters
 	{
 		public boolean groupTiles, groupIllums, groupChannels;
@@ -280,10 +287,25 @@ public class ICPRefinement
 			params.transformationDescription = "ICP Refinement (over all)";
 		}
 
-		params.label = "forICP_" + downsamplingChoice + "_" + thresholdChoice;
+		if ( distanceChoice == 0 )
+			params.maxError = defaultICPError = 1.0;
+		else if ( distanceChoice == 1 )
+			params.maxError = defaultICPError = 5.0;
+		else
+			params.maxError = defaultICPError = 20;
+
+		// the overlaps of all views with the views they will be matched against (not necessarily of the same channel)
+		final Map< ViewId, List< RealInterval > > overlaps = detectInOverlapsOnly ?
+				OverlapInterestPointDetection.getOverlapRegions( data, params.viewIds, ( a, b ) -> inSameGroup( data, params, a, b ), params.maxError ) : null;
+
+		params.label = "forICP_" + downsamplingChoice + "_" + thresholdChoice + ( detectInOverlapsOnly ? "_overlaps" : "" );
+
+		// points detected in the overlaps are only valid for the registrations (and grouping) they were detected with,
+		// the overlaps are stored with them so they are re-detected (under the same label) once the overlaps changed
+		final String overlapParameters = detectInOverlapsOnly ? ", overlaps=" + hash( overlaps ) : "";
 
 		// DoG
-		if ( !presentForAll( params.label, params.viewIds, data ) )
+		if ( !presentForAll( params.label, overlapParameters, params.viewIds, data ) )
 		{
 			// each channel get the same min/max intensity for the interestpoints
 			final HashSet< Class<? extends Entity> > factors = new HashSet<>();
@@ -348,9 +370,10 @@ public class ICPRefinement
 					dog.maxIntensity = minmax[ 1 ];
 				}
 
-				final HashMap< ViewId, List< InterestPoint > > points = DoG.findInterestPoints( dog );
+				final HashMap< ViewId, List< InterestPoint > > points = detectInOverlapsOnly ?
+						OverlapInterestPointDetection.findInterestPoints( data, dog, overlaps ) : DoG.findInterestPoints( dog );
 
-				InterestPointTools.addInterestPoints( data, params.label, points, "DoG, sigma=1.4, downsampleXY=" + dog.downsampleXY + ", downsampleZ=" + dog.downsampleZ );
+				InterestPointTools.addInterestPoints( data, params.label, points, "DoG, sigma=1.4, downsampleXY=" + dog.downsampleXY + ", downsampleZ=" + dog.downsampleZ + overlapParameters );
 			}
 		}
 		else
@@ -363,16 +386,30 @@ public class ICPRefinement
 				new RigidModel3D(),
 				0.1f );
 
-		if ( distanceChoice == 0 )
-			params.maxError = defaultICPError = 1.0;
-		else if ( distanceChoice == 1 )
-			params.maxError = defaultICPError = 5.0;
-		else
-			params.maxError = defaultICPError = 20;
-
 		return true;
 	}
 
+	/**
+	 * @return true if both views end up in the same group (see {@link #refine(SpimData2, ICPRefinementParameters, DemoLinkOverlay)}),
+	 * i.e. they are never matched against each other
+	 */
+	private static boolean inSameGroup( final SpimData2 data, final ICPRefinementParameters params, final ViewId a, final ViewId b )
+	{
+		final ViewDescription vdA = data.getSequenceDescription().getViewDescription( a );
+		final ViewDescription vdB = data.getSequenceDescription().getViewDescription( b );
+
+		final int channelA = vdA.getViewSetup().getChannel().getId();
+		final int channelB = vdB.getViewSetup().getChannel().getId();
+
+		// tiles of channels that are not grouped are split up again
+		final boolean tilesGrouped = params.groupTiles && !params.doNotGroupChannels.contains( channelA ) && !params.doNotGroupChannels.contains( channelB );
+
+		return vdA.getViewSetup().getAngle().getId() == vdB.getViewSetup().getAngle().getId() &&
+				( tilesGrouped || vdA.getViewSetup().getTile().getId() == vdB.getViewSetup().getTile().getId() ) &&
+				( params.groupChannels || channelA == channelB ) &&
+				( params.groupIllums || vdA.getViewSetup().getIllumination().getId() == vdB.getViewSetup().getIllumination().getId() );
+	}
+
 	public static void refine(
 			final SpimData2 data,
 			final ICPRefinementParameters params,
@@ -659,7 +696,9 @@ public class ICPRefinement
 		int count = 0;
 		for ( final ViewId view : viewIdsToProcess )
 		{
-			final double[] minmax = FusionTools.minMaxApprox( DownsampleTools.openAtLowestLevel( imgLoader, view ) );
+			// memoized, so repeated refinements (and other users of the statistics) do not read the views again
+			final ViewStatistics stats = ViewStatistics.getAtLowestResolution( imgLoader, view );
+			final double[] minmax = stats != null ? new double[]{ stats.min, stats.max } : FusionTools.minMaxApprox( DownsampleTools.openAtLowestLevel( imgLoader, view ) );
 			min = Math.min( min, minmax[ 0 ] );
 			max = Math.max( max, minmax[ 1 ] );
 
@@ -673,11 +712,55 @@ public class ICPRefinement
 		return new double[]{ min, max };
 	}
 
+	/**
+	 * @return a hash of the overlap regions of all views (they depend on the registrations), as hex string
+	 */
+	protected static String hash( final Map< ViewId, List< RealInterval > > overlaps )
+	{
+		final ArrayList< ViewId > viewIds = new ArrayList<>( overlaps.keySet() );
+		Collections.sort( viewIds );
+
+		long hash = 17;
+		for ( final ViewId viewId : viewIds )
+		{
+			hash = 31 * hash + viewId.getTimePointId();
+			hash = 31 * hash + viewId.getViewSetupId();
+
+			// the whole view (size unknown)
+			if ( overlaps.get( viewId ) == null )
+			{
+				hash = 31 * hash - 1;
+				continue;
+			}
+
+			for ( final RealInterval overlap : overlaps.get( viewId ) )
+				for ( int d = 0; d < overlap.numDimensions(); ++d )
+				{
+					hash = 31 * hash + Double.hashCode( overlap.realMin( d ) );
+					hash = 31 * hash + Double.hashCode( overlap.realMax( d ) );
+				}
+		}
+
+		return Long.toHexString( hash );
+	}
+
 	public static boolean presentForAll( final String label, final Collection< ? extends ViewId > viewIds, final SpimData2 data )
+	{
+		return presentForAll( label, "", viewIds, data );
+	}
+
+	/**
+	 * @param parametersSuffix - the parameters of the interest points of all views have to end with it
+	 */
+	public static boolean presentForAll( final String label, final String parametersSuffix, final Collection< ? extends ViewId > viewIds, final SpimData2 data )
 	{
 		for ( final ViewId viewId : viewIds )
-			if ( data.getViewInterestPoints().getViewInterestPointLists( viewId ).getInterestPointList( label ) == null )
+		{
+			final InterestPointList ipl = data.getViewInterestPoints().getViewInterestPointLists( viewId ).getInterestPointList( label );
+
+			if ( ipl == null || !( ipl.getParameters() == null ? "" : ipl.getParameters() ).endsWith( parametersSuffix ) )
 				return false;
+		}
 
 		return true;
 	}
@@ -0,0 +1,377 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.process;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiPredicate;
+
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.algorithm.dog.DogDetection;
+import net.imglib2.algorithm.localextrema.RefinedPeak;
+import net.imglib2.converter.Converters;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.Threads;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+import net.preibisch.mvrecon.process.interestpointdetection.methods.dog.DoGParameters;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.DownsampleTools;
+import net.preibisch.stitcher.algorithm.TransformTools;
+
+/**
+ * Difference-of-Gaussian detection restricted to the parts of the views that overlap with other views
+ * (according to the current registrations), e.g. for ICP, which only ever matches points in overlaps.
+ * Only the blocks of the (downsampled) views that intersect an overlap are loaded and filtered.
+ */
+public class OverlapInterestPointDetection
+{
+	/**
+	 * the overlaps of every view with all other views of the same timepoint that are not in the same group
+	 * 
+	 * @param data - the dataset
+	 * @param views - the views to detect in (and their potential neighbors)
+	 * @param sameGroup - true for two views that are never matched against each other
+	 * @param padding - grow the overlaps by this much (in global coordinates), e.g. the ICP search radius
+	 * @return per view the (padded) overlaps in full-resolution pixel coordinates of the view, null for views
+	 * whose size is unknown (detect everywhere), an empty list for views without overlap
+	 */
+	public static Map< ViewId, List< RealInterval > > getOverlapRegions(
+			final SpimData2 data,
+			final Collection< ? extends ViewId > views,
+			final BiPredicate< ViewId, ViewId > sameGroup,
+			final double padding )
+	{
+		// bounding boxes of all views in global coordinates
+		final Map< ViewId, RealInterval > bounds = new HashMap<>();
+
+		for ( final ViewId view : views )
+		{
+			final ViewDescription vd = data.getSequenceDescription().getViewDescription( view );
+
+			if ( !vd.isPresent() || vd.getViewSetup().getSize() == null )
+				continue;
+
+			final ViewRegistration vr = data.getViewRegistrations().getViewRegistration( view );
+			vr.updateModel();
+
+			bounds.put( view, vr.getModel().estimateBounds( pixelInterval( vd.getViewSetup().getSize() ) ) );
+		}
+
+		final Map< ViewId, List< RealInterval > > regions = new HashMap<>();
+
+		for ( final ViewId view : views )
+		{
+			final RealInterval bb = bounds.get( view );
+
+			if ( bb == null )
+			{
+				regions.put( view, null );
+				continue;
+			}
+
+			final AffineTransform3D toLocal = data.getViewRegistrations().getViewRegistration( view ).getModel().inverse();
+			final ArrayList< RealInterval > viewRegions = new ArrayList<>();
+
+			for ( final ViewId other : views )
+			{
+				if ( other.equals( view ) || other.getTimePointId() != view.getTimePointId() || sameGroup.test( view, other ) )
+					continue;
+
+				final RealInterval otherBB = bounds.get( other );
+
+				if ( otherBB == null )
+					continue;
+
+				final RealInterval overlap = TransformTools.getOverlap( bb, otherBB );
+
+				if ( overlap != null )
+					viewRegions.add( toLocal.estimateBounds( grow( overlap, padding ) ) );
+			}
+
+			regions.put( view, viewRegions );
+		}
+
+		return regions;
+	}
+
+	/**
+	 * DoG detection (bright blobs, as {@link net.preibisch.mvrecon.process.interestpointdetection.methods.dog.DoG}
+	 * with the parameters of dog) only in the given regions of every view of dog.toProcess. Each region is
+	 * downsampled, intersecting regions are merged and every merged region is loaded with a margin for the filters,
+	 * so no point is detected twice.
+	 * 
+	 * @param data - the dataset
+	 * @param dog - the DoG parameters (views, downsampling, sigma, threshold, intensity range and limit of detections)
+	 * @param regions - regions per view, see {@link #getOverlapRegions(SpimData2, Collection, BiPredicate, double)}
+	 * @return the interest points per view in full-resolution pixel coordinates
+	 */
+	public static HashMap< ViewId, List< InterestPoint > > findInterestPoints(
+			final SpimData2 data,
+			final DoGParameters dog,
+			final Map< ViewId, List< RealInterval > > regions )
+	{
+		final BasicImgLoader imgLoader = dog.imgloader;
+		final long[] ds = new long[]{ dog.downsampleXY, dog.downsampleXY, dog.downsampleZ };
+
+		// as in DoG (4 steps per octave)
+		final double sigma2 = dog.sigma * Math.pow( 2.0, 1.0 / 4.0 );
+		final long margin = (long)Math.ceil( 3 * sigma2 ) + 1;
+
+		final ExecutorService service = Executors.newFixedThreadPool( Threads.numThreads() );
+		final HashMap< ViewId, List< InterestPoint > > interestPoints = new HashMap<>();
+
+		try
+		{
+			for ( final ViewDescription vd : dog.toProcess )
+			{
+				final AffineTransform3D dsCorrection = new AffineTransform3D();
+				DownsampleTools.openAndDownsampleAdjustTransformation( imgLoader, vd, ds, dsCorrection );
+
+				final Interval downsampled = DownsampleTools.getDownsampledInterval( imgLoader, vd, ds );
+				final List< RealInterval > viewRegions = regions.get( vd );
+
+				// the parts of the downsampled view to detect in
+				final List< Interval > cores = new ArrayList<>();
+
+				if ( viewRegions == null || downsampled == null )
+				{
+					cores.add( null );
+				}
+				else
+				{
+					final AffineTransform3D toDownsampled = dsCorrection.inverse();
+
+					for ( final RealInterval region : viewRegions )
+					{
+						final Interval core = clip( toDownsampled.estimateBounds( region ), downsampled );
+
+						if ( core != null )
+							cores.add( core );
+					}
+
+					mergeIntersecting( cores );
+
+					long processed = 0;
+					for ( final Interval core : cores )
+						processed += Intervals.numElements( core );
+
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): View " + Group.pvid( vd ) + ", detecting in " +
+							cores.size() + " overlap region(s), " + Math.round( 100.0 * processed / Intervals.numElements( downsampled ) ) + "% of the view." );
+				}
+
+				final double min, max;
+
+				if ( Double.isNaN( dog.minIntensity ) || Double.isNaN( dog.maxIntensity ) )
+				{
+					final double[] minmax = ICPRefinement.minmax( data, Collections.singletonList( vd ) );
+					min = minmax[ 0 ];
+					max = minmax[ 1 ];
+				}
+				else
+				{
+					min = dog.minIntensity;
+					max = dog.maxIntensity;
+				}
+
+				final ArrayList< RefinedPeak< Point > > peaks = new ArrayList<>();
+
+				for ( final Interval core : cores )
+					peaks.addAll( detect( imgLoader, vd, ds, core, downsampled, margin, min, max, dog.sigma, sigma2, dog.threshold, service ) );
+
+				// strongest first (bright blobs are minima of the DoG)
+				if ( dog.limitDetections && peaks.size() > dog.maxDetections )
+				{
+					Collections.sort( peaks, ( a, b ) -> Double.compare( a.getValue(), b.getValue() ) );
+					peaks.subList( dog.maxDetections, peaks.size() ).clear();
+				}
+
+				final List< InterestPoint > points = new ArrayList<>();
+
+				for ( final RefinedPeak< Point > peak : peaks )
+				{
+					final double[] l = new double[ 3 ];
+					peak.localize( l );
+					dsCorrection.apply( l, l );
+					points.add( new InterestPoint( points.size(), l ) );
+				}
+
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): View " + Group.pvid( vd ) + ", found " + points.size() + " interest points." );
+
+				interestPoints.put( vd, points );
+			}
+		}
+		finally
+		{
+			service.shutdown();
+		}
+
+		return interestPoints;
+	}
+
+	/**
+	 * @param core - the part of the downsampled view to detect in, null for all of it
+	 * @return the subpixel peaks in coordinates of the downsampled view
+	 */
+	private static < T extends RealType< T > > List< RefinedPeak< Point > > detect(
+			final BasicImgLoader imgLoader,
+			final ViewId view,
+			final long[] ds,
+			final Interval core,
+			final Interval downsampled,
+			final long margin,
+			final double min,
+			final double max,
+			final double sigma1,
+			final double sigma2,
+			final double threshold,
+			final ExecutorService service )
+	{
+		final RandomAccessibleInterval< T > img;
+
+		if ( core == null )
+		{
+			img = DownsampleTools.openAndDownsample( imgLoader, view, ds, null, service );
+		}
+		else
+		{
+			// load the core with a margin for the filters, in coordinates of the downsampled view
+			final Interval region = DownsampleTools.getDownsampledRegion( downsampled, Intervals.expand( core, margin ) );
+			img = Views.translate( DownsampleTools.openAndDownsample( imgLoader, view, ds, region, service ), Intervals.minAsLongArray( region ) );
+		}
+
+		// normalize to [0,1] as DoG does, so the threshold means the same
+		final double range = max > min ? max - min : 1;
+		final RandomAccessibleInterval< FloatType > normalized = Converters.convert( img,
+				( i, o ) -> o.setReal( ( i.getRealDouble() - min ) / range ), new FloatType() );
+
+		final DogDetection< FloatType > detection = new DogDetection<>(
+				Views.extendMirrorSingle( normalized ), core == null ? normalized : core,
+				Util.getArrayFromValue( 1.0, normalized.numDimensions() ),
+				sigma1, sigma2, DogDetection.ExtremaType.MINIMA, threshold, true );
+		detection.setExecutorService( service );
+
+		return detection.getSubpixelPeaks();
+	}
+
+	/**
+	 * merge intervals that intersect (or touch) into their bounding box until all are disjoint
+	 */
+	private static void mergeIntersecting( final List< Interval > intervals )
+	{
+		boolean merged = true;
+
+		while ( merged )
+		{
+			merged = false;
+
+			for ( int i = 0; i < intervals.size() && !merged; ++i )
+				for ( int j = i + 1; j < intervals.size() && !merged; ++j )
+					if ( touch( intervals.get( i ), intervals.get( j ) ) )
+					{
+						intervals.set( i, Intervals.union( intervals.get( i ), intervals.get( j ) ) );
+						intervals.remove( j );
+						merged = true;
+					}
+		}
+	}
+
+	private static boolean touch( final Interval a, final Interval b )
+	{
+		for ( int d = 0; d < a.numDimensions(); ++d )
+			if ( a.max( d ) + 1 < b.min( d ) || b.max( d ) + 1 < a.min( d ) )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * @return the pixels of the real interval inside the bounds, null if there are none
+	 */
+	private static Interval clip( final RealInterval interval, final Interval bounds )
+	{
+		final int n = bounds.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = Math.max( bounds.min( d ), (long)Math.floor( interval.realMin( d ) ) );
+			max[ d ] = Math.min( bounds.max( d ), (long)Math.ceil( interval.realMax( d ) ) );
+
+			if ( max[ d ] < min[ d ] )
+				return null;
+		}
+
+		return new FinalInterval( min, max );
+	}
+
+	private static RealInterval grow( final RealInterval interval, final double border )
+	{
+		final int n = interval.numDimensions();
+		final double[] min = new double[ n ];
+		final double[] max = new double[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = interval.realMin( d ) - border;
+			max[ d ] = interval.realMax( d ) + border;
+		}
+
+		return new FinalRealInterval( min, max );
+	}
+
+	private static RealInterval pixelInterval( final Dimensions size )
+	{
+		final int n = size.numDimensions();
+		final double[] min = new double[ n ];
+		final double[] max = new double[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			max[ d ] = size.dimension( d ) - 1;
+
+		return new FinalRealInterval( min, max );
+	}
+}
@@ -34,6 +34,8 @@ import mpicbg.imglib.interpolation.linear.LinearInterpolatorFactory;
 import mpicbg.imglib.outofbounds.OutOfBoundsStrategyFactory;
 import net.imglib2.FinalInterval;
 import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgFactory;
@@ -43,9 +45,11 @@ import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineRandomAccessible;
 import net.imglib2.realtransform.RealViews;
 import net.imglib2.realtransform.Translation2D;
+import net.imglib2.realtransform.Translation3D;
 import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
+import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
@@ -91,6 +95,95 @@ public class PhaseCorrelationTest {
 	}
 
 	
+	@Test
+	public void testPCRestrictedShift() {
+		
+		Img< FloatType > img = ArrayImgs.floats( 200, 200 );
+		Random rnd = new Random( System.currentTimeMillis() );
+		
+		for( FloatType t : img )
+			t.set( rnd.nextFloat());
+		
+		long shiftX = 28;
+		long shiftY = -3;
+		
+		FinalInterval interval1 = new FinalInterval(new long[] {50, 50});
+		FinalInterval interval2 = Intervals.translate(interval1, shiftX, 0);
+		interval2 = Intervals.translate(interval2, shiftY, 1);
+
+		int [] extension = new int[img.numDimensions()];
+		Arrays.fill(extension, 10);
+		
+		RandomAccessibleInterval<FloatType> pcm = PhaseCorrelation2.calculatePCM(Views.zeroMin(Views.interval(Views.extendZero( img ), interval1)),
+				Views.zeroMin(Views.interval(Views.extendZero( img ), interval2)), extension, new ArrayImgFactory<FloatType>(), 
+				new FloatType(), new ArrayImgFactory<ComplexFloatType>(), new ComplexFloatType(), Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+		
+		// only look for shifts around the expected shift (25, 0), the search window wraps around in y
+		PhaseCorrelationPeak2 shiftPeak = PhaseCorrelation2.getShift(pcm, Views.zeroMin(Views.interval(Views.extendZero( img ), interval1)),
+				Views.zeroMin(Views.interval(Views.extendZero( img ), interval2)), 5, 0, false, false,
+				new double[] {25, 0}, new double[] {5, 5}, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+				Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+		
+		long[] expected = new long[]{shiftX, shiftY};
+		long[] found = new long[img.numDimensions()];
+		
+		shiftPeak.getShift().localize(found);
+		
+		assertArrayEquals(expected, found);
+	}
+	
+	@Test
+	public void testSubpixelCorrelation() {
+		
+		Img< FloatType > img1 = ArrayImgs.floats( 30, 20, 10 );
+		Img< FloatType > img2 = ArrayImgs.floats( 30, 20, 10 );
+		Random rnd = new Random( System.currentTimeMillis() );
+		
+		for( FloatType t : img1 )
+			t.set( rnd.nextFloat());
+		for( FloatType t : img2 )
+			t.set( rnd.nextFloat());
+		
+		double[] offset = new double[] {0.3, -0.45, 0.0};
+		
+		// reference: generic n-linear interpolation of img2 at x + offset
+		RandomAccessibleInterval< FloatType > moved = Views.interval( Views.raster( RealViews.transform(
+				Views.interpolate( Views.extendMirrorSingle( img2 ), new NLinearInterpolatorFactory< FloatType >() ),
+				new Translation3D( -offset[0], -offset[1], -offset[2] ) ) ), img2 );
+		
+		double expected = PhaseCorrelation2Util.getCorrelation( img1, moved );
+		double found = PhaseCorrelation2Util.getCorrelationSubpixel( img1, Views.extendMirrorSingle( img2 ), offset );
+		
+		assertEquals( expected, found, 1e-4 );
+	}
+	
+	@Test
+	public void testDenseCrossCorrelation() {
+		
+		Img< FloatType > img1 = ArrayImgs.floats( 30, 20, 10 );
+		Img< FloatType > img2 = ArrayImgs.floats( 25, 20, 12 );
+		Random rnd = new Random( System.currentTimeMillis() );
+		
+		// large offset to check that the sums do not lose precision
+		for( FloatType t : img1 )
+			t.set( 1000 + rnd.nextFloat());
+		for( FloatType t : img2 )
+			t.set( 1000 + rnd.nextFloat());
+		
+		NormalizedCrossCorrelation ncc = NormalizedCrossCorrelation.compute( img1, img2, Executors.newFixedThreadPool( 2 ) );
+		
+		for ( long[] shift : new long[][] { {0, 0, 0}, {5, -3, 2}, {-20, 10, -8}, {29, 19, 9} } )
+		{
+			Pair< Interval, Interval > overlaps = PhaseCorrelation2Util.getOverlapIntervals( img1, img2, new Point( shift ) );
+			
+			double expected = PhaseCorrelation2Util.getCorrelation( Views.zeroMin( Views.interval( img1, overlaps.getA() ) ),
+					Views.zeroMin( Views.interval( img2, overlaps.getB() ) ) );
+			double found = ncc.getCorrelation( new Point( shift ), overlaps );
+			
+			assertEquals( expected, found, 1e-4 );
+		}
+	}
+
 	@Test
 	public void testPCNegativeShift() {
 		
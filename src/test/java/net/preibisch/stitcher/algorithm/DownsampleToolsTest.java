@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.process.interestpointdetection.methods.downsampling.Downsample;
+
+public class DownsampleToolsTest
+{
+	static final ExecutorService service = Executors.newFixedThreadPool( 4 );
+
+	@AfterClass
+	public static void shutdown()
+	{
+		service.shutdown();
+	}
+
+	private static Img< FloatType > random( final long... dim )
+	{
+		final Img< FloatType > img = ArrayImgs.floats( dim );
+		final Random rnd = new Random( 42 );
+
+		for ( final FloatType t : img )
+			t.set( rnd.nextFloat() * 1000 );
+
+		return img;
+	}
+
+	private static void assertImagesEqual( final RandomAccessibleInterval< FloatType > expected, final RandomAccessibleInterval< FloatType > actual, final double delta )
+	{
+		assertArrayEquals( Intervals.dimensionsAsLongArray( expected ), Intervals.dimensionsAsLongArray( actual ) );
+
+		final Cursor< FloatType > e = Views.flatIterable( expected ).cursor();
+		final Cursor< FloatType > a = Views.flatIterable( actual ).cursor();
+
+		while ( e.hasNext() )
+			assertEquals( e.next().get(), a.next().get(), delta );
+	}
+
+	@Test
+	public void testSameAsRepeated2x()
+	{
+		final Img< FloatType > img = random( 32, 24, 8 );
+
+		// the previous implementation: repeated 2x downsampling per dimension
+		RandomAccessibleInterval< FloatType > expected = img;
+		expected = Downsample.simple2x( expected, new ArrayImgFactory< FloatType >(), new boolean[]{ true, false, false } );
+		expected = Downsample.simple2x( expected, new ArrayImgFactory< FloatType >(), new boolean[]{ true, false, false } );
+		expected = Downsample.simple2x( expected, new ArrayImgFactory< FloatType >(), new boolean[]{ false, true, false } );
+		expected = Downsample.simple2x( expected, new ArrayImgFactory< FloatType >(), new boolean[]{ false, false, true } );
+
+		final RandomAccessibleInterval< FloatType > actual = DownsampleTools.downsample( img, new long[]{ 4, 2, 2 }, service );
+
+		assertImagesEqual( expected, actual, 1e-3 );
+	}
+
+	@Test
+	public void testBlockAverage()
+	{
+		final Img< FloatType > img = ArrayImgs.floats( new float[]{
+				1, 2, 3, 4, 5, 6,
+				7, 8, 9, 10, 11, 12,
+				13, 14, 15, 16, 17, 18 }, 6, 3 );
+
+		// 3x3 blocks
+		final RandomAccessibleInterval< FloatType > actual = DownsampleTools.downsample( img, new long[]{ 3, 3 }, service );
+
+		assertImagesEqual( ArrayImgs.floats( new float[]{ 8, 11 }, 2, 1 ), actual, 1e-6 );
+
+		// factors beyond the image size average the whole dimension
+		final RandomAccessibleInterval< FloatType > column = DownsampleTools.downsample( img, new long[]{ 8, 1 }, service );
+
+		assertImagesEqual( ArrayImgs.floats( new float[]{ 3.5f, 9.5f, 15.5f }, 1, 3 ), column, 1e-6 );
+	}
+
+	@Test
+	public void testTypeAndIdentity()
+	{
+		final Img< UnsignedShortType > img = ArrayImgs.unsignedShorts( new short[]{ 1, 2, 4, 4 }, 4 );
+
+		final RandomAccessibleInterval< UnsignedShortType > ds = DownsampleTools.downsample( img, new long[]{ 2 }, service );
+
+		// the type is preserved (and values are rounded like before)
+		assertTrue( UnsignedShortType.class.isInstance( Util.getTypeFromInterval( ds ) ) );
+		assertEquals( 2, Views.flatIterable( ds ).firstElement().get() );
+
+		// nothing to downsample
+		assertSame( img, DownsampleTools.downsample( img, new long[]{ 1, 1, 1 }, service ) );
+	}
+
+	@Test
+	public void testDownsampledSize()
+	{
+		assertEquals( 8, DownsampleTools.downsampledSize( 32, 4 ) );
+		assertEquals( 2, DownsampleTools.downsampledSize( 11, 4 ) );
+		assertEquals( 1, DownsampleTools.downsampledSize( 3, 4 ) );
+	}
+}
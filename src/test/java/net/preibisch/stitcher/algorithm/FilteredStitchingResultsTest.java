@@ -0,0 +1,226 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.StitchingResults;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.FilteredStitchingResults.AbsoluteShiftFilter;
+import net.preibisch.stitcher.algorithm.FilteredStitchingResults.CorrelationFilter;
+import net.preibisch.stitcher.algorithm.FilteredStitchingResults.Filter;
+import net.preibisch.stitcher.algorithm.FilteredStitchingResults.ShiftMagnitudeFilter;
+
+public class FilteredStitchingResultsTest
+{
+	private static final int numLinks = 300;
+
+	/**
+	 * a filter that is no RangeFilter: rejects links whose first group starts with a setup id divisible by m
+	 */
+	public static class SetupFilter implements Filter
+	{
+		private final int m;
+
+		public SetupFilter( final int m )
+		{
+			this.m = m;
+		}
+
+		@Override
+		public <C extends Comparable< C >> boolean conforms( final PairwiseStitchingResult< C > result )
+		{
+			final ViewId first = (ViewId) result.pair().getA().getViews().iterator().next();
+			return first.getViewSetupId() % m != 0;
+		}
+	}
+
+	private StitchingResults wrapped;
+	private Random rnd;
+
+	@Before
+	public void setup()
+	{
+		wrapped = new StitchingResults();
+		rnd = new Random( 42 );
+
+		for ( int i = 0; i < numLinks; ++i )
+		{
+			final Group< ViewId > groupA = new Group<>( Arrays.asList( new ViewId( 0, i ) ) );
+			final Group< ViewId > groupB = new Group<>( Arrays.asList( new ViewId( 0, i + numLinks ) ) );
+
+			final AffineTransform3D transform = new AffineTransform3D();
+			transform.setTranslation( 50 * ( 2 * rnd.nextDouble() - 1 ), 50 * ( 2 * rnd.nextDouble() - 1 ), 10 * ( 2 * rnd.nextDouble() - 1 ) );
+
+			// some links with the same correlation and some without a valid one
+			final double r = i % 25 == 0 ? Double.NaN : i % 10 == 0 ? 0.5 : rnd.nextDouble();
+
+			final Pair< Group< ViewId >, Group< ViewId > > pair = new ValuePair<>( groupA, groupB );
+			wrapped.getPairwiseResults().put( pair, new PairwiseStitchingResult<>( pair, null, transform, r, 0 ) );
+		}
+	}
+
+	private Set< Pair< Group< ViewId >, Group< ViewId > > > expected( final Map< Class< ? >, Filter > filters )
+	{
+		final Set< Pair< Group< ViewId >, Group< ViewId > > > expected = new HashSet<>();
+
+		for ( final PairwiseStitchingResult< ViewId > psr : wrapped.getPairwiseResults().values() )
+		{
+			boolean conforms = true;
+			for ( final Filter filter : filters.values() )
+				conforms &= filter.conforms( psr );
+
+			if ( conforms )
+				expected.add( psr.pair() );
+		}
+
+		return expected;
+	}
+
+	private Filter randomFilter( final int type )
+	{
+		switch ( type )
+		{
+		case 0:
+			final double a = rnd.nextDouble(), b = rnd.nextDouble();
+			// also hit the threshold of the links with equal correlation exactly
+			return rnd.nextInt( 4 ) == 0 ? new CorrelationFilter( 0.5, Math.max( 0.5, b ) ) : new CorrelationFilter( Math.min( a, b ), Math.max( a, b ) );
+		case 1:
+			final double[] minMaxShift = new double[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				minMaxShift[ d ] = rnd.nextBoolean() ? 50 * rnd.nextDouble() : -10 * rnd.nextDouble();
+			return new AbsoluteShiftFilter( minMaxShift );
+		case 2:
+			return new ShiftMagnitudeFilter( 70 * rnd.nextDouble() );
+		default:
+			return new SetupFilter( 2 + rnd.nextInt( 5 ) );
+		}
+	}
+
+	@Test
+	public void testIncrementalMatchesFullFiltering()
+	{
+		final FilteredStitchingResults filtered = new FilteredStitchingResults( wrapped );
+		final Map< Class< ? >, Filter > filters = new LinkedHashMap<>();
+
+		// the listener sees exactly the changes of the filtered results
+		final Set< Pair< Group< ViewId >, Group< ViewId > > > tracked = new HashSet<>( filtered.getPairwiseResults().keySet() );
+		filtered.addListener( ( added, removed ) ->
+		{
+			for ( final Pair< Group< ViewId >, Group< ViewId > > pair : removed )
+				assertTrue( tracked.remove( pair ) );
+			for ( final Pair< Group< ViewId >, Group< ViewId > > pair : added )
+				assertTrue( tracked.add( pair ) );
+		} );
+
+		assertEquals( numLinks, filtered.getPairwiseResults().size() );
+
+		for ( int step = 0; step < 200; ++step )
+		{
+			final Filter filter = randomFilter( rnd.nextInt( 4 ) );
+
+			if ( rnd.nextInt( 4 ) == 0 )
+			{
+				filtered.clearFilter( filter.getClass() );
+				filters.remove( filter.getClass() );
+			}
+			else
+			{
+				filtered.addFilter( filter );
+				filters.put( filter.getClass(), filter );
+			}
+
+			final Set< Pair< Group< ViewId >, Group< ViewId > > > expected = expected( filters );
+			assertEquals( "step " + step, expected, filtered.getPairwiseResults().keySet() );
+			assertEquals( "step " + step, expected, tracked );
+		}
+
+		// rebuilding from scratch gives the same result
+		final Set< Pair< Group< ViewId >, Group< ViewId > > > incremental = new HashSet<>( filtered.getPairwiseResults().keySet() );
+		filtered.updateFilteredResults();
+		assertEquals( incremental, filtered.getPairwiseResults().keySet() );
+	}
+
+	@Test
+	public void testWrappedResultsChanged()
+	{
+		final FilteredStitchingResults filtered = new FilteredStitchingResults( wrapped );
+		final Map< Class< ? >, Filter > filters = new LinkedHashMap<>();
+
+		final Filter correlation = new CorrelationFilter( 0.3, 1.0 );
+		filtered.addFilter( correlation );
+		filters.put( correlation.getClass(), correlation );
+
+		// a new link is picked up by the next filter change
+		final Pair< Group< ViewId >, Group< ViewId > > pair = new ValuePair<>(
+				new Group<>( Arrays.asList( new ViewId( 1, 0 ) ) ), new Group<>( Arrays.asList( new ViewId( 1, 1 ) ) ) );
+		wrapped.getPairwiseResults().put( pair, new PairwiseStitchingResult<>( pair, null, new AffineTransform3D(), 0.9, 0 ) );
+
+		final Filter magnitude = new ShiftMagnitudeFilter( 40 );
+		filtered.addFilter( magnitude );
+		filters.put( magnitude.getClass(), magnitude );
+
+		assertTrue( filtered.getPairwiseResults().containsKey( pair ) );
+		assertEquals( expected( filters ), filtered.getPairwiseResults().keySet() );
+	}
+
+	@Test
+	public void testWrappedResultReplaced()
+	{
+		final FilteredStitchingResults filtered = new FilteredStitchingResults( wrapped );
+		final Map< Class< ? >, Filter > filters = new LinkedHashMap<>();
+
+		final Filter correlation = new CorrelationFilter( 0.3, 1.0 );
+		filtered.addFilter( correlation );
+		filters.put( correlation.getClass(), correlation );
+
+		// recompute a rejected link with a good correlation (the number of links stays the same)
+		final PairwiseStitchingResult< ViewId > rejected = wrapped.getPairwiseResults().values().stream()
+				.filter( psr -> !correlation.conforms( psr ) ).findFirst().get();
+		wrapped.getPairwiseResults().put( rejected.pair(),
+				new PairwiseStitchingResult<>( rejected.pair(), null, rejected.getTransform(), 0.9, 0 ) );
+
+		final Filter magnitude = new ShiftMagnitudeFilter( 100 );
+		filtered.addFilter( magnitude );
+		filters.put( magnitude.getClass(), magnitude );
+
+		assertTrue( filtered.getPairwiseResults().containsKey( rejected.pair() ) );
+		assertEquals( expected( filters ), filtered.getPairwiseResults().keySet() );
+	}
+}
@@ -0,0 +1,164 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.generic.sequence.BasicSetupImgLoader;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+
+public class ViewStatisticsTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	// statistics are only associated with the imgloader instance, it does not have to load anything
+	final BasicImgLoader imgLoader = new BasicImgLoader()
+	{
+		@Override
+		public BasicSetupImgLoader< ? > getSetupImgLoader( final int setupId )
+		{
+			return null;
+		}
+	};
+
+	@After
+	public void clear()
+	{
+		ViewStatistics.clear();
+	}
+
+	private static Callable< RandomAccessibleInterval< ? > > open( final AtomicInteger count )
+	{
+		return new Callable< RandomAccessibleInterval< ? > >()
+		{
+			@Override
+			public RandomAccessibleInterval< ? > call() throws Exception
+			{
+				count.incrementAndGet();
+				return ArrayImgs.floats( new float[]{ 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }, 5, 2 );
+			}
+		};
+	}
+
+	@Test
+	public void testCompute()
+	{
+		final ViewStatistics stats = ViewStatistics.compute( ArrayImgs.floats( new float[]{ 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }, 5, 2 ) );
+
+		assertEquals( 10, stats.numPixels );
+		assertEquals( 5.5, stats.mean, 1e-9 );
+		assertEquals( 1, stats.min, 0 );
+		assertEquals( 10, stats.max, 0 );
+
+		long sum = 0;
+		for ( final long h : stats.histogram )
+			sum += h;
+
+		assertEquals( 10, sum );
+		assertEquals( 10, stats.getQuantile( 1.0 ), 1e-9 );
+	}
+
+	@Test
+	public void testMemoization()
+	{
+		final AtomicInteger count = new AtomicInteger();
+		final ViewId vid = new ViewId( 0, 1 );
+
+		final ViewStatistics a = ViewStatistics.get( imgLoader, vid, "1x1x1", open( count ) );
+		final ViewStatistics b = ViewStatistics.get( imgLoader, vid, "1x1x1", open( count ) );
+
+		assertSame( a, b );
+		assertEquals( 1, count.get() );
+
+		// different resolution
+		ViewStatistics.get( imgLoader, vid, "2x2x1", open( count ) );
+		assertEquals( 2, count.get() );
+
+		// failures are not memoized
+		final Callable< RandomAccessibleInterval< ? > > fail = new Callable< RandomAccessibleInterval< ? > >()
+		{
+			@Override
+			public RandomAccessibleInterval< ? > call() throws Exception
+			{
+				throw new RuntimeException( "test" );
+			}
+		};
+
+		assertNull( ViewStatistics.get( imgLoader, new ViewId( 0, 2 ), "1x1x1", fail ) );
+		assertNotNull( ViewStatistics.get( imgLoader, new ViewId( 0, 2 ), "1x1x1", open( count ) ) );
+	}
+
+	@Test
+	public void testSaveLoad() throws Exception
+	{
+		final AtomicInteger count = new AtomicInteger();
+		final ViewId vid = new ViewId( 3, 4 );
+		final ViewStatistics stats = ViewStatistics.get( imgLoader, vid, ViewStatistics.LOWEST_RESOLUTION, open( count ) );
+
+		final File file = folder.newFile( "dataset.statistics.csv" );
+		assertTrue( ViewStatistics.save( file, imgLoader, "source-a" ) );
+
+		ViewStatistics.clear();
+		assertTrue( ViewStatistics.load( file, imgLoader, "source-a" ) );
+
+		final ViewStatistics loaded = ViewStatistics.get( imgLoader, vid, ViewStatistics.LOWEST_RESOLUTION, open( count ) );
+
+		// loaded, not recomputed
+		assertEquals( 1, count.get() );
+		assertEquals( stats.numPixels, loaded.numPixels );
+		assertEquals( stats.mean, loaded.mean, 0 );
+		assertEquals( stats.min, loaded.min, 0 );
+		assertEquals( stats.max, loaded.max, 0 );
+		assertArrayEquals( stats.histogram, loaded.histogram );
+	}
+
+	@Test
+	public void testLoadOtherSource() throws Exception
+	{
+		final AtomicInteger count = new AtomicInteger();
+		final ViewId vid = new ViewId( 0, 0 );
+		ViewStatistics.get( imgLoader, vid, ViewStatistics.LOWEST_RESOLUTION, open( count ) );
+
+		final File file = folder.newFile( "dataset.statistics.csv" );
+		assertTrue( ViewStatistics.save( file, imgLoader, "source-a" ) );
+
+		// statistics of different raw data are ignored
+		ViewStatistics.clear();
+		assertFalse( ViewStatistics.load( file, imgLoader, "source-b" ) );
+
+		ViewStatistics.get( imgLoader, vid, ViewStatistics.LOWEST_RESOLUTION, open( count ) );
+		assertEquals( 2, count.get() );
+	}
+}
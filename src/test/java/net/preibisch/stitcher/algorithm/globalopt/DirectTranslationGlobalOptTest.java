@@ -0,0 +1,174 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import mpicbg.models.Tile;
+import mpicbg.models.TranslationModel3D;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.global.GlobalOpt;
+import net.preibisch.mvrecon.process.interestpointregistration.global.convergence.SimpleIterativeConvergenceStrategy;
+import net.preibisch.mvrecon.process.interestpointregistration.global.pointmatchcreating.strong.ImageCorrelationPointMatchCreator;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+public class DirectTranslationGlobalOptTest
+{
+	private static final int gridSize = 3;
+	private static final double tileSize = 100;
+	private static final double overlap = 10;
+
+	private static ViewId view( final int x, final int y )
+	{
+		return new ViewId( 0, y * gridSize + x );
+	}
+
+	private static List< Group< ViewId > > groups()
+	{
+		final List< Group< ViewId > > groups = new ArrayList<>();
+		for ( int y = 0; y < gridSize; ++y )
+			for ( int x = 0; x < gridSize; ++x )
+				groups.add( new Group<>( Arrays.asList( view( x, y ) ) ) );
+		return groups;
+	}
+
+	/**
+	 * links between all horizontal and vertical neighbors of the grid, with the given shifts (b relative to a)
+	 * plus uniform noise of the given amplitude and weights between 0.5 and 1
+	 */
+	private static List< PairwiseStitchingResult< ViewId > > gridLinks( final double[][] shifts, final double noise, final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final List< PairwiseStitchingResult< ViewId > > results = new ArrayList<>();
+
+		for ( int y = 0; y < gridSize; ++y )
+			for ( int x = 0; x < gridSize; ++x )
+			{
+				if ( x + 1 < gridSize )
+					results.add( link( view( x, y ), view( x + 1, y ), shifts, noise, rnd ) );
+				if ( y + 1 < gridSize )
+					results.add( link( view( x, y ), view( x, y + 1 ), shifts, noise, rnd ) );
+			}
+
+		return results;
+	}
+
+	private static PairwiseStitchingResult< ViewId > link( final ViewId a, final ViewId b, final double[][] shifts, final double noise, final Random rnd )
+	{
+		final double[] t = new double[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			t[ d ] = shifts[ b.getViewSetupId() ][ d ] - shifts[ a.getViewSetupId() ][ d ] + noise * ( 2 * rnd.nextDouble() - 1 );
+
+		final AffineTransform3D transform = new AffineTransform3D();
+		transform.setTranslation( t );
+
+		// the overlap of the two tiles in global coordinates
+		final double[] min = new double[ 3 ];
+		final double[] max = new double[ 3 ];
+		final int xa = a.getViewSetupId() % gridSize, ya = a.getViewSetupId() / gridSize;
+		final int xb = b.getViewSetupId() % gridSize, yb = b.getViewSetupId() / gridSize;
+		min[ 0 ] = Math.max( xa, xb ) * ( tileSize - overlap );
+		min[ 1 ] = Math.max( ya, yb ) * ( tileSize - overlap );
+		max[ 0 ] = Math.min( xa, xb ) * ( tileSize - overlap ) + tileSize;
+		max[ 1 ] = Math.min( ya, yb ) * ( tileSize - overlap ) + tileSize;
+		max[ 2 ] = 50;
+
+		return new PairwiseStitchingResult<>(
+				new ValuePair<>( new Group<>( Arrays.asList( a ) ), new Group<>( Arrays.asList( b ) ) ),
+				new FinalRealInterval( min, max ),
+				transform,
+				0.5 + 0.5 * rnd.nextDouble(),
+				0 );
+	}
+
+	private static double[][] randomShifts( final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final double[][] shifts = new double[ gridSize * gridSize ][ 3 ];
+		for ( final double[] shift : shifts )
+			for ( int d = 0; d < 3; ++d )
+				shift[ d ] = 10 * ( 2 * rnd.nextDouble() - 1 );
+		return shifts;
+	}
+
+	@Test
+	public void testConsistentLinksAreSolvedExactly()
+	{
+		final double[][] shifts = randomShifts( 1 );
+		final List< PairwiseStitchingResult< ViewId > > results = gridLinks( shifts, 0, 2 );
+		final List< Pair< Group< ViewId >, Group< ViewId > > > removed = new ArrayList<>();
+
+		final HashMap< ViewId, AffineTransform3D > direct = DirectTranslationGlobalOpt.compute(
+				results, groups(), Arrays.asList( view( 0, 0 ) ), 2.5, 3.5, true, null, removed );
+
+		assertEquals( gridSize * gridSize, direct.size() );
+		assertTrue( removed.isEmpty() );
+
+		for ( int i = 0; i < gridSize * gridSize; ++i )
+			for ( int d = 0; d < 3; ++d )
+				assertEquals( shifts[ i ][ d ] - shifts[ 0 ][ d ], direct.get( new ViewId( 0, i ) ).get( d, 3 ), 1e-6 );
+	}
+
+	@Test
+	public void testMatchesTileOptimizer()
+	{
+		final List< Group< ViewId > > groups = groups();
+		final List< ViewId > fixed = Arrays.asList( view( 1, 1 ) );
+		final List< PairwiseStitchingResult< ViewId > > results = gridLinks( randomShifts( 3 ), 2, 4 );
+
+		// thresholds high enough that neither drops links, so both solve the same weighted least squares problem
+		final HashMap< ViewId, AffineTransform3D > direct = DirectTranslationGlobalOpt.compute(
+				results, groups, fixed, Double.MAX_VALUE, Double.MAX_VALUE, false, null, new ArrayList<>() );
+
+		final Set< Group< ViewId > > groupSet = new HashSet<>( groups );
+		final HashMap< ViewId, Tile< TranslationModel3D > > tiles = GlobalOpt.compute(
+				new TranslationModel3D(),
+				new ImageCorrelationPointMatchCreator( results ),
+				new SimpleIterativeConvergenceStrategy( Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE ),
+				fixed,
+				groupSet );
+
+		for ( final Group< ViewId > group : groups )
+		{
+			final ViewId v = group.getViews().iterator().next();
+			final double[] m = tiles.get( v ).getModel().getMatrix( null );
+
+			for ( int d = 0; d < 3; ++d )
+				assertEquals( "view " + v.getViewSetupId() + ", dimension " + d, m[ d * 4 + 3 ], direct.get( v ).get( d, 3 ), 0.05 );
+		}
+	}
+}
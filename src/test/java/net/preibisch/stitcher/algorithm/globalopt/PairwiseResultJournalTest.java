@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2017 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+public class PairwiseResultJournalTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static PairwiseStitchingResult< ViewId > result( final int setupA, final int setupB, final boolean withBoundingBox )
+	{
+		final Group< ViewId > groupA = new Group<>( Arrays.asList( new ViewId( 0, setupA ), new ViewId( 0, setupA + 10 ) ) );
+		final Group< ViewId > groupB = new Group<>( Arrays.asList( new ViewId( 0, setupB ) ) );
+
+		final AffineTransform3D transform = new AffineTransform3D();
+		transform.set( 1, 0, 0, 12.25, 0, 1, 0, -3.5, 0, 0, 1, 0.125 );
+
+		return new PairwiseStitchingResult<>(
+				new ValuePair<>( groupA, groupB ),
+				withBoundingBox ? new FinalRealInterval( new double[]{ 0, 1.5, 2 }, new double[]{ 100, 200.25, 50 } ) : null,
+				transform,
+				0.875,
+				1234.5 );
+	}
+
+	private static void assertResultEquals( final PairwiseStitchingResult< ViewId > expected, final PairwiseStitchingResult< ViewId > actual )
+	{
+		assertEquals( expected.pair().getA(), actual.pair().getA() );
+		assertEquals( expected.pair().getB(), actual.pair().getB() );
+		assertEquals( expected.getHash(), actual.getHash(), 0 );
+		assertEquals( expected.r(), actual.r(), 0 );
+
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 4; ++c )
+				assertEquals( expected.getTransform().get( r, c ), actual.getTransform().get( r, c ), 0 );
+
+		if ( expected.getBoundingBox() == null )
+			assertNull( actual.getBoundingBox() );
+		else
+			for ( int d = 0; d < 3; ++d )
+			{
+				assertEquals( expected.getBoundingBox().realMin( d ), actual.getBoundingBox().realMin( d ), 0 );
+				assertEquals( expected.getBoundingBox().realMax( d ), actual.getBoundingBox().realMax( d ), 0 );
+			}
+	}
+
+	@Test
+	public void testRoundTrip()
+	{
+		for ( final boolean withBoundingBox : new boolean[]{ true, false } )
+		{
+			final PairwiseStitchingResult< ViewId > psr = result( 1, 2, withBoundingBox );
+			assertResultEquals( psr, PairwiseResultJournal.fromLine( PairwiseResultJournal.toLine( psr ) ) );
+		}
+	}
+
+	@Test
+	public void testTruncatedLine()
+	{
+		final String line = PairwiseResultJournal.toLine( result( 1, 2, true ) );
+
+		// no prefix of a line (as left by an interrupted write) is a valid line
+		for ( int length = 0; length < line.length(); ++length )
+		{
+			try
+			{
+				PairwiseResultJournal.fromLine( line.substring( 0, length ) );
+				fail( "parsed incomplete line '" + line.substring( 0, length ) + "'" );
+			}
+			catch ( final Exception e ) {}
+		}
+	}
+
+	@Test
+	public void testResume() throws Exception
+	{
+		final File file = new File( folder.getRoot(), "journal.txt" );
+
+		final PairwiseResultJournal journal = new PairwiseResultJournal( file );
+		assertTrue( journal.append( result( 1, 2, true ) ) );
+		assertTrue( journal.append( result( 3, 4, false ) ) );
+		journal.close();
+
+		final PairwiseResultJournal resumed = new PairwiseResultJournal( file );
+		assertEquals( 2, resumed.size() );
+		resumed.close();
+
+		// cut off the last line in the middle
+		try ( final RandomAccessFile raf = new RandomAccessFile( file, "rw" ) )
+		{
+			raf.setLength( raf.length() - 10 );
+		}
+
+		final PairwiseResultJournal truncated = new PairwiseResultJournal( file );
+		assertEquals( 1, truncated.size() );
+		truncated.close();
+	}
+}